@@ -1,13 +1,15 @@
 package com.smartgrid.app.plotter;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Toolkit;
-import java.sql.ResultSet;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Random;
 
 import javax.swing.JFrame;
@@ -23,7 +25,6 @@ import de.erichseifert.gral.plots.axes.AxisRenderer;
 import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
 import de.erichseifert.gral.plots.lines.LineRenderer;
 import de.erichseifert.gral.plots.points.PointRenderer;
-import de.erichseifert.gral.ui.InteractivePanel;
 import de.erichseifert.gral.util.Insets2D;
 import de.erichseifert.gral.util.Location;
 import de.erichseifert.gral.util.Orientation;
@@ -56,6 +57,13 @@ public class AveragePoliciesGraph {
 	 */
 	private DataSource priceSeries;
 
+	/**
+	 * DataSources for the bounds of the confidence bands of the estimated
+	 * demand averages, a lower and an upper bound per policy, empty unless
+	 * the averages are estimated first
+	 */
+	private ArrayList<DataSource> bandSeries;
+
 	/**
 	 * The specific run's date information
 	 */
@@ -97,124 +105,322 @@ public class AveragePoliciesGraph {
 	 */
 	private long axisY;
 
+	/**
+	 * Loads the ticks visible at full resolution as the plots are zoomed into
+	 */
+	private ViewportLoader loader;
+
+	/**
+	 * The performance figures of the graph, shown over its plot windows
+	 */
+	private PlotDiagnostics diagnostics;
+
+	/**
+	 * The data of each policy and the aggregator's data as loaded, which hold
+	 * every tick of short runs
+	 */
+	private ArrayList<TickColumns> policyData;
+	private TickColumns prices;
+
+	/**
+	 * Retrieve ranges of the data of each policy and of the aggregator's
+	 * data, for the loader as well as for the views that need every tick
+	 */
+	private ArrayList<ViewportLoader.RangeFetcher> policyFetchers;
+	private ViewportLoader.RangeFetcher priceFetcher;
+
 	/**
 	 * The constructor for the Average Policies Graph.
 	 * 
 	 * @param runID
 	 *            the ID of the specified run to show the graphs for
 	 */
-	@SuppressWarnings("unchecked")
 	public AveragePoliciesGraph(int runID) {
+		try {
+			read(runID, provider());
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+
+		// prefetch the adjacent runs while this one is shown
+		Prefetcher.getInstance().focus(runID, -1);
+	}
+
+	/**
+	 * The constructor for the Average Policies Graph, reading the run's data
+	 * from the provider given.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	public AveragePoliciesGraph(int runID, PlotterDataProvider p)
+			throws SQLException, IOException {
+		read(runID, p);
+	}
+
+	/**
+	 * Loads the Average Policies Graph of a run from the DB like
+	 * {@link #AveragePoliciesGraph(int)}, but fails instead of terminating,
+	 * so that a server can report the failure and carry on.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @return the graph
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	static AveragePoliciesGraph load(int runID) throws SQLException,
+			IOException {
+		AveragePoliciesGraph graph = new AveragePoliciesGraph(runID,
+				provider());
+
+		// prefetch the adjacent runs while this one is shown
+		Prefetcher.getInstance().focus(runID, -1);
+		return graph;
+	}
+
+	/**
+	 * @return the provider the graph reads the run's data from by default
+	 */
+	private static PlotterDataProvider provider() {
+		return Prefetcher.getInstance().provider(
+				ClientAggregatingDataProvider.forDeployment(new PlotterDB()));
+	}
+
+	/**
+	 * Reads the run's data from the provider given into the series of the
+	 * graph.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	private void read(int runID, PlotterDataProvider p) throws SQLException,
+			IOException {
+
+		// time the retrieval of the data for the diagnostics overlay
+		diagnostics = new PlotDiagnostics();
+		p = diagnostics.wrap(p);
 
 		// get user's screen size for calculating the plot windows sizes
-		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+		Dimension screenSize = Screen.getSize();
 		width = (int) (screenSize.getWidth() / 2);
 		height = (int) (screenSize.getHeight() / 2);
 
 		// initialize our DataSources
 		demandSeries = new ArrayList<DataSource>();
 		appliancesSeries = new ArrayList<DataSource>();
-
-		// create an object that provides connection to the DB
-		PlotterDB p = new PlotterDB();
+		bandSeries = new ArrayList<DataSource>();
+		policyData = new ArrayList<TickColumns>();
+		policyFetchers = new ArrayList<ViewportLoader.RangeFetcher>();
 
 		// the list of IDs for the policies that will be shown on the plots
 		ArrayList<Integer> policyIDs = new ArrayList<Integer>();
 
+		// the first and last tick of the run and the number of ticks
+		long[] bounds = null;
+		long resolution = 0;
+
 		// connect to the DB and get the run's information,
 		// as well as the list of policy IDs
 		if (p.open()) {
 			runInfo = p.getRunInfo(runID);
 			policyIDs = p.getRunPolicies(runID);
+			if (policyIDs == null) {
+				p.close();
+				throw new SQLException("The policies of the run could not be"
+						+ " retrieved");
+			}
+			bounds = p.getTickBounds(runID);
+			resolution = ViewportLoader.overviewResolution(bounds);
 		} else {
-			System.out
-					.println("There was something wrong with getting data from the DB,"
-							+ " execution terminated.");
-			System.exit(1);
+			throw new SQLException("No connection to the DB");
 		}
 
 		// create the list of colors with one color per policy
 		randomColors(policyIDs.size());
 
 		// temp variables used for calculating the axes positions
-		boolean b = true;
 		axisY = 0;
 		demandAxisX = Double.MAX_VALUE;
 		appliancesAxisX = Integer.MAX_VALUE;
 
-		// temp variables for the priceList iteration
-		int i = 0;
-		boolean c = true;
 		priceAxisX = Double.MAX_VALUE;
 
-		// retrieving price data from the DB
-		ArrayList<Double> prices = p.getPrices(runID);
-
 		// initializing the price DataTable
 		DataTable priceTable = new DataTable(Long.class, Double.class);
 
+		// load the ticks at full resolution as the plots are zoomed into,
+		// and the series at the granularities chosen; a short run whose
+		// ticks are all loaded in the first place is only reloaded at a
+		// granularity
+		final int run = runID;
+		loader = new ViewportLoader(p, bounds);
+		diagnostics.setLoader(loader);
+
+		// the policy of each household, if the averages are estimated from
+		// samples of households first, and the refinements of the estimates,
+		// started once the connection is closed
+		HashMap<Integer, Integer> householdPolicies = null;
+		Random random = new Random(runID);
+		ArrayList<Runnable> refinements = new ArrayList<Runnable>();
+		if (resolution > 0 && ProgressiveAverage.isEnabled()) {
+			householdPolicies = p.getHouseholdPolicies(runID);
+		}
+
 		// retrieving data for each policy and populating the DataTables
 		try {
+			// retrieving an overview of the price data from the DB
+			prices = TickColumns.read(p.getAggregatorSeries(runID,
+					Long.MIN_VALUE, Long.MAX_VALUE, resolution), 3);
+
+			// price data added to its DataTable
+			for (int i = 0; i < prices.size(); i++) {
+				double pr = prices.getValue(PlotterDataProvider.PRICE, i);
+				priceTable.add(prices.getTick(i), pr);
+
+				// perform checks for the price axis position
+				if (priceAxisX > pr) {
+					priceAxisX = pr;
+				}
+			}
+
+			priceFetcher = new ViewportLoader.RangeFetcher() {
+				public SeriesCursor fetch(PlotterDataProvider p, long fromTick,
+						long toTick, long resolution, String aggregate) {
+					return p.getAggregatorSeries(run, fromTick, toTick,
+							resolution, aggregate);
+				}
+			};
+			loader.addSource(priceFetcher, prices,
+					new DataTable[] { priceTable },
+					new int[] { PlotterDataProvider.PRICE },
+					new boolean[] { false });
+
 			for (int policyID : policyIDs) {
 
 				// initializing the DataTables
-				DataTable demandTable = new DataTable(Long.class, Double.class);
-				DataTable appliancesTable = new DataTable(Long.class,
+				final DataTable demandTable = new DataTable(Long.class,
+						Double.class);
+				final DataTable appliancesTable = new DataTable(Long.class,
 						Integer.class);
 
-				// retrieving the policy's data from the DB
-				ResultSet rs = p.getPolicyAverageData(runID, policyID);
-
-				// while the ResultSet returned contains more rows
-				while (rs.next()) {
-
-					// get the individual data of this row:
-					// tick, demand, appliances
-					long date = rs.getTimestamp("tick").getTime();
-					double demand = rs.getDouble("demand");
-					int appliances = rs.getInt("appliancesOn");
-
-					// add this data to the DataTables
-					demandTable.add(date, demand);
-					appliancesTable.add(date, appliances);
-
-					// price data added to its DataTable
-					if (c) {
-						double pr = prices.get(i);
-						priceTable.add(date, pr);
-
-						// perform checks for the price axis position
-						if (priceAxisX > pr) {
-							priceAxisX = pr;
-						}
-
-						i++;
-					}
-
-					// perform checks/calculations for the axes positions
-					if (b) {
-						axisY = date;
-						b = false;
-					}
-
-					if (demandAxisX > demand) {
-						demandAxisX = demand;
-					}
-
-					if (appliancesAxisX > appliances) {
-						appliancesAxisX = appliances;
-					}
-
+				// the confidence band of the estimate: tick, lower and upper
+				// bound
+				final DataTable bandTable = new DataTable(Long.class,
+						Double.class, Double.class);
+
+				// retrieving an overview of the policy's data from the DB, or
+				// a first estimate of it from a small sample of households
+				ProgressiveAverage estimator = null;
+				SeriesCursor cursor = null;
+				if (householdPolicies != null) {
+					estimator = new ProgressiveAverage(runID, policyID,
+							householdPolicies, resolution, random);
+					estimator.refine(p);
+					cursor = estimator.estimate().cursor();
+				} else {
+					cursor = p.getPolicyAverageSeries(runID, policyID,
+							Long.MIN_VALUE, Long.MAX_VALUE, resolution);
 				}
 
-				// priceList iteration done
-				c = false;
+				// the overview parsed, kept for merging with full resolution
+				// ranges
+				final TickColumns overview = new TickColumns(2, 2048);
+
+				// the series is decoded on another thread while its batches
+				// of rows are added here, along with the bounds of an
+				// estimate
+				final boolean estimated = estimator != null;
+				new SeriesPipeline(estimated ? 4 : 2).run(cursor,
+						new SeriesPipeline.Sink() {
+							public void accept(TickColumns batch) {
+								for (int i = 0; i < batch.size(); i++) {
+									addRow(batch, i);
+								}
+							}
+
+							/**
+							 * Adds a row to the tables and overview.
+							 */
+							private void addRow(TickColumns batch, int i) {
+
+								// get the individual data of this row:
+								// tick, demand, appliances
+								long date = batch.getTick(i);
+								double demand = batch.getValue(
+										PlotterDataProvider.DEMAND, i);
+								int appliances = (int) batch.getValue(
+										PlotterDataProvider.APPLIANCES_ON, i);
+
+								// perform checks/calculations for the axes
+								// positions, from the first policy's first
+								// row
+								if (policyData.isEmpty()
+										&& overview.size() == 0) {
+									axisY = date;
+								}
+
+								// add this data to the DataTables
+								demandTable.add(date, demand);
+								appliancesTable.add(date, appliances);
+
+								int row = overview.addRow(date);
+								overview.setValue(PlotterDataProvider.DEMAND,
+										row, demand);
+								overview.setValue(
+										PlotterDataProvider.APPLIANCES_ON,
+										row, appliances);
+
+								if (estimated) {
+									bandTable.add(date, batch.getValue(
+											ProgressiveAverage.LOWER, i),
+											batch.getValue(
+													ProgressiveAverage.UPPER,
+													i));
+								}
+
+								if (demandAxisX > demand) {
+									demandAxisX = demand;
+								}
+
+								if (appliancesAxisX > appliances) {
+									appliancesAxisX = appliances;
+								}
+							}
+
+							public void finish() {
+								// every row is added as it arrives
+							}
+						});
 
 				// get the policy's information (name and version)
 				String policyInfo = p.getPolicyInfo(policyID);
 
 				// create new DataSources with the data parsed from the
-				// ResultSet
+				// series
 				DataSource dem = new DataSeries(policyInfo, demandTable, 0, 1);
 				DataSource app = new DataSeries(policyInfo, appliancesTable, 0,
 						1);
@@ -223,23 +429,74 @@ public class AveragePoliciesGraph {
 				// new DataSources just created
 				demandSeries.add(dem);
 				appliancesSeries.add(app);
+				policyData.add(overview);
+				if (estimator != null) {
+					bandSeries.add(new DataSeries(policyInfo, bandTable, 0, 1));
+					bandSeries.add(new DataSeries(policyInfo, bandTable, 0, 2));
+				}
 
-				// close the ResultSet since all data has been parsed
-				rs.close();
+				final int policy = policyID;
+				final ViewportLoader.RangeFetcher fetcher = new ViewportLoader.RangeFetcher() {
+					public SeriesCursor fetch(PlotterDataProvider p,
+							long fromTick, long toTick, long resolution,
+							String aggregate) {
+						return p.getPolicyAverageSeries(run, policy,
+								fromTick, toTick, resolution, aggregate);
+					}
+				};
+				policyFetchers.add(fetcher);
+				final int index = loader.addSource(fetcher, overview,
+						new DataTable[] { demandTable, appliancesTable },
+						new int[] { PlotterDataProvider.DEMAND,
+								PlotterDataProvider.APPLIANCES_ON },
+						new boolean[] { false, true }, estimator == null);
+
+				// refine the estimate in the background until it is exact
+				if (estimator != null) {
+					final ProgressiveAverage refined = estimator;
+					final DataTable band = bandTable;
+					final int position = policyData.size() - 1;
+					refinements.add(new Runnable() {
+						public void run() {
+							refined.refineInBackground(loader, index,
+									fetcher,
+									new ProgressiveAverage.Listener() {
+										public void refined(
+												TickColumns series,
+												boolean exact) {
+											if (series != null) {
+												policyData.set(position,
+														series);
+											}
+											ProgressiveAverage.fillBand(
+													band, series, exact);
+										}
+									});
+						}
+					});
+				}
 
 			}
 
 			// close the connection to the DB
 			p.close();
 
+			// start refining the estimates, if any, over the connection of
+			// the loader
+			for (Runnable refinement : refinements) {
+				refinement.run();
+			}
+
 			// populate the object's price DataSource attribute
 			priceSeries = new DataSeries(priceTable, 0, 1);
 
 		} catch (SQLException e) {
-			System.out
-					.println("There was something wrong, execution terminated.\n"
-							+ e.toString());
-			System.exit(1);
+			// the connection is still open, as the data could not be read
+			p.close();
+			throw e;
+		} catch (IOException e) {
+			p.close();
+			throw e;
 		}
 
 	}
@@ -277,6 +534,78 @@ public class AveragePoliciesGraph {
 		getGraph("priceLeft");
 	}
 
+	/**
+	 * Shows a graph of a series derived from every tick of the run, on the
+	 * top part of the screen
+	 * 
+	 * @param metric
+	 *            the name of the metric, one of {@link DerivedMetrics#METRICS}
+	 */
+	public void getDerivedGraph(String metric) {
+
+		// the plot of the derived series, computed at full resolution
+		XYPlot plot = null;
+		try {
+			plot = createDerivedPlot(metric);
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return;
+		}
+
+		// the frame window on which the plot is to be presented
+		JFrame graph = new JFrame();
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(2);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Shows a graph of the distribution of every tick of the run, on the top
+	 * part of the screen
+	 * 
+	 * @param view
+	 *            the name of the view, one of {@link Distributions#VIEWS}
+	 */
+	public void getDistributionGraph(String view) {
+
+		// the plot of the distribution, read at full resolution
+		XYPlot plot = null;
+		try {
+			plot = createDistributionPlot(view);
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return;
+		}
+
+		// the frame window on which the plot is to be presented
+		JFrame graph = new JFrame();
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(2);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
 	/**
 	 * Creates a new window that displays a plot with active appliances or
 	 * demand on axis Y, depending on the boolean that is passed, and time on
@@ -290,8 +619,50 @@ public class AveragePoliciesGraph {
 		// the frame window on which the plot is to be presented
 		JFrame graph = new JFrame();
 
-		// window close operation (exit application)
-		graph.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		// window close operation (close this window only)
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+		// set window size and position depending on the graph mode
+		if (mode == "demand") {
+			graph.setBounds(0, 0, width, height);
+		} else if (mode == "appliances") {
+			graph.setBounds(width, 0, width, height);
+		} else if (mode == "priceLeft") {
+			graph.setBounds(0, height, width, height);
+		} else if (mode == "priceRight") {
+			graph.setBounds(width, height, width, height);
+		}
+
+		// the actual plot that contains all the data
+		XYPlot plot = createPlot(mode);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// follow the visible range of the plot, and offer to view its
+		// series at coarser granularities
+		loader.attach(plot, graph);
+		graph.getContentPane().add(Granularity.selector(loader),
+				BorderLayout.NORTH);
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(2);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Creates a fully formatted plot for the graph mode given, without
+	 * attaching it to any window. Used by the plot windows as well as by
+	 * headless renderers.
+	 * 
+	 * @param mode
+	 *            controls the type of plot that will be created
+	 * @return the formatted {@link XYPlot}
+	 */
+	XYPlot createPlot(String mode) {
 
 		// create an Array of all the DataSources that will be used to create
 		// the plot
@@ -302,26 +673,24 @@ public class AveragePoliciesGraph {
 		String axisYTitle = null;
 
 		// depending on the String value passed as a parameter:
-		// 1. set window size and position
-		// 2. get the appropriate DataSource in an Array format
-		// 3. set the titles for the plot and Y axis
+		// 1. get the appropriate DataSource in an Array format
+		// 2. set the titles for the plot and Y axis
 		if (mode == "demand") {
-			graph.setBounds(0, 0, width, height);
-			demandSeries.toArray(dsAll);
+			ArrayList<DataSource> demand = new ArrayList<DataSource>(
+					demandSeries);
+			demand.addAll(bandSeries);
+			dsAll = demand.toArray(new DataSource[demand.size()]);
 			plotTitle = "Average Demand across Policies \n for run: " + runInfo;
 			axisYTitle = "Average Demand";
 		} else if (mode == "appliances") {
-			graph.setBounds(width, 0, width, height);
 			appliancesSeries.toArray(dsAll);
 			plotTitle = "Average Active Appliances across Policies \n for run: "
 					+ runInfo;
 			axisYTitle = "Average Active Appliances";
 		} else if (mode == "priceLeft") {
-			graph.setBounds(0, height, width, height);
 			plotTitle = "Price for run: " + runInfo;
 			axisYTitle = "Price";
 		} else if (mode == "priceRight") {
-			graph.setBounds(width, height, width, height);
 			plotTitle = "Price for run: " + runInfo;
 			axisYTitle = "Price";
 		}
@@ -385,7 +754,7 @@ public class AveragePoliciesGraph {
 		axisRendererX.setSetting(AxisRenderer.TICK_LABELS_FORMAT, dateFormat);
 
 		// set the axes positions from the object's attributes which were
-		// calculated beforehand (in the ResultSet parsing)
+		// calculated beforehand (in the series parsing)
 		axisRendererY.setSetting(AxisRenderer.INTERSECTION, axisY);
 
 		// assign appropriate axis position depending on the graph mode
@@ -404,9 +773,6 @@ public class AveragePoliciesGraph {
 		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
 		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
 
-		// get the plot on the frame
-		graph.getContentPane().add(new InteractivePanel(plot));
-
 		if (mode.contains("price")) {
 			// create new line object
 			LineRenderer lines = new DefaultLineRenderer2D();
@@ -424,7 +790,9 @@ public class AveragePoliciesGraph {
 			plot.getLineRenderer(priceSeries).setSetting(LineRenderer.COLOR,
 					color);
 		} else {
-			// draw a line on the plot for each of the policies
+			// draw a line on the plot for each of the policies, followed by
+			// the bounds of their bands, if any
+			int policies = appliancesSeries.size();
 			for (int i = 0; i < dsAll.length; i++) {
 
 				// create new line object
@@ -433,8 +801,17 @@ public class AveragePoliciesGraph {
 				// assign it the current DataSource
 				plot.setLineRenderer(dsAll[i], lines);
 
-				// get the color for the current DataSource
-				Color color = colors.get(i);
+				// get the color for the current DataSource, fainter for the
+				// bounds, which are left out of the legend
+				Color color = null;
+				if (i < policies) {
+					color = colors.get(i);
+				} else {
+					Color policyColor = colors.get((i - policies) / 2);
+					color = new Color(policyColor.getRed(),
+							policyColor.getGreen(), policyColor.getBlue(), 80);
+					plot.getLegend().remove(dsAll[i]);
+				}
 
 				// set the line and point renderers for the current
 				// DataSource on the plot
@@ -445,12 +822,175 @@ public class AveragePoliciesGraph {
 			}
 		}
 
-		// set the zoom for the frame
-		XYPlotNavigator xy = new XYPlotNavigator(plot);
-		xy.setZoom(2);
+		return plot;
+	}
 
-		// presenting the plot window
-		graph.setVisible(true);
+	/**
+	 * Creates a fully formatted plot of a series derived from the data of
+	 * each policy, with one line per policy, without attaching it to any
+	 * window. The series are computed at every tick of the run and plotted at
+	 * the granularity of the graph.
+	 * 
+	 * @param metric
+	 *            the name of the metric, one of {@link DerivedMetrics#METRICS}
+	 * @return the formatted {@link XYPlot}
+	 * @throws IllegalArgumentException
+	 *             if the metric is unknown or needs the supply
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	XYPlot createDerivedPlot(String metric) throws SQLException {
+
+		String title = DerivedMetrics.title(metric);
+		ArrayList<DataSeries> series = new ArrayList<DataSeries>();
+
+		// the metric is checked before any data is read
+		DerivedMetrics.compute(metric, new long[0], new double[0], null,
+				new double[0], new double[0], 0);
+
+		// plotted at the granularity chosen, or at that of the overviews
+		long interval = Math.max(loader.getInterval(), loader.getResolution());
+		String aggregate = loader.getAggregate();
+
+		// the work arrays, reused across policies
+		double[] price = new double[0];
+		double[] values = new double[0];
+
+		// the price at every tick of the run
+		TickColumns allPrices = readTicks(prices, priceFetcher, 3);
+
+		for (int i = 0; i < policyData.size(); i++) {
+			TickColumns ticks = readTicks(policyData.get(i),
+					policyFetchers.get(i), 2);
+			int n = ticks.size();
+			if (values.length < n) {
+				price = new double[n];
+				values = new double[n];
+			}
+
+			// the price at each of the policy's ticks
+			DerivedMetrics.align(ticks.getTicks(), n, allPrices.getTicks(),
+					allPrices.getColumn(PlotterDataProvider.PRICE),
+					allPrices.size(), price);
+
+			// compute the derived series from every tick of the policy
+			DerivedMetrics.compute(metric, ticks.getTicks(),
+					ticks.getColumn(PlotterDataProvider.DEMAND), null, price,
+					values, n);
+
+			String policyInfo = ((DataSeries) demandSeries.get(i)).getName();
+			series.add(new DataSeries(policyInfo, DerivedMetrics.table(
+					ticks.getTicks(), values, n, interval, aggregate), 0, 1));
+		}
+
+		return DerivedMetrics.createPlot("Average " + title + ", "
+				+ Granularity.describe(interval, aggregate) + "\n for run: "
+				+ runInfo, title, series, colors, axisY);
+	}
+
+	/**
+	 * Returns a series at full resolution: the series as loaded if it holds
+	 * every tick, or else every tick read again through the loader.
+	 * 
+	 * @param loaded
+	 *            the series as loaded
+	 * @param fetcher
+	 *            retrieves ranges of the series
+	 * @param columns
+	 *            the number of value columns of the series
+	 * @return the {@link TickColumns} of every tick
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	private TickColumns readTicks(TickColumns loaded,
+			ViewportLoader.RangeFetcher fetcher, int columns)
+			throws SQLException {
+		if (loader.getResolution() == 0) {
+			return loaded;
+		}
+		return loader.read(fetcher, columns);
+	}
+
+	/**
+	 * Creates a fully formatted plot of the distribution of each policy's
+	 * average demand, with one line per policy, or of the price, over every
+	 * tick of the run, without attaching it to any window.
+	 * 
+	 * @param view
+	 *            the name of the view, one of {@link Distributions#VIEWS}
+	 * @return the formatted {@link XYPlot}
+	 * @throws IllegalArgumentException
+	 *             if the view is unknown
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	XYPlot createDistributionPlot(String view) throws SQLException {
+
+		String title = Distributions.title(view);
+		ArrayList<DataSeries> series = new ArrayList<DataSeries>();
+		if (!Arrays.asList(Distributions.VIEWS).contains(view)) {
+			throw new IllegalArgumentException("View not available: " + view);
+		}
+
+		if (Distributions.PRICE_HISTOGRAM.equals(view)) {
+			TickColumns ticks = readTicks(prices, priceFetcher, 3);
+			int n = ticks.size();
+			double[] values = ticks.getColumn(PlotterDataProvider.PRICE);
+			double[] range = Distributions.range(values, n);
+			long[] counts = Distributions.histogram(values, n, range[0],
+					range[1], Distributions.DEFAULT_BINS);
+			series.add(new DataSeries("Price", Distributions.histogramTable(
+					counts, range[0], range[1]), 0, 1));
+			ArrayList<Color> priceColors = new ArrayList<Color>();
+			priceColors.add(new Color(0.0f, 0.5f, 1.0f));
+			return Distributions.createPlot(title + "\n for run: " + runInfo,
+					"Price", "Ticks", series, priceColors);
+		}
+
+		// the demand at every tick of each policy, rather than the buckets
+		// of the overviews
+		ArrayList<double[]> demand = new ArrayList<double[]>();
+		int[] rows = new int[policyData.size()];
+		for (int i = 0; i < policyData.size(); i++) {
+			TickColumns ticks = readTicks(policyData.get(i),
+					policyFetchers.get(i), 2);
+			rows[i] = ticks.size();
+			demand.add(Arrays.copyOf(
+					ticks.getColumn(PlotterDataProvider.DEMAND), rows[i]));
+		}
+
+		if (Distributions.DURATION_CURVE.equals(view)) {
+			for (int i = 0; i < demand.size(); i++) {
+				int n = rows[i];
+				double[] sorted = demand.get(i);
+				Distributions.sortDescending(sorted, n);
+				series.add(new DataSeries(((DataSeries) demandSeries.get(i))
+						.getName(), Distributions.durationTable(sorted, n), 0,
+						1));
+			}
+			return Distributions.createPlot("Average " + title
+					+ "\n for run: " + runInfo, "% of Time", "Demand", series,
+					colors);
+		}
+
+		// the same bins for every policy, so that they can be compared
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		for (int i = 0; i < demand.size(); i++) {
+			double[] range = Distributions.range(demand.get(i), rows[i]);
+			min = Math.min(min, range[0]);
+			max = Math.max(max, range[1]);
+		}
+
+		for (int i = 0; i < demand.size(); i++) {
+			long[] counts = Distributions.histogram(demand.get(i), rows[i],
+					min, max, Distributions.DEFAULT_BINS);
+			series.add(new DataSeries(((DataSeries) demandSeries.get(i))
+					.getName(), Distributions.histogramTable(counts, min, max),
+					0, 1));
+		}
+		return Distributions.createPlot("Average " + title + "\n for run: "
+				+ runInfo, "Demand", "Ticks", series, colors);
 	}
 
 	/**
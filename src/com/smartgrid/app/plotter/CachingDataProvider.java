@@ -0,0 +1,268 @@
+package com.smartgrid.app.plotter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ *
+ * Provides simulation data from a {@link SeriesCache} where it has been
+ * retrieved ahead of time, and from another provider otherwise.
+ *
+ * The overviews of the aggregator and policy average series, the tick bounds,
+ * the policies and the information of runs and policies are looked up in the
+ * cache; everything else is always retrieved from the other provider. The
+ * keys used are built by the static methods of this class, which the
+ * {@link Prefetcher} fills the cache with.
+ *
+ * @version 1.1
+ */
+public class CachingDataProvider implements PlotterDataProvider {
+
+	/**
+	 * The provider of the data that is not cached
+	 */
+	private PlotterDataProvider provider;
+
+	/**
+	 * The cache looked up first
+	 */
+	private SeriesCache cache;
+
+	/**
+	 * Creates a provider looking up the cache given before the other
+	 * provider.
+	 *
+	 * @param provider
+	 *            the provider of the data that is not cached
+	 * @param cache
+	 *            the cache looked up first
+	 */
+	public CachingDataProvider(PlotterDataProvider provider, SeriesCache cache) {
+		this.provider = provider;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the key of the aggregator series of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param fromTick
+	 *            the first tick
+	 * @param toTick
+	 *            the last tick
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds
+	 * @return the key
+	 */
+	static String aggregatorKey(int runID, long fromTick, long toTick,
+			long resolution) {
+		return SeriesCache.key("aggregator", runID, fromTick, toTick,
+				resolution);
+	}
+
+	/**
+	 * Returns the key of the average series of a policy during a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param policyID
+	 *            the ID of the policy
+	 * @param fromTick
+	 *            the first tick
+	 * @param toTick
+	 *            the last tick
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds
+	 * @return the key
+	 */
+	static String averageKey(int runID, int policyID, long fromTick,
+			long toTick, long resolution) {
+		return SeriesCache.key("average", runID, policyID, fromTick, toTick,
+				resolution);
+	}
+
+	/**
+	 * Returns the key of the tick bounds of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the key
+	 */
+	static String boundsKey(int runID) {
+		return SeriesCache.key("bounds", runID);
+	}
+
+	/**
+	 * Returns the key of the policies of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the key
+	 */
+	static String policiesKey(int runID) {
+		return SeriesCache.key("policies", runID);
+	}
+
+	/**
+	 * Returns the key of the date information of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the key
+	 */
+	static String runInfoKey(int runID) {
+		return SeriesCache.key("run", runID);
+	}
+
+	/**
+	 * Returns the key of the name and version information of a policy.
+	 *
+	 * @param policyID
+	 *            the ID of the policy
+	 * @return the key
+	 */
+	static String policyInfoKey(int policyID) {
+		return SeriesCache.key("policy", policyID);
+	}
+
+	public boolean open() {
+		return provider.open();
+	}
+
+	public void close() {
+		provider.close();
+	}
+
+	public void cancel() {
+		provider.cancel();
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID) {
+		return provider.getAggregatorSeries(runID);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution) {
+		Object series = cache.get(aggregatorKey(runID, fromTick, toTick,
+				resolution));
+		if (series instanceof CompressedSeries) {
+			return ((CompressedSeries) series).reader();
+		}
+		return provider.getAggregatorSeries(runID, fromTick, toTick,
+				resolution);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		// only the averaged series are prefetched
+		if (Granularity.AVG.equals(aggregate)) {
+			return getAggregatorSeries(runID, fromTick, toTick, resolution);
+		}
+		return provider.getAggregatorSeries(runID, fromTick, toTick,
+				resolution, aggregate);
+	}
+
+	public SeriesCursor getPolicyRandomSeries(int runID, int policyID) {
+		return provider.getPolicyRandomSeries(runID, policyID);
+	}
+
+	public int getPolicyRandomHousehold(int runID, int policyID) {
+		return provider.getPolicyRandomHousehold(runID, policyID);
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution) {
+		return provider.getHouseholdSeries(runID, householdID, fromTick,
+				toTick, resolution);
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		return provider.getHouseholdSeries(runID, householdID, fromTick,
+				toTick, resolution, aggregate);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID) {
+		return provider.getPolicyAverageSeries(runID, policyID);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution) {
+		Object series = cache.get(averageKey(runID, policyID, fromTick, toTick,
+				resolution));
+		if (series instanceof CompressedSeries) {
+			return ((CompressedSeries) series).reader();
+		}
+		return provider.getPolicyAverageSeries(runID, policyID, fromTick,
+				toTick, resolution);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		// only the averaged series are prefetched
+		if (Granularity.AVG.equals(aggregate)) {
+			return getPolicyAverageSeries(runID, policyID, fromTick, toTick,
+					resolution);
+		}
+		return provider.getPolicyAverageSeries(runID, policyID, fromTick,
+				toTick, resolution, aggregate);
+	}
+
+	public long[] getTickBounds(int runID) {
+		Object bounds = cache.get(boundsKey(runID));
+		if (bounds instanceof long[]) {
+			return ((long[]) bounds).clone();
+		}
+		return provider.getTickBounds(runID);
+	}
+
+	public RunSummary getRunSummary(int runID) {
+		return provider.getRunSummary(runID);
+	}
+
+	@SuppressWarnings("unchecked")
+	public ArrayList<Integer> getRunPolicies(int runID) {
+		Object policies = cache.get(policiesKey(runID));
+		if (policies instanceof ArrayList) {
+			return new ArrayList<Integer>((ArrayList<Integer>) policies);
+		}
+		return provider.getRunPolicies(runID);
+	}
+
+	public HashMap<Integer, Integer> getHouseholdPolicies(int runID) {
+		return provider.getHouseholdPolicies(runID);
+	}
+
+	public SeriesCursor getHouseholdsSeries(int runID) {
+		return provider.getHouseholdsSeries(runID);
+	}
+
+	public SeriesCursor getPolicyShareSeries(int runID, long resolution) {
+		return provider.getPolicyShareSeries(runID, resolution);
+	}
+
+	public HashMap<Integer, String> getRuns() {
+		return provider.getRuns();
+	}
+
+	public ArrayList<Double> getPrices(int runID) {
+		return provider.getPrices(runID);
+	}
+
+	public String getPolicyInfo(int policyID) {
+		Object info = cache.get(policyInfoKey(policyID));
+		if (info instanceof String) {
+			return (String) info;
+		}
+		return provider.getPolicyInfo(policyID);
+	}
+
+	public String getRunInfo(int runID) {
+		Object info = cache.get(runInfoKey(runID));
+		if (info instanceof String) {
+			return (String) info;
+		}
+		return provider.getRunInfo(runID);
+	}
+}
@@ -0,0 +1,531 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * Provides simulation data from another provider, except for the policy
+ * averages, which are computed by the plotter instead of the DB, so that the
+ * DB server, shared with the simulator, is spared the grouping of the
+ * household log.
+ *
+ * The households of the policy are split into ranges of IDs, and the raw log
+ * of each range is streamed over a connection of its own. The rows of each
+ * range are summed per tick, or per bucket, by a fork/join task, and the sums
+ * of the ranges are merged pairwise into the averages, minima, maxima and
+ * numbers of rows of each tick.
+ *
+ * Whether the DB or the plotter does the aggregation is chosen per deployment
+ * with the {@value #PROPERTY} system property, see
+ * {@link #forDeployment(PlotterDB)}.
+ *
+ * @version 1.1
+ */
+public class ClientAggregatingDataProvider implements PlotterDataProvider {
+
+	/**
+	 * The system property choosing where the policy averages are computed:
+	 * "db" for the DB, the default, or "client" for the plotter
+	 */
+	public static final String PROPERTY = "smartgrid.plotter.aggregation";
+
+	/**
+	 * The system property setting the number of connections the household
+	 * log is streamed over
+	 */
+	public static final String CONNECTIONS_PROPERTY = "smartgrid.plotter.aggregation.connections";
+
+	/**
+	 * The number of connections the household log is streamed over by default
+	 */
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	/**
+	 * The position of the lowest demand of a tick in the rows of the averages
+	 */
+	public static final int MIN_DEMAND = 2;
+
+	/**
+	 * The position of the highest demand of a tick in the rows of the averages
+	 */
+	public static final int MAX_DEMAND = 3;
+
+	/**
+	 * The position of the number of rows averaged in the rows of the averages
+	 */
+	public static final int COUNT = 4;
+
+	/**
+	 * The pool the ranges are streamed and merged on, large enough for every
+	 * connection to be read at once
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(
+			Runtime.getRuntime().availableProcessors(),
+			Integer.getInteger(CONNECTIONS_PROPERTY, DEFAULT_CONNECTIONS)));
+
+	/**
+	 * The provider of everything but the policy averages
+	 */
+	private PlotterDataProvider provider;
+
+	/**
+	 * The number of connections the household log is streamed over
+	 */
+	private int connections;
+
+	/**
+	 * The connections streaming the household log, for cancelling them
+	 */
+	private ArrayList<PlotterDB> streams;
+
+	/**
+	 * Creates a provider computing the policy averages itself, over the
+	 * number of connections given.
+	 *
+	 * @param provider
+	 *            the provider of everything but the policy averages
+	 * @param connections
+	 *            the number of connections the household log is streamed over
+	 */
+	public ClientAggregatingDataProvider(PlotterDataProvider provider,
+			int connections) {
+		this.provider = provider;
+		this.connections = Math.max(1, connections);
+		this.streams = new ArrayList<PlotterDB>();
+	}
+
+	/**
+	 * Returns the provider a graph retrieves its data from, as chosen for the
+	 * deployment by the {@value #PROPERTY} and {@value #CONNECTIONS_PROPERTY}
+	 * system properties.
+	 *
+	 * @param db
+	 *            the DB the data is retrieved from
+	 * @return the DB itself, or a {@link ClientAggregatingDataProvider} around
+	 *         it if the property is set to "client"
+	 */
+	public static PlotterDataProvider forDeployment(PlotterDB db) {
+		if ("client".equals(System.getProperty(PROPERTY))) {
+			return new ClientAggregatingDataProvider(db, Integer.getInteger(
+					CONNECTIONS_PROPERTY, DEFAULT_CONNECTIONS));
+		}
+		return db;
+	}
+
+	public boolean open() {
+		return provider.open();
+	}
+
+	public void close() {
+		provider.close();
+	}
+
+	public void cancel() {
+		provider.cancel();
+		synchronized (streams) {
+			for (PlotterDB db : streams) {
+				db.cancel();
+			}
+		}
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID) {
+		return provider.getAggregatorSeries(runID);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution) {
+		return provider.getAggregatorSeries(runID, fromTick, toTick,
+				resolution);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		return provider.getAggregatorSeries(runID, fromTick, toTick,
+				resolution, aggregate);
+	}
+
+	public SeriesCursor getPolicyRandomSeries(int runID, int policyID) {
+		return provider.getPolicyRandomSeries(runID, policyID);
+	}
+
+	public int getPolicyRandomHousehold(int runID, int policyID) {
+		return provider.getPolicyRandomHousehold(runID, policyID);
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution) {
+		return provider.getHouseholdSeries(runID, householdID, fromTick,
+				toTick, resolution);
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		return provider.getHouseholdSeries(runID, householdID, fromTick,
+				toTick, resolution, aggregate);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID) {
+		return getPolicyAverageSeries(runID, policyID, Long.MIN_VALUE,
+				Long.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Computes the average series of a policy from the raw household log.
+	 * Besides {@link #DEMAND} and {@link #APPLIANCES_ON}, its rows hold the
+	 * lowest and highest demand of a household at {@link #MIN_DEMAND} and
+	 * {@link #MAX_DEMAND}, and the number of rows averaged at {@link #COUNT}.
+	 */
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution) {
+
+		// the households of the policy, split into ranges of equal size
+		ArrayList<Integer> households = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> entry : provider
+				.getHouseholdPolicies(runID).entrySet()) {
+			if (entry.getValue() == policyID) {
+				households.add(entry.getKey());
+			}
+		}
+		if (households.isEmpty()) {
+			return new TickSums(1).cursor();
+		}
+		int[] ids = new int[households.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = households.get(i);
+		}
+		Arrays.sort(ids);
+
+		int ranges = Math.min(connections, ids.length);
+		int[][] bounds = new int[ranges][];
+		for (int r = 0; r < ranges; r++) {
+			bounds[r] = new int[] { ids[(int) ((long) r * ids.length / ranges)],
+					ids[(int) ((long) (r + 1) * ids.length / ranges) - 1] };
+		}
+
+		TickSums sums = POOL.invoke(new Aggregate(runID, policyID, bounds, 0,
+				ranges, fromTick, toTick, resolution));
+		return sums == null ? null : sums.cursor();
+	}
+
+	/**
+	 * The averages are computed here; the lowest and highest averages of the
+	 * buckets are left to the other provider, which reduces them in the DB.
+	 */
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		if (resolution <= 0 || Granularity.AVG.equals(aggregate)) {
+			return getPolicyAverageSeries(runID, policyID, fromTick, toTick,
+					resolution);
+		}
+		return provider.getPolicyAverageSeries(runID, policyID, fromTick,
+				toTick, resolution, aggregate);
+	}
+
+	public long[] getTickBounds(int runID) {
+		return provider.getTickBounds(runID);
+	}
+
+	public RunSummary getRunSummary(int runID) {
+		return provider.getRunSummary(runID);
+	}
+
+	public ArrayList<Integer> getRunPolicies(int runID) {
+		return provider.getRunPolicies(runID);
+	}
+
+	public HashMap<Integer, Integer> getHouseholdPolicies(int runID) {
+		return provider.getHouseholdPolicies(runID);
+	}
+
+	public SeriesCursor getHouseholdsSeries(int runID) {
+		return provider.getHouseholdsSeries(runID);
+	}
+
+	public SeriesCursor getPolicyShareSeries(int runID, long resolution) {
+		return provider.getPolicyShareSeries(runID, resolution);
+	}
+
+	public HashMap<Integer, String> getRuns() {
+		return provider.getRuns();
+	}
+
+	public ArrayList<Double> getPrices(int runID) {
+		return provider.getPrices(runID);
+	}
+
+	public String getPolicyInfo(int policyID) {
+		return provider.getPolicyInfo(policyID);
+	}
+
+	public String getRunInfo(int runID) {
+		return provider.getRunInfo(runID);
+	}
+
+	/**
+	 * Sums the log of a number of household ranges, splitting them in half
+	 * until a single range is left, which is streamed over a connection of its
+	 * own, and merging the sums of the halves.
+	 */
+	@SuppressWarnings("serial")
+	private class Aggregate extends RecursiveTask<TickSums> {
+
+		int runID, policyID;
+
+		int[][] bounds;
+
+		int from, to;
+
+		long fromTick, toTick, resolution;
+
+		Aggregate(int runID, int policyID, int[][] bounds, int from, int to,
+				long fromTick, long toTick, long resolution) {
+			this.runID = runID;
+			this.policyID = policyID;
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+			this.fromTick = fromTick;
+			this.toTick = toTick;
+			this.resolution = resolution;
+		}
+
+		Aggregate half(int from, int to) {
+			return new Aggregate(runID, policyID, bounds, from, to, fromTick,
+					toTick, resolution);
+		}
+
+		@Override
+		protected TickSums compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				Aggregate left = half(from, middle);
+				left.fork();
+				TickSums sums = half(middle, to).compute();
+				TickSums leftSums = left.join();
+				if (sums == null || leftSums == null) {
+					return null;
+				}
+				return sums.merge(leftSums);
+			}
+			return stream(bounds[from][0], bounds[from][1]);
+		}
+
+		/**
+		 * Streams the log of a range of households and sums it.
+		 *
+		 * @param fromHousehold
+		 *            the lowest household ID
+		 * @param toHousehold
+		 *            the highest household ID
+		 * @return the sums, or null if the log could not be retrieved
+		 */
+		TickSums stream(int fromHousehold, int toHousehold) {
+			PlotterDB db = new PlotterDB();
+			db.setStreaming(true);
+			if (!db.open()) {
+				return null;
+			}
+			synchronized (streams) {
+				streams.add(db);
+			}
+
+			// the buckets start at whole seconds, as they do in the DB
+			long seconds = Math.max(1, resolution / 1000);
+			TickSums sums = new TickSums(1024);
+			try {
+				ResultSet rs = db.getPolicyHouseholdsData(runID, policyID,
+						fromHousehold, toHousehold, fromTick, toTick);
+				if (rs == null) {
+					return null;
+				}
+				ResultSetCursor cursor = new ResultSetCursor(rs, "demand",
+						"appliancesOn");
+				while (cursor.next()) {
+					long tick = cursor.getTick();
+					if (resolution > 0) {
+						tick = tick / 1000 / seconds * seconds * 1000;
+					}
+					sums.add(tick, cursor.getValue(DEMAND),
+							cursor.getValue(APPLIANCES_ON));
+				}
+				cursor.close();
+			} catch (SQLException e) {
+				System.out.println("SQL Exception: " + e.toString());
+				return null;
+			} finally {
+				synchronized (streams) {
+					streams.remove(db);
+				}
+				db.close();
+			}
+			return sums;
+		}
+	}
+
+	/**
+	 * The sums of the rows of each tick, in a hash table keyed by tick with
+	 * open addressing, so that the unordered log is summed without a map
+	 * entry per tick.
+	 */
+	static class TickSums {
+
+		long[] ticks;
+
+		double[] demand, appliances, min, max;
+
+		int[] count;
+
+		int size;
+
+		/**
+		 * The position of each tick in the columns plus one, or 0 for an empty
+		 * slot
+		 */
+		int[] slots;
+
+		TickSums(int capacity) {
+			int n = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+			ticks = new long[n / 2];
+			demand = new double[n / 2];
+			appliances = new double[n / 2];
+			min = new double[n / 2];
+			max = new double[n / 2];
+			count = new int[n / 2];
+			slots = new int[n];
+		}
+
+		/**
+		 * Returns the position of a tick in the columns, adding it if new.
+		 */
+		int index(long tick) {
+			int mask = slots.length - 1;
+			long h = tick * 0x9E3779B97F4A7C15L;
+			int slot = (int) (h ^ (h >>> 32)) & mask;
+			while (slots[slot] != 0) {
+				int i = slots[slot] - 1;
+				if (ticks[i] == tick) {
+					return i;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if (size == ticks.length) {
+				grow();
+				return index(tick);
+			}
+			int i = size++;
+			slots[slot] = i + 1;
+			ticks[i] = tick;
+			min[i] = Double.POSITIVE_INFINITY;
+			max[i] = Double.NEGATIVE_INFINITY;
+			return i;
+		}
+
+		/**
+		 * Doubles the capacity, keeping the table at most half full.
+		 */
+		void grow() {
+			int n = ticks.length * 2;
+			ticks = Arrays.copyOf(ticks, n);
+			demand = Arrays.copyOf(demand, n);
+			appliances = Arrays.copyOf(appliances, n);
+			min = Arrays.copyOf(min, n);
+			max = Arrays.copyOf(max, n);
+			count = Arrays.copyOf(count, n);
+			slots = new int[n * 2];
+
+			int mask = slots.length - 1;
+			for (int i = 0; i < size; i++) {
+				long h = ticks[i] * 0x9E3779B97F4A7C15L;
+				int slot = (int) (h ^ (h >>> 32)) & mask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = i + 1;
+			}
+		}
+
+		void add(long tick, double d, double a) {
+			int i = index(tick);
+			demand[i] += d;
+			appliances[i] += a;
+			min[i] = Math.min(min[i], d);
+			max[i] = Math.max(max[i], d);
+			count[i]++;
+		}
+
+		/**
+		 * Adds the sums of another table to these, merging the smaller table
+		 * into the larger.
+		 *
+		 * @return the merged table
+		 */
+		TickSums merge(TickSums other) {
+			if (other.size > size) {
+				return other.merge(this);
+			}
+			for (int j = 0; j < other.size; j++) {
+				int i = index(other.ticks[j]);
+				demand[i] += other.demand[j];
+				appliances[i] += other.appliances[j];
+				min[i] = Math.min(min[i], other.min[j]);
+				max[i] = Math.max(max[i], other.max[j]);
+				count[i] += other.count[j];
+			}
+			return this;
+		}
+
+		/**
+		 * Returns the averages, in tick order.
+		 */
+		SeriesCursor cursor() {
+			final long[] order = Arrays.copyOf(ticks, size);
+			Arrays.sort(order);
+
+			return new SeriesCursor() {
+				int row = -1;
+				int i;
+
+				public boolean next() {
+					if (row + 1 >= order.length) {
+						return false;
+					}
+					i = index(order[++row]);
+					return true;
+				}
+
+				public long getTick() {
+					return ticks[i];
+				}
+
+				public double getValue(int column) {
+					switch (column) {
+					case DEMAND:
+						return demand[i] / count[i];
+					case APPLIANCES_ON:
+						return appliances[i] / count[i];
+					case MIN_DEMAND:
+						return min[i];
+					case MAX_DEMAND:
+						return max[i];
+					case COUNT:
+						return count[i];
+					default:
+						throw new IndexOutOfBoundsException("Column " + column);
+					}
+				}
+
+				public void close() {
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.smartgrid.app.plotter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 
+ * Writes a tick series in a simple binary columnar format, in row groups of
+ * a fixed maximum size, so that only one row group is ever held in memory.
+ * 
+ * The format (all numbers big-endian) is:
+ * <ul>
+ * <li>the magic bytes "SGCOL1"</li>
+ * <li>the number of value columns, followed by each column name as modified
+ * UTF-8 (see {@link DataOutputStream#writeUTF(String)})</li>
+ * <li>any number of row groups, each holding the number of rows, then all
+ * the ticks of the group as longs, then all the values of each column in turn
+ * as doubles</li>
+ * <li>a row group of 0 rows marking the end of the series</li>
+ * </ul>
+ * 
+ * Each column of a row group is contiguous, so the file maps directly onto
+ * Arrow record batches or Parquet row groups.
+ * 
+ * @version 1.1
+ */
+public class ColumnarSeriesWriter implements SeriesWriter {
+
+	/**
+	 * The magic bytes the format starts with
+	 */
+	public static final String MAGIC = "SGCOL1";
+
+	/**
+	 * The default number of rows in a row group
+	 */
+	public static final int DEFAULT_GROUP_SIZE = 64 * 1024;
+
+	/**
+	 * The buffered output
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * The maximum number of rows in a row group
+	 */
+	private int groupSize;
+
+	/**
+	 * The ticks of the current row group
+	 */
+	private long[] ticks;
+
+	/**
+	 * The values of the current row group, one array per column
+	 */
+	private double[][] columns;
+
+	/**
+	 * The number of rows in the current row group
+	 */
+	private int rows;
+
+	/**
+	 * Creates a new columnar writer with the default row group size.
+	 * 
+	 * @param os
+	 *            the stream the series is written to
+	 */
+	public ColumnarSeriesWriter(OutputStream os) {
+		this(os, DEFAULT_GROUP_SIZE);
+	}
+
+	/**
+	 * Creates a new columnar writer.
+	 * 
+	 * @param os
+	 *            the stream the series is written to
+	 * @param groupSize
+	 *            the maximum number of rows in a row group
+	 */
+	public ColumnarSeriesWriter(OutputStream os, int groupSize) {
+		this.out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+		this.groupSize = groupSize;
+	}
+
+	public void start(String[] names) throws IOException {
+		out.writeBytes(MAGIC);
+		out.writeInt(names.length);
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+
+		ticks = new long[groupSize];
+		columns = new double[names.length][groupSize];
+		rows = 0;
+	}
+
+	public void write(long tick, double[] values) throws IOException {
+		ticks[rows] = tick;
+		for (int c = 0; c < columns.length; c++) {
+			columns[c][rows] = values[c];
+		}
+		rows++;
+
+		if (rows == groupSize) {
+			flushGroup();
+		}
+	}
+
+	public void finish() throws IOException {
+		if (rows > 0) {
+			flushGroup();
+		}
+
+		// the end of the series
+		out.writeInt(0);
+		out.close();
+	}
+
+	/**
+	 * Writes out the current row group and starts a new one.
+	 * 
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	private void flushGroup() throws IOException {
+		out.writeInt(rows);
+		for (int r = 0; r < rows; r++) {
+			out.writeLong(ticks[r]);
+		}
+		for (double[] column : columns) {
+			for (int r = 0; r < rows; r++) {
+				out.writeDouble(column[r]);
+			}
+		}
+		rows = 0;
+	}
+}
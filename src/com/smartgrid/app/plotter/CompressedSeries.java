@@ -0,0 +1,567 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ *
+ * Holds a tick series in compressed form, several times smaller than
+ * {@link TickColumns} for typical runs.
+ *
+ * <ul>
+ * <li>Ticks are stored as delta-of-deltas, so regularly spaced ticks take a
+ * single bit each.</li>
+ * <li>Double columns are stored as the XOR of each value with the previous
+ * one, keeping only the meaningful bits (as in Facebook's Gorilla).</li>
+ * <li>Integer columns, such as appliancesOn, are stored as runs of repeated
+ * values.</li>
+ * </ul>
+ *
+ * Ticks and doubles share one bit stream, which restarts every
+ * {@link #BLOCK} rows so that reading can start at any block. Rows are read
+ * back in order through a {@link Reader}.
+ *
+ * @version 1.1
+ */
+public class CompressedSeries {
+
+	/**
+	 * The number of rows after which the bit stream restarts
+	 */
+	public static final int BLOCK = 256;
+
+	/**
+	 * Whether each column holds integers (run-length encoded) rather than
+	 * doubles (XOR encoded)
+	 */
+	private boolean[] integer;
+
+	/**
+	 * The bit stream of ticks and double values
+	 */
+	private long[] words;
+
+	/**
+	 * The number of bits written to the stream
+	 */
+	private long bits;
+
+	/**
+	 * The bit position at which each block starts
+	 */
+	private long[] blocks;
+
+	/**
+	 * The values of the runs of each integer column
+	 */
+	private int[][] runValues;
+
+	/**
+	 * The row after the end of each run of each integer column
+	 */
+	private int[][] runEnds;
+
+	/**
+	 * The number of runs of each integer column
+	 */
+	private int[] runCount;
+
+	/**
+	 * The number of rows held
+	 */
+	private int size;
+
+	/**
+	 * The encoder state: previous tick and tick delta
+	 */
+	private long prevTick, prevDelta;
+
+	/**
+	 * The encoder state: previous value bits and their leading and trailing
+	 * zeros of each double column
+	 */
+	private long[] prevBits;
+	private int[] prevLead, prevTrail;
+
+	/**
+	 * Creates an empty series.
+	 *
+	 * @param integer
+	 *            whether each column holds integers rather than doubles
+	 */
+	public CompressedSeries(boolean[] integer) {
+		int columns = integer.length;
+		this.integer = integer.clone();
+		words = new long[64];
+		bits = 0;
+		blocks = new long[16];
+		runValues = new int[columns][];
+		runEnds = new int[columns][];
+		runCount = new int[columns];
+		for (int c = 0; c < columns; c++) {
+			if (integer[c]) {
+				runValues[c] = new int[16];
+				runEnds[c] = new int[16];
+			}
+		}
+		prevBits = new long[columns];
+		prevLead = new int[columns];
+		prevTrail = new int[columns];
+		size = 0;
+	}
+
+	/**
+	 * Compresses a series held in primitive arrays.
+	 *
+	 * @param data
+	 *            the series
+	 * @param integer
+	 *            whether each column holds integers rather than doubles
+	 * @return the compressed series
+	 */
+	public static CompressedSeries of(TickColumns data, boolean[] integer) {
+		CompressedSeries series = new CompressedSeries(integer);
+		double[] row = new double[data.getColumnCount()];
+		for (int r = 0; r < data.size(); r++) {
+			for (int c = 0; c < row.length; c++) {
+				row[c] = data.getValue(c, r);
+			}
+			series.add(data.getTick(r), row);
+		}
+		series.trim();
+		return series;
+	}
+
+	/**
+	 * Reads and compresses all the rows of a cursor, and closes it.
+	 *
+	 * @param cursor
+	 *            the cursor read
+	 * @param integer
+	 *            whether each column of the cursor holds integers rather than
+	 *            doubles
+	 * @return the compressed series
+	 * @throws SQLException
+	 *             if the rows cannot be retrieved
+	 */
+	public static CompressedSeries read(SeriesCursor cursor, boolean[] integer)
+			throws SQLException {
+
+		CompressedSeries series = new CompressedSeries(integer);
+		double[] row = new double[integer.length];
+		try {
+			while (cursor.next()) {
+				for (int c = 0; c < row.length; c++) {
+					row[c] = cursor.getValue(c);
+				}
+				series.add(cursor.getTick(), row);
+			}
+		} finally {
+			cursor.close();
+		}
+		series.trim();
+		return series;
+	}
+
+	/**
+	 * Appends a row. Rows have to be added in tick order.
+	 *
+	 * @param tick
+	 *            the tick of the row
+	 * @param values
+	 *            the values of the row, one per column
+	 */
+	public void add(long tick, double[] values) {
+
+		if (size % BLOCK == 0) {
+			// start a new block with the raw tick and values
+			int block = size / BLOCK;
+			if (block == blocks.length) {
+				blocks = Arrays.copyOf(blocks, block * 2);
+			}
+			blocks[block] = bits;
+
+			write(tick, 64);
+			prevTick = tick;
+			prevDelta = 0;
+			for (int c = 0; c < values.length; c++) {
+				if (!integer[c]) {
+					prevBits[c] = Double.doubleToRawLongBits(values[c]);
+					prevLead[c] = -1;
+					write(prevBits[c], 64);
+				}
+			}
+		} else {
+			writeTick(tick);
+			for (int c = 0; c < values.length; c++) {
+				if (!integer[c]) {
+					writeDouble(c, values[c]);
+				}
+			}
+		}
+
+		// integer columns extend their last run or start a new one
+		for (int c = 0; c < values.length; c++) {
+			if (integer[c]) {
+				int value = (int) values[c];
+				int last = runCount[c] - 1;
+				if (last >= 0 && runValues[c][last] == value) {
+					runEnds[c][last]++;
+				} else {
+					if (runCount[c] == runValues[c].length) {
+						runValues[c] = Arrays.copyOf(runValues[c],
+								runCount[c] * 2);
+						runEnds[c] = Arrays.copyOf(runEnds[c], runCount[c] * 2);
+					}
+					runValues[c][runCount[c]] = value;
+					runEnds[c][runCount[c]] = size + 1;
+					runCount[c]++;
+				}
+			}
+		}
+
+		size++;
+	}
+
+	/**
+	 * Encodes the difference between this tick's delta and the previous one.
+	 *
+	 * @param tick
+	 *            the tick encoded
+	 */
+	private void writeTick(long tick) {
+		long delta = tick - prevTick;
+		long dod = delta - prevDelta;
+
+		if (dod == 0) {
+			write(0, 1);
+		} else if (dod >= -63 && dod <= 64) {
+			write(1, 2);
+			write(dod + 63, 7);
+		} else if (dod >= -255 && dod <= 256) {
+			write(3, 3);
+			write(dod + 255, 9);
+		} else if (dod >= -2047 && dod <= 2048) {
+			write(7, 4);
+			write(dod + 2047, 12);
+		} else {
+			write(15, 4);
+			write(dod, 64);
+		}
+
+		prevTick = tick;
+		prevDelta = delta;
+	}
+
+	/**
+	 * Encodes a double as the meaningful bits of its XOR with the previous
+	 * value of the column.
+	 *
+	 * @param c
+	 *            the column
+	 * @param value
+	 *            the value encoded
+	 */
+	private void writeDouble(int c, double value) {
+		long v = Double.doubleToRawLongBits(value);
+		long xor = v ^ prevBits[c];
+		prevBits[c] = v;
+
+		if (xor == 0) {
+			write(0, 1);
+			return;
+		}
+
+		int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+		int trail = Long.numberOfTrailingZeros(xor);
+
+		if (prevLead[c] >= 0 && lead >= prevLead[c] && trail >= prevTrail[c]) {
+			// the meaningful bits fit in the previous window
+			write(1, 2);
+			write(xor >>> prevTrail[c], 64 - prevLead[c] - prevTrail[c]);
+		} else {
+			int length = 64 - lead - trail;
+			write(3, 2);
+			write(lead, 5);
+			write(length - 1, 6);
+			write(xor >>> trail, length);
+			prevLead[c] = lead;
+			prevTrail[c] = trail;
+		}
+	}
+
+	/**
+	 * Appends the lowest bits of a value to the bit stream.
+	 *
+	 * @param value
+	 *            the value written
+	 * @param n
+	 *            the number of bits written, 1 to 64
+	 */
+	private void write(long value, int n) {
+		int word = (int) (bits >>> 6);
+		int offset = (int) (bits & 63);
+
+		if (word + 1 >= words.length) {
+			words = Arrays.copyOf(words, words.length * 2);
+		}
+		if (n < 64) {
+			value &= (1L << n) - 1;
+		}
+
+		words[word] |= value << offset;
+		if (offset + n > 64) {
+			words[word + 1] |= value >>> (64 - offset);
+		}
+		bits += n;
+	}
+
+	/**
+	 * Releases the unused capacity once all rows have been added. More rows
+	 * can still be added afterwards.
+	 */
+	public void trim() {
+		words = Arrays.copyOf(words, (int) (bits >>> 6) + 2);
+		blocks = Arrays.copyOf(blocks, Math.max(1, (size + BLOCK - 1) / BLOCK));
+		for (int c = 0; c < integer.length; c++) {
+			if (integer[c]) {
+				runValues[c] = Arrays.copyOf(runValues[c], Math.max(1,
+						runCount[c]));
+				runEnds[c] = Arrays.copyOf(runEnds[c], Math.max(1,
+						runCount[c]));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of rows held.
+	 *
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of value columns.
+	 *
+	 * @return the number of columns
+	 */
+	public int getColumnCount() {
+		return integer.length;
+	}
+
+	/**
+	 * Returns the approximate number of bytes of memory used by the series.
+	 *
+	 * @return the memory footprint in bytes
+	 */
+	public long getByteSize() {
+		long bytes = 64 + words.length * 8L + blocks.length * 8L
+				+ integer.length * 24L;
+		for (int c = 0; c < integer.length; c++) {
+			if (integer[c]) {
+				bytes += runValues[c].length * 8L;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns a reader positioned before the first row.
+	 *
+	 * @return the {@link Reader}
+	 */
+	public Reader reader() {
+		return new Reader(0);
+	}
+
+	/**
+	 * Returns a reader positioned before the row given.
+	 *
+	 * @param row
+	 *            the first row returned by the reader
+	 * @return the {@link Reader}
+	 */
+	public Reader reader(int row) {
+		return new Reader(row);
+	}
+
+	/**
+	 * Decodes the rows of the series in order.
+	 */
+	public class Reader implements SeriesCursor {
+
+		/**
+		 * The current row
+		 */
+		private int row;
+
+		/**
+		 * The bit position of the next row in the stream
+		 */
+		private long position;
+
+		/**
+		 * The decoder state, mirroring the encoder's
+		 */
+		private long tick, delta;
+		private long[] valueBits;
+		private int[] lead, trail;
+
+		/**
+		 * The current run of each integer column
+		 */
+		private int[] run;
+
+		/**
+		 * Creates a reader positioned before the row given.
+		 *
+		 * @param first
+		 *            the first row returned
+		 */
+		private Reader(int first) {
+			int columns = integer.length;
+			valueBits = new long[columns];
+			lead = new int[columns];
+			trail = new int[columns];
+			run = new int[columns];
+
+			// start from the block holding the row and skip to it
+			first = Math.max(0, Math.min(first, size));
+			row = first / BLOCK * BLOCK - 1;
+			position = row < 0 || size == 0 ? 0 : blocks[(row + 1) / BLOCK];
+			for (int c = 0; c < columns; c++) {
+				if (integer[c]) {
+					run[c] = findRun(c, row + 1);
+				}
+			}
+			while (row < first - 1) {
+				next();
+			}
+		}
+
+		public boolean next() {
+			if (row + 1 >= size) {
+				return false;
+			}
+			row++;
+
+			if (row % BLOCK == 0) {
+				position = blocks[row / BLOCK];
+				tick = read(64);
+				delta = 0;
+				for (int c = 0; c < integer.length; c++) {
+					if (!integer[c]) {
+						valueBits[c] = read(64);
+						lead[c] = -1;
+					}
+				}
+			} else {
+				readTick();
+				for (int c = 0; c < integer.length; c++) {
+					if (!integer[c]) {
+						readDouble(c);
+					}
+				}
+			}
+
+			for (int c = 0; c < integer.length; c++) {
+				if (integer[c] && row >= runEnds[c][run[c]]) {
+					run[c]++;
+				}
+			}
+			return true;
+		}
+
+		public long getTick() {
+			return tick;
+		}
+
+		public double getValue(int column) {
+			if (integer[column]) {
+				return runValues[column][run[column]];
+			}
+			return Double.longBitsToDouble(valueBits[column]);
+		}
+
+		public void close() {
+		}
+
+		/**
+		 * Decodes the next tick.
+		 */
+		private void readTick() {
+			long dod = 0;
+			if (read(1) == 1) {
+				if (read(1) == 0) {
+					dod = read(7) - 63;
+				} else if (read(1) == 0) {
+					dod = read(9) - 255;
+				} else if (read(1) == 0) {
+					dod = read(12) - 2047;
+				} else {
+					dod = read(64);
+				}
+			}
+			delta += dod;
+			tick += delta;
+		}
+
+		/**
+		 * Decodes the next value of a double column.
+		 *
+		 * @param c
+		 *            the column
+		 */
+		private void readDouble(int c) {
+			if (read(1) == 0) {
+				return;
+			}
+			if (read(1) == 1) {
+				lead[c] = (int) read(5);
+				int length = (int) read(6) + 1;
+				trail[c] = 64 - lead[c] - length;
+			}
+			int length = 64 - lead[c] - trail[c];
+			valueBits[c] ^= read(length) << trail[c];
+		}
+
+		/**
+		 * Reads bits from the stream.
+		 *
+		 * @param n
+		 *            the number of bits read, 1 to 64
+		 * @return the bits read
+		 */
+		private long read(int n) {
+			int word = (int) (position >>> 6);
+			int offset = (int) (position & 63);
+
+			long value = words[word] >>> offset;
+			if (offset + n > 64) {
+				value |= words[word + 1] << (64 - offset);
+			}
+			if (n < 64) {
+				value &= (1L << n) - 1;
+			}
+			position += n;
+			return value;
+		}
+
+		/**
+		 * Finds the run of an integer column holding a row.
+		 *
+		 * @param c
+		 *            the column
+		 * @param r
+		 *            the row
+		 * @return the index of the run
+		 */
+		private int findRun(int c, int r) {
+			int index = Arrays.binarySearch(runEnds[c], 0, runCount[c], r);
+			// runEnds are exclusive, so an exact match starts the next run
+			return index >= 0 ? index + 1 : -index - 1;
+		}
+	}
+}
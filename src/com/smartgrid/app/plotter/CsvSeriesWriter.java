@@ -0,0 +1,63 @@
+package com.smartgrid.app.plotter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * 
+ * Writes a tick series as comma separated values, with a header line holding
+ * the column names and ticks in milliseconds since the epoch.
+ * 
+ * @version 1.1
+ */
+public class CsvSeriesWriter implements SeriesWriter {
+
+	/**
+	 * The buffered output
+	 */
+	private Writer out;
+
+	/**
+	 * Reused buffer for formatting a single row
+	 */
+	private StringBuilder line;
+
+	/**
+	 * Creates a new CSV writer.
+	 * 
+	 * @param os
+	 *            the stream the CSV text is written to
+	 * @throws IOException
+	 *             if the output encoding is not supported
+	 */
+	public CsvSeriesWriter(OutputStream os) throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1 << 16);
+		line = new StringBuilder(128);
+	}
+
+	public void start(String[] columns) throws IOException {
+		out.write("tick");
+		for (String column : columns) {
+			out.write(',');
+			out.write(column);
+		}
+		out.write('\n');
+	}
+
+	public void write(long tick, double[] values) throws IOException {
+		line.setLength(0);
+		line.append(tick);
+		for (double value : values) {
+			line.append(',').append(value);
+		}
+		line.append('\n');
+		out.append(line);
+	}
+
+	public void finish() throws IOException {
+		out.close();
+	}
+}
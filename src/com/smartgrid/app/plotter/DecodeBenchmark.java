@@ -0,0 +1,145 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ *
+ * Measures how fast the series of a run are decoded from the DB by a
+ * {@link ResultSetCursor}: the rows decoded per second and the bytes
+ * allocated per row, which include those allocated by the driver.
+ *
+ * The result sets are streamed, and timing starts once each query has
+ * returned, so the figures cover fetching and decoding the rows but not
+ * running the query. The values are summed rather than stored, so that
+ * nothing but the decoding allocates.
+ *
+ * @version 1.1
+ */
+public class DecodeBenchmark {
+
+	/**
+	 * The series decoded
+	 */
+	public static final String[] SERIES = { "aggregator", "households" };
+
+	/**
+	 * The provider the series are retrieved from
+	 */
+	private PlotterDB db;
+
+	/**
+	 * The sum of the values decoded, printed so that decoding is not
+	 * optimized away
+	 */
+	private double checksum;
+
+	/**
+	 * Creates a benchmark streaming from the DB given.
+	 *
+	 * @param db
+	 *            the DB, opened
+	 */
+	public DecodeBenchmark(PlotterDB db) {
+		this.db = db;
+	}
+
+	/**
+	 * Decodes a series of a run once.
+	 *
+	 * @param series
+	 *            the series, one of {@link #SERIES}
+	 * @param runID
+	 *            the ID of the run
+	 * @return the number of rows, the nanoseconds taken and the bytes
+	 *         allocated
+	 * @throws SQLException
+	 *             if the series cannot be retrieved
+	 */
+	public long[] decode(String series, int runID) throws SQLException {
+
+		ResultSet rs = null;
+		String[] columns = null;
+		if (series.equals("aggregator")) {
+			rs = db.getAggregatorData(runID);
+			columns = new String[] { "supply", "overallDemand", "price" };
+		} else {
+			rs = db.getHouseholdsData(runID);
+			columns = new String[] { "demand", "appliancesOn", "household_id" };
+		}
+		if (rs == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		long allocated = Macrobenchmark.allocatedBytes();
+		long start = System.nanoTime();
+
+		ResultSetCursor cursor = new ResultSetCursor(rs, columns);
+		long rows = 0;
+		double sum = 0;
+		try {
+			while (cursor.next()) {
+				sum += cursor.getTick();
+				for (int c = 0; c < columns.length; c++) {
+					sum += cursor.getValue(c);
+				}
+				rows++;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		long nanos = System.nanoTime() - start;
+		allocated = Macrobenchmark.allocatedBytes() - allocated;
+		checksum += sum;
+		return new long[] { rows, nanos, allocated };
+	}
+
+	/**
+	 * Decodes the series of a run a number of times and prints the
+	 * throughput of each repetition.
+	 *
+	 * Usage: DecodeBenchmark runID [repetitions]
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 1) {
+			System.out.println("Usage: DecodeBenchmark runID [repetitions]");
+			System.exit(1);
+		}
+		int runID = Integer.parseInt(args[0]);
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		PlotterDB db = new PlotterDB();
+		db.setStreaming(true);
+		db.setQueryTimeout(0);
+		if (!db.open()) {
+			System.out
+					.println("There was something wrong with getting data from the DB,"
+							+ " execution terminated.");
+			System.exit(1);
+		}
+
+		DecodeBenchmark benchmark = new DecodeBenchmark(db);
+		System.out.println("series\trows\tms\trowsPerSecond\tbytesPerRow");
+		try {
+			for (String series : SERIES) {
+				for (int i = 0; i < repetitions; i++) {
+					long[] m = benchmark.decode(series, runID);
+					System.out.println(String.format("%s\t%d\t%.1f\t%.0f\t%.1f",
+							series, m[0], m[1] / 1e6,
+							m[0] * 1e9 / Math.max(1, m[1]),
+							(double) m[2] / Math.max(1, m[0])));
+				}
+			}
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+		db.close();
+
+		System.out.println("checksum\t" + benchmark.checksum);
+	}
+}
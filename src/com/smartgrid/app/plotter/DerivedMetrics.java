@@ -0,0 +1,430 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+import de.erichseifert.gral.data.DataSource;
+import de.erichseifert.gral.data.DataSeries;
+import de.erichseifert.gral.data.DataTable;
+import de.erichseifert.gral.plots.Legend;
+import de.erichseifert.gral.plots.Plot;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.axes.AxisRenderer;
+import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
+import de.erichseifert.gral.plots.lines.LineRenderer;
+import de.erichseifert.gral.plots.points.PointRenderer;
+import de.erichseifert.gral.util.Insets2D;
+import de.erichseifert.gral.util.Location;
+import de.erichseifert.gral.util.Orientation;
+
+/**
+ *
+ * Computes series derived from the columns of a run, as read by the graphs at
+ * full resolution, so that the rolling windows span ticks and the products
+ * are taken tick by tick rather than over the buckets of the overviews:
+ * <ul>
+ * <li>{@value #IMBALANCE}: supply minus overall demand</li>
+ * <li>{@value #ROLLING_MEAN} and {@value #ROLLING_STDDEV}: the mean and
+ * standard deviation of demand over the last {@link #DEFAULT_WINDOW} ticks</li>
+ * <li>{@value #COST}: price times demand at each tick</li>
+ * <li>{@value #CUMULATIVE_ENERGY}: the demand integrated over time since the
+ * start of the run, in demand units times hours</li>
+ * </ul>
+ *
+ * The kernels work on primitive arrays and write into arrays given by the
+ * caller, allocating nothing. They are plain indexed loops over the arrays,
+ * which the JIT compiler can unroll and vectorize.
+ *
+ * @version 1.1
+ */
+public class DerivedMetrics {
+
+	/**
+	 * Supply minus overall demand
+	 */
+	public static final String IMBALANCE = "imbalance";
+
+	/**
+	 * Rolling mean of demand
+	 */
+	public static final String ROLLING_MEAN = "rollingMean";
+
+	/**
+	 * Rolling standard deviation of demand
+	 */
+	public static final String ROLLING_STDDEV = "rollingStdDev";
+
+	/**
+	 * Price times demand
+	 */
+	public static final String COST = "cost";
+
+	/**
+	 * Demand integrated over time
+	 */
+	public static final String CUMULATIVE_ENERGY = "cumulativeEnergy";
+
+	/**
+	 * The names of all the metrics
+	 */
+	public static final String[] METRICS = { IMBALANCE, ROLLING_MEAN,
+			ROLLING_STDDEV, COST, CUMULATIVE_ENERGY };
+
+	/**
+	 * The number of ticks the rolling statistics are computed over
+	 */
+	public static final int DEFAULT_WINDOW = 24;
+
+	/**
+	 * The number of milliseconds in an hour
+	 */
+	private static final double HOUR = 3600000.0;
+
+	/**
+	 * Computes a derived series from the columns of a graph.
+	 *
+	 * @param metric
+	 *            the name of the metric
+	 * @param ticks
+	 *            the ticks of the rows
+	 * @param demand
+	 *            the demand at each tick
+	 * @param supply
+	 *            the supply at each tick, or null if not available
+	 * @param price
+	 *            the price at each tick, or null if not available
+	 * @param out
+	 *            the array the series is written to
+	 * @param n
+	 *            the number of rows
+	 * @throws IllegalArgumentException
+	 *             if the metric is unknown or needs a column not available
+	 */
+	public static void compute(String metric, long[] ticks, double[] demand,
+			double[] supply, double[] price, double[] out, int n) {
+
+		if (IMBALANCE.equals(metric) && supply != null) {
+			difference(supply, demand, out, n);
+		} else if (COST.equals(metric) && price != null) {
+			product(price, demand, out, n);
+		} else if (ROLLING_MEAN.equals(metric)) {
+			rollingMean(demand, DEFAULT_WINDOW, out, n);
+		} else if (ROLLING_STDDEV.equals(metric)) {
+			rollingStdDev(demand, DEFAULT_WINDOW, out, n);
+		} else if (CUMULATIVE_ENERGY.equals(metric)) {
+			cumulativeEnergy(ticks, demand, out, n);
+		} else {
+			throw new IllegalArgumentException("Metric not available: "
+					+ metric);
+		}
+	}
+
+	/**
+	 * Returns the title of a metric, for plots and legends.
+	 *
+	 * @param metric
+	 *            the name of the metric
+	 * @return the title
+	 */
+	public static String title(String metric) {
+		if (IMBALANCE.equals(metric)) {
+			return "Supply - Overall Demand";
+		} else if (COST.equals(metric)) {
+			return "Cost";
+		} else if (ROLLING_MEAN.equals(metric)) {
+			return "Rolling Average Demand (" + DEFAULT_WINDOW + " ticks)";
+		} else if (ROLLING_STDDEV.equals(metric)) {
+			return "Rolling Demand Deviation (" + DEFAULT_WINDOW + " ticks)";
+		} else if (CUMULATIVE_ENERGY.equals(metric)) {
+			return "Cumulative Energy";
+		}
+		return metric;
+	}
+
+	/**
+	 * Subtracts one column from another.
+	 *
+	 * @param a
+	 *            the column subtracted from
+	 * @param b
+	 *            the column subtracted
+	 * @param out
+	 *            the array a - b is written to
+	 * @param n
+	 *            the number of rows
+	 */
+	public static void difference(double[] a, double[] b, double[] out, int n) {
+		for (int i = 0; i < n; i++) {
+			out[i] = a[i] - b[i];
+		}
+	}
+
+	/**
+	 * Multiplies two columns.
+	 *
+	 * @param a
+	 *            the first column
+	 * @param b
+	 *            the second column
+	 * @param out
+	 *            the array a * b is written to
+	 * @param n
+	 *            the number of rows
+	 */
+	public static void product(double[] a, double[] b, double[] out, int n) {
+		for (int i = 0; i < n; i++) {
+			out[i] = a[i] * b[i];
+		}
+	}
+
+	/**
+	 * Computes the mean of each row and the rows before it, over a window of
+	 * rows. The first rows are averaged over the rows available.
+	 *
+	 * @param in
+	 *            the column
+	 * @param window
+	 *            the number of rows averaged
+	 * @param out
+	 *            the array the means are written to
+	 * @param n
+	 *            the number of rows
+	 */
+	public static void rollingMean(double[] in, int window, double[] out, int n) {
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += in[i];
+			if (i >= window) {
+				sum -= in[i - window];
+			}
+			out[i] = sum / Math.min(i + 1, window);
+		}
+	}
+
+	/**
+	 * Computes the population standard deviation of each row and the rows
+	 * before it, over a window of rows. The mean and squared deviations are
+	 * updated incrementally as rows enter and leave the window (Welford's
+	 * method), which stays accurate for large values.
+	 *
+	 * @param in
+	 *            the column
+	 * @param window
+	 *            the number of rows in the window
+	 * @param out
+	 *            the array the standard deviations are written to
+	 * @param n
+	 *            the number of rows
+	 */
+	public static void rollingStdDev(double[] in, int window, double[] out,
+			int n) {
+		double mean = 0;
+		double m2 = 0;
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			double x = in[i];
+			count++;
+			double delta = x - mean;
+			mean += delta / count;
+			m2 += delta * (x - mean);
+
+			if (count > window) {
+				double y = in[i - window];
+				count--;
+				delta = y - mean;
+				mean -= delta / count;
+				m2 -= delta * (y - mean);
+			}
+
+			out[i] = Math.sqrt(Math.max(0, m2 / count));
+		}
+	}
+
+	/**
+	 * Integrates a column over time with the trapezoidal rule.
+	 *
+	 * @param ticks
+	 *            the ticks of the rows, in milliseconds
+	 * @param in
+	 *            the column integrated
+	 * @param out
+	 *            the array the running integral, in column units times
+	 *            hours, is written to
+	 * @param n
+	 *            the number of rows
+	 */
+	public static void cumulativeEnergy(long[] ticks, double[] in,
+			double[] out, int n) {
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				total += (in[i - 1] + in[i]) * 0.5 * (ticks[i] - ticks[i - 1])
+						/ HOUR;
+			}
+			out[i] = total;
+		}
+	}
+
+	/**
+	 * Aligns a column of another series to a set of ticks, taking at each
+	 * tick the value of the last row at or before it.
+	 *
+	 * @param ticks
+	 *            the ticks aligned to, in order
+	 * @param n
+	 *            the number of ticks
+	 * @param sourceTicks
+	 *            the ticks of the other series, in order
+	 * @param source
+	 *            the column of the other series
+	 * @param m
+	 *            the number of rows of the other series
+	 * @param out
+	 *            the array the aligned values are written to; ticks before
+	 *            the other series starts get its first value
+	 */
+	public static void align(long[] ticks, int n, long[] sourceTicks,
+			double[] source, int m, double[] out) {
+		int j = 0;
+		for (int i = 0; i < n; i++) {
+			while (j + 1 < m && sourceTicks[j + 1] <= ticks[i]) {
+				j++;
+			}
+			out[i] = m > 0 ? source[j] : Double.NaN;
+		}
+	}
+
+	/**
+	 * Puts a derived column into a table for plotting.
+	 *
+	 * @param ticks
+	 *            the ticks of the rows
+	 * @param values
+	 *            the derived column
+	 * @param n
+	 *            the number of rows
+	 * @return the {@link DataTable} of ticks and values
+	 */
+	@SuppressWarnings("unchecked")
+	public static DataTable table(long[] ticks, double[] values, int n) {
+		DataTable table = new DataTable(Long.class, Double.class);
+		for (int i = 0; i < n; i++) {
+			table.add(ticks[i], values[i]);
+		}
+		return table;
+	}
+
+	/**
+	 * Puts a derived column into a table for plotting, reduced into buckets
+	 * like the other plots of the graph, so that a series computed at every
+	 * tick is plotted at the granularity the graph is viewed at.
+	 *
+	 * @param ticks
+	 *            the ticks of the rows
+	 * @param values
+	 *            the derived column
+	 * @param n
+	 *            the number of rows
+	 * @param interval
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the rows of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link DataTable} of bucket ticks and values
+	 * @throws SQLException
+	 *             never, as the rows are held in memory
+	 */
+	public static DataTable table(long[] ticks, double[] values, int n,
+			long interval, String aggregate) throws SQLException {
+		if (interval <= 0) {
+			return table(ticks, values, n);
+		}
+
+		TickColumns series = new TickColumns(1, Math.max(1, n));
+		for (int i = 0; i < n; i++) {
+			series.setValue(0, series.addRow(ticks[i]), values[i]);
+		}
+		TickColumns buckets = TickColumns.read(new ResamplingCursor(
+				series.cursor(), 1, Long.MIN_VALUE, Long.MAX_VALUE, interval,
+				aggregate), 1);
+		return table(buckets.getTicks(), buckets.getColumn(0), buckets.size());
+	}
+
+	/**
+	 * Creates a plot of derived series, formatted like the plots of the
+	 * graphs.
+	 *
+	 * @param plotTitle
+	 *            the title of the plot
+	 * @param axisYTitle
+	 *            the title of the Y axis
+	 * @param series
+	 *            the series plotted, named for the legend
+	 * @param colors
+	 *            the line color of each series
+	 * @param axisY
+	 *            the position of the Y axis along the time axis
+	 * @return the formatted {@link XYPlot}
+	 */
+	static XYPlot createPlot(String plotTitle, String axisYTitle,
+			List<DataSeries> series, List<Color> colors, long axisY) {
+
+		XYPlot plot = new XYPlot(series.toArray(new DataSource[series.size()]));
+
+		// --- formating the plot ---
+		plot.setSetting(Plot.BACKGROUND, Color.WHITE);
+		plot.setSetting(Plot.TITLE, plotTitle);
+		plot.setInsets(new Insets2D.Double(10, 10, 10, 10));
+
+		// --- formating the legend ---
+		plot.setSetting(Plot.LEGEND, true);
+		plot.setSetting(Plot.LEGEND_LOCATION, Location.NORTH);
+		plot.getLegend().setSetting(Legend.ORIENTATION, Orientation.HORIZONTAL);
+		plot.getLegend().setSetting(Legend.ALIGNMENT_X, 1);
+
+		// --- formating the axes ---
+		AxisRenderer axisRendererY = plot.getAxisRenderer(XYPlot.AXIS_Y);
+		AxisRenderer axisRendererX = plot.getAxisRenderer(XYPlot.AXIS_X);
+		axisRendererX.setSetting(AxisRenderer.LABEL, "Time");
+		axisRendererY.setSetting(AxisRenderer.LABEL, axisYTitle);
+		axisRendererY.setSetting(AxisRenderer.LABEL_DISTANCE, 2);
+
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd\nHH:mm");
+		axisRendererX.setSetting(AxisRenderer.TICK_LABELS_FORMAT, dateFormat);
+
+		// derived series may be negative, so the time axis crosses at the
+		// lowest value plotted
+		double min = Double.MAX_VALUE;
+		for (DataSeries s : series) {
+			for (int i = 0; i < s.getRowCount(); i++) {
+				Number v = (Number) s.get(1, i);
+				if (v != null && v.doubleValue() < min) {
+					min = v.doubleValue();
+				}
+			}
+		}
+		axisRendererY.setSetting(AxisRenderer.INTERSECTION, axisY);
+		axisRendererX.setSetting(AxisRenderer.INTERSECTION,
+				min == Double.MAX_VALUE ? 0 : min);
+
+		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
+		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
+
+		// draw the lines
+		for (int i = 0; i < series.size(); i++) {
+			DataSource s = series.get(i);
+			LineRenderer lines = new DefaultLineRenderer2D();
+			plot.setLineRenderer(s, lines);
+			plot.getPointRenderer(s).setSetting(PointRenderer.COLOR,
+					new Color(0, true));
+			plot.getLineRenderer(s).setSetting(LineRenderer.COLOR,
+					colors.get(i));
+		}
+
+		return plot;
+	}
+}
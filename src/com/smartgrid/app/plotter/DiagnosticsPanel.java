@@ -0,0 +1,240 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
+import javax.swing.KeyStroke;
+
+import de.erichseifert.gral.data.DataSource;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.axes.Axis;
+import de.erichseifert.gral.ui.InteractivePanel;
+
+/**
+ *
+ * Shows a plot like an {@link InteractivePanel}, with an overlay of the
+ * performance figures of its graph that is toggled with F3:
+ * <ul>
+ * <li>the time spent querying and parsing the data, from the
+ * {@link PlotDiagnostics} of the graph</li>
+ * <li>the number of points in the tables of the plot and the number of those
+ * within the visible range</li>
+ * <li>the memory held by the data</li>
+ * <li>the time taken to paint the plot and the number of frames painted over
+ * the last second, while panning and zooming</li>
+ * <li>the hit rate of the shared {@link SeriesCache}</li>
+ * </ul>
+ *
+ * @version 1.1
+ */
+public class DiagnosticsPanel extends InteractivePanel {
+
+	private static final long serialVersionUID = 4619378261047793815L;
+
+	/**
+	 * The number of frames the paint time is averaged over
+	 */
+	private static final int FRAMES = 64;
+
+	/**
+	 * The font of the overlay
+	 */
+	private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+	/**
+	 * The plot shown
+	 */
+	private XYPlot plot;
+
+	/**
+	 * The figures of the graph of the plot
+	 */
+	private PlotDiagnostics diagnostics;
+
+	/**
+	 * Whether the overlay is shown
+	 */
+	private boolean overlay;
+
+	/**
+	 * The time each of the last frames was painted at, in nanoseconds, as a
+	 * ring
+	 */
+	private long[] frameTimes = new long[FRAMES];
+
+	/**
+	 * The time taken to paint each of the last frames, in nanoseconds, as a
+	 * ring
+	 */
+	private long[] paintNanos = new long[FRAMES];
+
+	/**
+	 * The number of frames painted
+	 */
+	private long frames;
+
+	/**
+	 * Creates a panel showing a plot, with the overlay shown if
+	 * {@link PlotDiagnostics#PROPERTY} is set.
+	 *
+	 * @param plot
+	 *            the plot shown
+	 * @param diagnostics
+	 *            the figures of the graph of the plot
+	 */
+	@SuppressWarnings("serial")
+	public DiagnosticsPanel(XYPlot plot, PlotDiagnostics diagnostics) {
+		super(plot);
+		this.plot = plot;
+		this.diagnostics = diagnostics;
+		this.overlay = PlotDiagnostics.isEnabled();
+
+		getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+				KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), "diagnostics");
+		getActionMap().put("diagnostics", new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				overlay = !overlay;
+				repaint();
+			}
+		});
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		long start = System.nanoTime();
+		super.paintComponent(g);
+		long end = System.nanoTime();
+
+		int frame = (int) (frames++ % FRAMES);
+		frameTimes[frame] = end;
+		paintNanos[frame] = end - start;
+
+		if (overlay) {
+			paintOverlay((Graphics2D) g.create(), end);
+		}
+	}
+
+	/**
+	 * Paints the overlay in the top left corner of the panel.
+	 *
+	 * @param g
+	 *            the graphics painted on, disposed of when done
+	 * @param now
+	 *            the time the plot was painted at, in nanoseconds
+	 */
+	private void paintOverlay(Graphics2D g, long now) {
+
+		// the frames of the last second, and the paint time of the last ones
+		int count = (int) Math.min(frames, FRAMES);
+		int fps = 0;
+		long paint = 0;
+		for (int i = 0; i < count; i++) {
+			if (now - frameTimes[i] < 1000000000L) {
+				fps++;
+			}
+			paint += paintNanos[i];
+		}
+		long last = paintNanos[(int) ((frames - 1) % FRAMES)];
+
+		long[] points = countPoints();
+		double hitRate = SeriesCache.getInstance().getHitRate();
+
+		String[] lines = {
+				String.format("query   %9.1f ms  (%d requests)",
+						diagnostics.getQueryMillis(), diagnostics.getQueries()),
+				String.format("parse   %9.1f ms  (%d rows)",
+						diagnostics.getParseMillis(), diagnostics.getRows()),
+				String.format("points  %9d loaded, %d drawn", points[0],
+						points[1]),
+				String.format("memory  %9.1f MB",
+						diagnostics.getByteSize(points[0]) / 1048576.0),
+				String.format("paint   %9.1f ms  (%.1f ms avg), %d FPS",
+						last / 1e6, paint / 1e6 / count, fps),
+				Double.isNaN(hitRate) ? "cache         n/a" : String.format(
+						"cache   %9.1f %% hits", hitRate * 100) };
+
+		g.setFont(FONT);
+		FontMetrics metrics = g.getFontMetrics();
+		int lineHeight = metrics.getHeight();
+		int boxWidth = 0;
+		for (String line : lines) {
+			boxWidth = Math.max(boxWidth, metrics.stringWidth(line));
+		}
+
+		g.setColor(new Color(255, 255, 255, 210));
+		g.fillRect(10, 10, boxWidth + 16, lines.length * lineHeight + 12);
+		g.setColor(Color.GRAY);
+		g.drawRect(10, 10, boxWidth + 16, lines.length * lineHeight + 12);
+		g.setColor(Color.BLACK);
+		for (int i = 0; i < lines.length; i++) {
+			g.drawString(lines[i], 18, 16 + metrics.getAscent() + i
+					* lineHeight);
+		}
+		g.dispose();
+	}
+
+	/**
+	 * Counts the points in the tables of the plot and those within the
+	 * visible range of its X axis. The rows of the tables are in order of X,
+	 * as in all the graphs, so the visible ones are found by binary search.
+	 *
+	 * @return the number of points loaded and the number drawn
+	 */
+	private long[] countPoints() {
+		long loaded = 0;
+		long drawn = 0;
+		Axis axis = plot.getAxis(XYPlot.AXIS_X);
+		boolean ranged = axis != null && axis.getMin() != null
+				&& axis.getMax() != null;
+
+		for (DataSource source : plot.getData()) {
+			int rows = source.getRowCount();
+			loaded += rows;
+			if (ranged) {
+				drawn += firstAbove(source, rows, axis.getMax().doubleValue(),
+						false)
+						- firstAbove(source, rows,
+								axis.getMin().doubleValue(), true);
+			} else {
+				drawn += rows;
+			}
+		}
+		return new long[] { loaded, drawn };
+	}
+
+	/**
+	 * Finds the first row of a source whose X is above a value.
+	 *
+	 * @param source
+	 *            the source, in order of X
+	 * @param rows
+	 *            the number of rows of the source
+	 * @param x
+	 *            the value
+	 * @param inclusive
+	 *            true to include the rows whose X equals the value
+	 * @return the position of the row, or the number of rows if none is
+	 */
+	private static int firstAbove(DataSource source, int rows, double x,
+			boolean inclusive) {
+		int low = 0;
+		int high = rows;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			double value = ((Number) source.get(0, middle)).doubleValue();
+			if (value < x || (!inclusive && value == x)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
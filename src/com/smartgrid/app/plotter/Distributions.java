@@ -0,0 +1,380 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import de.erichseifert.gral.data.DataSeries;
+import de.erichseifert.gral.data.DataSource;
+import de.erichseifert.gral.data.DataTable;
+import de.erichseifert.gral.plots.Legend;
+import de.erichseifert.gral.plots.Plot;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.axes.AxisRenderer;
+import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
+import de.erichseifert.gral.plots.lines.LineRenderer;
+import de.erichseifert.gral.plots.points.PointRenderer;
+import de.erichseifert.gral.util.Insets2D;
+import de.erichseifert.gral.util.Location;
+import de.erichseifert.gral.util.Orientation;
+
+/**
+ *
+ * Computes the distribution of the columns of a run, as read by the graphs at
+ * full resolution, so that every tick is counted rather than the buckets of
+ * the overviews the plots are loaded with:
+ * <ul>
+ * <li>{@value #DURATION_CURVE}: the load duration curve, i.e. demand sorted
+ * from the highest to the lowest against the share of time it is reached</li>
+ * <li>{@value #DEMAND_HISTOGRAM} and {@value #PRICE_HISTOGRAM}: the number of
+ * ticks at which demand or price falls within each of {@link #DEFAULT_BINS}
+ * bins of equal width</li>
+ * </ul>
+ *
+ * Sorting and histogramming are split among the threads of a fork/join pool:
+ * the sort sorts slices of the column in parallel and merges them pairwise,
+ * and each histogram task counts its own slice before the counts are added
+ * up.
+ *
+ * @version 1.1
+ */
+public class Distributions {
+
+	/**
+	 * The load duration curve
+	 */
+	public static final String DURATION_CURVE = "durationCurve";
+
+	/**
+	 * The histogram of demand
+	 */
+	public static final String DEMAND_HISTOGRAM = "demandHistogram";
+
+	/**
+	 * The histogram of price
+	 */
+	public static final String PRICE_HISTOGRAM = "priceHistogram";
+
+	/**
+	 * The names of all the views
+	 */
+	public static final String[] VIEWS = { DURATION_CURVE, DEMAND_HISTOGRAM,
+			PRICE_HISTOGRAM };
+
+	/**
+	 * The number of bins of the histograms
+	 */
+	public static final int DEFAULT_BINS = 50;
+
+	/**
+	 * The largest number of points a duration curve is plotted with
+	 */
+	private static final int MAX_POINTS = 2048;
+
+	/**
+	 * The number of values below which a slice is sorted or counted directly
+	 */
+	private static final int THRESHOLD = 16384;
+
+	/**
+	 * The pool the sorts and histograms run on
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	/**
+	 * Returns the title of a view, for plots and legends.
+	 *
+	 * @param view
+	 *            the name of the view
+	 * @return the title
+	 */
+	public static String title(String view) {
+		if (DURATION_CURVE.equals(view)) {
+			return "Load Duration Curve";
+		} else if (DEMAND_HISTOGRAM.equals(view)) {
+			return "Demand Distribution";
+		} else if (PRICE_HISTOGRAM.equals(view)) {
+			return "Price Distribution";
+		}
+		return view;
+	}
+
+	/**
+	 * Sorts the first rows of a column from the highest to the lowest value,
+	 * in parallel.
+	 *
+	 * @param values
+	 *            the column, sorted in place
+	 * @param n
+	 *            the number of rows
+	 */
+	public static void sortDescending(double[] values, int n) {
+		POOL.invoke(new Sort(values, new double[n], 0, n));
+
+		for (int i = 0, j = n - 1; i < j; i++, j--) {
+			double v = values[i];
+			values[i] = values[j];
+			values[j] = v;
+		}
+	}
+
+	/**
+	 * Counts the rows of a column falling within each of a number of bins of
+	 * equal width, in parallel. Values outside the range are counted in the
+	 * first or last bin.
+	 *
+	 * @param values
+	 *            the column
+	 * @param n
+	 *            the number of rows
+	 * @param min
+	 *            the lower bound of the first bin
+	 * @param max
+	 *            the upper bound of the last bin
+	 * @param bins
+	 *            the number of bins
+	 * @return the number of rows in each bin
+	 */
+	public static long[] histogram(double[] values, int n, double min,
+			double max, int bins) {
+		return POOL.invoke(new Histogram(values, 0, n, min, max, bins));
+	}
+
+	/**
+	 * Returns the lowest and highest of the first rows of a column.
+	 *
+	 * @param values
+	 *            the column
+	 * @param n
+	 *            the number of rows
+	 * @return the lowest and the highest value, or 0 and 0 if there are no
+	 *         rows
+	 */
+	public static double[] range(double[] values, int n) {
+		if (n == 0) {
+			return new double[] { 0, 0 };
+		}
+		double min = values[0];
+		double max = values[0];
+		for (int i = 1; i < n; i++) {
+			if (values[i] < min) {
+				min = values[i];
+			} else if (values[i] > max) {
+				max = values[i];
+			}
+		}
+		return new double[] { min, max };
+	}
+
+	/**
+	 * Puts a duration curve into a table for plotting: each value against
+	 * the percentage of rows with a value at least as high. Long curves are
+	 * sampled at evenly spaced rows, keeping both ends.
+	 *
+	 * @param sorted
+	 *            the column, sorted from the highest to the lowest value
+	 * @param n
+	 *            the number of rows
+	 * @return the {@link DataTable} of percentages and values
+	 */
+	@SuppressWarnings("unchecked")
+	public static DataTable durationTable(double[] sorted, int n) {
+		DataTable table = new DataTable(Double.class, Double.class);
+		int points = Math.min(n, MAX_POINTS);
+		for (int k = 0; k < points; k++) {
+			int i = points > 1 ? (int) ((long) k * (n - 1) / (points - 1)) : 0;
+			table.add(100.0 * (i + 1) / n, sorted[i]);
+		}
+		return table;
+	}
+
+	/**
+	 * Puts a histogram into a table for plotting, as steps along the top of
+	 * its bins.
+	 *
+	 * @param counts
+	 *            the number of rows in each bin
+	 * @param min
+	 *            the lower bound of the first bin
+	 * @param max
+	 *            the upper bound of the last bin
+	 * @return the {@link DataTable} of bin bounds and counts
+	 */
+	@SuppressWarnings("unchecked")
+	public static DataTable histogramTable(long[] counts, double min,
+			double max) {
+		DataTable table = new DataTable(Double.class, Long.class);
+		double width = (max - min) / counts.length;
+		for (int b = 0; b < counts.length; b++) {
+			table.add(min + b * width, counts[b]);
+			table.add(min + (b + 1) * width, counts[b]);
+		}
+		return table;
+	}
+
+	/**
+	 * Sorts a slice of a column, splitting it in half until it is small
+	 * enough to sort directly and merging the sorted halves.
+	 */
+	@SuppressWarnings("serial")
+	private static class Sort extends RecursiveAction {
+
+		double[] values, buffer;
+
+		int from, to;
+
+		Sort(double[] values, double[] buffer, int from, int to) {
+			this.values = values;
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				Arrays.sort(values, from, to);
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new Sort(values, buffer, from, middle), new Sort(values,
+					buffer, middle, to));
+
+			// merge the halves through the buffer
+			int i = from, j = middle, k = from;
+			while (i < middle && j < to) {
+				buffer[k++] = values[i] <= values[j] ? values[i++]
+						: values[j++];
+			}
+			System.arraycopy(values, i, buffer, k, middle - i);
+			k += middle - i;
+			System.arraycopy(values, j, buffer, k, to - j);
+			System.arraycopy(buffer, from, values, from, to - from);
+		}
+	}
+
+	/**
+	 * Counts a slice of a column, splitting it in half until it is small
+	 * enough to count directly and adding up the counts of the halves.
+	 */
+	@SuppressWarnings("serial")
+	private static class Histogram extends RecursiveTask<long[]> {
+
+		double[] values;
+
+		int from, to;
+
+		double min, max;
+
+		int bins;
+
+		Histogram(double[] values, int from, int to, double min, double max,
+				int bins) {
+			this.values = values;
+			this.from = from;
+			this.to = to;
+			this.min = min;
+			this.max = max;
+			this.bins = bins;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (to - from > THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				Histogram left = new Histogram(values, from, middle, min, max,
+						bins);
+				left.fork();
+				long[] counts = new Histogram(values, middle, to, min, max,
+						bins).compute();
+				long[] leftCounts = left.join();
+				for (int b = 0; b < bins; b++) {
+					counts[b] += leftCounts[b];
+				}
+				return counts;
+			}
+
+			long[] counts = new long[bins];
+			double scale = max > min ? bins / (max - min) : 0;
+			for (int i = from; i < to; i++) {
+				int b = (int) ((values[i] - min) * scale);
+				counts[b < 0 ? 0 : (b >= bins ? bins - 1 : b)]++;
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Creates a plot of distributions, formatted like the plots of the
+	 * graphs.
+	 *
+	 * @param plotTitle
+	 *            the title of the plot
+	 * @param axisXTitle
+	 *            the title of the X axis
+	 * @param axisYTitle
+	 *            the title of the Y axis
+	 * @param series
+	 *            the series plotted, named for the legend
+	 * @param colors
+	 *            the line color of each series
+	 * @return the {@link XYPlot}
+	 */
+	static XYPlot createPlot(String plotTitle, String axisXTitle,
+			String axisYTitle, List<DataSeries> series, List<Color> colors) {
+
+		XYPlot plot = new XYPlot(series.toArray(new DataSource[series.size()]));
+
+		// --- formating the plot ---
+		plot.setSetting(Plot.BACKGROUND, Color.WHITE);
+		plot.setSetting(Plot.TITLE, plotTitle);
+		plot.setInsets(new Insets2D.Double(10, 10, 10, 10));
+
+		// --- formating the legend ---
+		plot.setSetting(Plot.LEGEND, true);
+		plot.setSetting(Plot.LEGEND_LOCATION, Location.NORTH);
+		plot.getLegend().setSetting(Legend.ORIENTATION, Orientation.HORIZONTAL);
+		plot.getLegend().setSetting(Legend.ALIGNMENT_X, 1);
+
+		// --- formating the axes ---
+		AxisRenderer axisRendererY = plot.getAxisRenderer(XYPlot.AXIS_Y);
+		AxisRenderer axisRendererX = plot.getAxisRenderer(XYPlot.AXIS_X);
+		axisRendererX.setSetting(AxisRenderer.LABEL, axisXTitle);
+		axisRendererY.setSetting(AxisRenderer.LABEL, axisYTitle);
+		axisRendererY.setSetting(AxisRenderer.LABEL_DISTANCE, 2);
+
+		// the axes cross at the lowest value of either
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		for (DataSeries s : series) {
+			for (int i = 0; i < s.getRowCount(); i++) {
+				minX = Math.min(minX, ((Number) s.get(0, i)).doubleValue());
+				minY = Math.min(minY, ((Number) s.get(1, i)).doubleValue());
+			}
+		}
+		axisRendererY.setSetting(AxisRenderer.INTERSECTION,
+				minX == Double.MAX_VALUE ? 0 : minX);
+		axisRendererX.setSetting(AxisRenderer.INTERSECTION,
+				minY == Double.MAX_VALUE ? 0 : minY);
+
+		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
+		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
+
+		// draw the lines
+		for (int i = 0; i < series.size(); i++) {
+			DataSource s = series.get(i);
+			LineRenderer lines = new DefaultLineRenderer2D();
+			plot.setLineRenderer(s, lines);
+			plot.getPointRenderer(s).setSetting(PointRenderer.COLOR,
+					new Color(0, true));
+			plot.getLineRenderer(s).setSetting(LineRenderer.COLOR,
+					colors.get(i));
+		}
+
+		return plot;
+	}
+}
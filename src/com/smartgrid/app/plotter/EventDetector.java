@@ -0,0 +1,383 @@
+package com.smartgrid.app.plotter;
+
+/**
+ *
+ * Finds events in a tick series in a single pass, as its rows are parsed,
+ * keeping only the state of the events in progress:
+ * <ul>
+ * <li>{@value #SHORTFALL}: an interval during which demand exceeds supply</li>
+ * <li>{@value #PRICE_SPIKE}: an interval during which price stays above a
+ * threshold, from the upward crossing to the downward one</li>
+ * <li>{@value #RAMP}: an interval during which demand keeps rising or falling
+ * faster than a ramp rate threshold</li>
+ * </ul>
+ *
+ * The thresholds are given by the {@value #PRICE_PROPERTY} and
+ * {@value #RAMP_PROPERTY} properties. Otherwise they follow the series: a
+ * value is exceptional if it lies more than {@link #DEVIATIONS} standard
+ * deviations above the mean of the values seen before it, once
+ * {@link #WARMUP} values have been seen.
+ *
+ * Events are handed to a {@link Listener} as soon as they end; the events
+ * still in progress at the end of the series are handed over by
+ * {@link #finish()}.
+ *
+ * @version 1.1
+ */
+public class EventDetector {
+
+	/**
+	 * The type of the intervals with demand exceeding supply
+	 */
+	public static final String SHORTFALL = "shortfall";
+
+	/**
+	 * The type of the intervals with price above its threshold
+	 */
+	public static final String PRICE_SPIKE = "priceSpike";
+
+	/**
+	 * The type of the intervals with demand ramping faster than its threshold
+	 */
+	public static final String RAMP = "ramp";
+
+	/**
+	 * The names of all the event types
+	 */
+	public static final String[] TYPES = { SHORTFALL, PRICE_SPIKE, RAMP };
+
+	/**
+	 * The system property setting a fixed price threshold
+	 */
+	public static final String PRICE_PROPERTY = "smartgrid.plotter.events.price";
+
+	/**
+	 * The system property setting a fixed ramp rate threshold, in demand per
+	 * hour
+	 */
+	public static final String RAMP_PROPERTY = "smartgrid.plotter.events.ramp";
+
+	/**
+	 * The number of standard deviations above the mean beyond which a value
+	 * is exceptional, when no fixed threshold is given
+	 */
+	public static final double DEVIATIONS = 3;
+
+	/**
+	 * The number of values seen before a threshold following the series is
+	 * applied
+	 */
+	public static final int WARMUP = 24;
+
+	/**
+	 * The number of milliseconds per hour, the unit of rates and totals
+	 */
+	private static final double HOUR = 3600000.0;
+
+	/**
+	 * An event found in a series.
+	 */
+	public static class Event {
+
+		String type;
+
+		long start, end, peakTick;
+
+		double peak, level, total;
+
+		/**
+		 * Creates an event.
+		 *
+		 * @param type
+		 *            one of {@link EventDetector#TYPES}
+		 * @param start
+		 *            the first tick of the event
+		 * @param end
+		 *            the last tick of the event
+		 * @param peakTick
+		 *            the tick at which the event peaks
+		 * @param peak
+		 *            the value of the event at its peak
+		 * @param level
+		 *            the value the event is drawn at on the plots
+		 * @param total
+		 *            the total of the event over its interval
+		 */
+		public Event(String type, long start, long end, long peakTick,
+				double peak, double level, double total) {
+			this.type = type;
+			this.start = start;
+			this.end = end;
+			this.peakTick = peakTick;
+			this.peak = peak;
+			this.level = level;
+			this.total = total;
+		}
+
+		/**
+		 * @return the type of the event, one of {@link EventDetector#TYPES}
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * @return the first tick of the event, in milliseconds since the
+		 *         epoch
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * @return the last tick of the event, in milliseconds since the epoch
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return the tick at which the event peaks
+		 */
+		public long getPeakTick() {
+			return peakTick;
+		}
+
+		/**
+		 * @return the largest shortfall, the highest price or the fastest
+		 *         ramp rate (negative for falling demand) of the event
+		 */
+		public double getPeak() {
+			return peak;
+		}
+
+		/**
+		 * @return the value the event is drawn at on the plots: the highest
+		 *         demand of a shortfall, or the price or demand at the peak
+		 *         tick of a price spike or ramp
+		 */
+		public double getLevel() {
+			return level;
+		}
+
+		/**
+		 * @return the demand not supplied, the price in excess of the
+		 *         threshold or the change of demand, over the interval and in
+		 *         units times hours for the first two
+		 */
+		public double getTotal() {
+			return total;
+		}
+	}
+
+	/**
+	 * Receives the events found.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called once an event has ended.
+		 *
+		 * @param event
+		 *            the event
+		 */
+		public void detected(Event event);
+	}
+
+	/**
+	 * A threshold that is either fixed or follows the mean and standard
+	 * deviation of the values seen so far.
+	 */
+	private static class Threshold {
+
+		double fixed;
+
+		long n;
+
+		double mean, m2;
+
+		Threshold(String property) {
+			String value = System.getProperty(property);
+			fixed = value == null ? Double.NaN : Double.parseDouble(value);
+		}
+
+		/**
+		 * Tells whether a value exceeds the threshold, then takes it into
+		 * account.
+		 */
+		boolean exceeds(double value) {
+			boolean exceeds = (!Double.isNaN(fixed) || n >= WARMUP)
+					&& value > value();
+
+			// Welford's running mean and variance
+			n++;
+			double delta = value - mean;
+			mean += delta / n;
+			m2 += delta * (value - mean);
+			return exceeds;
+		}
+
+		/**
+		 * Returns the current threshold.
+		 */
+		double value() {
+			if (!Double.isNaN(fixed)) {
+				return fixed;
+			}
+			return n < 2 ? Double.MAX_VALUE : mean + DEVIATIONS
+					* Math.sqrt(m2 / (n - 1));
+		}
+	}
+
+	/**
+	 * The listener the events are handed to
+	 */
+	private Listener listener;
+
+	/**
+	 * The thresholds of price and ramp rate
+	 */
+	private Threshold priceThreshold, rampThreshold;
+
+	/**
+	 * The previous row, or Long.MIN_VALUE before the first one
+	 */
+	private long lastTick = Long.MIN_VALUE;
+	private double lastDemand;
+
+	/**
+	 * The shortfall in progress, or null
+	 */
+	private Event shortfall;
+
+	/**
+	 * The price spike in progress, or null, and the threshold it crossed
+	 */
+	private Event spike;
+	private double spikeThreshold;
+
+	/**
+	 * The ramp in progress, or null
+	 */
+	private Event ramp;
+
+	/**
+	 * Creates a detector.
+	 *
+	 * @param listener
+	 *            the listener the events are handed to
+	 */
+	public EventDetector(Listener listener) {
+		this.listener = listener;
+		priceThreshold = new Threshold(PRICE_PROPERTY);
+		rampThreshold = new Threshold(RAMP_PROPERTY);
+	}
+
+	/**
+	 * Takes the next row of the series into account. Values that are not
+	 * part of the series, such as the supply of a household, are given as
+	 * NaN and the events that depend on them are not looked for.
+	 *
+	 * @param tick
+	 *            the tick of the row, later than that of the previous row
+	 * @param supply
+	 *            the supply, or NaN
+	 * @param demand
+	 *            the demand, or NaN
+	 * @param price
+	 *            the price, or NaN
+	 */
+	public void add(long tick, double supply, double demand, double price) {
+
+		double hours = lastTick == Long.MIN_VALUE ? 0 : (tick - lastTick)
+				/ HOUR;
+
+		// demand exceeding supply
+		if (!Double.isNaN(supply) && !Double.isNaN(demand)) {
+			double missing = demand - supply;
+			if (missing > 0) {
+				if (shortfall == null) {
+					shortfall = new Event(SHORTFALL, tick, tick, tick,
+							missing, demand, 0);
+				} else {
+					shortfall.total += missing * hours;
+					shortfall.end = tick;
+				}
+				if (missing > shortfall.peak) {
+					shortfall.peak = missing;
+					shortfall.peakTick = tick;
+				}
+				shortfall.level = Math.max(shortfall.level, demand);
+			} else if (shortfall != null) {
+				listener.detected(shortfall);
+				shortfall = null;
+			}
+		}
+
+		// price above its threshold
+		if (!Double.isNaN(price)) {
+			double threshold = priceThreshold.value();
+			if (spike != null && price > spikeThreshold) {
+				spike.total += (price - spikeThreshold) * hours;
+				spike.end = tick;
+				if (price > spike.peak) {
+					spike.peak = price;
+					spike.level = price;
+					spike.peakTick = tick;
+				}
+				priceThreshold.exceeds(price);
+			} else if (spike != null) {
+				listener.detected(spike);
+				spike = null;
+				priceThreshold.exceeds(price);
+			} else if (priceThreshold.exceeds(price)) {
+				spike = new Event(PRICE_SPIKE, tick, tick, tick, price, price,
+						0);
+				spikeThreshold = threshold;
+			}
+		}
+
+		// demand changing faster than its threshold
+		if (!Double.isNaN(demand)) {
+			if (hours > 0) {
+				double rate = (demand - lastDemand) / hours;
+				boolean fast = rampThreshold.exceeds(Math.abs(rate));
+				boolean sameWay = ramp != null && (rate > 0) == (ramp.peak > 0);
+
+				if (ramp != null && !(fast && sameWay)) {
+					listener.detected(ramp);
+					ramp = null;
+				}
+				if (fast && ramp == null) {
+					ramp = new Event(RAMP, lastTick, tick, tick, rate, demand,
+							demand - lastDemand);
+				} else if (fast) {
+					ramp.end = tick;
+					ramp.total += demand - lastDemand;
+					if (Math.abs(rate) > Math.abs(ramp.peak)) {
+						ramp.peak = rate;
+						ramp.level = demand;
+						ramp.peakTick = tick;
+					}
+				}
+			}
+			lastDemand = demand;
+		}
+
+		lastTick = tick;
+	}
+
+	/**
+	 * Hands over the events still in progress, at the end of the series.
+	 */
+	public void finish() {
+		for (Event event : new Event[] { shortfall, spike, ramp }) {
+			if (event != null) {
+				listener.detected(event);
+			}
+		}
+		shortfall = null;
+		spike = null;
+		ramp = null;
+	}
+}
@@ -0,0 +1,275 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.awt.geom.Ellipse2D;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.erichseifert.gral.data.DataSeries;
+import de.erichseifert.gral.data.DataTable;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.areas.AreaRenderer;
+import de.erichseifert.gral.plots.areas.DefaultAreaRenderer2D;
+import de.erichseifert.gral.plots.points.PointRenderer;
+
+/**
+ *
+ * Collects the events found by an {@link EventDetector}, so they can be
+ * queried, exported as CSV or drawn over the plots: shortfalls as shaded
+ * regions and price spikes and ramps as markers at their peaks.
+ *
+ * The graphs detect the events of the data they load; from the command line
+ * the events of a whole run are detected at full resolution, streaming the
+ * series from the DB.
+ *
+ * @version 1.1
+ */
+public class EventList implements EventDetector.Listener {
+
+	/**
+	 * The events collected, in the order they ended
+	 */
+	private ArrayList<EventDetector.Event> events = new ArrayList<EventDetector.Event>();
+
+	public synchronized void detected(EventDetector.Event event) {
+		events.add(event);
+	}
+
+	/**
+	 * Returns the number of events collected.
+	 *
+	 * @return the number of events
+	 */
+	public synchronized int size() {
+		return events.size();
+	}
+
+	/**
+	 * Returns the events of a type that overlap a range of ticks.
+	 *
+	 * @param type
+	 *            one of {@link EventDetector#TYPES}, or null for any type
+	 * @param fromTick
+	 *            the first tick of the range
+	 * @param toTick
+	 *            the last tick of the range
+	 * @return the events, in the order they ended
+	 */
+	public synchronized List<EventDetector.Event> get(String type,
+			long fromTick, long toTick) {
+
+		ArrayList<EventDetector.Event> selected = new ArrayList<EventDetector.Event>();
+		for (EventDetector.Event event : events) {
+			if ((type == null || type.equals(event.getType()))
+					&& event.getEnd() >= fromTick && event.getStart() <= toTick) {
+				selected.add(event);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Writes the events as CSV, one per line after a header line.
+	 *
+	 * @param out
+	 *            the writer, left open
+	 * @throws IOException
+	 *             if the events cannot be written
+	 */
+	public synchronized void write(Writer out) throws IOException {
+		out.write("type,start,end,peakTick,peak,level,total\n");
+		for (EventDetector.Event event : events) {
+			out.write(event.getType() + "," + event.getStart() + ","
+					+ event.getEnd() + "," + event.getPeakTick() + ","
+					+ event.getPeak() + "," + event.getLevel() + ","
+					+ event.getTotal() + "\n");
+		}
+		out.flush();
+	}
+
+	/**
+	 * Adds the shortfalls to a plot as shaded regions, from the bottom of the
+	 * plot up to the highest demand of each shortfall.
+	 *
+	 * @param plot
+	 *            the plot
+	 * @param base
+	 *            the value at the bottom of the plot
+	 */
+	@SuppressWarnings("unchecked")
+	public void addShortfalls(XYPlot plot, double base) {
+
+		List<EventDetector.Event> shortfalls = get(EventDetector.SHORTFALL,
+				Long.MIN_VALUE, Long.MAX_VALUE);
+		if (shortfalls.isEmpty()) {
+			return;
+		}
+
+		// the outline of each region, flat at the base between regions
+		DataTable table = new DataTable(Long.class, Double.class);
+		for (EventDetector.Event event : shortfalls) {
+			table.add(event.getStart(), base);
+			table.add(event.getStart(), event.getLevel());
+			table.add(event.getEnd(), event.getLevel());
+			table.add(event.getEnd(), base);
+		}
+
+		DataSeries series = new DataSeries("Shortfall", table, 0, 1);
+		plot.add(series);
+		plot.getPointRenderer(series).setSetting(PointRenderer.COLOR,
+				new Color(0, true));
+		AreaRenderer area = new DefaultAreaRenderer2D();
+		area.setSetting(AreaRenderer.COLOR, new Color(255, 0, 0, 60));
+		plot.setAreaRenderer(series, area);
+	}
+
+	/**
+	 * Adds the events of a type to a plot as markers at their peaks.
+	 *
+	 * @param plot
+	 *            the plot
+	 * @param type
+	 *            {@link EventDetector#PRICE_SPIKE} or
+	 *            {@link EventDetector#RAMP}
+	 * @param name
+	 *            the name of the markers in the legend
+	 * @param color
+	 *            the color of the markers
+	 */
+	@SuppressWarnings("unchecked")
+	public void addMarkers(XYPlot plot, String type, String name, Color color) {
+
+		List<EventDetector.Event> selected = get(type, Long.MIN_VALUE,
+				Long.MAX_VALUE);
+		if (selected.isEmpty()) {
+			return;
+		}
+
+		DataTable table = new DataTable(Long.class, Double.class);
+		for (EventDetector.Event event : selected) {
+			table.add(event.getPeakTick(), event.getLevel());
+		}
+
+		DataSeries series = new DataSeries(name, table, 0, 1);
+		plot.add(series);
+		plot.getPointRenderer(series).setSetting(PointRenderer.COLOR, color);
+		plot.getPointRenderer(series).setSetting(PointRenderer.SHAPE,
+				new Ellipse2D.Double(-4, -4, 8, 8));
+	}
+
+	/**
+	 * Passes every row of a series through a detector and closes it.
+	 *
+	 * @param cursor
+	 *            the series
+	 * @param detector
+	 *            the detector
+	 * @param supply
+	 *            the column of the supply, or -1 if there is none
+	 * @param demand
+	 *            the column of the demand, or -1 if there is none
+	 * @param price
+	 *            the column of the price, or -1 if there is none
+	 * @return the number of rows
+	 * @throws SQLException
+	 *             if the rows cannot be retrieved
+	 */
+	static long detect(SeriesCursor cursor, EventDetector detector,
+			int supply, int demand, int price) throws SQLException {
+		if (cursor == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		long rows = 0;
+		try {
+			while (cursor.next()) {
+				detector.add(cursor.getTick(), supply < 0 ? Double.NaN
+						: cursor.getValue(supply), demand < 0 ? Double.NaN
+						: cursor.getValue(demand),
+						price < 0 ? Double.NaN : cursor.getValue(price));
+				rows++;
+			}
+			detector.finish();
+		} finally {
+			cursor.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Lists the events of a run, or the ramps of a policy's average demand,
+	 * at full resolution.
+	 *
+	 * Usage: EventList runID [policyID] [outputFile]
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 1) {
+			System.out.println("Usage: EventList runID [policyID] [outputFile]");
+			System.exit(1);
+		}
+
+		int runID = Integer.parseInt(args[0]);
+		int policyID = -1;
+		String file = null;
+		if (args.length > 1 && args[1].matches("\\d+")) {
+			policyID = Integer.parseInt(args[1]);
+			file = args.length > 2 ? args[2] : null;
+		} else if (args.length > 1) {
+			file = args[1];
+		}
+
+		// create an object that provides connection to the DB
+		PlotterDB p = new PlotterDB();
+		if (!p.open()) {
+			System.out
+					.println("There was something wrong with getting data from the DB,"
+							+ " execution terminated.");
+			System.exit(1);
+		}
+
+		try {
+			// whole runs are streamed rather than held in memory
+			p.setStreaming(true);
+			p.setQueryTimeout(0);
+
+			EventList events = new EventList();
+			EventDetector detector = new EventDetector(events);
+			long rows;
+			if (policyID < 0) {
+				rows = detect(p.getAggregatorSeries(runID), detector,
+						PlotterDataProvider.SUPPLY,
+						PlotterDataProvider.OVERALL_DEMAND,
+						PlotterDataProvider.PRICE);
+			} else {
+				rows = detect(p.getPolicyAverageSeries(runID, policyID),
+						detector, -1, PlotterDataProvider.DEMAND, -1);
+			}
+
+			Writer out = file == null ? new PrintWriter(System.out)
+					: new OutputStreamWriter(new FileOutputStream(file),
+							"UTF-8");
+			events.write(out);
+			if (file != null) {
+				out.close();
+				System.out.println(events.size() + " events in " + rows
+						+ " ticks exported to " + file);
+			}
+
+		} catch (Exception e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} finally {
+			// close the connection to the DB
+			p.close();
+		}
+	}
+}
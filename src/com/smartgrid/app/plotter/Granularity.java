@@ -0,0 +1,193 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+/**
+ *
+ * The time granularities a run can be viewed at, and the functions the ticks
+ * within a bucket are reduced with.
+ *
+ * The buckets are computed by the DB (see {@link PlotterDB}), so a coarser
+ * granularity reduces the rows transferred and parsed by the same factor.
+ * The plot windows of the graphs offer a switch between the granularities of
+ * {@link #INTERVALS}, which reloads the series through their
+ * {@link ViewportLoader}.
+ *
+ * @version 1.1
+ */
+public class Granularity {
+
+	/**
+	 * The function averaging the ticks of a bucket
+	 */
+	public static final String AVG = "AVG";
+
+	/**
+	 * The function keeping the lowest value of a bucket
+	 */
+	public static final String MIN = "MIN";
+
+	/**
+	 * The function keeping the highest value of a bucket
+	 */
+	public static final String MAX = "MAX";
+
+	/**
+	 * The names of all the functions, as understood by the DB
+	 */
+	public static final String[] AGGREGATES = { AVG, MIN, MAX };
+
+	/**
+	 * The granularities offered, as durations of the buckets in milliseconds,
+	 * 0 meaning every tick
+	 */
+	public static final long[] INTERVALS = { 0, 5 * 60000L, 3600000L,
+			86400000L };
+
+	/**
+	 * The names of the granularities offered, in the order of
+	 * {@link #INTERVALS}
+	 */
+	public static final String[] NAMES = { "Every tick", "5 minutes",
+			"1 hour", "1 day" };
+
+	/**
+	 * Returns the function named, in any case.
+	 *
+	 * @param name
+	 *            the name of the function, or null for {@link #AVG}
+	 * @return one of {@link #AGGREGATES}
+	 * @throws IllegalArgumentException
+	 *             if the function is unknown
+	 */
+	public static String aggregate(String name) {
+		if (name == null) {
+			return AVG;
+		}
+		for (String aggregate : AGGREGATES) {
+			if (aggregate.equalsIgnoreCase(name)) {
+				return aggregate;
+			}
+		}
+		throw new IllegalArgumentException("Unknown aggregate: " + name);
+	}
+
+	/**
+	 * Parses a duration such as 300, 5m, 1h or 1d, in seconds unless a unit
+	 * is given.
+	 *
+	 * @param text
+	 *            the duration
+	 * @return the duration in milliseconds
+	 * @throws IllegalArgumentException
+	 *             if the duration is malformed or negative
+	 */
+	public static long interval(String text) {
+		if (!text.matches("\\d+[smhd]?")) {
+			throw new IllegalArgumentException("Unknown granularity: " + text);
+		}
+
+		long unit = 1000;
+		switch (text.charAt(text.length() - 1)) {
+		case 'm':
+			unit = 60000L;
+			break;
+		case 'h':
+			unit = 3600000L;
+			break;
+		case 'd':
+			unit = 86400000L;
+			break;
+		}
+		if (!Character.isDigit(text.charAt(text.length() - 1))) {
+			text = text.substring(0, text.length() - 1);
+		}
+		return Long.parseLong(text) * unit;
+	}
+
+	/**
+	 * Describes the buckets a series is reduced into, for the titles of the
+	 * plots.
+	 *
+	 * @param interval
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with
+	 * @return the description, such as "AVG per 5 minutes"
+	 */
+	public static String describe(long interval, String aggregate) {
+		if (interval <= 0) {
+			return NAMES[0].toLowerCase();
+		}
+
+		String duration = null;
+		for (int i = 1; i < INTERVALS.length; i++) {
+			if (INTERVALS[i] == interval) {
+				duration = NAMES[i];
+			}
+		}
+		if (duration == null && interval % 60000 == 0) {
+			duration = interval / 60000 + " minutes";
+		} else if (duration == null) {
+			duration = interval / 1000 + " seconds";
+		}
+		return aggregate + " per " + duration;
+	}
+
+	/**
+	 * Creates the switch between the granularities of {@link #INTERVALS} and
+	 * the functions of {@link #AGGREGATES}, shown above the plots of a graph.
+	 * A choice applies to all the plot windows of the loader.
+	 *
+	 * @param loader
+	 *            the loader of the graph's series
+	 * @return the panel holding the switch
+	 */
+	public static JPanel selector(final ViewportLoader loader) {
+
+		final JComboBox<String> intervals = new JComboBox<String>(NAMES);
+		final JComboBox<String> aggregates = new JComboBox<String>(
+				AGGREGATES);
+		intervals.setSelectedIndex(indexOf(loader.getInterval()));
+		aggregates.setSelectedItem(loader.getAggregate());
+
+		ActionListener switcher = new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				loader.setGranularity(
+						INTERVALS[intervals.getSelectedIndex()],
+						(String) aggregates.getSelectedItem());
+			}
+		};
+		intervals.addActionListener(switcher);
+		aggregates.addActionListener(switcher);
+
+		JPanel panel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		panel.add(new JLabel("Granularity:"));
+		panel.add(intervals);
+		panel.add(aggregates);
+		return panel;
+	}
+
+	/**
+	 * Returns the position of a granularity in {@link #INTERVALS}.
+	 *
+	 * @param interval
+	 *            the duration of the buckets in milliseconds
+	 * @return the position, or 0 if it is not offered
+	 */
+	private static int indexOf(long interval) {
+		for (int i = 0; i < INTERVALS.length; i++) {
+			if (INTERVALS[i] == interval) {
+				return i;
+			}
+		}
+		return 0;
+	}
+}
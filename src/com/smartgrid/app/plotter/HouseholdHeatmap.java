@@ -0,0 +1,656 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+
+/**
+ *
+ * Provides a heatmap of every household's demand over the time of a specific
+ * run, with one band of rows per policy.
+ *
+ * The household log is read once, in no particular order, and each row is
+ * added to a fixed size raster binned to the size of the window: households
+ * share a row of pixels and ticks share a column of pixels when there are
+ * more of them than pixels, and each pixel shows the average demand of the
+ * rows binned into it. Memory use therefore depends on the size of the
+ * window only, however many households and ticks the run has.
+ *
+ * The heatmap can also be drawn from a {@link HouseholdMatrix} saved earlier,
+ * without the DB, binning the matrix the same way.
+ *
+ * @version 1.1
+ */
+public class HouseholdHeatmap {
+
+	/**
+	 * The width of the left margin, holding the policy names
+	 */
+	private static final int MARGIN_LEFT = 160;
+
+	/**
+	 * The height of the top margin, holding the title
+	 */
+	private static final int MARGIN_TOP = 40;
+
+	/**
+	 * The height of the bottom margin, holding the time range and the scale
+	 */
+	private static final int MARGIN_BOTTOM = 30;
+
+	/**
+	 * The width of the right margin
+	 */
+	private static final int MARGIN_RIGHT = 20;
+
+	/**
+	 * The colors of the scale, from no demand to the highest demand
+	 */
+	private static final int[] PALETTE = new int[256];
+
+	static {
+		// blue through green and yellow to red
+		for (int i = 0; i < PALETTE.length; i++) {
+			PALETTE[i] = Color.HSBtoRGB(
+					0.66f * (1 - i / (float) (PALETTE.length - 1)), 1.0f, 1.0f);
+		}
+	}
+
+	/**
+	 * The specific run's date information
+	 */
+	private String runInfo;
+
+	/**
+	 * The first and last tick of the run and the number of ticks
+	 */
+	private long[] bounds;
+
+	/**
+	 * The image's width
+	 */
+	private int width;
+
+	/**
+	 * The image's height
+	 */
+	private int height;
+
+	/**
+	 * The number of columns and rows of the raster
+	 */
+	private int columns, rows;
+
+	/**
+	 * The sum of the demand binned into each pixel of the raster, row by row
+	 */
+	private float[] sums;
+
+	/**
+	 * The number of log rows binned into each pixel of the raster
+	 */
+	private int[] counts;
+
+	/**
+	 * The IDs of the households, in ascending order
+	 */
+	private int[] householdIDs;
+
+	/**
+	 * The raster row of each household, in the order of householdIDs
+	 */
+	private int[] householdRows;
+
+	/**
+	 * The names of the policies, in the order of their bands
+	 */
+	private String[] policyNames;
+
+	/**
+	 * The first row of each policy's band, followed by the number of rows
+	 */
+	private int[] bandRows;
+
+	/**
+	 * The number of log rows read
+	 */
+	private long logRows;
+
+	/**
+	 * The constructor for the Household Heatmap, sized to the user's screen.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the heatmap for
+	 */
+	public HouseholdHeatmap(int runID) {
+		this(runID, 0, 0);
+	}
+
+	/**
+	 * The constructor for the Household Heatmap, streaming the run's data
+	 * from the DB.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the heatmap for
+	 * @param width
+	 *            the width of the image in pixels, or 0 for the screen width
+	 * @param height
+	 *            the height of the image in pixels, or 0 for the screen
+	 *            height
+	 */
+	public HouseholdHeatmap(int runID, int width, int height) {
+		try {
+			read(runID, streamingDB(), width, height);
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The constructor for the Household Heatmap, reading the run's data from
+	 * the provider given.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the heatmap for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @param width
+	 *            the width of the image in pixels, or 0 for the screen width
+	 * @param height
+	 *            the height of the image in pixels, or 0 for the screen
+	 *            height
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	public HouseholdHeatmap(int runID, PlotterDataProvider p, int width,
+			int height) throws SQLException {
+		read(runID, p, width, height);
+	}
+
+	/**
+	 * The constructor for the Household Heatmap, reading the run's data from
+	 * a household matrix. The policies are named by their IDs, as the matrix
+	 * does not hold their information.
+	 *
+	 * @param matrix
+	 *            the matrix of the run
+	 * @param width
+	 *            the width of the image in pixels, or 0 for the screen width
+	 * @param height
+	 *            the height of the image in pixels, or 0 for the screen
+	 *            height
+	 */
+	public HouseholdHeatmap(HouseholdMatrix matrix, int width, int height) {
+
+		size(width, height);
+		runInfo = "#" + matrix.getRunID();
+		int ticks = matrix.getTickCount();
+		if (ticks > 0) {
+			bounds = new long[] { matrix.getTick(0),
+					matrix.getTick(ticks - 1), ticks };
+		}
+
+		// the policy of each household, and the policies in ID order
+		HashMap<Integer, Integer> households = new HashMap<Integer, Integer>();
+		for (int h = 0; h < matrix.getHouseholdCount(); h++) {
+			households.put(matrix.getHouseholdID(h), matrix.getPolicyID(h));
+		}
+		ArrayList<Integer> policyIDs = policies(households);
+		policyNames = new String[policyIDs.size()];
+		for (int i = 0; i < policyNames.length; i++) {
+			policyNames[i] = "Policy " + policyIDs.get(i);
+		}
+
+		raster(households, policyIDs);
+		if (bounds != null) {
+			bin(matrix);
+		}
+	}
+
+	/**
+	 * Loads the Household Heatmap of a run from the DB like
+	 * {@link #HouseholdHeatmap(int, int, int)}, but fails instead of
+	 * terminating, so that a server can report the failure and carry on.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the heatmap for
+	 * @param width
+	 *            the width of the image in pixels, or 0 for the screen width
+	 * @param height
+	 *            the height of the image in pixels, or 0 for the screen
+	 *            height
+	 * @return the heatmap
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	static HouseholdHeatmap load(int runID, int width, int height)
+			throws SQLException {
+		return new HouseholdHeatmap(runID, streamingDB(), width, height);
+	}
+
+	/**
+	 * Streams the run's data from the provider given into the raster of the
+	 * heatmap.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the heatmap for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @param width
+	 *            the width of the image in pixels, or 0 for the screen width
+	 * @param height
+	 *            the height of the image in pixels, or 0 for the screen
+	 *            height
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	private void read(int runID, PlotterDataProvider p, int width, int height)
+			throws SQLException {
+
+		size(width, height);
+
+		// the policy of each household of this run
+		HashMap<Integer, Integer> households = null;
+
+		// the IDs of the policies and their name and version information
+		ArrayList<Integer> policyIDs = null;
+
+		// connect to the DB and get the run's information and households
+		if (p.open()) {
+			runInfo = p.getRunInfo(runID);
+			bounds = p.getTickBounds(runID);
+			households = p.getHouseholdPolicies(runID);
+			if (households == null) {
+				p.close();
+				throw new SQLException("No data could be retrieved from the DB");
+			}
+			policyIDs = policies(households);
+			policyNames = new String[policyIDs.size()];
+			for (int i = 0; i < policyNames.length; i++) {
+				policyNames[i] = p.getPolicyInfo(policyIDs.get(i));
+			}
+		} else {
+			throw new SQLException("No connection to the DB");
+		}
+
+		raster(households, policyIDs);
+
+		// stream the log once into the raster
+		try {
+			if (bounds == null) {
+				System.out.println("No ticks logged for run " + runID);
+			} else {
+				bin(p.getHouseholdsSeries(runID));
+			}
+		} finally {
+			// close the connection to the DB
+			p.close();
+		}
+	}
+
+	/**
+	 * Sets the size of the image, taking the user's screen size for the
+	 * dimensions not given.
+	 *
+	 * @param width
+	 *            the width of the image in pixels, or 0 for the screen width
+	 * @param height
+	 *            the height of the image in pixels, or 0 for the screen
+	 *            height
+	 */
+	private void size(int width, int height) {
+		Dimension screenSize = Screen.getSize();
+		this.width = width > 0 ? width : (int) screenSize.getWidth();
+		this.height = height > 0 ? height : (int) screenSize.getHeight();
+	}
+
+	/**
+	 * Returns the distinct policies of the households, in ID order.
+	 *
+	 * @param households
+	 *            the policy of each household
+	 * @return the IDs of the policies
+	 */
+	private static ArrayList<Integer> policies(
+			HashMap<Integer, Integer> households) {
+		ArrayList<Integer> policyIDs = new ArrayList<Integer>(
+				households.values());
+		Collections.sort(policyIDs);
+		for (int i = policyIDs.size() - 1; i > 0; i--) {
+			if (policyIDs.get(i).equals(policyIDs.get(i - 1))) {
+				policyIDs.remove(i);
+			}
+		}
+		return policyIDs;
+	}
+
+	/**
+	 * Sizes the raster to the plot area and lays out the household rows.
+	 *
+	 * @param households
+	 *            the policy of each household
+	 * @param policyIDs
+	 *            the IDs of the policies, in the order of their bands
+	 */
+	private void raster(HashMap<Integer, Integer> households,
+			ArrayList<Integer> policyIDs) {
+
+		// one raster column per pixel of the plot area unless there are fewer
+		// ticks, and one row per pixel unless there are fewer households
+		columns = Math.max(1, this.width - MARGIN_LEFT - MARGIN_RIGHT);
+		if (bounds != null && bounds[2] > 0 && bounds[2] < columns) {
+			columns = (int) bounds[2];
+		}
+		layout(households, policyIDs, Math.max(1, this.height - MARGIN_TOP
+				- MARGIN_BOTTOM));
+		sums = new float[rows * columns];
+		counts = new int[rows * columns];
+	}
+
+	/**
+	 * Assigns the raster rows to the households: each policy gets a band of
+	 * rows in proportion to its number of households, at least one, and the
+	 * households of a policy are spread over its band in ID order.
+	 *
+	 * @param households
+	 *            the policy of each household
+	 * @param policyIDs
+	 *            the IDs of the policies, in the order of their bands
+	 * @param maxRows
+	 *            the number of rows available
+	 */
+	private void layout(HashMap<Integer, Integer> households,
+			ArrayList<Integer> policyIDs, int maxRows) {
+
+		// the households of each policy, in ID order
+		ArrayList<ArrayList<Integer>> bands = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < policyIDs.size(); i++) {
+			bands.add(new ArrayList<Integer>());
+		}
+		for (Map.Entry<Integer, Integer> h : households.entrySet()) {
+			bands.get(policyIDs.indexOf(h.getValue())).add(h.getKey());
+		}
+
+		int total = Math.max(1, households.size());
+		int available = Math.min(maxRows, total);
+
+		// each household ID packed with its row, so that sorting by ID keeps
+		// the rows along
+		long[] packed = new long[households.size()];
+		int n = 0;
+		bandRows = new int[bands.size() + 1];
+		rows = 0;
+		for (int b = 0; b < bands.size(); b++) {
+			ArrayList<Integer> band = bands.get(b);
+			Collections.sort(band);
+			int bandSize = Math.max(1,
+					(int) ((long) band.size() * available / total));
+			for (int i = 0; i < band.size(); i++) {
+				int row = rows + (int) ((long) i * bandSize / band.size());
+				packed[n++] = ((long) band.get(i) << 32) | row;
+			}
+			bandRows[b] = rows;
+			rows += bandSize;
+		}
+		bandRows[bands.size()] = rows;
+		rows = Math.max(1, rows);
+
+		Arrays.sort(packed);
+		householdIDs = new int[packed.length];
+		householdRows = new int[packed.length];
+		for (int i = 0; i < packed.length; i++) {
+			householdIDs[i] = (int) (packed[i] >> 32);
+			householdRows[i] = (int) packed[i];
+		}
+	}
+
+	/**
+	 * Adds the demand of every row of the household log to the pixel of its
+	 * household and tick. Nothing but the raster is kept, so the log is
+	 * read in constant memory.
+	 *
+	 * @param cursor
+	 *            the household log, in any order, may be null
+	 * @throws SQLException
+	 *             if a row cannot be retrieved
+	 */
+	private void bin(SeriesCursor cursor) throws SQLException {
+
+		if (cursor == null) {
+			return;
+		}
+
+		long first = bounds[0];
+		long span = bounds[1] - bounds[0] + 1;
+
+		while (cursor.next()) {
+			int h = Arrays.binarySearch(householdIDs, (int) cursor
+					.getValue(PlotterDataProvider.HOUSEHOLD));
+			long offset = cursor.getTick() - first;
+			if (h < 0 || offset < 0 || offset >= span) {
+				continue;
+			}
+
+			int pixel = householdRows[h] * columns
+					+ (int) (offset * columns / span);
+			sums[pixel] += cursor.getValue(PlotterDataProvider.DEMAND);
+			counts[pixel]++;
+			logRows++;
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Adds every demand value of a household matrix to the pixel of its
+	 * household and tick, skipping the missing values.
+	 *
+	 * @param matrix
+	 *            the matrix of the run
+	 */
+	private void bin(HouseholdMatrix matrix) {
+
+		long first = bounds[0];
+		long span = bounds[1] - bounds[0] + 1;
+
+		for (int h = 0; h < matrix.getHouseholdCount(); h++) {
+			int row = householdRows[Arrays.binarySearch(householdIDs,
+					matrix.getHouseholdID(h))] * columns;
+			for (int t = 0; t < matrix.getTickCount(); t++) {
+				float demand = matrix.getDemand(h, t);
+				if (demand != demand) {
+					continue;
+				}
+				int pixel = row
+						+ (int) ((matrix.getTick(t) - first) * columns / span);
+				sums[pixel] += demand;
+				counts[pixel]++;
+				logRows++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of household log rows binned into the raster.
+	 *
+	 * @return the number of rows
+	 */
+	public long getLogRows() {
+		return logRows;
+	}
+
+	/**
+	 * Shows the heatmap in a window covering the screen.
+	 */
+	public void getHeatmapGraph() {
+
+		// the frame window on which the heatmap is to be presented
+		JFrame graph = new JFrame("Household demand for run: " + runInfo);
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// the raster is binned to the window size already
+		graph.getContentPane().add(new JLabel(new ImageIcon(render())));
+
+		// presenting the heatmap window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Draws the heatmap with its title, policy bands, time range and color
+	 * scale, without attaching it to any window. Used by the heatmap window
+	 * as well as by headless renderers.
+	 *
+	 * @return the image, of the size the heatmap was created for
+	 */
+	public BufferedImage render() {
+
+		// the highest average demand of a pixel sets the top of the scale
+		float max = 0;
+		for (int i = 0; i < sums.length; i++) {
+			if (counts[i] > 0 && sums[i] / counts[i] > max) {
+				max = sums[i] / counts[i];
+			}
+		}
+
+		// the raster itself, one pixel per cell; empty cells are left white
+		BufferedImage raster = new BufferedImage(columns, rows,
+				BufferedImage.TYPE_INT_RGB);
+		int[] pixels = new int[columns];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				int i = r * columns + c;
+				if (counts[i] == 0) {
+					pixels[c] = 0xffffff;
+				} else {
+					float level = max > 0 ? sums[i] / counts[i] / max : 0;
+					pixels[c] = PALETTE[Math.max(0, Math.min(
+							PALETTE.length - 1,
+							(int) (level * (PALETTE.length - 1))))];
+				}
+			}
+			raster.setRGB(0, r, columns, 1, pixels, 0, columns);
+		}
+
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+
+		// fewer ticks or households than pixels are stretched over the plot
+		// area
+		int plotWidth = Math.max(1, width - MARGIN_LEFT - MARGIN_RIGHT);
+		int plotHeight = Math.max(1, height - MARGIN_TOP - MARGIN_BOTTOM);
+		g.drawImage(raster, MARGIN_LEFT, MARGIN_TOP, plotWidth, plotHeight,
+				null);
+
+		g.setColor(Color.BLACK);
+		g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 14));
+		g.drawString("Household demand for run: " + runInfo, MARGIN_LEFT, 25);
+
+		// the policy bands, separated by lines and named on the left
+		g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+		FontMetrics fm = g.getFontMetrics();
+		for (int b = 0; b < policyNames.length; b++) {
+			int top = MARGIN_TOP + bandRows[b] * plotHeight / rows;
+			int bottom = MARGIN_TOP + bandRows[b + 1] * plotHeight / rows;
+			if (b > 0) {
+				g.drawLine(MARGIN_LEFT - 5, top, MARGIN_LEFT + plotWidth, top);
+			}
+			String name = policyNames[b] == null ? "" : policyNames[b];
+			while (name.length() > 0
+					&& fm.stringWidth(name) > MARGIN_LEFT - 10) {
+				name = name.substring(0, name.length() - 1);
+			}
+			g.drawString(name, 5, (top + bottom) / 2 + fm.getAscent() / 2);
+		}
+
+		// the time range at both ends below the raster, the color scale in
+		// between
+		int y = MARGIN_TOP + plotHeight + fm.getAscent() + 5;
+		if (bounds != null) {
+			DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+			g.drawString(format.format(new Date(bounds[0])), MARGIN_LEFT, y);
+			String last = format.format(new Date(bounds[1]));
+			g.drawString(last, MARGIN_LEFT + plotWidth - fm.stringWidth(last), y);
+		}
+		int scaleX = MARGIN_LEFT + plotWidth / 3;
+		int scaleWidth = plotWidth / 3;
+		for (int x = 0; x < scaleWidth; x++) {
+			g.setColor(new Color(PALETTE[x * (PALETTE.length - 1)
+					/ Math.max(1, scaleWidth - 1)]));
+			g.drawLine(scaleX + x, y - fm.getAscent(), scaleX + x, y);
+		}
+		g.setColor(Color.BLACK);
+		g.drawString("0", scaleX - fm.stringWidth("0") - 5, y);
+		g.drawString(String.format("%.2f", max), scaleX + scaleWidth + 5, y);
+
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * Returns a DB provider that streams the household log rather than
+	 * reading it into memory.
+	 *
+	 * @return the {@link PlotterDB}
+	 */
+	private static PlotterDB streamingDB() {
+		PlotterDB db = new PlotterDB();
+		db.setStreaming(true);
+		return db;
+	}
+
+	/**
+	 * Shows the heatmap of a run from the DB or, given a file saved by
+	 * {@link HouseholdMatrix}, from that file.
+	 *
+	 * Usage: HouseholdHeatmap [runID | matrixFile]
+	 */
+	public static void main(String[] args) {
+
+		HouseholdHeatmap frame = null;
+		if (args.length == 0 || args[0].matches("\\d+")) {
+			frame = new HouseholdHeatmap(args.length == 0 ? 1 : Integer
+					.parseInt(args[0]));
+		} else {
+			try {
+				HouseholdMatrix matrix = HouseholdMatrix.map(new File(args[0]));
+				frame = new HouseholdHeatmap(matrix, 0, 0);
+				matrix.close();
+			} catch (IOException e) {
+				System.out
+						.println("There was something wrong, execution terminated.\n"
+								+ e.toString());
+				System.exit(1);
+			}
+		}
+		frame.getHeatmapGraph();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,652 @@
+package com.smartgrid.app.plotter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * Holds the demand and appliancesOn values of every household of a run at
+ * every tick, as a dense households by ticks matrix kept outside the Java
+ * heap, so that population wide analysis does not load the garbage
+ * collector.
+ *
+ * The matrix is held in direct buffers or, given a file, in buffers mapped
+ * onto that file, which can be mapped again later without the DB (see
+ * {@link #map(File)}). Each household's ticks are contiguous, and households
+ * are split over buffers of at most {@link #MAX_BUFFER_BYTES} bytes. Missing
+ * values are held as NaN demand and -1 appliances.
+ *
+ * The file format (all numbers big-endian) is:
+ * <ul>
+ * <li>the magic bytes "SGHM1"</li>
+ * <li>the run ID, the number of households and the number of ticks</li>
+ * <li>the household IDs in ascending order, then the policy ID of each
+ * household, as ints</li>
+ * <li>the ticks in ascending order, as longs</li>
+ * <li>the demand values of each household in turn as floats, then the
+ * appliancesOn values of each household in turn as ints</li>
+ * </ul>
+ *
+ * A matrix file is saved from the command line and shown by
+ * {@link HouseholdHeatmap}.
+ *
+ * @version 1.1
+ */
+public class HouseholdMatrix {
+
+	/**
+	 * The magic bytes the file format starts with
+	 */
+	public static final String MAGIC = "SGHM1";
+
+	/**
+	 * The largest number of bytes held by a single buffer
+	 */
+	public static final int MAX_BUFFER_BYTES = 1 << 30;
+
+	/**
+	 * The number of ticks below which a scan is not split any further
+	 */
+	private static final int SCAN_THRESHOLD = 4096;
+
+	/**
+	 * The pool the scans run on
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	/**
+	 * The ID of the run
+	 */
+	private int runID;
+
+	/**
+	 * The IDs of the households, in ascending order
+	 */
+	private int[] householdIDs;
+
+	/**
+	 * The policy of each household, in the order of householdIDs
+	 */
+	private int[] policyIDs;
+
+	/**
+	 * The ticks, in ascending order
+	 */
+	private long[] ticks;
+
+	/**
+	 * The number of households held by each buffer
+	 */
+	private int householdsPerBuffer;
+
+	/**
+	 * The demand values, as floats
+	 */
+	private ByteBuffer[] demand;
+
+	/**
+	 * The appliancesOn values, as ints
+	 */
+	private ByteBuffer[] appliances;
+
+	/**
+	 * Creates an empty matrix of the households and ticks given.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param householdIDs
+	 *            the IDs of the households, in ascending order
+	 * @param policyIDs
+	 *            the policy of each household
+	 * @param ticks
+	 *            the ticks, in ascending order
+	 * @throws IllegalArgumentException
+	 *             if a single household's ticks do not fit in a buffer
+	 */
+	private HouseholdMatrix(int runID, int[] householdIDs, int[] policyIDs,
+			long[] ticks) {
+		this.runID = runID;
+		this.householdIDs = householdIDs;
+		this.policyIDs = policyIDs;
+		this.ticks = ticks;
+
+		if (ticks.length * 4L > MAX_BUFFER_BYTES) {
+			throw new IllegalArgumentException("Too many ticks: "
+					+ ticks.length);
+		}
+		householdsPerBuffer = MAX_BUFFER_BYTES / Math.max(4, ticks.length * 4);
+
+		int buffers = (householdIDs.length + householdsPerBuffer - 1)
+				/ householdsPerBuffer;
+		demand = new ByteBuffer[buffers];
+		appliances = new ByteBuffer[buffers];
+	}
+
+	/**
+	 * Loads the matrix of a run from the DB, streaming the household log.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param file
+	 *            the file the matrix is mapped onto, or null to hold it in
+	 *            direct buffers
+	 * @return the matrix, or null if the run's data cannot be retrieved
+	 * @throws SQLException
+	 *             if the household log cannot be read
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static HouseholdMatrix load(int runID, File file)
+			throws SQLException, IOException {
+		PlotterDB db = new PlotterDB();
+		db.setStreaming(true);
+		return load(runID, db, file);
+	}
+
+	/**
+	 * Loads the matrix of a run in a single pass over its household log.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @param file
+	 *            the file the matrix is mapped onto, or null to hold it in
+	 *            direct buffers
+	 * @return the matrix, or null if the run's data cannot be retrieved
+	 * @throws SQLException
+	 *             if the household log cannot be read
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static HouseholdMatrix load(int runID, PlotterDataProvider p,
+			File file) throws SQLException, IOException {
+
+		if (!p.open()) {
+			return null;
+		}
+
+		try {
+			// the households, in ID order, along with their policies
+			HashMap<Integer, Integer> households = p.getHouseholdPolicies(runID);
+			if (households == null) {
+				return null;
+			}
+			long[] packed = new long[households.size()];
+			int n = 0;
+			for (Map.Entry<Integer, Integer> h : households.entrySet()) {
+				packed[n++] = ((long) h.getKey() << 32)
+						| (h.getValue() & 0xffffffffL);
+			}
+			Arrays.sort(packed);
+			int[] householdIDs = new int[n];
+			int[] policyIDs = new int[n];
+			for (int i = 0; i < n; i++) {
+				householdIDs[i] = (int) (packed[i] >> 32);
+				policyIDs[i] = (int) packed[i];
+			}
+
+			// the ticks, as logged by the aggregator
+			long[] ticks = readTicks(p.getAggregatorSeries(runID));
+			if (ticks == null) {
+				return null;
+			}
+
+			HouseholdMatrix matrix = new HouseholdMatrix(runID, householdIDs,
+					policyIDs, ticks);
+			if (file == null) {
+				matrix.allocate();
+			} else {
+				matrix.create(file);
+			}
+
+			// a single pass over the log, in whichever order it comes
+			SeriesCursor cursor = p.getHouseholdsSeries(runID);
+			if (cursor != null) {
+				while (cursor.next()) {
+					int h = Arrays.binarySearch(householdIDs, (int) cursor
+							.getValue(PlotterDataProvider.HOUSEHOLD));
+					int t = Arrays.binarySearch(ticks, cursor.getTick());
+					if (h >= 0 && t >= 0) {
+						int buffer = h / matrix.householdsPerBuffer;
+						int index = matrix.index(h, t);
+						matrix.demand[buffer].putFloat(index, (float) cursor
+								.getValue(PlotterDataProvider.DEMAND));
+						matrix.appliances[buffer].putInt(index, (int) cursor
+								.getValue(PlotterDataProvider.APPLIANCES_ON));
+					}
+				}
+				cursor.close();
+			}
+			return matrix;
+
+		} finally {
+			p.close();
+		}
+	}
+
+	/**
+	 * Maps a matrix saved by {@link #load(int, PlotterDataProvider, File)}
+	 * back into memory, read only.
+	 *
+	 * @param file
+	 *            the file the matrix was saved to
+	 * @return the matrix
+	 * @throws IOException
+	 *             if the file cannot be read or is not a matrix file
+	 */
+	public static HouseholdMatrix map(File file) throws IOException {
+
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			byte[] magic = new byte[MAGIC.length()];
+			f.readFully(magic);
+			if (!new String(magic, "US-ASCII").equals(MAGIC)) {
+				throw new IOException(file + " is not a household matrix file");
+			}
+
+			int runID = f.readInt();
+			int[] householdIDs = new int[f.readInt()];
+			long[] ticks = new long[f.readInt()];
+			int[] policyIDs = new int[householdIDs.length];
+
+			// the header is small, so it is read through a mapping too
+			ByteBuffer header = f.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					f.getFilePointer(), householdIDs.length * 8L + ticks.length
+							* 8L);
+			header.asIntBuffer().get(householdIDs);
+			header.position(householdIDs.length * 4);
+			header.asIntBuffer().get(policyIDs);
+			header.position(householdIDs.length * 8);
+			header.asLongBuffer().get(ticks);
+
+			HouseholdMatrix matrix = new HouseholdMatrix(runID, householdIDs,
+					policyIDs, ticks);
+			matrix.mapBuffers(f.getChannel(), FileChannel.MapMode.READ_ONLY);
+			return matrix;
+		} finally {
+			// the mappings stay valid once the file is closed
+			f.close();
+		}
+	}
+
+	public int getRunID() {
+		return runID;
+	}
+
+	public int getHouseholdCount() {
+		return householdIDs.length;
+	}
+
+	public int getTickCount() {
+		return ticks.length;
+	}
+
+	/**
+	 * Returns the ID of a household.
+	 *
+	 * @param household
+	 *            the row of the household in the matrix
+	 * @return the ID of the household
+	 */
+	public int getHouseholdID(int household) {
+		return householdIDs[household];
+	}
+
+	/**
+	 * Returns the policy a household was assigned.
+	 *
+	 * @param household
+	 *            the row of the household in the matrix
+	 * @return the ID of the policy
+	 */
+	public int getPolicyID(int household) {
+		return policyIDs[household];
+	}
+
+	/**
+	 * Returns a tick.
+	 *
+	 * @param tick
+	 *            the column of the tick in the matrix
+	 * @return the tick, in milliseconds since the epoch
+	 */
+	public long getTick(int tick) {
+		return ticks[tick];
+	}
+
+	/**
+	 * Returns the row of a household in the matrix.
+	 *
+	 * @param householdID
+	 *            the ID of the household
+	 * @return the row, or a negative number if the household is not held
+	 */
+	public int indexOf(int householdID) {
+		return Arrays.binarySearch(householdIDs, householdID);
+	}
+
+	/**
+	 * Returns the column of a tick in the matrix.
+	 *
+	 * @param tick
+	 *            the tick, in milliseconds since the epoch
+	 * @return the column, or a negative number if the tick is not held
+	 */
+	public int indexOfTick(long tick) {
+		return Arrays.binarySearch(ticks, tick);
+	}
+
+	/**
+	 * Returns the demand of a household at a tick.
+	 *
+	 * @param household
+	 *            the row of the household in the matrix
+	 * @param tick
+	 *            the column of the tick in the matrix
+	 * @return the demand, or NaN if it was not logged
+	 */
+	public float getDemand(int household, int tick) {
+		return demand[household / householdsPerBuffer].getFloat(index(
+				household, tick));
+	}
+
+	/**
+	 * Returns the number of appliances on in a household at a tick.
+	 *
+	 * @param household
+	 *            the row of the household in the matrix
+	 * @param tick
+	 *            the column of the tick in the matrix
+	 * @return the number of appliances, or -1 if it was not logged
+	 */
+	public int getAppliancesOn(int household, int tick) {
+		return appliances[household / householdsPerBuffer].getInt(index(
+				household, tick));
+	}
+
+	/**
+	 * Returns the number of bytes held outside the heap.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getByteSize() {
+		return householdIDs.length * (long) ticks.length * 8;
+	}
+
+	/**
+	 * Averages a column across the households of a policy at every tick,
+	 * skipping missing values. The ticks are split among the threads of a
+	 * fork/join pool, each scanning every household over its own ticks.
+	 *
+	 * @param column
+	 *            {@link PlotterDataProvider#DEMAND} or
+	 *            {@link PlotterDataProvider#APPLIANCES_ON}
+	 * @param policyID
+	 *            the ID of the policy, or -1 for all the households
+	 * @return the average at each tick, NaN where no household has a value
+	 */
+	public double[] average(int column, int policyID) {
+		double[] sums = new double[ticks.length];
+		int[] counts = new int[ticks.length];
+		POOL.invoke(new Scan(column, policyID, 0, ticks.length, sums, counts));
+
+		for (int t = 0; t < sums.length; t++) {
+			sums[t] = counts[t] > 0 ? sums[t] / counts[t] : Double.NaN;
+		}
+		return sums;
+	}
+
+	/**
+	 * Releases the matrix. The memory is given back once the buffers are
+	 * garbage collected, as they cannot be freed explicitly.
+	 */
+	public void close() {
+		Arrays.fill(demand, null);
+		Arrays.fill(appliances, null);
+	}
+
+	/**
+	 * Sums a column over a range of ticks, splitting the range in half until
+	 * it is small enough to scan directly.
+	 */
+	@SuppressWarnings("serial")
+	private class Scan extends RecursiveAction {
+
+		int column, policyID, from, to;
+
+		double[] sums;
+
+		int[] counts;
+
+		Scan(int column, int policyID, int from, int to, double[] sums,
+				int[] counts) {
+			this.column = column;
+			this.policyID = policyID;
+			this.from = from;
+			this.to = to;
+			this.sums = sums;
+			this.counts = counts;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > SCAN_THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Scan(column, policyID, from, middle, sums,
+						counts), new Scan(column, policyID, middle, to, sums,
+						counts));
+				return;
+			}
+
+			// each task owns its ticks, so the sums need no locking
+			for (int h = 0; h < householdIDs.length; h++) {
+				if (policyID >= 0 && policyIDs[h] != policyID) {
+					continue;
+				}
+				int buffer = h / householdsPerBuffer;
+				int base = index(h, 0);
+				if (column == PlotterDataProvider.DEMAND) {
+					ByteBuffer b = demand[buffer];
+					for (int t = from; t < to; t++) {
+						float v = b.getFloat(base + t * 4);
+						if (v == v) {
+							sums[t] += v;
+							counts[t]++;
+						}
+					}
+				} else {
+					ByteBuffer b = appliances[buffer];
+					for (int t = from; t < to; t++) {
+						int v = b.getInt(base + t * 4);
+						if (v >= 0) {
+							sums[t] += v;
+							counts[t]++;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of a value in its buffer.
+	 *
+	 * @param household
+	 *            the row of the household in the matrix
+	 * @param tick
+	 *            the column of the tick in the matrix
+	 * @return the position in bytes
+	 */
+	private int index(int household, int tick) {
+		return ((household % householdsPerBuffer) * ticks.length + tick) * 4;
+	}
+
+	/**
+	 * Returns the number of households held by a buffer.
+	 *
+	 * @param buffer
+	 *            the index of the buffer
+	 * @return the number of households
+	 */
+	private int bufferHouseholds(int buffer) {
+		return Math.min(householdsPerBuffer, householdIDs.length - buffer
+				* householdsPerBuffer);
+	}
+
+	/**
+	 * Allocates direct buffers for the matrix, with every value missing.
+	 */
+	private void allocate() {
+		for (int i = 0; i < demand.length; i++) {
+			int size = bufferHouseholds(i) * ticks.length * 4;
+			demand[i] = ByteBuffer.allocateDirect(size);
+			appliances[i] = ByteBuffer.allocateDirect(size);
+		}
+		clear();
+	}
+
+	/**
+	 * Creates the matrix file, writing its header, and maps the buffers onto
+	 * it, with every value missing.
+	 *
+	 * @param file
+	 *            the matrix file, replaced if it exists
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	private void create(File file) throws IOException {
+
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try {
+			f.setLength(0);
+			f.writeBytes(MAGIC);
+			f.writeInt(runID);
+			f.writeInt(householdIDs.length);
+			f.writeInt(ticks.length);
+
+			ByteBuffer header = ByteBuffer.allocate(householdIDs.length * 8
+					+ ticks.length * 8);
+			header.asIntBuffer().put(householdIDs);
+			header.position(householdIDs.length * 4);
+			header.asIntBuffer().put(policyIDs);
+			header.position(householdIDs.length * 8);
+			header.asLongBuffer().put(ticks);
+			header.rewind();
+			f.getChannel().write(header, f.getFilePointer());
+			f.seek(f.getFilePointer() + header.capacity());
+
+			mapBuffers(f.getChannel(), FileChannel.MapMode.READ_WRITE);
+		} finally {
+			f.close();
+		}
+		clear();
+	}
+
+	/**
+	 * Maps the buffers onto the data of a matrix file, following its header.
+	 *
+	 * @param channel
+	 *            the channel of the file
+	 * @param mode
+	 *            the mapping mode
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	private void mapBuffers(FileChannel channel, FileChannel.MapMode mode)
+			throws IOException {
+
+		long start = MAGIC.length() + 12 + householdIDs.length * 8L
+				+ ticks.length * 8L;
+		long columnBytes = householdIDs.length * (long) ticks.length * 4;
+
+		for (int i = 0; i < demand.length; i++) {
+			long offset = i * (long) householdsPerBuffer * ticks.length * 4;
+			int size = bufferHouseholds(i) * ticks.length * 4;
+			demand[i] = channel.map(mode, start + offset, size);
+			appliances[i] = channel.map(mode, start + columnBytes + offset,
+					size);
+		}
+	}
+
+	/**
+	 * Marks every value of the matrix as missing.
+	 */
+	private void clear() {
+		for (int i = 0; i < demand.length; i++) {
+			for (int index = 0; index < demand[i].capacity(); index += 4) {
+				demand[i].putFloat(index, Float.NaN);
+				appliances[i].putInt(index, -1);
+			}
+		}
+	}
+
+	/**
+	 * Saves the matrix of a run from the DB to a file, which
+	 * {@link HouseholdHeatmap} can then show without the DB.
+	 *
+	 * Usage: HouseholdMatrix runID matrixFile
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 2) {
+			System.out.println("Usage: HouseholdMatrix runID matrixFile");
+			System.exit(1);
+		}
+
+		try {
+			HouseholdMatrix matrix = load(Integer.parseInt(args[0]), new File(
+					args[1]));
+			if (matrix == null) {
+				System.out
+						.println("There was something wrong with getting data from the DB,"
+								+ " execution terminated.");
+				System.exit(1);
+			}
+			System.out.println(matrix.getHouseholdCount() + " households by "
+					+ matrix.getTickCount() + " ticks saved to " + args[1]);
+			matrix.close();
+		} catch (Exception e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads the ticks of a series into an array.
+	 *
+	 * @param cursor
+	 *            the series, may be null
+	 * @return the ticks, or null if there is no series
+	 * @throws SQLException
+	 *             if the series cannot be read
+	 */
+	private static long[] readTicks(SeriesCursor cursor) throws SQLException {
+
+		if (cursor == null) {
+			return null;
+		}
+
+		long[] ticks = new long[1024];
+		int n = 0;
+		while (cursor.next()) {
+			if (n == ticks.length) {
+				ticks = Arrays.copyOf(ticks, n * 2);
+			}
+			ticks[n++] = cursor.getTick();
+		}
+		cursor.close();
+		return Arrays.copyOf(ticks, n);
+	}
+}
@@ -1,13 +1,14 @@
 package com.smartgrid.app.plotter;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Toolkit;
-import java.sql.ResultSet;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Random;
 
 import javax.swing.JFrame;
 import de.erichseifert.gral.data.DataSource;
@@ -20,7 +21,6 @@ import de.erichseifert.gral.plots.axes.AxisRenderer;
 import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
 import de.erichseifert.gral.plots.lines.LineRenderer;
 import de.erichseifert.gral.plots.points.PointRenderer;
-import de.erichseifert.gral.ui.InteractivePanel;
 import de.erichseifert.gral.util.Insets2D;
 
 /**
@@ -53,6 +53,13 @@ public class IndividualPolicyGraph {
 	 */
 	private DataSource priceSeries;
 
+	/**
+	 * DataSources for the bounds of the confidence band of an estimated
+	 * average, null unless the average is estimated first
+	 */
+	private DataSource lowerSeries;
+	private DataSource upperSeries;
+
 	/**
 	 * The specific run's date information
 	 */
@@ -95,6 +102,37 @@ public class IndividualPolicyGraph {
 	 * area
 	 */
 	private int appliancesAxisX;
+
+	/**
+	 * Loads the ticks visible at full resolution as the plots are zoomed into
+	 */
+	private ViewportLoader loader;
+
+	/**
+	 * The performance figures of the graph, shown over its plot windows
+	 */
+	private PlotDiagnostics diagnostics;
+
+	/**
+	 * The policy's data and the aggregator's data as loaded, which hold every
+	 * tick of short runs
+	 */
+	private TickColumns data;
+	private TickColumns prices;
+
+	/**
+	 * Retrieve ranges of the policy's data and of the aggregator's data, for
+	 * the loader as well as for the views that need every tick
+	 */
+	private ViewportLoader.RangeFetcher fetcher;
+	private ViewportLoader.RangeFetcher priceFetcher;
+
+	/**
+	 * The demand ramps of the policy's data and the price spikes of the
+	 * aggregator's data, found at every tick of the run
+	 */
+	private EventList events;
+
 	/**
 	 * The plot's Y axis center, used to map the axis on the visible area
 	 */
@@ -111,8 +149,111 @@ public class IndividualPolicyGraph {
 	 *            states whether the graphs will be about one random house or
 	 *            the average of all houses with the specified policy
 	 */
-	@SuppressWarnings("unchecked")
 	public IndividualPolicyGraph(int runID, int policyID, boolean average) {
+		try {
+			read(runID, policyID, average, provider());
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+
+		// prefetch the remaining policies and the adjacent runs while this
+		// policy is shown
+		Prefetcher.getInstance().focus(runID, policyID);
+	}
+
+	/**
+	 * The constructor for the Individual Policy Graph, reading the run's data
+	 * from the provider given.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param policyID
+	 *            the ID of the specified policy to show the graphs for
+	 * @param average
+	 *            states whether the graphs will be about one random house or
+	 *            the average of all houses with the specified policy
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	public IndividualPolicyGraph(int runID, int policyID, boolean average,
+			PlotterDataProvider p) throws SQLException, IOException {
+		read(runID, policyID, average, p);
+	}
+
+	/**
+	 * Loads the Individual Policy Graph of a run and policy from the DB like
+	 * {@link #IndividualPolicyGraph(int, int, boolean)}, but fails instead of
+	 * terminating, so that a server can report the failure and carry on.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param policyID
+	 *            the ID of the specified policy to show the graphs for
+	 * @param average
+	 *            states whether the graphs will be about one random house or
+	 *            the average of all houses with the specified policy
+	 * @return the graph
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	static IndividualPolicyGraph load(int runID, int policyID, boolean average)
+			throws SQLException, IOException {
+		IndividualPolicyGraph graph = new IndividualPolicyGraph(runID,
+				policyID, average, provider());
+
+		// prefetch the remaining policies and the adjacent runs while this
+		// policy is shown
+		Prefetcher.getInstance().focus(runID, policyID);
+		return graph;
+	}
+
+	/**
+	 * @return the provider the graph reads the run's data from by default
+	 */
+	private static PlotterDataProvider provider() {
+		return Prefetcher.getInstance().provider(
+				ClientAggregatingDataProvider.forDeployment(new PlotterDB()));
+	}
+
+	/**
+	 * Reads the run's data from the provider given into the series of the
+	 * graph.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param policyID
+	 *            the ID of the specified policy to show the graphs for
+	 * @param average
+	 *            states whether the graphs will be about one random house or
+	 *            the average of all houses with the specified policy
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	private void read(int runID, int policyID, boolean average,
+			PlotterDataProvider p) throws SQLException, IOException {
+
+		// time the retrieval of the data for the diagnostics overlay
+		diagnostics = new PlotDiagnostics();
+		p = diagnostics.wrap(p);
 
 		if (average) {
 			averageMode = "Average ";
@@ -121,113 +262,276 @@ public class IndividualPolicyGraph {
 		}
 
 		// get user's screen size for calculating the plot windows sizes
-		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+		Dimension screenSize = Screen.getSize();
 		width = (int) (screenSize.getWidth() / 2);
 		height = (int) (screenSize.getHeight() / 2);
 
-		// create an object that provides connection to the DB
-		PlotterDB p = new PlotterDB();
-		ResultSet rs = null;
-		ArrayList<Double> prices = new ArrayList<Double>();
+		// the household data for this run and policy
+		SeriesCursor cursor = null;
+
+		// the first and last tick of the run and the number of ticks
+		long[] bounds = null;
+		long resolution = 0;
+
+		// the household shown, if a random one
+		int houseID = -1;
+
+		// estimates the average from a sample of households first, if enabled
+		ProgressiveAverage estimator = null;
 
 		// connect to the DB and get the run's information,
-		// as well as the household data for this run and policy
+		// as well as an overview of the household data for this run and
+		// policy
 		if (p.open()) {
 			runInfo = p.getRunInfo(runID);
 			policyInfo = p.getPolicyInfo(policyID);
-
-			// retrieving price data from the DB
-			prices = p.getPrices(runID);
-			if (average) {
-				rs = p.getPolicyAverageData(runID, policyID);
+			bounds = p.getTickBounds(runID);
+			resolution = ViewportLoader.overviewResolution(bounds);
+
+			if (average && ProgressiveAverage.isEnabled() && resolution > 0) {
+				estimator = new ProgressiveAverage(runID, policyID,
+						p.getHouseholdPolicies(runID), resolution, new Random(
+								runID));
+			} else if (average) {
+				cursor = p.getPolicyAverageSeries(runID, policyID,
+						Long.MIN_VALUE, Long.MAX_VALUE, resolution);
 			} else {
-				rs = p.getPolicyRandomData(runID, policyID);
+				houseID = p.getPolicyRandomHousehold(runID, policyID);
+				cursor = p.getHouseholdSeries(runID, houseID, Long.MIN_VALUE,
+						Long.MAX_VALUE, resolution);
 			}
 		} else {
-			System.out
-					.println("There was something wrong with getting data from the DB,"
-							+ " execution terminated.");
-			System.exit(1);
+			throw new SQLException("No connection to the DB");
 		}
 
 		// initialize our DataTables
-		DataTable demandTable = new DataTable(Long.class, Double.class);
-		DataTable appliancesTable = new DataTable(Long.class, Integer.class);
+		final DataTable demandTable = new DataTable(Long.class, Double.class);
+		final DataTable appliancesTable = new DataTable(Long.class,
+				Integer.class);
 
 		// temp variables used for calculating the axes positions
-		boolean b = true;
 		axisY = 0;
 		demandAxisX = Double.MAX_VALUE;
 		appliancesAxisX = Integer.MAX_VALUE;
 		priceAxisX = Double.MAX_VALUE;
 
-		// temp variables for the priceList iteration
-		int i = 0;
-		priceAxisX = Double.MAX_VALUE;
-
 		// initializing the price DataTable
 		DataTable priceTable = new DataTable(Long.class, Double.class);
 
+		// the confidence band of the estimate: tick, lower and upper bound
+		final DataTable bandTable = new DataTable(Long.class, Double.class,
+				Double.class);
+
+		// the overviews parsed, kept for merging with full resolution ranges
+		final TickColumns overview = new TickColumns(2, 2048);
+		TickColumns priceOverview = null;
+
+		// the events of the run, found at full resolution: as the overviews
+		// are parsed if they hold every tick, or else over every tick
+		// afterwards; the ramps of an estimated average are found in the
+		// estimate, as the exact average is only computed in the background
+		events = new EventList();
+		final EventDetector demandDetector = new EventDetector(events);
+		EventDetector priceDetector = new EventDetector(events);
+		final boolean complete = resolution == 0 || estimator != null;
+
 		// retrieving data for each policy and populating the DataTables
 		try {
 
-			// while the ResultSet returned contains more rows
-			while (rs.next()) {
-
-				// get the individual data of this row:
-				// tick, demand, appliances
-				long date = rs.getTimestamp("tick").getTime();
-				double demand = rs.getDouble("demand");
-				int appliances = rs.getInt("appliancesOn");
+			// the first estimate, from a small sample of households
+			if (estimator != null) {
+				estimator.refine(p);
+				cursor = estimator.estimate().cursor();
+			}
 
-				// add this data to the DataTables
-				demandTable.add(date, demand);
-				appliancesTable.add(date, appliances);
+			// the series is decoded on another thread while its batches of
+			// rows are added here, along with the bounds of an estimate
+			final boolean estimated = estimator != null;
+			new SeriesPipeline(estimated ? 4 : 2).run(cursor,
+					new SeriesPipeline.Sink() {
+						public void accept(TickColumns batch) {
+							for (int i = 0; i < batch.size(); i++) {
+								addRow(batch, i);
+							}
+						}
+
+						/**
+						 * Adds a row to the tables and overview.
+						 */
+						private void addRow(TickColumns batch, int i) {
+
+							// get the individual data of this row:
+							// tick, demand, appliances
+							long date = batch.getTick(i);
+							double demand = batch.getValue(
+									PlotterDataProvider.DEMAND, i);
+							int appliances = (int) batch.getValue(
+									PlotterDataProvider.APPLIANCES_ON, i);
+
+							// perform checks/calculations for the axes
+							// positions
+							if (overview.size() == 0) {
+								axisY = date;
+							}
+
+							// add this data to the DataTables
+							demandTable.add(date, demand);
+							appliancesTable.add(date, appliances);
+
+							int row = overview.addRow(date);
+							overview.setValue(PlotterDataProvider.DEMAND, row,
+									demand);
+							overview.setValue(
+									PlotterDataProvider.APPLIANCES_ON, row,
+									appliances);
+
+							if (complete) {
+								demandDetector.add(date, Double.NaN, demand,
+										Double.NaN);
+							}
+
+							if (estimated) {
+								bandTable.add(date, batch.getValue(
+										ProgressiveAverage.LOWER, i), batch
+										.getValue(ProgressiveAverage.UPPER, i));
+							}
+
+							if (demandAxisX > demand) {
+								demandAxisX = demand;
+							}
+
+							if (appliancesAxisX > appliances) {
+								appliancesAxisX = appliances;
+							}
+						}
+
+						public void finish() {
+							// the ramps are found over every tick below
+							// otherwise
+							if (complete) {
+								demandDetector.finish();
+							}
+						}
+					});
+
+			// the overview's buckets flatten the ramps, so those of a long
+			// run are found by streaming every tick through the detector
+			if (!complete) {
+				EventList.detect(average ? p.getPolicyAverageSeries(runID,
+						policyID, Long.MIN_VALUE, Long.MAX_VALUE, 0) : p
+						.getHouseholdSeries(runID, houseID, Long.MIN_VALUE,
+								Long.MAX_VALUE, 0), demandDetector, -1,
+						PlotterDataProvider.DEMAND, -1);
+			}
 
-				// price data added to its DataTable
-				double pr = prices.get(i);
-				priceTable.add(date, pr);
+			// retrieving price data from the DB, once the household data has
+			// been read, as the connection runs a single query at a time
+			priceOverview = TickColumns.read(p.getAggregatorSeries(runID,
+					Long.MIN_VALUE, Long.MAX_VALUE, resolution), 3);
+
+			// price data added to its DataTable
+			for (int i = 0; i < priceOverview.size(); i++) {
+				double pr = priceOverview.getValue(PlotterDataProvider.PRICE, i);
+				priceTable.add(priceOverview.getTick(i), pr);
+				if (resolution == 0) {
+					priceDetector.add(priceOverview.getTick(i), Double.NaN,
+							Double.NaN, pr);
+				}
 
 				// perform checks for the price axis position
 				if (priceAxisX > pr) {
 					priceAxisX = pr;
 				}
-
-				// perform checks/calculations for the axes positions
-				if (b) {
-					axisY = date;
-					b = false;
-				}
-
-				if (demandAxisX > demand) {
-					demandAxisX = demand;
-				}
-
-				if (appliancesAxisX > appliances) {
-					appliancesAxisX = appliances;
-				}
-
-				i++;
 			}
 
-			// close the ResultSet since all its rows have been parsed
-			rs.close();
+			// the price spikes, over every tick of a long run
+			if (resolution == 0) {
+				priceDetector.finish();
+			} else {
+				EventList.detect(p.getAggregatorSeries(runID, Long.MIN_VALUE,
+						Long.MAX_VALUE, 0), priceDetector, -1, -1,
+						PlotterDataProvider.PRICE);
+			}
 
 			// create new DataSources with the data parsed from the
-			// ResultSet
+			// series
 			demandSeries = new DataSeries("Demand", demandTable, 0, 1);
 			appliancesSeries = new DataSeries("Appliances", appliancesTable, 0,
 					1);
 			priceSeries = new DataSeries(priceTable, 0, 1);
+			if (estimator != null) {
+				lowerSeries = new DataSeries("Lower bound", bandTable, 0, 1);
+				upperSeries = new DataSeries("Upper bound", bandTable, 0, 2);
+			}
+			data = overview;
+			prices = priceOverview;
 
 			// close the connection to the DB
 			p.close();
 
+			// load the ticks at full resolution as the plots are zoomed into,
+			// and the series at the granularities chosen; a short run whose
+			// ticks are all loaded already is only reloaded at a granularity
+			final int run = runID;
+			final int policy = policyID;
+			final int house = houseID;
+			final boolean avg = average;
+
+			loader = new ViewportLoader(p, bounds);
+			diagnostics.setLoader(loader);
+			fetcher = new ViewportLoader.RangeFetcher() {
+				public SeriesCursor fetch(PlotterDataProvider p,
+						long fromTick, long toTick, long resolution,
+						String aggregate) {
+					if (avg) {
+						return p.getPolicyAverageSeries(run, policy,
+								fromTick, toTick, resolution, aggregate);
+					}
+					return p.getHouseholdSeries(run, house, fromTick,
+							toTick, resolution, aggregate);
+				}
+			};
+			int index = loader.addSource(fetcher, overview,
+					new DataTable[] { demandTable, appliancesTable },
+					new int[] { PlotterDataProvider.DEMAND,
+							PlotterDataProvider.APPLIANCES_ON },
+					new boolean[] { false, true }, estimator == null);
+			priceFetcher = new ViewportLoader.RangeFetcher() {
+				public SeriesCursor fetch(PlotterDataProvider p,
+						long fromTick, long toTick, long resolution,
+						String aggregate) {
+					return p.getAggregatorSeries(run, fromTick, toTick,
+							resolution, aggregate);
+				}
+			};
+			loader.addSource(priceFetcher, priceOverview,
+					new DataTable[] { priceTable },
+					new int[] { PlotterDataProvider.PRICE },
+					new boolean[] { false });
+
+			// refine the estimate in the background until it is exact
+			if (estimator != null) {
+				final DataTable band = bandTable;
+				estimator.refineInBackground(loader, index, fetcher,
+						new ProgressiveAverage.Listener() {
+							public void refined(TickColumns series,
+									boolean exact) {
+								if (series != null) {
+									data = series;
+								}
+								ProgressiveAverage.fillBand(band, series,
+										exact);
+							}
+						});
+			}
+
 		} catch (SQLException e) {
-			System.out
-					.println("There was something wrong, execution terminated.\n"
-							+ e.toString());
-			System.exit(1);
+			// the connection is still open, as the data could not be read
+			p.close();
+			throw e;
+		} catch (IOException e) {
+			p.close();
+			throw e;
 		}
 
 	}
@@ -265,6 +569,42 @@ public class IndividualPolicyGraph {
 		getGraph("priceLeft");
 	}
 
+	/**
+	 * Shows a graph of a series derived from every tick of the run, on the
+	 * top part of the screen
+	 * 
+	 * @param metric
+	 *            the name of the metric, one of {@link DerivedMetrics#METRICS}
+	 */
+	public void getDerivedGraph(String metric) {
+
+		// the plot of the derived series, computed at full resolution
+		XYPlot plot = null;
+		try {
+			plot = createDerivedPlot(metric);
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return;
+		}
+
+		// the frame window on which the plot is to be presented
+		JFrame graph = new JFrame();
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(1.65);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
 	/**
 	 * Depending on the parameter given, shows either a Price graph on the
 	 * bottom part of the screen (for false) or a Household Demand graph on the
@@ -279,7 +619,49 @@ public class IndividualPolicyGraph {
 		JFrame graph = new JFrame();
 
 		// frame parameters
-		graph.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+		// set window size and position depending on the graph mode
+		if (mode == "demand") {
+			graph.setBounds(0, 0, width, height);
+		} else if (mode == "appliances") {
+			graph.setBounds(width, 0, width, height);
+		} else if (mode == "priceLeft") {
+			graph.setBounds(0, height, width, height);
+		} else if (mode == "priceRight") {
+			graph.setBounds(width, height, width, height);
+		}
+
+		// the actual plot that contains all the data
+		XYPlot plot = createPlot(mode);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// follow the visible range of the plot, and offer to view its
+		// series at coarser granularities
+		loader.attach(plot, graph);
+		graph.getContentPane().add(Granularity.selector(loader),
+				BorderLayout.NORTH);
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(1.65);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Creates a fully formatted plot for the graph mode given, without
+	 * attaching it to any window. Used by the plot windows as well as by
+	 * headless renderers.
+	 * 
+	 * @param mode
+	 *            controls the type of plot that will be created
+	 * @return the formatted {@link XYPlot}
+	 */
+	XYPlot createPlot(String mode) {
 
 		// titles for the plot and the axis Y
 		String plotTitle = null;
@@ -289,36 +671,37 @@ public class IndividualPolicyGraph {
 		DataSource tempSeries = null;
 
 		// depending on the String value passed as a parameter:
-		// 1. set window size and position
-		// 2. get the appropriate DataSource in an Array format
-		// 3. set the titles for the plot and Y axis
+		// 1. get the appropriate DataSource in an Array format
+		// 2. set the titles for the plot and Y axis
 		if (mode == "demand") {
-			graph.setBounds(0, 0, width, height);
 			plotTitle = averageMode + "Household Demand for Policy: "
 					+ policyInfo + "\nfor run: " + runInfo;
 			axisYTitle = "Household Demand";
 			tempSeries = demandSeries;
 		} else if (mode == "appliances") {
-			graph.setBounds(width, 0, width, height);
 			plotTitle = averageMode
 					+ "Household Active Appliances for Policy: " + policyInfo
 					+ "\nfor run: " + runInfo;
 			axisYTitle = "Active Appliances";
 			tempSeries = appliancesSeries;
 		} else if (mode == "priceLeft") {
-			graph.setBounds(0, height, width, height);
 			plotTitle = "Price for run: " + runInfo;
 			axisYTitle = "Price";
 			tempSeries = priceSeries;
 		} else if (mode == "priceRight") {
-			graph.setBounds(width, height, width, height);
 			plotTitle = "Price for run: " + runInfo;
 			axisYTitle = "Price";
 			tempSeries = priceSeries;
 		}
 
-		// the actual plot that contains all the data
-		XYPlot plot = new XYPlot(tempSeries);
+		// the actual plot that contains all the data, along with the
+		// confidence band of the demand while it is estimated
+		XYPlot plot = null;
+		if (mode == "demand" && lowerSeries != null) {
+			plot = new XYPlot(tempSeries, lowerSeries, upperSeries);
+		} else {
+			plot = new XYPlot(tempSeries);
+		}
 
 		// --- formating the plot ---
 
@@ -350,7 +733,7 @@ public class IndividualPolicyGraph {
 		axisRendererX.setSetting(AxisRenderer.TICK_LABELS_FORMAT, dateFormat);
 
 		// set the axes positions from the object's attributes which were
-		// calculated beforehand (in the ResultSet parsing)
+		// calculated beforehand (in the series parsing)
 		axisRendererY.setSetting(AxisRenderer.INTERSECTION, axisY);
 
 		// assign appropriate axis position depending on the graph mode
@@ -368,9 +751,6 @@ public class IndividualPolicyGraph {
 		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
 		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
 
-		// get the plot on the frame
-		graph.getContentPane().add(new InteractivePanel(plot));
-
 		// create new line object
 		LineRenderer lines = new DefaultLineRenderer2D();
 
@@ -386,12 +766,118 @@ public class IndividualPolicyGraph {
 				new Color(0, true));
 		plot.getLineRenderer(tempSeries).setSetting(LineRenderer.COLOR, color);
 
-		// set the zoom for the frame
-		XYPlotNavigator xy = new XYPlotNavigator(plot);
-		xy.setZoom(1.65);
+		// draw the bounds of the band in a fainter color
+		if (plot.getData().size() > 1) {
+			Color faint = new Color(color.getRed(), color.getGreen(),
+					color.getBlue(), 80);
+			for (DataSource bound : new DataSource[] { lowerSeries,
+					upperSeries }) {
+				plot.setLineRenderer(bound, new DefaultLineRenderer2D());
+				plot.getPointRenderer(bound).setSetting(PointRenderer.COLOR,
+						new Color(0, true));
+				plot.getLineRenderer(bound).setSetting(LineRenderer.COLOR,
+						faint);
+			}
+		}
 
-		// presenting the plot window
-		graph.setVisible(true);
+		// mark the ramps of demand or the price spikes; the ramps of an
+		// estimated average are those of the estimate
+		if (mode == "demand") {
+			events.addMarkers(plot, EventDetector.RAMP,
+					lowerSeries != null ? "Ramp (estimate)" : "Ramp",
+					new Color(1.0f, 0.5f, 0.0f));
+		} else if (mode == "priceLeft" || mode == "priceRight") {
+			events.addMarkers(plot, EventDetector.PRICE_SPIKE, "Price Spike",
+					Color.RED);
+		}
+
+		return plot;
+	}
+
+	/**
+	 * Returns the demand ramps and price spikes found at every tick of the
+	 * run, or in the estimate of an estimated average.
+	 * 
+	 * @return the {@link EventList}
+	 */
+	public EventList getEvents() {
+		return events;
+	}
+
+	/**
+	 * Returns a series at full resolution: the series as loaded if it holds
+	 * every tick, or else every tick read again through the loader.
+	 * 
+	 * @param loaded
+	 *            the series as loaded
+	 * @param fetcher
+	 *            retrieves ranges of the series
+	 * @param columns
+	 *            the number of value columns of the series
+	 * @return the {@link TickColumns} of every tick
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	private TickColumns readTicks(TickColumns loaded,
+			ViewportLoader.RangeFetcher fetcher, int columns)
+			throws SQLException {
+		if (loader.getResolution() == 0) {
+			return loaded;
+		}
+		return loader.read(fetcher, columns);
+	}
+
+	/**
+	 * Creates a fully formatted plot of a series derived from the policy's
+	 * data, without attaching it to any window. The series is computed at
+	 * every tick of the run and plotted at the granularity of the graph.
+	 * 
+	 * @param metric
+	 *            the name of the metric, one of {@link DerivedMetrics#METRICS}
+	 * @return the formatted {@link XYPlot}
+	 * @throws IllegalArgumentException
+	 *             if the metric is unknown or needs the supply
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	XYPlot createDerivedPlot(String metric) throws SQLException {
+
+		// the metric is checked before any data is read
+		DerivedMetrics.compute(metric, new long[0], new double[0], null,
+				new double[0], new double[0], 0);
+
+		// every tick of the policy's data and of the price
+		TickColumns ticks = readTicks(data, fetcher, 2);
+		TickColumns allPrices = readTicks(prices, priceFetcher, 3);
+
+		// the price at each of the policy's ticks
+		int n = ticks.size();
+		double[] price = new double[n];
+		DerivedMetrics.align(ticks.getTicks(), n, allPrices.getTicks(),
+				allPrices.getColumn(PlotterDataProvider.PRICE),
+				allPrices.size(), price);
+
+		// compute the derived series from every tick of the policy
+		double[] values = new double[n];
+		DerivedMetrics.compute(metric, ticks.getTicks(),
+				ticks.getColumn(PlotterDataProvider.DEMAND), null, price,
+				values, n);
+
+		// plotted at the granularity chosen, or at that of the overview
+		long interval = Math.max(loader.getInterval(), loader.getResolution());
+		String aggregate = loader.getAggregate();
+
+		String title = DerivedMetrics.title(metric);
+		ArrayList<DataSeries> series = new ArrayList<DataSeries>();
+		series.add(new DataSeries(title, DerivedMetrics.table(
+				ticks.getTicks(), values, n, interval, aggregate), 0, 1));
+		ArrayList<Color> colors = new ArrayList<Color>();
+		colors.add(new Color(0.0f, 0.5f, 1.0f));
+
+		return DerivedMetrics.createPlot(title + ", "
+				+ Granularity.describe(interval, aggregate)
+				+ " \n for policy: " + policyInfo + " " + averageMode
+				+ "\n for run: " + runInfo, title, series, colors, axisY);
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,529 @@
+package com.smartgrid.app.plotter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import de.erichseifert.gral.io.plots.DrawableWriter;
+import de.erichseifert.gral.io.plots.DrawableWriterFactory;
+import de.erichseifert.gral.plots.XYPlot;
+
+/**
+ *
+ * Measures how long it takes to go from opening a run to fully rendered
+ * graphs, for each of the three graph types and for runs of several sizes.
+ *
+ * The runs are generated from a fixed seed into an archive read by a
+ * {@link MappedFileDataProvider}, so the measurements are repeatable and need
+ * no DB or display. Each scenario loads a graph and renders its plots to PNG,
+ * as the {@link PlotServer} does, and records:
+ * <ul>
+ * <li>the time to first paint, i.e. until the first plot is rendered</li>
+ * <li>the total load time, until all the plots of the graph are rendered</li>
+ * <li>the peak heap use</li>
+ * <li>the number of bytes allocated, and the allocation rate</li>
+ * </ul>
+ *
+ * Each scenario is run a few times after warming up, and the median of each
+ * measurement is kept. The results can be recorded as baselines; checking
+ * against the baselines fails when a scenario is slower, or uses or
+ * allocates more memory, than its baseline by more than a threshold. The
+ * allocation rate is reported only, as it also rises when a scenario gets
+ * faster.
+ *
+ * @version 1.1
+ */
+public class Macrobenchmark {
+
+	/**
+	 * The default location of the baselines file
+	 */
+	public static final String DEFAULT_BASELINES = "benchmark-baselines.csv";
+
+	/**
+	 * The default share by which a measurement may exceed its baseline
+	 */
+	public static final double DEFAULT_THRESHOLD = 0.25;
+
+	/**
+	 * The graph types benchmarked
+	 */
+	public static final String[] GRAPHS = { "supplydemand", "average",
+			"policy" };
+
+	/**
+	 * The names of the run sizes benchmarked
+	 */
+	public static final String[] SIZES = { "small", "medium", "large" };
+
+	/**
+	 * The number of ticks of each run size
+	 */
+	private static final int[] SIZE_TICKS = { 2000, 50000, 500000 };
+
+	/**
+	 * The number of policies of each run size
+	 */
+	private static final int[] SIZE_POLICIES = { 3, 5, 8 };
+
+	/**
+	 * The names of the measurements, as in the baselines file
+	 */
+	public static final String[] MEASUREMENTS = { "firstPaintMs", "totalMs",
+			"peakHeapMB", "allocatedMB", "allocationMBps" };
+
+	/**
+	 * The number of measurements checked against the baselines, the first
+	 * ones of {@link #MEASUREMENTS}
+	 */
+	private static final int CHECKED = 4;
+
+	/**
+	 * The smallest increase over a baseline counted as a regression, per
+	 * measurement, so that noise on small values is not
+	 */
+	private static final double[] MIN_INCREASE = { 10, 10, 4, 4 };
+
+	/**
+	 * The seed the runs are generated from
+	 */
+	private static final long SEED = 20120307L;
+
+	/**
+	 * The first tick of the generated runs, in milliseconds since the epoch
+	 */
+	private static final long FIRST_TICK = 1331078400000L;
+
+	/**
+	 * The time between the ticks of the generated runs, in milliseconds
+	 */
+	private static final long TICK = 60000L;
+
+	/**
+	 * The archive the runs are generated into
+	 */
+	private File fixtures;
+
+	/**
+	 * The number of runs of each scenario before it is measured
+	 */
+	private int warmup;
+
+	/**
+	 * The number of measured runs of each scenario
+	 */
+	private int iterations;
+
+	/**
+	 * The size of the rendered images
+	 */
+	private int width, height;
+
+	/**
+	 * Creates a new benchmark, generating its runs.
+	 *
+	 * @param fixtures
+	 *            the directory the runs are generated into
+	 * @param warmup
+	 *            the number of runs of each scenario before it is measured
+	 * @param iterations
+	 *            the number of measured runs of each scenario
+	 * @throws IOException
+	 *             if the runs cannot be written
+	 */
+	public Macrobenchmark(File fixtures, int warmup, int iterations)
+			throws IOException {
+		this.fixtures = fixtures;
+		this.warmup = warmup;
+		this.iterations = iterations;
+		this.width = 1600;
+		this.height = 600;
+
+		TreeMap<Integer, String> runs = new TreeMap<Integer, String>();
+		TreeMap<Integer, String> policies = new TreeMap<Integer, String>();
+		for (int s = 0; s < SIZES.length; s++) {
+			createRun(fixtures, s + 1, SIZE_TICKS[s], SIZE_POLICIES[s], SEED
+					+ s);
+			runs.put(s + 1, "benchmark " + SIZES[s]);
+		}
+		for (int policyID = 1; policyID <= SIZE_POLICIES[SIZES.length - 1]; policyID++) {
+			policies.put(policyID, "Benchmark policy " + policyID
+					+ " version 1");
+		}
+		MappedFileDataProvider.writeCatalog(new File(fixtures,
+				MappedFileDataProvider.RUNS_FILE), runs);
+		MappedFileDataProvider.writeCatalog(new File(fixtures,
+				MappedFileDataProvider.POLICIES_FILE), policies);
+	}
+
+	/**
+	 * Generates a run into an archive: the aggregator series, and the
+	 * average series and one household of each policy, following a daily
+	 * cycle with noise.
+	 *
+	 * @param dir
+	 *            the archive directory
+	 * @param runID
+	 *            the ID of the run
+	 * @param ticks
+	 *            the number of ticks
+	 * @param policies
+	 *            the number of policies, with IDs from 1
+	 * @param seed
+	 *            the seed of the noise
+	 * @throws IOException
+	 *             if the run cannot be written
+	 */
+	static void createRun(File dir, int runID, int ticks, int policies,
+			long seed) throws IOException {
+
+		File runDir = MappedFileDataProvider.runDir(dir, runID);
+		if (!runDir.isDirectory() && !runDir.mkdirs()) {
+			throw new IOException("Cannot create " + runDir);
+		}
+
+		Random random = new Random(seed);
+		double day = 24 * 3600000.0 / TICK;
+
+		SeriesWriter aggregator = new ColumnarSeriesWriter(new FileOutputStream(
+				new File(runDir, "aggregator.sgcol")));
+		aggregator.start(new String[] { "supply", "overallDemand", "price" });
+		double[] row = new double[3];
+		for (int t = 0; t < ticks; t++) {
+			double cycle = Math.sin(2 * Math.PI * t / day);
+			row[PlotterDataProvider.OVERALL_DEMAND] = 1000 + 400 * cycle + 50
+					* random.nextGaussian();
+			row[PlotterDataProvider.SUPPLY] = 1100 + 300 * cycle + 30
+					* random.nextGaussian();
+			row[PlotterDataProvider.PRICE] = 0.1
+					* row[PlotterDataProvider.OVERALL_DEMAND]
+					/ row[PlotterDataProvider.SUPPLY];
+			aggregator.write(FIRST_TICK + t * TICK, row);
+		}
+		aggregator.finish();
+
+		row = new double[2];
+		for (int policyID = 1; policyID <= policies; policyID++) {
+			SeriesWriter average = new ColumnarSeriesWriter(
+					new FileOutputStream(new File(runDir, "policy-" + policyID
+							+ "-average.sgcol")));
+			SeriesWriter household = new ColumnarSeriesWriter(
+					new FileOutputStream(new File(runDir, "policy-" + policyID
+							+ "-household-" + (runID * 1000 + policyID)
+							+ ".sgcol")));
+			average.start(new String[] { "demand", "appliancesOn" });
+			household.start(new String[] { "demand", "appliancesOn" });
+
+			for (int t = 0; t < ticks; t++) {
+				double cycle = Math.sin(2 * Math.PI * (t + policyID * 60) / day);
+				row[PlotterDataProvider.DEMAND] = 2 + cycle + 0.2
+						* random.nextGaussian();
+				row[PlotterDataProvider.APPLIANCES_ON] = Math.round(5 + 3
+						* cycle + random.nextGaussian());
+				average.write(FIRST_TICK + t * TICK, row);
+
+				row[PlotterDataProvider.DEMAND] = Math.max(0, 2 + 2 * cycle
+						+ random.nextGaussian());
+				row[PlotterDataProvider.APPLIANCES_ON] = Math.max(0,
+						Math.round(5 + 4 * cycle + 2 * random.nextGaussian()));
+				household.write(FIRST_TICK + t * TICK, row);
+			}
+			average.finish();
+			household.finish();
+		}
+	}
+
+	/**
+	 * Runs a scenario, warming up first, and returns the median of each
+	 * measurement.
+	 *
+	 * @param graph
+	 *            the graph type, one of {@link #GRAPHS}
+	 * @param size
+	 *            the index of the run size in {@link #SIZES}
+	 * @return the measurements, in the order of {@link #MEASUREMENTS}
+	 * @throws IOException
+	 *             if a plot cannot be rendered
+	 */
+	public double[] run(String graph, int size) throws IOException {
+
+		for (int i = 0; i < warmup; i++) {
+			measure(graph, size + 1);
+		}
+
+		double[][] samples = new double[MEASUREMENTS.length][iterations];
+		for (int i = 0; i < iterations; i++) {
+			double[] m = measure(graph, size + 1);
+			for (int j = 0; j < m.length; j++) {
+				samples[j][i] = m[j];
+			}
+		}
+
+		double[] medians = new double[MEASUREMENTS.length];
+		for (int j = 0; j < medians.length; j++) {
+			Arrays.sort(samples[j]);
+			medians[j] = samples[j][iterations / 2];
+		}
+		return medians;
+	}
+
+	/**
+	 * Loads a graph from the archive and renders all its plots once.
+	 *
+	 * @param graph
+	 *            the graph type, one of {@link #GRAPHS}
+	 * @param runID
+	 *            the ID of the run
+	 * @return the measurements, in the order of {@link #MEASUREMENTS}
+	 * @throws IOException
+	 *             if a plot cannot be rendered
+	 */
+	private double[] measure(String graph, int runID) throws IOException {
+
+		// start from a clean heap, and count the peak from there
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long firstPaint = 0;
+
+		PlotterDataProvider p = new MappedFileDataProvider(fixtures);
+		try {
+			if (graph.equals("supplydemand")) {
+				SupplyDemandGraph g = new SupplyDemandGraph(runID, p);
+				render(g.createPlot(true));
+				firstPaint = System.nanoTime();
+				render(g.createPlot(false));
+			} else if (graph.equals("average")) {
+				AveragePoliciesGraph g = new AveragePoliciesGraph(runID, p);
+				render(g.createPlot("demand"));
+				firstPaint = System.nanoTime();
+				render(g.createPlot("appliances"));
+				render(g.createPlot("priceLeft"));
+			} else if (graph.equals("policy")) {
+				IndividualPolicyGraph g = new IndividualPolicyGraph(runID, 1,
+						true, p);
+				render(g.createPlot("demand"));
+				firstPaint = System.nanoTime();
+				render(g.createPlot("appliances"));
+				render(g.createPlot("priceLeft"));
+			} else {
+				throw new IllegalArgumentException("Unknown graph: " + graph);
+			}
+		} catch (SQLException e) {
+			// the fixtures could not be read
+			throw new IOException(e);
+		}
+
+		long end = System.nanoTime();
+		allocated = allocatedBytes() - allocated;
+
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		double totalMs = (end - start) / 1e6;
+		double allocatedMB = allocated / (1024.0 * 1024);
+		return new double[] { (firstPaint - start) / 1e6, totalMs,
+				peak / (1024.0 * 1024), allocatedMB,
+				allocatedMB / Math.max(totalMs, 1) * 1000 };
+	}
+
+	/**
+	 * Renders a plot to PNG, as the {@link PlotServer} does.
+	 *
+	 * @param plot
+	 *            the plot
+	 * @throws IOException
+	 *             if the plot cannot be rendered
+	 */
+	private void render(XYPlot plot) throws IOException {
+		DrawableWriter writer = DrawableWriterFactory.getInstance().get(
+				"image/png");
+		writer.write(plot, new ByteArrayOutputStream(), width, height);
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread so far.
+	 *
+	 * @return the number of bytes, or 0 if the JVM does not count them
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * Reads a baselines file.
+	 *
+	 * @param f
+	 *            the baselines file
+	 * @return the measurements of each scenario, by scenario name
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	static Map<String, double[]> readBaselines(File f) throws IOException {
+
+		Map<String, double[]> baselines = new LinkedHashMap<String, double[]>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(f), "UTF-8"));
+		try {
+			String line = in.readLine();
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length != MEASUREMENTS.length + 1) {
+					continue;
+				}
+				double[] m = new double[MEASUREMENTS.length];
+				for (int j = 0; j < m.length; j++) {
+					m[j] = Double.parseDouble(fields[j + 1]);
+				}
+				baselines.put(fields[0], m);
+			}
+		} finally {
+			in.close();
+		}
+		return baselines;
+	}
+
+	/**
+	 * Writes a baselines file.
+	 *
+	 * @param f
+	 *            the baselines file
+	 * @param results
+	 *            the measurements of each scenario, by scenario name
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	static void writeBaselines(File f, Map<String, double[]> results)
+			throws IOException {
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			out.write("scenario");
+			for (String m : MEASUREMENTS) {
+				out.write("," + m);
+			}
+			out.write("\n");
+			for (Map.Entry<String, double[]> r : results.entrySet()) {
+				out.write(r.getKey());
+				for (double v : r.getValue()) {
+					out.write("," + String.format("%.2f", v));
+				}
+				out.write("\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Runs all the scenarios and either records them as baselines or checks
+	 * them against the baselines, exiting with status 1 on a regression.
+	 *
+	 * Usage: Macrobenchmark record|check [baselines [threshold [iterations]]]
+	 */
+	public static void main(String[] args) throws IOException {
+
+		// the plots are never shown on screen
+		System.setProperty("java.awt.headless", "true");
+
+		boolean record = args.length > 0 && args[0].equals("record");
+		File baselinesFile = new File(args.length > 1 ? args[1]
+				: DEFAULT_BASELINES);
+		double threshold = args.length > 2 ? Double.parseDouble(args[2])
+				: DEFAULT_THRESHOLD;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		File fixtures = new File(System.getProperty("java.io.tmpdir"),
+				"smartgrid-benchmark");
+		Macrobenchmark benchmark = new Macrobenchmark(fixtures, 2, iterations);
+
+		Map<String, double[]> baselines = null;
+		if (!record) {
+			if (!baselinesFile.exists()) {
+				System.out.println("No baselines in " + baselinesFile
+						+ ", record them first");
+				System.exit(2);
+			}
+			baselines = readBaselines(baselinesFile);
+		}
+
+		StringBuilder header = new StringBuilder("scenario\t");
+		for (String m : MEASUREMENTS) {
+			header.append('\t').append(m);
+		}
+		System.out.println(header);
+
+		Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+		int regressions = 0;
+		for (int s = 0; s < SIZES.length; s++) {
+			for (String graph : GRAPHS) {
+				String scenario = graph + "-" + SIZES[s];
+				double[] m = benchmark.run(graph, s);
+				results.put(scenario, m);
+
+				StringBuilder line = new StringBuilder(scenario);
+				for (double v : m) {
+					line.append('\t').append(String.format("%.2f", v));
+				}
+
+				// compare with the baseline, if there is one
+				double[] baseline = baselines == null ? null : baselines
+						.get(scenario);
+				if (baseline != null) {
+					for (int j = 0; j < CHECKED; j++) {
+						if (m[j] > baseline[j] * (1 + threshold)
+								&& m[j] - baseline[j] > MIN_INCREASE[j]) {
+							line.append("\tREGRESSION ").append(MEASUREMENTS[j])
+									.append(String.format(" %.2f > %.2f",
+											m[j], baseline[j]));
+							regressions++;
+						}
+					}
+				}
+				System.out.println(line);
+			}
+		}
+
+		if (record) {
+			writeBaselines(baselinesFile, results);
+			System.out.println("Baselines recorded in " + baselinesFile);
+		} else if (regressions > 0) {
+			System.out.println(regressions + " regressions beyond "
+					+ Math.round(threshold * 100) + "%");
+			System.exit(1);
+		} else {
+			System.out.println("No regressions beyond "
+					+ Math.round(threshold * 100) + "%");
+		}
+	}
+}
@@ -0,0 +1,538 @@
+package com.smartgrid.app.plotter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ *
+ * Provides simulation data from archived runs stored in local files, so that
+ * runs can be plotted without a DB.
+ *
+ * The archive directory holds:
+ * <ul>
+ * <li>runs.csv, with one "runID,date" line per run</li>
+ * <li>policies.csv, with one "policyID,name version" line per policy</li>
+ * <li>a run-&lt;runID&gt; directory per run, holding the columnar series
+ * files aggregator.sgcol, policy-&lt;policyID&gt;-average.sgcol and one or
+ * more policy-&lt;policyID&gt;-household-&lt;householdID&gt;.sgcol</li>
+ * </ul>
+ *
+ * The series files are in the format written by {@link ColumnarSeriesWriter}
+ * and are read through memory mapping (see {@link MappedSeriesCursor}).
+ * Archives are created by {@link SeriesExporter#archiveRun(int, File)}.
+ *
+ * @version 1.1
+ */
+public class MappedFileDataProvider implements PlotterDataProvider {
+
+	/**
+	 * The name of the run catalog file
+	 */
+	static final String RUNS_FILE = "runs.csv";
+
+	/**
+	 * The name of the policy catalog file
+	 */
+	static final String POLICIES_FILE = "policies.csv";
+
+	/**
+	 * The archive directory
+	 */
+	private File dir;
+
+	/**
+	 * The dates of the archived runs
+	 */
+	private TreeMap<Integer, String> runs;
+
+	/**
+	 * The name and version information of the archived policies
+	 */
+	private TreeMap<Integer, String> policies;
+
+	/**
+	 * Creates a provider for the archive directory given.
+	 *
+	 * @param dir
+	 *            the archive directory
+	 */
+	public MappedFileDataProvider(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Reads the run and policy catalogs of the archive.
+	 *
+	 * @return true if the archive can be read, false otherwise.
+	 */
+	public boolean open() {
+		try {
+			runs = readCatalog(new File(dir, RUNS_FILE));
+			policies = readCatalog(new File(dir, POLICIES_FILE));
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the catalogs; series files are closed with their cursors.
+	 */
+	public void close() {
+		runs = null;
+		policies = null;
+	}
+
+	/**
+	 * Does nothing, as the series files are read from memory without waiting
+	 * on a server.
+	 */
+	public void cancel() {
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID) {
+		return cursor(new File(runDir(runID), "aggregator.sgcol"), "supply",
+				"overallDemand", "price");
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution) {
+		return getAggregatorSeries(runID, fromTick, toTick, resolution,
+				Granularity.AVG);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		return resample(getAggregatorSeries(runID), 3, fromTick, toTick,
+				resolution, aggregate);
+	}
+
+	public SeriesCursor getPolicyRandomSeries(int runID, int policyID) {
+		int houseID = getPolicyRandomHousehold(runID, policyID);
+		if (houseID < 0) {
+			return null;
+		}
+
+		return getHouseholdSeries(runID, houseID, Long.MIN_VALUE,
+				Long.MAX_VALUE, 0);
+	}
+
+	public int getPolicyRandomHousehold(int runID, int policyID) {
+
+		// pick one of the archived households of the policy
+		ArrayList<Integer> houses = new ArrayList<Integer>();
+		String prefix = "policy-" + policyID + "-household-";
+		File[] files = runDir(runID).listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = f.getName();
+				if (name.startsWith(prefix) && name.endsWith(".sgcol")) {
+					houses.add(Integer.parseInt(name.substring(prefix.length(),
+							name.length() - ".sgcol".length())));
+				}
+			}
+		}
+
+		if (houses.isEmpty()) {
+			System.out.println("No household archived for policy " + policyID
+					+ " of run " + runID);
+			return -1;
+		}
+
+		return houses.get(new Random().nextInt(houses.size()));
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution) {
+		return getHouseholdSeries(runID, householdID, fromTick, toTick,
+				resolution, Granularity.AVG);
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+
+		// the household's file, whichever policy it is assigned
+		File[] files = runDir(runID).listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().endsWith("-household-" + householdID + ".sgcol")) {
+					return resample(cursor(f, "demand", "appliancesOn"), 2,
+							fromTick, toTick, resolution, aggregate);
+				}
+			}
+		}
+
+		System.out.println("Household " + householdID
+				+ " is not archived for run " + runID);
+		return null;
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID) {
+		return cursor(new File(runDir(runID), "policy-" + policyID
+				+ "-average.sgcol"), "demand", "appliancesOn");
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution) {
+		return getPolicyAverageSeries(runID, policyID, fromTick, toTick,
+				resolution, Granularity.AVG);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		return resample(getPolicyAverageSeries(runID, policyID), 2, fromTick,
+				toTick, resolution, aggregate);
+	}
+
+	public long[] getTickBounds(int runID) {
+
+		SeriesCursor c = getAggregatorSeries(runID);
+		if (c == null) {
+			return null;
+		}
+
+		long[] bounds = null;
+		try {
+			while (c.next()) {
+				long tick = c.getTick();
+				if (bounds == null) {
+					bounds = new long[] { tick, tick, 0 };
+				}
+				bounds[1] = tick;
+				bounds[2]++;
+			}
+			c.close();
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Computes the summary of an archived run by scanning its aggregator
+	 * series. The number of households is unknown, as only some of them are
+	 * archived.
+	 */
+	public RunSummary getRunSummary(int runID) {
+
+		SeriesCursor c = getAggregatorSeries(runID);
+		if (c == null) {
+			return null;
+		}
+
+		long first = 0;
+		long last = 0;
+		long ticks = 0;
+		double peakDemand = 0;
+		double peakShortfall = 0;
+		long shortfallTicks = 0;
+		try {
+			while (c.next()) {
+				double supply = c.getValue(SUPPLY);
+				double demand = c.getValue(OVERALL_DEMAND);
+				if (ticks == 0) {
+					first = c.getTick();
+					peakDemand = demand;
+				}
+				last = c.getTick();
+				ticks++;
+				peakDemand = Math.max(peakDemand, demand);
+				if (demand > supply) {
+					peakShortfall = Math.max(peakShortfall, demand - supply);
+					shortfallTicks++;
+				}
+			}
+			c.close();
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return null;
+		}
+
+		return new RunSummary(runID, runs.get(runID), first, last, ticks,
+				getRunPolicies(runID).size(), -1, peakDemand, peakShortfall,
+				shortfallTicks);
+	}
+
+	public ArrayList<Integer> getRunPolicies(int runID) {
+
+		ArrayList<Integer> policyIDs = new ArrayList<Integer>();
+		File[] files = runDir(runID).listFiles();
+		if (files == null) {
+			return policyIDs;
+		}
+
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith("policy-") && name.endsWith("-average.sgcol")) {
+				policyIDs.add(Integer.parseInt(name.substring(7, name.length()
+						- "-average.sgcol".length())));
+			}
+		}
+
+		Collections.sort(policyIDs);
+		return policyIDs;
+	}
+
+	/**
+	 * Only the households archived with the run are known.
+	 */
+	public HashMap<Integer, Integer> getHouseholdPolicies(int runID) {
+
+		HashMap<Integer, Integer> households = new HashMap<Integer, Integer>();
+		File[] files = runDir(runID).listFiles();
+		if (files == null) {
+			return households;
+		}
+
+		for (File f : files) {
+			String name = f.getName();
+			int house = name.indexOf("-household-");
+			if (name.startsWith("policy-") && house > 7
+					&& name.endsWith(".sgcol")) {
+				households.put(Integer.parseInt(name.substring(house
+						+ "-household-".length(), name.length()
+						- ".sgcol".length())), Integer.parseInt(name
+						.substring(7, house)));
+			}
+		}
+		return households;
+	}
+
+	/**
+	 * Only the households archived with the run are read, one file after the
+	 * other.
+	 */
+	public SeriesCursor getHouseholdsSeries(final int runID) {
+
+		final ArrayList<Map.Entry<Integer, Integer>> households = new ArrayList<Map.Entry<Integer, Integer>>(
+				getHouseholdPolicies(runID).entrySet());
+		if (households.isEmpty()) {
+			return null;
+		}
+
+		return new SeriesCursor() {
+
+			// the file being read, and the household it belongs to
+			SeriesCursor current = null;
+			int next = 0;
+			double household = -1;
+
+			public boolean next() throws SQLException {
+				while (current == null || !current.next()) {
+					if (current != null) {
+						current.close();
+						current = null;
+					}
+					if (next == households.size()) {
+						return false;
+					}
+					Map.Entry<Integer, Integer> h = households.get(next++);
+					household = h.getKey();
+					current = cursor(new File(runDir(runID), "policy-"
+							+ h.getValue() + "-household-" + h.getKey()
+							+ ".sgcol"), "demand", "appliancesOn");
+				}
+				return true;
+			}
+
+			public long getTick() throws SQLException {
+				return current.getTick();
+			}
+
+			public double getValue(int column) throws SQLException {
+				return column == HOUSEHOLD ? household : current
+						.getValue(column);
+			}
+
+			public void close() throws SQLException {
+				if (current != null) {
+					current.close();
+					current = null;
+				}
+				next = households.size();
+			}
+		};
+	}
+
+	/**
+	 * The archives only hold the average demand of each policy and a few of
+	 * its households, so the total demand of a policy is not available.
+	 */
+	public SeriesCursor getPolicyShareSeries(int runID, long resolution) {
+		return null;
+	}
+
+	public HashMap<Integer, String> getRuns() {
+		return new HashMap<Integer, String>(runs);
+	}
+
+	public ArrayList<Double> getPrices(int runID) {
+
+		ArrayList<Double> prices = new ArrayList<Double>();
+		SeriesCursor c = getAggregatorSeries(runID);
+		if (c == null) {
+			return prices;
+		}
+
+		try {
+			while (c.next()) {
+				prices.add(c.getValue(PRICE));
+			}
+			c.close();
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+		}
+
+		return prices;
+	}
+
+	public String getPolicyInfo(int policyID) {
+		return policies.get(policyID);
+	}
+
+	public String getRunInfo(int runID) {
+		return runs.get(runID);
+	}
+
+	/**
+	 * Returns the directory holding the series of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the run's directory
+	 */
+	private File runDir(int runID) {
+		return runDir(dir, runID);
+	}
+
+	/**
+	 * Returns the directory holding the series of a run in an archive.
+	 *
+	 * @param dir
+	 *            the archive directory
+	 * @param runID
+	 *            the ID of the run
+	 * @return the run's directory
+	 */
+	static File runDir(File dir, int runID) {
+		return new File(dir, "run-" + runID);
+	}
+
+	/**
+	 * Restricts a series to a range of ticks and resolution.
+	 * 
+	 * @param c
+	 *            the whole series, may be null
+	 * @param columns
+	 *            the number of value columns of the series
+	 * @param fromTick
+	 *            the first tick returned
+	 * @param toTick
+	 *            the last tick returned
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with
+	 * @return the restricted {@link SeriesCursor}, or null if there is no data
+	 */
+	private SeriesCursor resample(SeriesCursor c, int columns, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		if (c == null) {
+			return null;
+		}
+		return new ResamplingCursor(c, columns, fromTick, toTick, resolution,
+				aggregate);
+	}
+
+	/**
+	 * Opens a series file, reporting failures the way the DB provider does.
+	 *
+	 * @param f
+	 *            the series file
+	 * @param columns
+	 *            the value columns exposed by the cursor
+	 * @return the {@link SeriesCursor}, or null if the file cannot be read
+	 */
+	private SeriesCursor cursor(File f, String... columns) {
+		try {
+			return new MappedSeriesCursor(f, columns);
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a catalog file of "id,text" lines. A missing file is an empty
+	 * catalog.
+	 *
+	 * @param f
+	 *            the catalog file
+	 * @return the catalog entries by ID
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	static TreeMap<Integer, String> readCatalog(File f) throws IOException {
+
+		TreeMap<Integer, String> catalog = new TreeMap<Integer, String>();
+		if (!f.exists()) {
+			return catalog;
+		}
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(f), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int comma = line.indexOf(',');
+				if (comma > 0) {
+					catalog.put(Integer.parseInt(line.substring(0, comma)),
+							line.substring(comma + 1));
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return catalog;
+	}
+
+	/**
+	 * Writes a catalog file of "id,text" lines.
+	 *
+	 * @param f
+	 *            the catalog file
+	 * @param catalog
+	 *            the catalog entries by ID
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	static void writeCatalog(File f, Map<Integer, String> catalog)
+			throws IOException {
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			for (Map.Entry<Integer, String> entry : catalog.entrySet()) {
+				out.write(entry.getKey() + "," + entry.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.smartgrid.app.plotter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+
+/**
+ *
+ * A {@link SeriesCursor} over a file written by {@link ColumnarSeriesWriter}.
+ *
+ * Each row group is memory-mapped in turn and the values are read in place
+ * from the mapped pages, without copying or parsing them into objects. Only
+ * one row group is mapped at a time, so files of any size can be read.
+ *
+ * @version 1.1
+ */
+public class MappedSeriesCursor implements SeriesCursor {
+
+	/**
+	 * The file read
+	 */
+	private RandomAccessFile file;
+
+	/**
+	 * The file position of the next row group
+	 */
+	private long position;
+
+	/**
+	 * The number of value columns in the file
+	 */
+	private int columnCount;
+
+	/**
+	 * The positions, in the file, of the columns exposed by this cursor
+	 */
+	private int[] indices;
+
+	/**
+	 * The mapped row group currently read
+	 */
+	private MappedByteBuffer group;
+
+	/**
+	 * The number of rows in the current row group
+	 */
+	private int groupRows;
+
+	/**
+	 * The current row in the current row group
+	 */
+	private int row;
+
+	/**
+	 * Opens a columnar series file.
+	 *
+	 * @param f
+	 *            the file to read
+	 * @param columns
+	 *            the names of the value columns, in the order they are
+	 *            exposed by the cursor
+	 * @throws IOException
+	 *             if the file cannot be read, is not a columnar series file or
+	 *             does not contain all the columns given
+	 */
+	public MappedSeriesCursor(File f, String... columns) throws IOException {
+
+		file = new RandomAccessFile(f, "r");
+
+		try {
+			// check the magic bytes
+			byte[] magic = new byte[ColumnarSeriesWriter.MAGIC.length()];
+			file.readFully(magic);
+			if (!new String(magic, "US-ASCII")
+					.equals(ColumnarSeriesWriter.MAGIC)) {
+				throw new IOException(f + " is not a columnar series file");
+			}
+
+			// read the column names and find the ones requested
+			columnCount = file.readInt();
+			String[] names = new String[columnCount];
+			for (int c = 0; c < columnCount; c++) {
+				names[c] = file.readUTF();
+			}
+
+			indices = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				indices[i] = -1;
+				for (int c = 0; c < columnCount; c++) {
+					if (names[c].equals(columns[i])) {
+						indices[i] = c;
+					}
+				}
+				if (indices[i] < 0) {
+					throw new IOException(f + " has no column " + columns[i]);
+				}
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+
+		position = file.getFilePointer();
+		groupRows = 0;
+		row = 0;
+	}
+
+	public boolean next() throws SQLException {
+		row++;
+		if (row < groupRows) {
+			return true;
+		}
+
+		// the current row group is done, map the next one
+		try {
+			file.seek(position);
+			groupRows = file.readInt();
+			if (groupRows == 0) {
+				group = null;
+				return false;
+			}
+
+			long size = groupRows * 8L * (1 + columnCount);
+			group = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+					position + 4, size);
+			position += 4 + size;
+		} catch (IOException e) {
+			throw new SQLException(e);
+		}
+
+		row = 0;
+		return true;
+	}
+
+	public long getTick() {
+		return group.getLong(row * 8);
+	}
+
+	public double getValue(int column) {
+		return group.getDouble((groupRows * (1 + indices[column]) + row) * 8);
+	}
+
+	public void close() throws SQLException {
+		group = null;
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new SQLException(e);
+		}
+	}
+}
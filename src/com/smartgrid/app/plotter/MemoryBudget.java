@@ -0,0 +1,208 @@
+package com.smartgrid.app.plotter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ *
+ * Keeps the series data held by all the open graphs within a fixed budget of
+ * memory.
+ *
+ * Every holder of series data registers as a {@link Consumer} and reports
+ * its footprint. When the total exceeds the budget, the least recently viewed
+ * consumers are first downgraded to a coarser resolution and then, if that
+ * is not enough, evicted altogether. Consumers reload what they dropped when
+ * they are viewed again.
+ *
+ * The budget is read in megabytes from the system property
+ * {@value #BUDGET_PROPERTY}, and defaults to {@link #DEFAULT_BUDGET} bytes.
+ *
+ * @version 1.1
+ */
+public class MemoryBudget {
+
+	/**
+	 * The system property holding the budget in megabytes
+	 */
+	public static final String BUDGET_PROPERTY = "smartgrid.plotter.memoryBudget";
+
+	/**
+	 * The budget used when the system property is not set, in bytes
+	 */
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+	/**
+	 * A holder of series data whose memory is accounted for.
+	 */
+	public interface Consumer {
+
+		/**
+		 * Returns the approximate number of bytes of memory held.
+		 *
+		 * @return the memory footprint in bytes
+		 */
+		public long getByteSize();
+
+		/**
+		 * Drops the data held at full resolution, keeping a coarser version.
+		 */
+		public void downgrade();
+
+		/**
+		 * Drops all the data held, until the consumer is viewed again.
+		 */
+		public void evict();
+	}
+
+	/**
+	 * The budget shared by all the graphs of the application
+	 */
+	private static MemoryBudget instance;
+
+	/**
+	 * The budget in bytes
+	 */
+	private long budget;
+
+	/**
+	 * The registered consumers, from the least to the most recently viewed
+	 */
+	private LinkedHashMap<Consumer, Boolean> consumers;
+
+	/**
+	 * Creates a new budget.
+	 *
+	 * @param budget
+	 *            the budget in bytes
+	 */
+	public MemoryBudget(long budget) {
+		this.budget = budget;
+		this.consumers = new LinkedHashMap<Consumer, Boolean>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the budget shared by all the graphs of the application, created
+	 * from the system property on first use.
+	 *
+	 * @return the shared {@link MemoryBudget}
+	 */
+	public static synchronized MemoryBudget getInstance() {
+		if (instance == null) {
+			long budget = DEFAULT_BUDGET;
+			String value = System.getProperty(BUDGET_PROPERTY);
+			if (value != null) {
+				try {
+					budget = Long.parseLong(value.trim()) * 1024 * 1024;
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid memory budget: " + value);
+				}
+			}
+			instance = new MemoryBudget(budget);
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the budget.
+	 *
+	 * @return the budget in bytes
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Changes the budget; it is enforced on the next call to
+	 * {@link #enforce()}.
+	 *
+	 * @param budget
+	 *            the budget in bytes
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Starts accounting for a consumer, as the most recently viewed.
+	 *
+	 * @param c
+	 *            the consumer
+	 */
+	public synchronized void register(Consumer c) {
+		consumers.put(c, Boolean.TRUE);
+	}
+
+	/**
+	 * Stops accounting for a consumer.
+	 *
+	 * @param c
+	 *            the consumer
+	 */
+	public synchronized void unregister(Consumer c) {
+		consumers.remove(c);
+	}
+
+	/**
+	 * Marks a consumer as the most recently viewed.
+	 *
+	 * @param c
+	 *            the consumer
+	 */
+	public synchronized void touch(Consumer c) {
+		consumers.get(c);
+	}
+
+	/**
+	 * Returns the total footprint of the registered consumers.
+	 *
+	 * @return the memory footprint in bytes
+	 */
+	public long getByteSize() {
+		long total = 0;
+		for (Consumer c : snapshot()) {
+			total += c.getByteSize();
+		}
+		return total;
+	}
+
+	/**
+	 * Downgrades and then evicts the least recently viewed consumers until
+	 * the total footprint is within the budget. The most recently viewed
+	 * consumer is always left alone.
+	 */
+	public void enforce() {
+
+		// the consumers are called without holding the lock, as they may be
+		// registering or touching from other threads
+		ArrayList<Consumer> lru = snapshot();
+		long limit = getBudget();
+		long total = 0;
+		for (Consumer c : lru) {
+			total += c.getByteSize();
+		}
+
+		for (int i = 0; i < lru.size() - 1 && total > limit; i++) {
+			Consumer c = lru.get(i);
+			long before = c.getByteSize();
+			c.downgrade();
+			total -= before - c.getByteSize();
+		}
+
+		for (int i = 0; i < lru.size() - 1 && total > limit; i++) {
+			Consumer c = lru.get(i);
+			long before = c.getByteSize();
+			c.evict();
+			total -= before - c.getByteSize();
+		}
+	}
+
+	/**
+	 * Returns the registered consumers, from the least to the most recently
+	 * viewed.
+	 *
+	 * @return a copy of the list of consumers
+	 */
+	private synchronized ArrayList<Consumer> snapshot() {
+		return new ArrayList<Consumer>(consumers.keySet());
+	}
+}
@@ -0,0 +1,185 @@
+package com.smartgrid.app.plotter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Keeps rendered plots (images or serialised series) in memory, so that
+ * repeated requests for the same run, policy, view and size are answered
+ * without querying the DB or rendering again.
+ *
+ * The cache is bounded by the total number of bytes it holds and evicts the
+ * least recently used entries first.
+ *
+ * @version 1.1
+ */
+public class PlotCache {
+
+	/**
+	 * A single cached response: its content, content type and entity tag.
+	 */
+	public static class Entry {
+
+		/**
+		 * The rendered content
+		 */
+		private final byte[] content;
+
+		/**
+		 * The MIME type of the rendered content
+		 */
+		private final String contentType;
+
+		/**
+		 * The entity tag identifying this exact content
+		 */
+		private final String eTag;
+
+		/**
+		 * Creates a new cache entry and computes its entity tag from the
+		 * content.
+		 *
+		 * @param content
+		 *            the rendered content
+		 * @param contentType
+		 *            the MIME type of the rendered content
+		 */
+		public Entry(byte[] content, String contentType) {
+			this.content = content;
+			this.contentType = contentType;
+
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			this.eTag = "\"" + Long.toHexString(crc.getValue()) + "-"
+					+ Integer.toHexString(content.length) + "\"";
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+	}
+
+	/**
+	 * The cached entries in access order (least recently used first)
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * The maximum number of bytes kept in the cache
+	 */
+	private final long maxBytes;
+
+	/**
+	 * The number of bytes currently kept in the cache
+	 */
+	private long bytes;
+
+	/**
+	 * Creates a new cache that holds at most the number of bytes given.
+	 *
+	 * @param maxBytes
+	 *            the maximum number of bytes kept in the cache
+	 */
+	public PlotCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.bytes = 0;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Builds the key under which a rendered plot is cached.
+	 *
+	 * @param runID
+	 *            the ID of the run shown
+	 * @param policyID
+	 *            the ID of the policy shown, or a negative number if the view
+	 *            is not policy specific
+	 * @param view
+	 *            the name of the view rendered
+	 * @param format
+	 *            the output format (e.g. png, svg, json)
+	 * @param width
+	 *            the rendered width in pixels
+	 * @param height
+	 *            the rendered height in pixels
+	 * @return the cache key
+	 */
+	public static String key(int runID, int policyID, String view,
+			String format, int width, int height) {
+		return runID + "/" + policyID + "/" + view + "/" + format + "/"
+				+ width + "x" + height;
+	}
+
+	/**
+	 * Returns the entry cached under the key given, marking it as recently
+	 * used.
+	 *
+	 * @param key
+	 *            the cache key
+	 * @return the cached {@link Entry}, or null if there is none
+	 */
+	public synchronized Entry get(String key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Caches an entry under the key given, evicting the least recently used
+	 * entries until the cache fits in its byte budget again.
+	 *
+	 * Entries larger than the whole budget are not cached at all.
+	 *
+	 * @param key
+	 *            the cache key
+	 * @param entry
+	 *            the entry to cache
+	 */
+	public synchronized void put(String key, Entry entry) {
+		int size = entry.getContent().length;
+		if (size > maxBytes) {
+			return;
+		}
+
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.getContent().length;
+		}
+		bytes += size;
+
+		// evict in least recently used order
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet()
+				.iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			bytes -= eldest.getValue().getContent().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes all cached entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Returns the number of bytes currently held by the cache.
+	 *
+	 * @return the number of cached bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
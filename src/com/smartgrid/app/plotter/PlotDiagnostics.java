@@ -0,0 +1,148 @@
+package com.smartgrid.app.plotter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Collects the performance figures of a graph, for the overlay drawn over
+ * its plot windows by the {@link DiagnosticsPanel}: the time spent querying
+ * and parsing its data, the number of rows read, and the memory held by its
+ * {@link ViewportLoader}, if any.
+ *
+ * The figures are recorded by a {@link TimingDataProvider} wrapped around the
+ * provider of the graph, both while the graph is created and as the loader
+ * retrieves chunks in the background.
+ *
+ * @version 1.1
+ */
+public class PlotDiagnostics {
+
+	/**
+	 * The system property telling whether the overlay is shown when the
+	 * windows are opened; it can be toggled in each window with F3 either way
+	 */
+	public static final String PROPERTY = "smartgrid.plotter.diagnostics";
+
+	/**
+	 * The number of requests made
+	 */
+	private AtomicLong queries = new AtomicLong();
+
+	/**
+	 * The time spent until the requests returned, in nanoseconds
+	 */
+	private AtomicLong queryNanos = new AtomicLong();
+
+	/**
+	 * The time spent reading the series returned, in nanoseconds
+	 */
+	private AtomicLong parseNanos = new AtomicLong();
+
+	/**
+	 * The number of rows read
+	 */
+	private AtomicLong rows = new AtomicLong();
+
+	/**
+	 * The loader of the graph, or null if all its data is loaded at once
+	 */
+	private volatile ViewportLoader loader;
+
+	/**
+	 * Tells whether the overlay is shown when the windows are opened.
+	 *
+	 * @return true if {@link #PROPERTY} is set to true
+	 */
+	public static boolean isEnabled() {
+		return Boolean.getBoolean(PROPERTY);
+	}
+
+	/**
+	 * Wraps a provider so that its requests are recorded here.
+	 *
+	 * @param p
+	 *            the provider of the graph
+	 * @return the {@link TimingDataProvider}
+	 */
+	public PlotterDataProvider wrap(PlotterDataProvider p) {
+		return new TimingDataProvider(p, this);
+	}
+
+	/**
+	 * Sets the loader whose memory is reported.
+	 *
+	 * @param loader
+	 *            the loader of the graph
+	 */
+	public void setLoader(ViewportLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Records a request.
+	 *
+	 * @param nanos
+	 *            the time until the request returned, in nanoseconds
+	 */
+	void recordQuery(long nanos) {
+		queries.incrementAndGet();
+		queryNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records the reading of a series.
+	 *
+	 * @param nanos
+	 *            the time spent reading it, in nanoseconds
+	 * @param count
+	 *            the number of rows read
+	 */
+	void recordParse(long nanos, long count) {
+		parseNanos.addAndGet(nanos);
+		rows.addAndGet(count);
+	}
+
+	/**
+	 * @return the number of requests made
+	 */
+	public long getQueries() {
+		return queries.get();
+	}
+
+	/**
+	 * @return the time spent until the requests returned, in milliseconds
+	 */
+	public double getQueryMillis() {
+		return queryNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return the time spent reading the series returned, in milliseconds
+	 */
+	public double getParseMillis() {
+		return parseNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return the number of rows read
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * Returns the memory held by the data of the graph: as accounted for by
+	 * its loader, or else estimated from the number of points in its tables.
+	 *
+	 * @param points
+	 *            the number of points in the tables of a plot of the graph
+	 * @return the number of bytes
+	 */
+	public long getByteSize(long points) {
+		ViewportLoader l = loader;
+		if (l != null) {
+			return l.getByteSize();
+		}
+		return points * ViewportLoader.TABLE_ROW_BYTES;
+	}
+}
@@ -0,0 +1,816 @@
+package com.smartgrid.app.plotter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.erichseifert.gral.data.DataSeries;
+import de.erichseifert.gral.data.DataSource;
+import de.erichseifert.gral.io.plots.DrawableWriter;
+import de.erichseifert.gral.io.plots.DrawableWriterFactory;
+import de.erichseifert.gral.plots.XYPlot;
+
+/**
+ *
+ * Serves the plots of a run over HTTP, as PNG or SVG images, along with the
+ * underlying series as JSON.
+ *
+ * Supported requests:
+ * <ul>
+ * <li>/plot?run=1&view=supplydemand&format=png&width=800&height=400</li>
+ * <li>/series?run=1&policy=2&view=demand</li>
+ * <li>/runs?page=0&size=20&sort=peakDemand&order=desc&date=2012</li>
+ * </ul>
+ *
+ * Views without a policy are supplydemand and price (from the aggregator
+ * data) and demand and appliances, with one line per policy of the run. Given
+ * a policy, the demand, appliances and price views refer to that policy only,
+ * either averaged across its households or, with sample=random, for a random
+ * household.
+ *
+ * The views named after a {@link Distributions} view, such as
+ * durationCurve or demandHistogram, plot the distribution of the aggregator
+ * data or, with by=policy, of the average data of each policy.
+ *
+ * The heatmap view, without a policy, shows every household's demand with
+ * one band per policy (see {@link HouseholdHeatmap}); it is only rendered as
+ * PNG.
+ *
+ * The share view, without a policy, stacks the demand of each policy of the
+ * run up to the overallDemand (see {@link PolicyShareGraph}).
+ *
+ * The views named after a {@link DerivedMetrics} metric, such as imbalance
+ * or cost, plot the metric derived from the aggregator data or, given a
+ * policy, from that policy's data.
+ *
+ * The runs are listed a page at a time from the {@link RunCatalog}, sorted by
+ * any of the {@link RunSummary#FIELDS} and optionally filtered by date text
+ * and minimum number of ticks; refresh=true adds the runs that are new since
+ * the catalog was last refreshed.
+ *
+ * Requests are handled by a bounded pool of workers. Rendered responses are
+ * cached and tagged, so that repeated requests are answered from memory and
+ * clients holding a fresh copy get a 304 response.
+ *
+ * @version 1.1
+ */
+public class PlotServer {
+
+	/**
+	 * The largest width or height, in pixels, that will be rendered
+	 */
+	private static final int MAX_SIZE = 4096;
+
+	/**
+	 * The number of graph objects (i.e. loaded runs and policies) kept in
+	 * memory
+	 */
+	private static final int MAX_GRAPHS = 32;
+
+	/**
+	 * The largest number of runs listed per page
+	 */
+	private static final int MAX_PAGE_SIZE = 500;
+
+	/**
+	 * The underlying HTTP server
+	 */
+	private HttpServer server;
+
+	/**
+	 * The bounded pool of workers handling the requests
+	 */
+	private ThreadPoolExecutor workers;
+
+	/**
+	 * The cache of rendered responses
+	 */
+	private PlotCache cache;
+
+	/**
+	 * The loaded graph objects, in least recently used order, so that each
+	 * run or policy is only retrieved from the DB once
+	 */
+	private LinkedHashMap<String, FutureTask<Object>> graphs;
+
+	/**
+	 * The catalog of runs, refreshed on first use
+	 */
+	private RunCatalog catalog;
+
+	/**
+	 * Whether the catalog has been refreshed since the server started
+	 */
+	private boolean catalogRefreshed;
+
+	/**
+	 * Creates a plot server that does not listen for requests, for rendering
+	 * plots on behalf of other components of the application, such as the
+	 * {@link PlotterDaemon}.
+	 *
+	 * @param cacheBytes
+	 *            the maximum number of bytes kept in the response cache
+	 */
+	@SuppressWarnings("serial")
+	PlotServer(long cacheBytes) {
+
+		cache = new PlotCache(cacheBytes);
+		graphs = new LinkedHashMap<String, FutureTask<Object>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, FutureTask<Object>> eldest) {
+				return size() > MAX_GRAPHS;
+			}
+		};
+
+		catalog = new RunCatalog(new PlotterDB(), new File(
+				RunCatalog.DEFAULT_FILE));
+	}
+
+	/**
+	 * Creates a new plot server.
+	 *
+	 * @param port
+	 *            the port to listen on
+	 * @param threads
+	 *            the number of worker threads handling requests
+	 * @param cacheBytes
+	 *            the maximum number of bytes kept in the response cache
+	 * @throws IOException
+	 *             if the server socket cannot be bound
+	 */
+	public PlotServer(int port, int threads, long cacheBytes)
+			throws IOException {
+
+		this(cacheBytes);
+
+		// a fixed number of workers with a bounded queue; when both are
+		// exhausted the accepting thread handles the request itself, which
+		// stops it from accepting more connections in the meantime
+		workers = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(workers);
+		server.createContext("/plot", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, false);
+			}
+		});
+		server.createContext("/series", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, true);
+			}
+		});
+		server.createContext("/runs", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serveRuns(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start() {
+		if (server != null) {
+			server.start();
+		}
+	}
+
+	/**
+	 * Stops accepting requests and shuts down the workers.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Handles a single plot or series request.
+	 *
+	 * @param exchange
+	 *            the HTTP request and response
+	 * @param series
+	 *            true if the series are requested as JSON, false if the plot
+	 *            is requested as an image
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private void serve(HttpExchange exchange, boolean series)
+			throws IOException {
+
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, "Only GET is supported");
+				return;
+			}
+
+			// parse the request parameters
+			Map<String, String> params = parseQuery(exchange.getRequestURI()
+					.getRawQuery());
+			int runID = Integer.parseInt(param(params, "run", null));
+			int policyID = Integer.parseInt(param(params, "policy", "-1"));
+			boolean average = !"random".equals(param(params, "sample",
+					"average"));
+			boolean byPolicy = "policy".equals(param(params, "by", null));
+			String view = param(params, "view", "supplydemand");
+			String format = series ? "json" : param(params, "format", "png");
+			int width = series ? 0 : Math.min(MAX_SIZE, Integer
+					.parseInt(param(params, "width", "800")));
+			int height = series ? 0 : Math.min(MAX_SIZE, Integer
+					.parseInt(param(params, "height", "400")));
+
+			if (!series && (width <= 0 || height <= 0) || !format.equals("json")
+					&& !format.equals("png") && !format.equals("svg")) {
+				send(exchange, 400, "Invalid format or size");
+				return;
+			}
+
+			if (policyID < 0 && view.equals("heatmap")
+					&& !format.equals("png")) {
+				send(exchange, 404, "No " + format + " for view: " + view);
+				return;
+			}
+
+			PlotCache.Entry entry = plot(runID, policyID, average, byPolicy,
+					view, format, width, height);
+			if (entry == null) {
+				send(exchange, 404, "Unknown view: " + view);
+				return;
+			}
+
+			// the client already holds this exact content
+			String match = exchange.getRequestHeaders().getFirst(
+					"If-None-Match");
+			exchange.getResponseHeaders().set("ETag", entry.getETag());
+			exchange.getResponseHeaders().set("Cache-Control",
+					"private, max-age=0, must-revalidate");
+			if (match != null && match.contains(entry.getETag())) {
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type",
+					entry.getContentType());
+			exchange.sendResponseHeaders(200, entry.getContent().length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(entry.getContent());
+			os.close();
+
+		} catch (NumberFormatException e) {
+			send(exchange, 400, "Invalid run, policy or size");
+		} catch (Exception e) {
+			System.out.println("General Exception: " + e.toString());
+			send(exchange, 500, e.toString());
+		}
+	}
+
+	/**
+	 * Returns a plot as an image or its series as JSON, answering from the
+	 * cache when possible, otherwise rendering and caching it.
+	 *
+	 * @param runID
+	 *            the ID of the run shown
+	 * @param policyID
+	 *            the ID of the policy shown, or a negative number for the views
+	 *            that are not policy specific
+	 * @param average
+	 *            true for the average of all houses with the policy, false for
+	 *            a random house
+	 * @param byPolicy
+	 *            true for the distributions of the policies' averages, false
+	 *            for the distributions of the aggregator data
+	 * @param view
+	 *            the name of the view requested
+	 * @param format
+	 *            png, svg or json
+	 * @param width
+	 *            the image width in pixels, ignored for json
+	 * @param height
+	 *            the image height in pixels, ignored for json
+	 * @return the cache {@link PlotCache.Entry}, or null if the view is
+	 *         unknown or not available in the format given
+	 * @throws Exception
+	 *             if the data cannot be loaded or the plot rendered
+	 */
+	PlotCache.Entry plot(int runID, int policyID, boolean average,
+			boolean byPolicy, String view, String format, int width,
+			int height) throws Exception {
+
+		// a random household is picked per load, so it is part of the key
+		String key = PlotCache.key(runID, policyID, (average ? view
+				: "random-" + view) + (byPolicy ? "-by-policy" : ""), format,
+				width, height);
+
+		PlotCache.Entry entry = cache.get(key);
+		if (entry != null) {
+			return entry;
+		}
+
+		if (policyID < 0 && view.equals("heatmap")) {
+			if (!format.equals("png")) {
+				return null;
+			}
+			entry = heatmap(runID, width, height);
+		} else {
+			XYPlot plot = createPlot(runID, policyID, average, byPolicy, view);
+			if (plot == null) {
+				return null;
+			}
+
+			if (format.equals("json")) {
+				entry = new PlotCache.Entry(toJSON(plot).getBytes("UTF-8"),
+						"application/json");
+			} else {
+				entry = render(plot, format, width, height);
+			}
+		}
+		cache.put(key, entry);
+		return entry;
+	}
+
+	/**
+	 * Handles a request for a page of the run catalog, answered as JSON.
+	 *
+	 * @param exchange
+	 *            the HTTP request and response
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private void serveRuns(HttpExchange exchange) throws IOException {
+
+		try {
+			Map<String, String> params = parseQuery(exchange.getRequestURI()
+					.getRawQuery());
+			int page = Integer.parseInt(param(params, "page", "0"));
+			int size = Math.min(MAX_PAGE_SIZE, Integer.parseInt(param(params,
+					"size", "20")));
+			String sort = param(params, "sort", "run");
+			boolean descending = "desc".equals(param(params, "order", "asc"));
+			RunCatalog.Filter filter = RunCatalog.filter(param(params, "date",
+					null), Long.parseLong(param(params, "minTicks", "0")));
+
+			// new runs are only summarised on the first request or on demand
+			synchronized (catalog) {
+				if (!catalogRefreshed
+						|| "true".equals(param(params, "refresh", "false"))) {
+					catalog.refresh();
+					catalogRefreshed = true;
+				}
+			}
+
+			StringBuilder json = new StringBuilder();
+			json.append("{\"total\":").append(catalog.count(filter))
+					.append(",\"page\":").append(page)
+					.append(",\"runs\":[");
+			boolean first = true;
+			for (RunSummary run : catalog.page(filter, sort, descending, page,
+					size)) {
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				json.append("{\"run\":").append(run.getRunID())
+						.append(",\"date\":\"")
+						.append(run.getDate() == null ? "" : run.getDate())
+						.append("\",\"firstTick\":")
+						.append(run.getFirstTick())
+						.append(",\"lastTick\":").append(run.getLastTick())
+						.append(",\"ticks\":").append(run.getTicks())
+						.append(",\"policies\":").append(run.getPolicies())
+						.append(",\"households\":")
+						.append(run.getHouseholds())
+						.append(",\"peakDemand\":")
+						.append(run.getPeakDemand())
+						.append(",\"peakShortfall\":")
+						.append(run.getPeakShortfall())
+						.append(",\"shortfallTicks\":")
+						.append(run.getShortfallTicks()).append('}');
+			}
+			json.append("]}");
+
+			byte[] body = json.toString().getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type",
+					"application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+
+		} catch (NumberFormatException e) {
+			send(exchange, 400, "Invalid page, size or minTicks");
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, e.getMessage());
+		} catch (Exception e) {
+			System.out.println("General Exception: " + e.toString());
+			send(exchange, 500, e.toString());
+		}
+	}
+
+	/**
+	 * Creates the plot for the view requested, loading the data for the run
+	 * (and policy) from the DB only if it is not loaded already.
+	 *
+	 * @param runID
+	 *            the ID of the run shown
+	 * @param policyID
+	 *            the ID of the policy shown, or a negative number for the views
+	 *            that are not policy specific
+	 * @param average
+	 *            true for the average of all houses with the policy, false for
+	 *            a random house
+	 * @param byPolicy
+	 *            true for the distributions of the policies' averages, false
+	 *            for the distributions of the aggregator data
+	 * @param view
+	 *            the name of the view requested
+	 * @return the {@link XYPlot} or null if the view is unknown
+	 * @throws Exception
+	 *             if the data cannot be loaded
+	 */
+	private XYPlot createPlot(final int runID, final int policyID,
+			final boolean average, boolean byPolicy, String view)
+			throws Exception {
+
+		if (policyID < 0 && view.equals("supplydemand")) {
+			return supplyDemandGraph(runID).createPlot(true);
+		} else if (policyID < 0 && view.equals("price")) {
+			return supplyDemandGraph(runID).createPlot(false);
+		} else if (policyID < 0 && view.equals("share")) {
+			return shareGraph(runID).createPlot();
+		} else if (Arrays.asList(DerivedMetrics.METRICS).contains(view)) {
+			try {
+				if (policyID < 0) {
+					return supplyDemandGraph(runID).createDerivedPlot(view);
+				}
+				return policyGraph(runID, policyID, average)
+						.createDerivedPlot(view);
+			} catch (IllegalArgumentException e) {
+				// the metric does not apply to this graph
+				return null;
+			}
+		} else if (Arrays.asList(Distributions.VIEWS).contains(view)) {
+			if (byPolicy) {
+				return averageGraph(runID).createDistributionPlot(view);
+			}
+			return supplyDemandGraph(runID).createDistributionPlot(view);
+		}
+
+		// the policy graphs compare their modes by reference
+		String mode = null;
+		if (view.equals("demand")) {
+			mode = "demand";
+		} else if (view.equals("appliances")) {
+			mode = "appliances";
+		} else if (view.equals("price")) {
+			mode = "priceLeft";
+		} else {
+			return null;
+		}
+
+		if (policyID < 0) {
+			return averageGraph(runID).createPlot(mode);
+		}
+
+		return policyGraph(runID, policyID, average).createPlot(mode);
+	}
+
+	/**
+	 * Returns the Average Policies Graph for the run given, loading it if
+	 * needed.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the {@link AveragePoliciesGraph}
+	 * @throws Exception
+	 *             if the data cannot be loaded
+	 */
+	AveragePoliciesGraph averageGraph(final int runID)
+			throws Exception {
+		return (AveragePoliciesGraph) graph("average/" + runID,
+				new Callable<Object>() {
+					public Object call() throws Exception {
+						return AveragePoliciesGraph.load(runID);
+					}
+				});
+	}
+
+	/**
+	 * Returns the Individual Policy Graph for the run and policy given,
+	 * loading it if needed.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param policyID
+	 *            the ID of the policy
+	 * @param average
+	 *            true for the average of all houses with the policy, false for
+	 *            a random house
+	 * @return the {@link IndividualPolicyGraph}
+	 * @throws Exception
+	 *             if the data cannot be loaded
+	 */
+	IndividualPolicyGraph policyGraph(final int runID,
+			final int policyID, final boolean average) throws Exception {
+		return (IndividualPolicyGraph) graph("policy/" + runID + "/"
+				+ policyID + "/" + average, new Callable<Object>() {
+			public Object call() throws Exception {
+				return IndividualPolicyGraph.load(runID, policyID, average);
+			}
+		});
+	}
+
+	/**
+	 * Renders the household heatmap of a run as a PNG image, loading it if
+	 * needed.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param width
+	 *            the image width in pixels
+	 * @param height
+	 *            the image height in pixels
+	 * @return a cache {@link PlotCache.Entry} holding the image
+	 * @throws Exception
+	 *             if the data cannot be loaded or the image rendered
+	 */
+	private PlotCache.Entry heatmap(final int runID, final int width,
+			final int height) throws Exception {
+
+		// the raster is binned to the image size, so each size is loaded
+		HouseholdHeatmap heatmap = (HouseholdHeatmap) graph("heatmap/" + runID
+				+ "/" + width + "/" + height, new Callable<Object>() {
+			public Object call() throws Exception {
+				return HouseholdHeatmap.load(runID, width, height);
+			}
+		});
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(heatmap.render(), "png", out);
+		return new PlotCache.Entry(out.toByteArray(), "image/png");
+	}
+
+	/**
+	 * Returns the Policy Share Graph for the run given, loading it if needed.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the {@link PolicyShareGraph}
+	 * @throws Exception
+	 *             if the data cannot be loaded
+	 */
+	PolicyShareGraph shareGraph(final int runID) throws Exception {
+		return (PolicyShareGraph) graph("share/" + runID,
+				new Callable<Object>() {
+					public Object call() throws Exception {
+						return PolicyShareGraph.load(runID);
+					}
+				});
+	}
+
+	/**
+	 * Returns the Supply Demand Graph for the run given, loading it if needed.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the {@link SupplyDemandGraph}
+	 * @throws Exception
+	 *             if the data cannot be loaded
+	 */
+	SupplyDemandGraph supplyDemandGraph(final int runID)
+			throws Exception {
+		return (SupplyDemandGraph) graph("supply/" + runID,
+				new Callable<Object>() {
+					public Object call() throws Exception {
+						return SupplyDemandGraph.load(runID);
+					}
+				});
+	}
+
+	/**
+	 * Returns the graph object stored under the key given. If there is none,
+	 * it is created by the loader given; concurrent requests for the same key
+	 * wait for a single load.
+	 *
+	 * @param key
+	 *            the key the graph object is stored under
+	 * @param loader
+	 *            creates the graph object if it is not loaded yet
+	 * @return the graph object
+	 * @throws Exception
+	 *             if the loader fails
+	 */
+	private Object graph(String key, Callable<Object> loader) throws Exception {
+
+		FutureTask<Object> task = null;
+		boolean created = false;
+
+		synchronized (graphs) {
+			task = graphs.get(key);
+			if (task == null) {
+				task = new FutureTask<Object>(loader);
+				graphs.put(key, task);
+				created = true;
+			}
+		}
+
+		if (created) {
+			task.run();
+		}
+
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			// do not keep failed loads around
+			synchronized (graphs) {
+				graphs.remove(key);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Renders a plot as an image.
+	 *
+	 * @param plot
+	 *            the plot to render
+	 * @param format
+	 *            png or svg
+	 * @param width
+	 *            the image width in pixels
+	 * @param height
+	 *            the image height in pixels
+	 * @return a cache {@link PlotCache.Entry} holding the image
+	 * @throws IOException
+	 *             if the plot cannot be rendered
+	 */
+	private PlotCache.Entry render(XYPlot plot, String format, int width,
+			int height) throws IOException {
+
+		String mimeType = format.equals("svg") ? "image/svg+xml" : "image/png";
+		DrawableWriter writer = DrawableWriterFactory.getInstance().get(
+				mimeType);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.write(plot, out, width, height);
+
+		return new PlotCache.Entry(out.toByteArray(), mimeType);
+	}
+
+	/**
+	 * Serialises the series of a plot to JSON, as a list of named series each
+	 * holding [tick, value] pairs.
+	 *
+	 * @param plot
+	 *            the plot whose series are serialised
+	 * @return the JSON text
+	 */
+	private String toJSON(XYPlot plot) {
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"series\":[");
+
+		boolean firstSeries = true;
+		for (DataSource ds : plot.getData()) {
+			if (!firstSeries) {
+				json.append(',');
+			}
+			firstSeries = false;
+
+			String name = null;
+			if (ds instanceof DataSeries) {
+				name = ((DataSeries) ds).getName();
+			}
+			json.append("{\"name\":");
+			if (name == null) {
+				json.append("null");
+			} else {
+				json.append('"')
+						.append(name.replace("\\", "\\\\").replace("\"",
+								"\\\"").replace("\n", " ")).append('"');
+			}
+
+			json.append(",\"points\":[");
+			for (int row = 0; row < ds.getRowCount(); row++) {
+				if (row > 0) {
+					json.append(',');
+				}
+				json.append('[').append(ds.get(0, row)).append(',')
+						.append(ds.get(1, row)).append(']');
+			}
+			json.append("]}");
+		}
+
+		json.append("]}");
+		return json.toString();
+	}
+
+	/**
+	 * Sends a plain text response.
+	 *
+	 * @param exchange
+	 *            the HTTP request and response
+	 * @param status
+	 *            the HTTP status code
+	 * @param message
+	 *            the response text
+	 * @throws IOException
+	 *             if the response cannot be sent
+	 */
+	private void send(HttpExchange exchange, int status, String message)
+			throws IOException {
+		byte[] body = message.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+	/**
+	 * Splits a raw URL query into its decoded parameters.
+	 *
+	 * @param query
+	 *            the raw query, may be null
+	 * @return a {@link Map} of parameter names to values
+	 * @throws UnsupportedEncodingException
+	 *             never, UTF-8 is always supported
+	 */
+	private static Map<String, String> parseQuery(String query)
+			throws UnsupportedEncodingException {
+
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Returns a request parameter or its default value.
+	 *
+	 * @param params
+	 *            the request parameters
+	 * @param name
+	 *            the parameter name
+	 * @param def
+	 *            the default value
+	 * @return the parameter value, or the default value if it is not given
+	 */
+	private static String param(Map<String, String> params, String name,
+			String def) {
+		String value = params.get(name);
+		return value == null ? def : value;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		// the plots are never shown on screen
+		System.setProperty("java.awt.headless", "true");
+
+		int port = 8080;
+		if (args.length > 0) {
+			port = Integer.parseInt(args[0]);
+		}
+
+		PlotServer server = new PlotServer(port, Runtime.getRuntime()
+				.availableProcessors(), 64L * 1024 * 1024);
+		server.start();
+
+		System.out.println("Plot server listening on port " + port);
+	}
+}
@@ -0,0 +1,108 @@
+package com.smartgrid.app.plotter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+
+/**
+ *
+ * Sends a single command to the resident {@link PlotterDaemon} and prints its
+ * reply, e.g.
+ *
+ * <pre>
+ * PlotterClient render run=1 view=supplydemand file=plot.png
+ * PlotterClient open run=1 policy=2 view=demand
+ * </pre>
+ *
+ * The arguments are sent as they are, preceded by the token the daemon wrote
+ * to {@link PlotterDaemon#TOKEN_FILE}, except that relative file names are
+ * resolved against the current directory, since the daemon writes the files
+ * itself. The client exits with status 1 if the daemon is not running or
+ * replies with an error.
+ *
+ * @version 1.1
+ */
+public class PlotterClient {
+
+	/**
+	 * Sends a request to the daemon and waits for its reply.
+	 *
+	 * @param args
+	 *            the command and its key=value parameters
+	 * @return the reply of the daemon
+	 * @throws IOException
+	 *             if the token cannot be read or the daemon cannot be reached
+	 */
+	public static String send(String[] args) throws IOException {
+
+		BufferedReader tokenReader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(PlotterDaemon.TOKEN_FILE), "UTF-8"));
+		String token;
+		try {
+			token = tokenReader.readLine();
+		} finally {
+			tokenReader.close();
+		}
+
+		StringBuilder request = new StringBuilder(token);
+		for (String arg : args) {
+			if (arg.startsWith("file=")) {
+				arg = "file="
+						+ new File(arg.substring(5)).getAbsolutePath();
+			}
+			request.append(' ').append(URLEncoder.encode(arg, "UTF-8"));
+		}
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				PlotterDaemon.port());
+		try {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(),
+					"UTF-8");
+			out.write(request.append('\n').toString());
+			out.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			String reply = in.readLine();
+			return reply == null ? "ERROR No reply" : reply;
+		} finally {
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length == 0) {
+			System.out.println("Usage: PlotterClient ping|stop|render|open"
+					+ " [key=value ...]");
+			System.exit(1);
+		}
+
+		try {
+			String reply = send(args);
+			System.out.println(reply);
+			if (!reply.startsWith("OK")) {
+				System.exit(1);
+			}
+		} catch (FileNotFoundException e) {
+			// no token, the daemon was never started or has stopped
+			System.out.println("The plotter daemon is not running.");
+			System.exit(1);
+		} catch (ConnectException e) {
+			System.out.println("The plotter daemon is not running.");
+			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.toString());
+			System.exit(1);
+		}
+	}
+}
@@ -12,11 +12,23 @@ import java.util.HashMap;
  * 
  * Provides capabilities for retrieving simulation data from the DB.
  * 
+ * Besides the {@link PlotterDataProvider} methods used by the plots, the raw
+ * {@link ResultSet} of each query is also available. The tick column of the
+ * series is selected as an integer number of milliseconds since the epoch,
+ * and is decoded along with the values by a {@link ResultSetCursor}.
+ * 
  * @author Panos Katseas
  * @version 1.1
  * @since 2012-03-07
  */
-public class PlotterDB {
+public class PlotterDB implements PlotterDataProvider {
+
+	/**
+	 * The number of seconds a query may run by default before it is
+	 * cancelled.
+	 */
+	public static final int DEFAULT_QUERY_TIMEOUT = 300;
+
 	/**
 	 * Object providing connection to the DB.
 	 */
@@ -28,9 +40,22 @@ public class PlotterDB {
 	private String connectionURL;
 
 	/**
-	 * Statement object, for executing queries on the DB.
+	 * Statement object, for executing queries on the DB. Volatile, as it may
+	 * be cancelled from another thread.
 	 */
-	private Statement stmt;
+	private volatile Statement stmt;
+
+	/**
+	 * Whether result sets are streamed row by row instead of being read into
+	 * memory as a whole.
+	 */
+	private boolean streaming;
+
+	/**
+	 * The number of seconds a query may run before it is cancelled, or 0 for
+	 * no limit.
+	 */
+	private int queryTimeout;
 
 	/**
 	 * Default Constructor
@@ -40,6 +65,8 @@ public class PlotterDB {
 	public PlotterDB() {
 		con = null;
 		stmt = null;
+		streaming = false;
+		queryTimeout = DEFAULT_QUERY_TIMEOUT;
 		connectionURL = "jdbc:mysql://localhost:3306/smartgrid?"
 				+ "user=smartgrid&password=smartgrid";
 	}
@@ -58,7 +85,10 @@ public class PlotterDB {
 		}
 
 		try {
-			stmt = con.createStatement();
+			stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			setStreaming(streaming);
+			setQueryTimeout(queryTimeout);
 		} catch (SQLException e) {
 			System.out.println("SQL Exception: " + e.toString());
 			return false;
@@ -77,11 +107,73 @@ public class PlotterDB {
 		try {
 			con.close();
 			stmt.close();
+			stmt = null;
 		} catch (SQLException e) {
 			System.out.println("SQL Exception: " + e.toString());
 		}
 	}
 
+	/**
+	 * Controls whether the result sets returned are streamed from the DB row
+	 * by row, instead of being read into memory as a whole when the query is
+	 * executed.
+	 * 
+	 * Streaming keeps memory use bounded for very large runs, but only one
+	 * result set can be open at a time and it has to be read to the end or
+	 * closed before the next query is executed.
+	 * 
+	 * @param streaming
+	 *            true to stream the result sets, false to read them into memory
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+
+		if (stmt != null) {
+			try {
+				// the MySQL driver streams rows for this fetch size only
+				stmt.setFetchSize(streaming ? Integer.MIN_VALUE : 0);
+			} catch (SQLException e) {
+				System.out.println("SQL Exception: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of seconds a query may run before the driver cancels it
+	 * and the query method fails. Does not limit the time spent reading a
+	 * streamed result set.
+	 * 
+	 * @param seconds
+	 *            the timeout in seconds, or 0 for no limit
+	 */
+	public void setQueryTimeout(int seconds) {
+		this.queryTimeout = seconds;
+
+		if (stmt != null) {
+			try {
+				stmt.setQueryTimeout(seconds);
+			} catch (SQLException e) {
+				System.out.println("SQL Exception: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Cancels the query being executed or the result set being read. May be
+	 * called from any thread; the cancelled query, or the next call on the
+	 * result set, fails with an {@link SQLException}.
+	 */
+	public void cancel() {
+		Statement s = stmt;
+		if (s != null) {
+			try {
+				s.cancel();
+			} catch (SQLException e) {
+				System.out.println("SQL Exception: " + e.toString());
+			}
+		}
+	}
+
 	/**
 	 * Executes a query on the DB.
 	 * 
@@ -114,32 +206,216 @@ public class PlotterDB {
 	 *         otherwise.
 	 */
 	public ResultSet getAggregatorData(int runID) {
+		return getAggregatorData(runID, Long.MIN_VALUE, Long.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Returns data from the aggregator_log of the DB for a range of ticks,
+	 * optionally averaged into buckets of equal duration.
+	 * 
+	 * Returns tick, supply, overallDemand and price values from the
+	 * aggregator_log table in the DB in a {@link ResultSet} object, in tick
+	 * order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which aggregator data is retrieved.
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getAggregatorData(int runID, long fromTick, long toTick,
+			long resolution) {
+		return getAggregatorData(runID, fromTick, toTick, resolution,
+				Granularity.AVG);
+	}
+
+	/**
+	 * Returns data from the aggregator_log of the DB for a range of ticks,
+	 * optionally reduced into buckets of equal duration by the function
+	 * given.
+	 * 
+	 * Returns tick, supply, overallDemand and price values from the
+	 * aggregator_log table in the DB in a {@link ResultSet} object, in tick
+	 * order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which aggregator data is retrieved.
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getAggregatorData(int runID, long fromTick, long toTick,
+			long resolution, String aggregate) {
 
 		String query = new String();
 
-		query = "SELECT `tick`,`supply`,`overallDemand`,`price` "
-				+ "FROM `aggregator_log` " + "WHERE run_id=" + runID;
+		// only the known functions make it into the query
+		String f = Granularity.aggregate(aggregate);
+
+		if (resolution > 0) {
+			query = "SELECT " + bucketTick(resolution) + " AS `tick`, "
+					+ f + "(`supply`) AS `supply`, "
+					+ f + "(`overallDemand`) AS `overallDemand`, "
+					+ f + "(`price`) AS `price` " + "FROM `aggregator_log` "
+					+ "WHERE `run_id` = " + runID
+					+ tickRange(fromTick, toTick) + " GROUP BY "
+					+ bucket(resolution) + " ORDER BY `tick` ASC";
+		} else {
+			query = "SELECT " + epochTick() + " AS `tick`,"
+					+ "`supply`,`overallDemand`,`price` "
+					+ "FROM `aggregator_log` " + "WHERE `run_id` = " + runID
+					+ tickRange(fromTick, toTick)
+					+ " ORDER BY `aggregator_log`.`tick` ASC";
+		}
 
 		return executeQuery(query);
 	}
 
 	/**
-	 * Returns data from a random household that is assigned the policy
-	 * specified, during the run specified.
+	 * Returns the first and last tick of the run specified, along with the
+	 * number of ticks logged by the aggregator.
 	 * 
-	 * Returns tick, demand and appliancesOn values from the table in the DB in
-	 * a {@link ResultSet} object.
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @return an array holding the first tick, the last tick (both in
+	 *         milliseconds since the epoch) and the number of ticks, or null
+	 *         if data cannot be retrieved.
+	 */
+	public long[] getTickBounds(int runID) {
+
+		String query = new String();
+
+		// the ticks are converted like those of the series
+		query = "SELECT " + epoch("MIN(`tick`)") + " AS `first`, "
+				+ epoch("MAX(`tick`)") + " AS `last`, "
+				+ "COUNT(*) AS `ticks` FROM `aggregator_log` "
+				+ "WHERE `run_id` = " + runID;
+
+		ResultSet rs = executeQuery(query);
+
+		long[] bounds = null;
+		if (rs != null) {
+			try {
+				rs.next();
+				long first = rs.getLong("first");
+				if (!rs.wasNull()) {
+					bounds = new long[] { first, rs.getLong("last"),
+							rs.getLong("ticks") };
+				}
+				rs.close();
+			} catch (SQLException e) {
+				System.out.println("SQL Exception: " + e.toString());
+			}
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Computes the summary statistics of the run specified with two aggregate
+	 * queries, over the aggregator_log and over the households' policy
+	 * assignments.
 	 * 
 	 * @param runID
-	 *            the ID of the run for which random household data is
-	 *            retrieved.
+	 *            the ID of the run in question.
+	 * @return the {@link RunSummary}, or null if data cannot be retrieved.
+	 */
+	public RunSummary getRunSummary(int runID) {
+
+		String query = new String();
+
+		// the ticks are converted like those of the series
+		query = "SELECT " + epoch("MIN(`tick`)") + " AS `first`, "
+				+ epoch("MAX(`tick`)") + " AS `last`, "
+				+ "COUNT(*) AS `ticks`, "
+				+ "MAX(`overallDemand`) AS `peakDemand`, "
+				+ "MAX(`overallDemand` - `supply`) AS `peakShortfall`, "
+				+ "SUM(`overallDemand` > `supply`) AS `shortfallTicks` "
+				+ "FROM `aggregator_log` WHERE `run_id` = " + runID;
+
+		ResultSet rs = executeQuery(query);
+		if (rs == null) {
+			return null;
+		}
+
+		long first = 0;
+		long last = 0;
+		long ticks = 0;
+		double peakDemand = 0;
+		double peakShortfall = 0;
+		long shortfallTicks = 0;
+		try {
+			rs.next();
+			first = rs.getLong("first");
+			if (rs.wasNull()) {
+				rs.close();
+				return null;
+			}
+			last = rs.getLong("last");
+			ticks = rs.getLong("ticks");
+			peakDemand = rs.getDouble("peakDemand");
+			peakShortfall = Math.max(0, rs.getDouble("peakShortfall"));
+			shortfallTicks = rs.getLong("shortfallTicks");
+			rs.close();
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return null;
+		}
+
+		query = "SELECT COUNT(DISTINCT `household_policy_id`) AS `policies`, "
+				+ "COUNT(DISTINCT `household_id`) AS `households` "
+				+ "FROM `run_household_log_household_policy` "
+				+ "WHERE `run_id` = " + runID;
+
+		rs = executeQuery(query);
+		if (rs == null) {
+			return null;
+		}
+
+		int policies = 0;
+		int households = 0;
+		try {
+			rs.next();
+			policies = rs.getInt("policies");
+			households = rs.getInt("households");
+			rs.close();
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return null;
+		}
+
+		return new RunSummary(runID, getRunInfo(runID), first, last, ticks,
+				policies, households, peakDemand, peakShortfall,
+				shortfallTicks);
+	}
+
+	/**
+	 * Returns the ID of a random household that is assigned the policy
+	 * specified, during the run specified.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
 	 * @param policyID
-	 *            the ID of the policy which the random household we want to
-	 *            find is assigned to
-	 * @return the {@link ResultSet} if data is retrieved successfully, null
-	 *         otherwise.
+	 *            the ID of the policy which the random household is assigned
+	 *            to
+	 * @return the ID of the household, or -1 if data cannot be retrieved.
 	 */
-	public ResultSet getPolicyRandomData(int runID, int policyID) {
+	public int getPolicyRandomHousehold(int runID, int policyID) {
 
 		String query = new String();
 
@@ -149,23 +425,124 @@ public class PlotterDB {
 				+ policyID + " ORDER BY rand( )" + " LIMIT 1";
 
 		ResultSet rs = executeQuery(query);
-		int houseID = 0;
+		int houseID = -1;
 
 		if (rs != null) {
 			try {
 				rs.next();
 				houseID = rs.getInt("household_id");
+				rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.toString());
-				return null;
+				return -1;
 			}
-		} else {
+		}
+
+		return houseID;
+	}
+
+	/**
+	 * Returns data from a random household that is assigned the policy
+	 * specified, during the run specified.
+	 * 
+	 * Returns tick, demand and appliancesOn values from the table in the DB in
+	 * a {@link ResultSet} object.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which random household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy which the random household we want to
+	 *            find is assigned to
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getPolicyRandomData(int runID, int policyID) {
+
+		int houseID = getPolicyRandomHousehold(runID, policyID);
+		if (houseID < 0) {
 			return null;
 		}
 
-		query = "SELECT `tick`,`demand`,`appliancesOn` "
-				+ "FROM household_log " + "WHERE `run_id` = " + runID
-				+ " AND `household_id` = " + houseID + " ORDER BY `tick` ASC";
+		return getHouseholdData(runID, houseID, Long.MIN_VALUE,
+				Long.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Returns data from a single household for a range of ticks, optionally
+	 * averaged into buckets of equal duration.
+	 * 
+	 * Returns tick, demand and appliancesOn values from the household_log of
+	 * the DB in a {@link ResultSet} object, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @param householdID
+	 *            the ID of the household
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getHouseholdData(int runID, int householdID,
+			long fromTick, long toTick, long resolution) {
+		return getHouseholdData(runID, householdID, fromTick, toTick,
+				resolution, Granularity.AVG);
+	}
+
+	/**
+	 * Returns data from a single household for a range of ticks, optionally
+	 * reduced into buckets of equal duration by the function given.
+	 * 
+	 * Returns tick, demand and appliancesOn values from the household_log of
+	 * the DB in a {@link ResultSet} object, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @param householdID
+	 *            the ID of the household
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getHouseholdData(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+
+		String query = new String();
+
+		// only the known functions make it into the query
+		String f = Granularity.aggregate(aggregate);
+
+		if (resolution > 0) {
+			query = "SELECT " + bucketTick(resolution) + " AS `tick`, "
+					+ f + "(`demand`) AS `demand`, "
+					+ f + "(`appliancesOn`) AS `appliancesOn` "
+					+ "FROM `household_log` " + "WHERE `run_id` = " + runID
+					+ " AND `household_id` = " + householdID
+					+ tickRange(fromTick, toTick) + " GROUP BY "
+					+ bucket(resolution) + " ORDER BY `tick` ASC";
+		} else {
+			query = "SELECT " + epochTick() + " AS `tick`,"
+					+ "`demand`,`appliancesOn` "
+					+ "FROM household_log " + "WHERE `run_id` = " + runID
+					+ " AND `household_id` = " + householdID
+					+ tickRange(fromTick, toTick)
+					+ " ORDER BY `household_log`.`tick` ASC";
+		}
 
 		return executeQuery(query);
 	}
@@ -187,10 +564,106 @@ public class PlotterDB {
 	 *         otherwise.
 	 */
 	public ResultSet getPolicyAverageData(int runID, int policyID) {
+		return getPolicyAverageData(runID, policyID, Long.MIN_VALUE,
+				Long.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Returns average data from all the households that are assigned the
+	 * policy specified, during the run specified, for a range of ticks and
+	 * optionally averaged into buckets of equal duration.
+	 * 
+	 * Returns tick, demand and appliancesOn values from the household_log of
+	 * the DB in a {@link ResultSet} object, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which average household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy for which we want the average household
+	 *            values
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getPolicyAverageData(int runID, int policyID,
+			long fromTick, long toTick, long resolution) {
+		return getPolicyAverageData(runID, policyID, fromTick, toTick,
+				resolution, Granularity.AVG);
+	}
+
+	/**
+	 * Returns average data from all the households that are assigned the
+	 * policy specified, during the run specified, for a range of ticks and
+	 * optionally with the averages of the ticks of a bucket of equal duration
+	 * reduced by the function given.
+	 * 
+	 * Returns tick, demand and appliancesOn values from the household_log of
+	 * the DB in a {@link ResultSet} object, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which average household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy for which we want the average household
+	 *            values
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getPolicyAverageData(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate) {
 
 		String query = new String();
 
-		query = "SELECT `tick`, AVG(`demand`) AS `demand`, AVG(`appliancesOn`) AS `appliancesOn` "
+		// only the known functions make it into the query
+		String f = Granularity.aggregate(aggregate);
+
+		if (resolution > 0 && !f.equals(Granularity.AVG)) {
+			// the lowest or highest of the averages of each tick, so the
+			// households are averaged per tick before the bucket is reduced
+			query = "SELECT " + bucketTick(resolution) + " AS `tick`, "
+					+ f + "(`demand`) AS `demand`, "
+					+ f + "(`appliancesOn`) AS `appliancesOn` FROM ("
+					+ "SELECT `tick`, AVG(`demand`) AS `demand`, "
+					+ "AVG(`appliancesOn`) AS `appliancesOn` "
+					+ "FROM `household_log` "
+					+ "WHERE `run_id` = "
+					+ runID
+					+ " AND `household_id` IN "
+					+ "(SELECT `household_id` "
+					+ "FROM `run_household_log_household_policy` "
+					+ "WHERE `household_policy_id` = "
+					+ policyID
+					+ ")"
+					+ tickRange(fromTick, toTick)
+					+ " GROUP BY `household_log`.`tick`) AS `ticks` "
+					+ "GROUP BY " + bucket(resolution)
+					+ " ORDER BY `tick` ASC";
+			return executeQuery(query);
+		}
+
+		String tick = resolution > 0 ? bucketTick(resolution) : epochTick();
+		String group = resolution > 0 ? bucket(resolution)
+				: "`household_log`.`tick`";
+
+		query = "SELECT " + tick + " AS `tick`, AVG(`demand`) AS `demand`, "
+				+ "AVG(`appliancesOn`) AS `appliancesOn` "
 				+ "FROM `household_log` "
 				+ "WHERE `run_id` = "
 				+ runID
@@ -200,11 +673,225 @@ public class PlotterDB {
 				+ "WHERE `household_policy_id` = "
 				+ policyID
 				+ ")"
-				+ "GROUP BY `tick` " + "ORDER BY `tick` ASC";
+				+ tickRange(fromTick, toTick)
+				+ " GROUP BY " + group + " ORDER BY `tick` ASC";
 
 		return executeQuery(query);
 	}
 
+	/**
+	 * Returns the raw data of the households within a range of IDs that are
+	 * assigned the policy specified, during the run specified, for a range of
+	 * ticks, so that it can be aggregated by the plotter instead of the DB.
+	 * 
+	 * Returns tick, demand, appliancesOn and household_id values from the
+	 * household_log of the DB in a {@link ResultSet} object, in no particular
+	 * order so that the DB does not have to sort them.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @param policyID
+	 *            the ID of the policy of the households
+	 * @param fromHousehold
+	 *            the lowest household ID retrieved
+	 * @param toHousehold
+	 *            the highest household ID retrieved
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getPolicyHouseholdsData(int runID, int policyID,
+			int fromHousehold, int toHousehold, long fromTick, long toTick) {
+
+		String query = new String();
+
+		query = "SELECT " + epochTick()
+				+ " AS `tick`,`demand`,`appliancesOn`,`household_id` "
+				+ "FROM `household_log` "
+				+ "WHERE `run_id` = "
+				+ runID
+				+ " AND `household_id` BETWEEN "
+				+ fromHousehold
+				+ " AND "
+				+ toHousehold
+				+ " AND `household_id` IN "
+				+ "(SELECT `household_id` "
+				+ "FROM `run_household_log_household_policy` "
+				+ "WHERE `household_policy_id` = " + policyID + ")"
+				+ tickRange(fromTick, toTick);
+
+		return executeQuery(query);
+	}
+
+	/**
+	 * Builds the condition restricting a query to a range of ticks. The
+	 * bounds are converted by the DB, the inverse of {@link #epochTick()}, so
+	 * that they match the ticks of the series whatever the time zone of the
+	 * session.
+	 * 
+	 * @param fromTick
+	 *            the first tick, or {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick, or {@link Long#MAX_VALUE} for no upper bound
+	 * @return the condition, starting with AND, or an empty {@link String}
+	 */
+	private String tickRange(long fromTick, long toTick) {
+
+		String condition = "";
+
+		if (fromTick != Long.MIN_VALUE) {
+			condition += " AND `tick` >= " + fromEpoch(fromTick);
+		}
+		if (toTick != Long.MAX_VALUE) {
+			condition += " AND `tick` <= " + fromEpoch(toTick);
+		}
+
+		return condition;
+	}
+
+	/**
+	 * Builds the expression giving the time of a tick given in milliseconds
+	 * since the epoch, to millisecond precision.
+	 * 
+	 * @param tick
+	 *            the tick, not before the epoch
+	 * @return the SQL expression
+	 */
+	private String fromEpoch(long tick) {
+		tick = Math.max(0, tick);
+		return String.format("FROM_UNIXTIME(%d.%03d)", tick / 1000,
+				tick % 1000);
+	}
+
+	/**
+	 * Builds the expression numbering the bucket a tick falls into.
+	 * 
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds
+	 * @return the SQL expression
+	 */
+	private String bucket(long resolution) {
+		return "FLOOR(UNIX_TIMESTAMP(`tick`) / "
+				+ Math.max(1, resolution / 1000) + ")";
+	}
+
+	/**
+	 * Builds the expression giving the start of the bucket a tick falls into,
+	 * in milliseconds since the epoch.
+	 * 
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds
+	 * @return the SQL expression
+	 */
+	private String bucketTick(long resolution) {
+		return bucket(resolution) + " * " + Math.max(1, resolution / 1000)
+				* 1000;
+	}
+
+	/**
+	 * Builds the expression giving a tick in milliseconds since the epoch.
+	 * 
+	 * The series queries select their ticks through it, or through
+	 * {@link #bucketTick(long)}, so that they are read as plain integers
+	 * rather than as a {@link java.sql.Timestamp} per row.
+	 * 
+	 * @return the SQL expression
+	 */
+	private String epochTick() {
+		return epoch("`tick`");
+	}
+
+	/**
+	 * Builds the expression giving a time in milliseconds since the epoch.
+	 * 
+	 * Like FROM_UNIXTIME in {@link #tickRange(long, long)}, it converts in the
+	 * time zone of the session, so all the ticks read or compared through
+	 * the two agree with each other.
+	 * 
+	 * @param expression
+	 *            the SQL expression of the time
+	 * @return the SQL expression
+	 */
+	private String epoch(String expression) {
+		return "CAST(UNIX_TIMESTAMP(" + expression + ") * 1000 AS SIGNED)";
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID) {
+		return getAggregatorSeries(runID, Long.MIN_VALUE, Long.MAX_VALUE, 0);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution) {
+		return getAggregatorSeries(runID, fromTick, toTick, resolution,
+				Granularity.AVG);
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		return cursor(getAggregatorData(runID, fromTick, toTick, resolution,
+				aggregate), "supply", "overallDemand", "price");
+	}
+
+	public SeriesCursor getPolicyRandomSeries(int runID, int policyID) {
+		return cursor(getPolicyRandomData(runID, policyID), "demand",
+				"appliancesOn");
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution) {
+		return getHouseholdSeries(runID, householdID, fromTick, toTick,
+				resolution, Granularity.AVG);
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		return cursor(getHouseholdData(runID, householdID, fromTick, toTick,
+				resolution, aggregate), "demand", "appliancesOn");
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID) {
+		return getPolicyAverageSeries(runID, policyID, Long.MIN_VALUE,
+				Long.MAX_VALUE, 0);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution) {
+		return getPolicyAverageSeries(runID, policyID, fromTick, toTick,
+				resolution, Granularity.AVG);
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		return cursor(getPolicyAverageData(runID, policyID, fromTick, toTick,
+				resolution, aggregate), "demand", "appliancesOn");
+	}
+
+	/**
+	 * Wraps a {@link ResultSet} holding a tick column and the value columns
+	 * given in a {@link SeriesCursor}.
+	 * 
+	 * @param rs
+	 *            the {@link ResultSet}, may be null
+	 * @param columns
+	 *            the names of the value columns
+	 * @return the {@link SeriesCursor}, or null if there is no data
+	 */
+	private SeriesCursor cursor(ResultSet rs, String... columns) {
+		if (rs == null) {
+			return null;
+		}
+
+		try {
+			return new ResultSetCursor(rs, columns);
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return null;
+		}
+	}
+
 	/**
 	 * Returns the IDs of all the household policies that were used during the
 	 * run specified in an {@link ArrayList} object.
@@ -214,7 +901,8 @@ public class PlotterDB {
 	 *            the ID of the run for which the household policy data is
 	 *            retrieved.
 	 * @return an {@link ArrayList} containing the IDs if data is retrieved
-	 *         successfully, an empty {@link ArrayList} object otherwise.
+	 *         successfully, or null otherwise, so that a failed query is not
+	 *         taken for a run without policies.
 	 */
 	public ArrayList<Integer> getRunPolicies(int runID) {
 
@@ -225,22 +913,159 @@ public class PlotterDB {
 				+ "WHERE `run_id` = " + runID;
 
 		ResultSet rs = executeQuery(query);
-		ArrayList<Integer> policyIDs = new ArrayList<Integer>();
+		if (rs == null) {
+			return null;
+		}
 
+		ArrayList<Integer> policyIDs = new ArrayList<Integer>();
 		try {
 			while (rs.next()) {
 				policyIDs.add(rs.getInt("household_policy_id"));
 			}
+			rs.close();
 		} catch (SQLException e) {
-			System.out
-					.println("There was something wrong, execution terminated.\n"
-							+ e.toString());
-			System.exit(1);
+			// a failed query, such as one timed out, is not fatal to a
+			// server sharing this process
+			System.out.println("SQL Exception: " + e.toString());
+			return null;
 		}
 
 		return policyIDs;
 	}
 
+	/**
+	 * Returns the policy each household was assigned during the run
+	 * specified in a {@link HashMap}.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @return a {@link HashMap} from the IDs of the households to the IDs of
+	 *         their policies if data is retrieved successfully, an empty
+	 *         {@link HashMap} otherwise.
+	 */
+	public HashMap<Integer, Integer> getHouseholdPolicies(int runID) {
+
+		String query = new String();
+
+		query = "SELECT `household_id`,`household_policy_id` "
+				+ "FROM `run_household_log_household_policy` "
+				+ "WHERE `run_id` = " + runID;
+
+		ResultSet rs = executeQuery(query);
+		HashMap<Integer, Integer> households = new HashMap<Integer, Integer>();
+		if (rs == null) {
+			return households;
+		}
+
+		try {
+			int household = rs.findColumn("household_id");
+			int policy = rs.findColumn("household_policy_id");
+			while (rs.next()) {
+				households.put(rs.getInt(household), rs.getInt(policy));
+			}
+			rs.close();
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+		}
+
+		return households;
+	}
+
+	/**
+	 * Returns tick, demand, appliancesOn and household_id values of every
+	 * household during the run specified from the household_log of the DB in
+	 * a {@link ResultSet} object, in no particular order so that the DB does
+	 * not have to sort the whole log.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getHouseholdsData(int runID) {
+
+		String query = new String();
+
+		query = "SELECT " + epochTick()
+				+ " AS `tick`,`demand`,`appliancesOn`,`household_id` "
+				+ "FROM `household_log` WHERE `run_id` = " + runID;
+
+		return executeQuery(query);
+	}
+
+	public SeriesCursor getHouseholdsSeries(int runID) {
+		return cursor(getHouseholdsData(runID), "demand", "appliancesOn",
+				"household_id");
+	}
+
+	/**
+	 * Returns the total demand of the households of each policy during the
+	 * run specified, optionally averaged into buckets of equal duration, along
+	 * with the aggregator's overallDemand, in a single query.
+	 * 
+	 * Returns tick, demand and household_policy_id values in a
+	 * {@link ResultSet} object, in tick and policy order; the overallDemand
+	 * rows have a household_policy_id of
+	 * {@link PlotterDataProvider#TOTAL_POLICY}.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which the demand is retrieved.
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link ResultSet} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public ResultSet getPolicyShareData(int runID, long resolution) {
+
+		String query = new String();
+
+		String tick = resolution > 0 ? bucketTick(resolution) : epochTick();
+		String householdGroup = resolution > 0 ? bucket(resolution)
+				: "`household_log`.`tick`";
+		String aggregatorGroup = resolution > 0 ? bucket(resolution)
+				: "`aggregator_log`.`tick`";
+
+		// within a bucket, the sums of each tick are averaged
+		String sum = resolution > 0 ? "SUM(`demand`) / "
+				+ "COUNT(DISTINCT `household_log`.`tick`)" : "SUM(`demand`)";
+
+		query = "SELECT `tick`, `demand`, `household_policy_id` FROM ("
+				+ "SELECT "
+				+ tick
+				+ " AS `tick`, "
+				+ sum
+				+ " AS `demand`, `household_policy_id` "
+				+ "FROM `household_log` "
+				+ "JOIN `run_household_log_household_policy` "
+				+ "USING (`run_id`, `household_id`) "
+				+ "WHERE `run_id` = "
+				+ runID
+				+ " GROUP BY "
+				+ householdGroup
+				+ ", `household_policy_id` "
+				+ "UNION ALL "
+				+ "SELECT "
+				+ tick
+				+ " AS `tick`, AVG(`overallDemand`) AS `demand`, "
+				+ PlotterDataProvider.TOTAL_POLICY
+				+ " AS `household_policy_id` "
+				+ "FROM `aggregator_log` "
+				+ "WHERE `run_id` = "
+				+ runID
+				+ " GROUP BY "
+				+ aggregatorGroup
+				+ ") AS `shares` "
+				+ "ORDER BY `tick` ASC, `household_policy_id` ASC";
+
+		return executeQuery(query);
+	}
+
+	public SeriesCursor getPolicyShareSeries(int runID, long resolution) {
+		return cursor(getPolicyShareData(runID, resolution), "demand",
+				"household_policy_id");
+	}
+
 	/**
 	 * Returns the IDs and dates of all the runs that have taken place in the
 	 * past in a {@link HashMap}.
@@ -258,15 +1083,18 @@ public class PlotterDB {
 		ResultSet rs = executeQuery(query);
 		HashMap<Integer, String> runs = new HashMap<Integer, String>();
 
-		try {
-			while (rs.next()) {
-				runs.put(rs.getInt("run_id"), rs.getString("date"));
+		if (rs != null) {
+			try {
+				while (rs.next()) {
+					runs.put(rs.getInt("run_id"), rs.getString("date"));
+				}
+				rs.close();
+			} catch (SQLException e) {
+				// a failed query, such as one timed out, is not fatal to a
+				// server sharing this process
+				System.out.println("SQL Exception: " + e.toString());
+				return new HashMap<Integer, String>();
 			}
-		} catch (SQLException e) {
-			System.out
-					.println("There was something wrong, execution terminated.\n"
-							+ e.toString());
-			System.exit(1);
 		}
 
 		return runs;
@@ -289,8 +1117,9 @@ public class PlotterDB {
 		ArrayList<Double> prices = new ArrayList<Double>();
 
 		try {
+			int price = rs.findColumn("price");
 			while (rs.next()) {
-				prices.add(rs.getDouble("price"));
+				prices.add(rs.getDouble(price));
 			}
 		} catch (SQLException e) {
 			System.out
@@ -0,0 +1,505 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.SwingUtilities;
+
+/**
+ *
+ * Keeps a plotter resident between invocations, so that opening a window or
+ * rendering a file for a run does not pay for starting a JVM, loading the
+ * plotting classes and connecting to the DB each time. The graph objects,
+ * rendered plots, {@link SeriesCache} and {@link Prefetcher} of the daemon
+ * stay warm across requests; the {@link PlotterClient} sends it one request
+ * per invocation.
+ *
+ * The daemon listens on the loopback interface only, on {@link #DEFAULT_PORT}
+ * unless the {@value #PORT_PROPERTY} property says otherwise. When it starts
+ * it writes a random token to {@link #TOKEN_FILE}, readable by its owner
+ * only, and requests that do not begin with that token are refused, so other
+ * users of the machine cannot drive it.
+ *
+ * Each request is a single line: the token followed by the command and its
+ * parameters, separated by spaces and each URL encoded. The reply is a single
+ * line starting with OK or ERROR. Supported commands:
+ * <ul>
+ * <li>ping</li>
+ * <li>render run=1 view=supplydemand file=/tmp/plot.png width=800
+ * height=400</li>
+ * <li>open run=1 policy=2 view=demand sample=random</li>
+ * <li>stop</li>
+ * </ul>
+ *
+ * The render parameters are those of the {@link PlotServer} plot requests,
+ * with the format taken from the extension of the file (png, svg or json)
+ * unless given. The views opened are supplydemand, price and share without a
+ * policy, demand, appliances, price and rightprice with or without a policy,
+ * the {@link DerivedMetrics} metrics and, without a policy, the
+ * {@link Distributions} views.
+ *
+ * @version 1.1
+ */
+public class PlotterDaemon {
+
+	/**
+	 * The port listened on by default
+	 */
+	public static final int DEFAULT_PORT = 47310;
+
+	/**
+	 * The system property overriding the port listened on
+	 */
+	public static final String PORT_PROPERTY = "smartgrid.plotter.daemon.port";
+
+	/**
+	 * The file holding the token of the running daemon
+	 */
+	public static final String TOKEN_FILE = System.getProperty("user.home")
+			+ File.separator + ".smartgrid-plotter.token";
+
+	/**
+	 * The maximum number of bytes kept in the cache of rendered plots
+	 */
+	private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * The largest width or height, in pixels, that will be rendered
+	 */
+	private static final int MAX_SIZE = 4096;
+
+	/**
+	 * The time, in milliseconds, a client is given to send its request
+	 */
+	private static final int READ_TIMEOUT = 10000;
+
+	/**
+	 * The socket requests are accepted on
+	 */
+	private ServerSocket socket;
+
+	/**
+	 * The threads handling the requests
+	 */
+	private ExecutorService workers;
+
+	/**
+	 * Renders the plots and keeps the graph objects loaded
+	 */
+	private PlotServer plots;
+
+	/**
+	 * The token requests must begin with
+	 */
+	private String token;
+
+	/**
+	 * The file the token is written to
+	 */
+	private File tokenFile;
+
+	/**
+	 * Creates a daemon listening on the loopback interface and writes its
+	 * token file.
+	 *
+	 * @param port
+	 *            the port to listen on
+	 * @param threads
+	 *            the number of threads handling requests
+	 * @throws IOException
+	 *             if the socket cannot be bound or the token file written
+	 */
+	public PlotterDaemon(int port, int threads) throws IOException {
+
+		socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		workers = Executors.newFixedThreadPool(threads);
+		plots = new PlotServer(CACHE_BYTES);
+
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : random) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		token = hex.toString();
+
+		// restrict the file to its owner before the token is written to it
+		tokenFile = new File(TOKEN_FILE);
+		OutputStream os = new FileOutputStream(tokenFile);
+		try {
+			tokenFile.setReadable(false, false);
+			tokenFile.setWritable(false, false);
+			tokenFile.setReadable(true, true);
+			tokenFile.setWritable(true, true);
+			os.write((token + "\n").getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Accepts requests until the daemon is stopped.
+	 */
+	public void run() {
+		while (!socket.isClosed()) {
+			final Socket client;
+			try {
+				client = socket.accept();
+			} catch (SocketException e) {
+				// closed by stop()
+				break;
+			} catch (IOException e) {
+				System.out.println("IO Exception: " + e.toString());
+				continue;
+			}
+
+			workers.execute(new Runnable() {
+				public void run() {
+					serve(client);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops accepting requests and removes the token file.
+	 */
+	public void stop() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.toString());
+		}
+		workers.shutdown();
+		tokenFile.delete();
+	}
+
+	/**
+	 * Handles the single request of a connection.
+	 *
+	 * @param client
+	 *            the connection of the client
+	 */
+	private void serve(Socket client) {
+		try {
+			// a client that sends nothing would hold the worker forever
+			client.setSoTimeout(READ_TIMEOUT);
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					client.getInputStream(), "UTF-8"));
+			Writer out = new OutputStreamWriter(client.getOutputStream(),
+					"UTF-8");
+
+			String reply;
+			String line = in.readLine();
+			String[] words = line == null ? new String[0] : line.split(" ");
+			if (words.length < 2 || !token.equals(words[0])) {
+				reply = "ERROR Invalid token";
+			} else {
+				try {
+					reply = execute(words);
+				} catch (IllegalArgumentException e) {
+					reply = "ERROR " + e.getMessage();
+				} catch (Exception e) {
+					System.out.println("General Exception: " + e.toString());
+					reply = "ERROR " + e.toString();
+				}
+			}
+
+			out.write(reply.replace('\n', ' ') + "\n");
+			out.flush();
+			client.close();
+
+			if (reply.equals("OK Stopping")) {
+				stop();
+			}
+		} catch (IOException e) {
+			System.out.println("IO Exception: " + e.toString());
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				System.out.println("IO Exception: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Executes a command.
+	 *
+	 * @param words
+	 *            the words of the request, starting with the token and the
+	 *            command, URL encoded
+	 * @return the reply to the client
+	 * @throws IllegalArgumentException
+	 *             if the command or its parameters are invalid
+	 * @throws Exception
+	 *             if the data cannot be loaded or the plot rendered
+	 */
+	private String execute(String[] words) throws Exception {
+
+		String command = URLDecoder.decode(words[1], "UTF-8");
+		Map<String, String> params = parseParams(Arrays.copyOfRange(words, 2,
+				words.length));
+
+		if (command.equals("ping")) {
+			return "OK";
+		} else if (command.equals("stop")) {
+			return "OK Stopping";
+		} else if (!command.equals("render") && !command.equals("open")) {
+			throw new IllegalArgumentException("Unknown command: " + command);
+		}
+
+		int runID;
+		int policyID;
+		try {
+			runID = Integer.parseInt(param(params, "run", null));
+			policyID = Integer.parseInt(param(params, "policy", "-1"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid run or policy");
+		}
+		boolean average = !"random".equals(param(params, "sample", "average"));
+		String view = param(params, "view", "supplydemand");
+
+		if (command.equals("open")) {
+			open(runID, policyID, average, view);
+			return "OK Opened " + view;
+		}
+
+		String path = param(params, "file", null);
+		if (path == null) {
+			throw new IllegalArgumentException("No file given");
+		}
+		String format = param(params, "format", null);
+		if (format == null) {
+			format = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+		}
+		int width;
+		int height;
+		try {
+			width = Math.min(MAX_SIZE, Integer.parseInt(param(params,
+					"width", "800")));
+			height = Math.min(MAX_SIZE, Integer.parseInt(param(params,
+					"height", "400")));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size");
+		}
+		if (width <= 0 || height <= 0 || !format.equals("json")
+				&& !format.equals("png") && !format.equals("svg")) {
+			throw new IllegalArgumentException("Invalid format or size");
+		}
+
+		PlotCache.Entry entry = plots.plot(runID, policyID, average,
+				"policy".equals(param(params, "by", null)), view, format,
+				width, height);
+		if (entry == null) {
+			throw new IllegalArgumentException("Unknown view: " + view);
+		}
+
+		OutputStream os = new FileOutputStream(path);
+		try {
+			os.write(entry.getContent());
+		} finally {
+			os.close();
+		}
+		return "OK Wrote " + entry.getContent().length + " bytes to " + path;
+	}
+
+	/**
+	 * Opens a window showing a view, loading the data for the run (and
+	 * policy) only if it is not loaded already. The data is loaded on the
+	 * calling thread and the window opened on the event dispatch thread.
+	 *
+	 * @param runID
+	 *            the ID of the run shown
+	 * @param policyID
+	 *            the ID of the policy shown, or a negative number for the views
+	 *            that are not policy specific
+	 * @param average
+	 *            true for the average of all houses with the policy, false for
+	 *            a random house
+	 * @param view
+	 *            the name of the view
+	 * @throws IllegalArgumentException
+	 *             if there is no display or the view is unknown
+	 * @throws Exception
+	 *             if the data cannot be loaded
+	 */
+	private void open(int runID, int policyID, boolean average,
+			final String view) throws Exception {
+
+		if (GraphicsEnvironment.isHeadless()) {
+			throw new IllegalArgumentException("The daemon has no display");
+		}
+
+		boolean metric = Arrays.asList(DerivedMetrics.METRICS).contains(view);
+		boolean distribution = Arrays.asList(Distributions.VIEWS).contains(
+				view);
+		Runnable show = null;
+
+		if (policyID < 0 && view.equals("share")) {
+			final PolicyShareGraph graph = plots.shareGraph(runID);
+			show = new Runnable() {
+				public void run() {
+					graph.getShareGraph();
+				}
+			};
+		} else if (policyID < 0
+				&& (view.equals("supplydemand") || view.equals("price")
+						|| metric || distribution)) {
+			final SupplyDemandGraph graph = plots.supplyDemandGraph(runID);
+			show = new Runnable() {
+				public void run() {
+					if (view.equals("supplydemand")) {
+						graph.getSupplyDemandGraph();
+					} else if (view.equals("price")) {
+						graph.getPriceGraph();
+					} else if (Arrays.asList(DerivedMetrics.METRICS).contains(
+							view)) {
+						graph.getDerivedGraph(view);
+					} else {
+						graph.getDistributionGraph(view);
+					}
+				}
+			};
+		} else if (policyID < 0
+				&& (view.equals("demand") || view.equals("appliances") || view
+						.equals("rightprice"))) {
+			final AveragePoliciesGraph graph = plots.averageGraph(runID);
+			show = new Runnable() {
+				public void run() {
+					if (view.equals("demand")) {
+						graph.getDemandGraph();
+					} else if (view.equals("appliances")) {
+						graph.getAppliancesGraph();
+					} else {
+						graph.getRightPriceGraph();
+					}
+				}
+			};
+		} else if (policyID >= 0
+				&& (view.equals("demand") || view.equals("appliances")
+						|| view.equals("price") || view.equals("rightprice")
+						|| metric)) {
+			final IndividualPolicyGraph graph = plots.policyGraph(runID,
+					policyID, average);
+			show = new Runnable() {
+				public void run() {
+					if (view.equals("demand")) {
+						graph.getDemandGraph();
+					} else if (view.equals("appliances")) {
+						graph.getAppliancesGraph();
+					} else if (view.equals("price")) {
+						graph.getLeftPriceGraph();
+					} else if (view.equals("rightprice")) {
+						graph.getRightPriceGraph();
+					} else {
+						graph.getDerivedGraph(view);
+					}
+				}
+			};
+		}
+
+		if (show == null) {
+			throw new IllegalArgumentException("Unknown view: " + view);
+		}
+		SwingUtilities.invokeLater(show);
+	}
+
+	/**
+	 * Decodes the key=value parameters of a request.
+	 *
+	 * @param words
+	 *            the parameters, URL encoded
+	 * @return a {@link Map} of parameter names to values
+	 * @throws UnsupportedEncodingException
+	 *             never, UTF-8 is always supported
+	 */
+	private static Map<String, String> parseParams(String[] words)
+			throws UnsupportedEncodingException {
+
+		Map<String, String> params = new HashMap<String, String>();
+		for (String word : words) {
+			String pair = URLDecoder.decode(word, "UTF-8");
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				params.put(pair.substring(0, eq), pair.substring(eq + 1));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Returns a request parameter or its default value.
+	 *
+	 * @param params
+	 *            the request parameters
+	 * @param name
+	 *            the parameter name
+	 * @param def
+	 *            the default value
+	 * @return the parameter value, or the default value if it is not given
+	 */
+	private static String param(Map<String, String> params, String name,
+			String def) {
+		String value = params.get(name);
+		return value == null ? def : value;
+	}
+
+	/**
+	 * Returns the port the daemon listens on.
+	 *
+	 * @return the port given by the {@value #PORT_PROPERTY} property, or
+	 *         {@link #DEFAULT_PORT}
+	 */
+	static int port() {
+		return Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+	}
+
+	public static void main(String[] args) {
+
+		try {
+			final PlotterDaemon daemon = new PlotterDaemon(port(), Runtime
+					.getRuntime().availableProcessors());
+
+			// do not leave a stale token behind on shutdown
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					daemon.tokenFile.delete();
+				}
+			});
+
+			System.out.println("Plotter daemon listening on port " + port());
+			daemon.run();
+
+			// close the windows still open and the prefetching threads
+			System.exit(0);
+
+		} catch (IOException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package com.smartgrid.app.plotter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 
+ * Provides the simulation data needed for the plots, independently of where
+ * the data is stored.
+ * 
+ * @version 1.1
+ */
+public interface PlotterDataProvider {
+
+	/**
+	 * Position of the supply value in the aggregator series
+	 */
+	public static final int SUPPLY = 0;
+
+	/**
+	 * Position of the overallDemand value in the aggregator series
+	 */
+	public static final int OVERALL_DEMAND = 1;
+
+	/**
+	 * Position of the price value in the aggregator series
+	 */
+	public static final int PRICE = 2;
+
+	/**
+	 * Position of the demand value in the household series
+	 */
+	public static final int DEMAND = 0;
+
+	/**
+	 * Position of the appliancesOn value in the household series
+	 */
+	public static final int APPLIANCES_ON = 1;
+
+	/**
+	 * The position of the household ID in the rows of
+	 * {@link #getHouseholdsSeries(int)}
+	 */
+	public static final int HOUSEHOLD = 2;
+
+	/**
+	 * The position of the policy ID in the rows of
+	 * {@link #getPolicyShareSeries(int, long)}
+	 */
+	public static final int POLICY = 1;
+
+	/**
+	 * The policy ID of the rows of {@link #getPolicyShareSeries(int, long)}
+	 * holding the aggregator's overallDemand
+	 */
+	public static final int TOTAL_POLICY = -1;
+
+	/**
+	 * Opens the underlying storage.
+	 * 
+	 * @return true if the storage is ready to be read, false otherwise.
+	 */
+	public boolean open();
+
+	/**
+	 * Closes the underlying storage.
+	 */
+	public void close();
+
+	/**
+	 * Cancels the retrieval in progress, if any. May be called from any
+	 * thread; the cursor being read fails with an
+	 * {@link java.sql.SQLException}.
+	 */
+	public void cancel();
+
+	/**
+	 * Returns the supply, overallDemand and price values of the aggregator
+	 * for the run specified, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which aggregator data is retrieved.
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getAggregatorSeries(int runID);
+
+	/**
+	 * Returns the supply, overallDemand and price values of the aggregator
+	 * for a range of ticks of the run specified, in tick order, optionally
+	 * averaged into buckets of equal duration.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which aggregator data is retrieved.
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MAX_VALUE} for no upper bound
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution);
+
+	/**
+	 * Returns the supply, overallDemand and price values of the aggregator
+	 * for a range of ticks of the run specified, in tick order, reduced into
+	 * buckets of equal duration by the function given.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which aggregator data is retrieved.
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MAX_VALUE} for no upper bound
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution, String aggregate);
+
+	/**
+	 * Returns the demand and appliancesOn values of a random household that
+	 * is assigned the policy specified, during the run specified, in tick
+	 * order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which random household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy which the random household is assigned
+	 *            to
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getPolicyRandomSeries(int runID, int policyID);
+
+	/**
+	 * Returns the ID of a random household that is assigned the policy
+	 * specified, during the run specified.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @param policyID
+	 *            the ID of the policy which the random household is assigned
+	 *            to
+	 * @return the ID of the household, or -1 if data cannot be retrieved.
+	 */
+	public int getPolicyRandomHousehold(int runID, int policyID);
+
+	/**
+	 * Returns the demand and appliancesOn values of a single household for a
+	 * range of ticks of the run specified, in tick order, optionally averaged
+	 * into buckets of equal duration.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @param householdID
+	 *            the ID of the household
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MAX_VALUE} for no upper bound
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution);
+
+	/**
+	 * Returns the demand and appliancesOn values of a single household for a
+	 * range of ticks of the run specified, in tick order, reduced into
+	 * buckets of equal duration by the function given.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @param householdID
+	 *            the ID of the household
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MAX_VALUE} for no upper bound
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate);
+
+	/**
+	 * Returns the average demand and appliancesOn values of all the
+	 * households that are assigned the policy specified, during the run
+	 * specified, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which average household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy for which the average household values
+	 *            are retrieved
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID);
+
+	/**
+	 * Returns the average demand and appliancesOn values of all the
+	 * households that are assigned the policy specified, for a range of ticks
+	 * of the run specified, in tick order, optionally averaged into buckets
+	 * of equal duration.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which average household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy for which the average household values
+	 *            are retrieved
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MAX_VALUE} for no upper bound
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution);
+
+	/**
+	 * Returns the average demand and appliancesOn values of all the
+	 * households that are assigned the policy specified, for a range of ticks
+	 * of the run specified, in tick order, with the averages of the ticks of
+	 * a bucket of equal duration reduced by the function given.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which average household data is
+	 *            retrieved.
+	 * @param policyID
+	 *            the ID of the policy for which the average household values
+	 *            are retrieved
+	 * @param fromTick
+	 *            the first tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MIN_VALUE} for no lower bound
+	 * @param toTick
+	 *            the last tick retrieved, in milliseconds since the epoch, or
+	 *            {@link Long#MAX_VALUE} for no upper bound
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate);
+
+	/**
+	 * Returns the first and last tick of the run specified, along with the
+	 * number of ticks logged by the aggregator.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @return an array holding the first tick, the last tick (both in
+	 *         milliseconds since the epoch) and the number of ticks, or null
+	 *         if data cannot be retrieved.
+	 */
+	public long[] getTickBounds(int runID);
+
+	/**
+	 * Computes the summary statistics of the run specified from its logs.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @return the {@link RunSummary}, or null if data cannot be retrieved.
+	 */
+	public RunSummary getRunSummary(int runID);
+
+	/**
+	 * Returns the IDs of all the household policies that were used during the
+	 * run specified.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which the household policy data is
+	 *            retrieved.
+	 * @return an {@link ArrayList} containing the IDs, or null if they cannot
+	 *         be retrieved
+	 */
+	public ArrayList<Integer> getRunPolicies(int runID);
+
+	/**
+	 * Returns the policy each household was assigned during the run
+	 * specified.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @return a {@link HashMap} from the IDs of the households to the IDs of
+	 *         their policies
+	 */
+	public HashMap<Integer, Integer> getHouseholdPolicies(int runID);
+
+	/**
+	 * Returns the demand and appliancesOn values of every household during
+	 * the run specified, in no particular order, each row followed by the ID
+	 * of its household (see {@link #HOUSEHOLD}).
+	 * 
+	 * The rows are meant to be read in a single pass, as they may well not
+	 * fit in memory.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which household data is retrieved.
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getHouseholdsSeries(int runID);
+
+	/**
+	 * Returns the total demand of the households of each policy during the
+	 * run specified, optionally averaged into buckets of equal duration,
+	 * along with the aggregator's overallDemand.
+	 * 
+	 * Each row holds a demand value followed by the ID of its policy (see
+	 * {@link #POLICY}), or {@link #TOTAL_POLICY} for the overallDemand; the
+	 * rows are in tick order and, within a tick, in policy order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which the demand is retrieved.
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @return the {@link SeriesCursor} if data is retrieved successfully, null
+	 *         otherwise.
+	 */
+	public SeriesCursor getPolicyShareSeries(int runID, long resolution);
+
+	/**
+	 * Returns the IDs and dates of all the runs that have taken place.
+	 * 
+	 * @return a {@link HashMap} containing the IDs and dates of the runs
+	 */
+	public HashMap<Integer, String> getRuns();
+
+	/**
+	 * Returns the price values for the run specified, in tick order.
+	 * 
+	 * @param runID
+	 *            the ID of the run for which prices are retrieved.
+	 * @return an {@link ArrayList} containing the prices
+	 */
+	public ArrayList<Double> getPrices(int runID);
+
+	/**
+	 * Returns name and version information of the policy specified.
+	 * 
+	 * @param policyID
+	 *            the ID of the policy in question.
+	 * @return a {@link String} containing the policy information if data is
+	 *         retrieved successfully, null otherwise.
+	 */
+	public String getPolicyInfo(int policyID);
+
+	/**
+	 * Returns the date information of the run specified.
+	 * 
+	 * @param runID
+	 *            the ID of the run in question.
+	 * @return a {@link String} containing the run date information if data is
+	 *         retrieved successfully, null otherwise.
+	 */
+	public String getRunInfo(int runID);
+}
@@ -0,0 +1,430 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import javax.swing.JFrame;
+
+import de.erichseifert.gral.data.DataSeries;
+import de.erichseifert.gral.data.DataSource;
+import de.erichseifert.gral.data.DataTable;
+import de.erichseifert.gral.plots.Legend;
+import de.erichseifert.gral.plots.Plot;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.XYPlot.XYPlotNavigator;
+import de.erichseifert.gral.plots.areas.AreaRenderer;
+import de.erichseifert.gral.plots.areas.DefaultAreaRenderer2D;
+import de.erichseifert.gral.plots.axes.AxisRenderer;
+import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
+import de.erichseifert.gral.plots.lines.LineRenderer;
+import de.erichseifert.gral.plots.points.PointRenderer;
+import de.erichseifert.gral.util.Insets2D;
+import de.erichseifert.gral.util.Location;
+import de.erichseifert.gral.util.Orientation;
+
+/**
+ *
+ * Provides a plot of how much of the aggregator's overallDemand each
+ * household policy contributes over the time of a specific run: the total
+ * demand of each policy's households stacked on top of each other, with the
+ * overallDemand drawn over the stack.
+ *
+ * The sums of all the policies and the overallDemand are retrieved together,
+ * grouped by the DB, through
+ * {@link PlotterDataProvider#getPolicyShareSeries(int, long)}, at the
+ * resolution of an overview so that the number of points drawn per policy
+ * does not depend on the length of the run. The stack is kept in a single
+ * table with one cumulative column per policy, from which each layer is
+ * drawn as a filled area.
+ *
+ * @version 1.1
+ */
+public class PolicyShareGraph {
+
+	/**
+	 * The ticks, the cumulative demand up to each policy and the
+	 * overallDemand
+	 */
+	private DataTable table;
+
+	/**
+	 * DataSources for the layers of the stack, one per policy, in policy order
+	 */
+	private ArrayList<DataSource> layerSeries;
+
+	/**
+	 * DataSource for the overallDemand
+	 */
+	private DataSource totalSeries;
+
+	/**
+	 * The fill color of each layer
+	 */
+	private ArrayList<Color> colors;
+
+	/**
+	 * The specific run's date information
+	 */
+	private String runInfo;
+
+	/**
+	 * The plot window's width
+	 */
+	private int width;
+
+	/**
+	 * The plot window's height
+	 */
+	private int height;
+
+	/**
+	 * The plot's Y axis center, used to map the axis on the visible area
+	 */
+	private long axisY;
+
+	/**
+	 * The performance figures of the graph, shown over its plot window
+	 */
+	private PlotDiagnostics diagnostics;
+
+	/**
+	 * The constructor for the Policy Share Graph.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the graph for
+	 */
+	public PolicyShareGraph(int runID) {
+		try {
+			read(runID, provider());
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The constructor for the Policy Share Graph, reading the run's data from
+	 * the provider given.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the graph for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	public PolicyShareGraph(int runID, PlotterDataProvider p)
+			throws SQLException, IOException {
+		read(runID, p);
+	}
+
+	/**
+	 * Loads the Policy Share Graph of a run from the DB like
+	 * {@link #PolicyShareGraph(int)}, but fails instead of terminating, so
+	 * that a server can report the failure and carry on.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the graph for
+	 * @return the graph
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	static PolicyShareGraph load(int runID) throws SQLException, IOException {
+		return new PolicyShareGraph(runID, provider());
+	}
+
+	/**
+	 * @return the provider the graph reads the run's data from by default
+	 */
+	private static PlotterDataProvider provider() {
+		return Prefetcher.getInstance().provider(new PlotterDB());
+	}
+
+	/**
+	 * Reads the run's data from the provider given into the stack of the
+	 * graph.
+	 *
+	 * @param runID
+	 *            the ID of the specified run to show the graph for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	private void read(int runID, PlotterDataProvider p) throws SQLException,
+			IOException {
+
+		// time the retrieval of the data for the diagnostics overlay
+		diagnostics = new PlotDiagnostics();
+		p = diagnostics.wrap(p);
+
+		// get user's screen size for calculating the plot window size
+		Dimension screenSize = Screen.getSize();
+		width = (int) screenSize.getWidth();
+		height = (int) (screenSize.getHeight() / 2);
+
+		// the policies of the run, in the order they are stacked
+		ArrayList<Integer> policyIDs = new ArrayList<Integer>();
+		ArrayList<String> policyNames = new ArrayList<String>();
+
+		// the demand of each policy and the overallDemand for this run
+		SeriesCursor cursor = null;
+
+		// connect to the DB and get the run's information, as well as an
+		// overview of the demand of each policy
+		if (p.open()) {
+			runInfo = p.getRunInfo(runID);
+			policyIDs = p.getRunPolicies(runID);
+			if (policyIDs == null) {
+				p.close();
+				throw new SQLException("The policies of the run could not be"
+						+ " retrieved");
+			}
+			Collections.sort(policyIDs);
+			for (int policyID : policyIDs) {
+				policyNames.add(p.getPolicyInfo(policyID));
+			}
+			cursor = p.getPolicyShareSeries(runID,
+					ViewportLoader.overviewResolution(p.getTickBounds(runID)));
+		} else {
+			throw new SQLException("No connection to the DB");
+		}
+
+		// one column per policy, in the order of the policy IDs
+		final HashMap<Integer, Integer> columns = new HashMap<Integer, Integer>();
+		for (int i = 0; i < policyIDs.size(); i++) {
+			columns.put(policyIDs.get(i), i);
+		}
+		final int count = policyIDs.size();
+
+		// the columns of the table: tick, one cumulative sum per policy and
+		// the overallDemand
+		table = new DataTable(columnTypes(count + 1));
+
+		axisY = 0;
+
+		try {
+
+			// the rows of each tick are added up as they arrive, in a single
+			// pass, and the tick is added to the table once complete
+			new SeriesPipeline(2).run(cursor, new SeriesPipeline.Sink() {
+
+				// the tick being added up, its demand per policy and its
+				// overallDemand
+				long tick = Long.MIN_VALUE;
+				double[] sums = new double[count];
+				double total = Double.NaN;
+
+				public void accept(TickColumns batch) {
+					for (int i = 0; i < batch.size(); i++) {
+						if (batch.getTick(i) != tick) {
+							addTick();
+							tick = batch.getTick(i);
+						}
+
+						int policy = (int) batch.getValue(
+								PlotterDataProvider.POLICY, i);
+						double demand = batch.getValue(
+								PlotterDataProvider.DEMAND, i);
+						Integer column = columns.get(policy);
+						if (policy == PlotterDataProvider.TOTAL_POLICY) {
+							total = demand;
+						} else if (column != null) {
+							sums[column] = demand;
+						}
+					}
+				}
+
+				public void finish() {
+					addTick();
+				}
+
+				/**
+				 * Adds the tick added up to the table, stacking the sums of
+				 * the policies, and starts anew.
+				 */
+				private void addTick() {
+					if (tick == Long.MIN_VALUE) {
+						return;
+					}
+					if (table.getRowCount() == 0) {
+						axisY = tick;
+					}
+
+					Comparable<?>[] row = new Comparable<?>[count + 2];
+					row[0] = tick;
+					double stacked = 0;
+					for (int c = 0; c < count; c++) {
+						stacked += sums[c];
+						row[c + 1] = stacked;
+						sums[c] = 0;
+					}
+					row[count + 1] = Double.isNaN(total) ? stacked : total;
+					table.add(row);
+					total = Double.NaN;
+				}
+			});
+
+			// close the connection to the DB
+			p.close();
+
+		} catch (SQLException e) {
+			// the connection is still open, as the data could not be read
+			p.close();
+			throw e;
+		} catch (IOException e) {
+			p.close();
+			throw e;
+		}
+
+		// create new DataSources viewing the columns of the table, and
+		// colors spread evenly around the color wheel
+		layerSeries = new ArrayList<DataSource>();
+		colors = new ArrayList<Color>();
+		for (int c = 0; c < count; c++) {
+			layerSeries.add(new DataSeries(policyNames.get(c), table, 0,
+					c + 1));
+			colors.add(Color.getHSBColor((float) c / Math.max(1, count),
+					0.6f, 0.95f));
+		}
+		totalSeries = new DataSeries("Overall Demand", table, 0, count + 1);
+	}
+
+	/**
+	 * Returns the column types of a table holding the tick followed by
+	 * values.
+	 *
+	 * @param values
+	 *            the number of value columns
+	 * @return the types, Long for the tick and Double for the values
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static Class<? extends Comparable<?>>[] columnTypes(int values) {
+		Class<? extends Comparable<?>>[] types = new Class[values + 1];
+		types[0] = Long.class;
+		for (int i = 1; i < types.length; i++) {
+			types[i] = Double.class;
+		}
+		return types;
+	}
+
+	/**
+	 * Shows the stacked demand of the policies on the top part of the screen
+	 */
+	public void getShareGraph() {
+
+		// the frame window on which the plot is to be presented
+		JFrame graph = new JFrame();
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// the actual plot that contains all the data
+		XYPlot plot = createPlot();
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(1.65);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Creates a fully formatted plot of the stacked demand of the policies,
+	 * without attaching it to any window. Used by the plot window as well as
+	 * by headless renderers.
+	 *
+	 * @return the formatted {@link XYPlot}
+	 */
+	XYPlot createPlot() {
+
+		// the layers are drawn from the top of the stack down, so that each
+		// one covers the part of the layers above it that it adds up to
+		XYPlot plot = new XYPlot();
+		for (int c = layerSeries.size() - 1; c >= 0; c--) {
+			plot.add(layerSeries.get(c));
+		}
+		plot.add(totalSeries);
+
+		// --- formating the plot ---
+		plot.setSetting(Plot.BACKGROUND, Color.WHITE);
+		plot.setSetting(Plot.TITLE, "Share of Overall Demand per Policy \n"
+				+ "for run: " + runInfo);
+		plot.setInsets(new Insets2D.Double(10, 10, 10, 10));
+
+		// --- formating the legend ---
+		plot.setSetting(Plot.LEGEND, true);
+		plot.setSetting(Plot.LEGEND_LOCATION, Location.NORTH);
+		plot.getLegend().setSetting(Legend.ORIENTATION, Orientation.HORIZONTAL);
+		plot.getLegend().setSetting(Legend.ALIGNMENT_X, 1);
+
+		// --- formating the axes ---
+		AxisRenderer axisRendererY = plot.getAxisRenderer(XYPlot.AXIS_Y);
+		AxisRenderer axisRendererX = plot.getAxisRenderer(XYPlot.AXIS_X);
+		axisRendererX.setSetting(AxisRenderer.LABEL, "Time");
+		axisRendererY.setSetting(AxisRenderer.LABEL, "Demand");
+		axisRendererY.setSetting(AxisRenderer.LABEL_DISTANCE, 2);
+
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd\nHH:mm");
+		axisRendererX.setSetting(AxisRenderer.TICK_LABELS_FORMAT, dateFormat);
+
+		// the stack starts at zero demand
+		axisRendererY.setSetting(AxisRenderer.INTERSECTION, axisY);
+		axisRendererX.setSetting(AxisRenderer.INTERSECTION, 0);
+
+		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
+		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
+
+		// fill the layers, without lines or points, which would cost as much
+		// to draw again for each policy
+		for (int c = 0; c < layerSeries.size(); c++) {
+			DataSource s = layerSeries.get(c);
+			plot.getPointRenderer(s).setSetting(PointRenderer.COLOR,
+					new Color(0, true));
+			AreaRenderer area = new DefaultAreaRenderer2D();
+			area.setSetting(AreaRenderer.COLOR, colors.get(c));
+			plot.setAreaRenderer(s, area);
+		}
+
+		// draw the overallDemand over the stack
+		plot.setLineRenderer(totalSeries, new DefaultLineRenderer2D());
+		plot.getPointRenderer(totalSeries).setSetting(PointRenderer.COLOR,
+				new Color(0, true));
+		plot.getLineRenderer(totalSeries).setSetting(LineRenderer.COLOR,
+				Color.BLACK);
+
+		return plot;
+	}
+
+	public static void main(String[] args) {
+
+		PolicyShareGraph frame = new PolicyShareGraph(args.length > 0 ? Integer
+				.parseInt(args[0]) : 1);
+		frame.getShareGraph();
+	}
+}
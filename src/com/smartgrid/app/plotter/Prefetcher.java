@@ -0,0 +1,334 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * Retrieves in the background the data the user is likely to look at next,
+ * while the current plots are being studied: the remaining policies of the
+ * run shown, then the next and the previous run. The data is stored in a
+ * {@link SeriesCache}, from which a {@link CachingDataProvider} serves it.
+ *
+ * Prefetching runs on low priority threads, each with its own provider, so
+ * the number of connections used is bounded. Whenever the user moves to
+ * another run or policy, the prefetches still pending or in progress are
+ * cancelled and new ones are started around the new position.
+ *
+ * Only the overviews opened by the graphs are prefetched; random households
+ * are picked anew each time a graph is opened, so they are not.
+ *
+ * @version 1.1
+ */
+public class Prefetcher {
+
+	/**
+	 * The number of connections used by the shared prefetcher
+	 */
+	public static final int DEFAULT_CONNECTIONS = 2;
+
+	/**
+	 * The prefetcher shared by all the graphs of the application
+	 */
+	private static Prefetcher instance;
+
+	/**
+	 * The cache the data is stored in
+	 */
+	private SeriesCache cache;
+
+	/**
+	 * The providers not in use by a prefetch
+	 */
+	private BlockingQueue<PlotterDataProvider> providers;
+
+	/**
+	 * The low priority threads the prefetches run on
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * The prefetches for the current position
+	 */
+	private ArrayList<Task> tasks;
+
+	/**
+	 * The run and policy of the current position
+	 */
+	private int runID, policyID;
+
+	/**
+	 * A prefetch of a run's data. Can be cancelled while it runs.
+	 */
+	private class Task implements Runnable {
+
+		/**
+		 * The run prefetched
+		 */
+		int run;
+
+		/**
+		 * The policy not prefetched, as it is shown already, or -1
+		 */
+		int skippedPolicy;
+
+		/**
+		 * Whether the aggregator's data is prefetched too
+		 */
+		boolean aggregator;
+
+		/**
+		 * The provider in use, while the prefetch runs
+		 */
+		volatile PlotterDataProvider provider;
+
+		/**
+		 * Whether the prefetch has been cancelled
+		 */
+		volatile boolean cancelled;
+
+		/**
+		 * The future of the prefetch, once submitted
+		 */
+		Future<?> future;
+
+		Task(int run, int skippedPolicy, boolean aggregator) {
+			this.run = run;
+			this.skippedPolicy = skippedPolicy;
+			this.aggregator = aggregator;
+		}
+
+		public void run() {
+			PlotterDataProvider p = null;
+			try {
+				p = providers.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				if (!cancelled && p.open()) {
+					provider = p;
+					try {
+						prefetch(this, p);
+					} catch (SQLException e) {
+						// cancelled, or the data will be loaded when shown
+					} finally {
+						provider = null;
+						p.close();
+					}
+				}
+			} finally {
+				providers.add(p);
+			}
+		}
+
+		/**
+		 * Stops the prefetch, cancelling the retrieval in progress.
+		 */
+		void cancel() {
+			cancelled = true;
+			future.cancel(false);
+			PlotterDataProvider p = provider;
+			if (p != null) {
+				p.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Creates a new prefetcher.
+	 *
+	 * @param cache
+	 *            the cache the data is stored in
+	 * @param providers
+	 *            the providers the data is retrieved from, not yet opened; one
+	 *            prefetch runs on each at a time
+	 */
+	public Prefetcher(SeriesCache cache, PlotterDataProvider[] providers) {
+		this.cache = cache;
+		this.providers = new ArrayBlockingQueue<PlotterDataProvider>(
+				providers.length);
+		for (PlotterDataProvider p : providers) {
+			this.providers.add(p);
+		}
+		this.tasks = new ArrayList<Task>();
+		this.runID = -1;
+		this.policyID = -1;
+
+		executor = Executors.newFixedThreadPool(providers.length,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "prefetcher");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Returns the prefetcher shared by all the graphs of the application,
+	 * which fills the shared {@link SeriesCache} from the DB.
+	 *
+	 * @return the shared {@link Prefetcher}
+	 */
+	public static synchronized Prefetcher getInstance() {
+		if (instance == null) {
+			PlotterDataProvider[] providers = new PlotterDataProvider[DEFAULT_CONNECTIONS];
+			for (int i = 0; i < providers.length; i++) {
+				providers[i] = ClientAggregatingDataProvider
+						.forDeployment(new PlotterDB());
+			}
+			instance = new Prefetcher(SeriesCache.getInstance(), providers);
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns a provider that serves the prefetched data from the cache.
+	 *
+	 * @param p
+	 *            the provider of the data that is not cached
+	 * @return the {@link CachingDataProvider}
+	 */
+	public PlotterDataProvider provider(PlotterDataProvider p) {
+		return new CachingDataProvider(p, cache);
+	}
+
+	/**
+	 * Moves the current position to the run and policy given, cancelling the
+	 * prefetches around the previous position and starting new ones.
+	 *
+	 * @param runID
+	 *            the ID of the run shown
+	 * @param policyID
+	 *            the ID of the policy shown, or -1 if the graphs shown are not
+	 *            policy specific
+	 */
+	public synchronized void focus(int runID, int policyID) {
+		if (runID == this.runID && policyID == this.policyID) {
+			return;
+		}
+		this.runID = runID;
+		this.policyID = policyID;
+
+		for (Task task : tasks) {
+			task.cancel();
+		}
+		tasks.clear();
+
+		// the remaining policies of this run, then the adjacent runs
+		if (policyID >= 0) {
+			tasks.add(new Task(runID, policyID, false));
+		}
+		tasks.add(new Task(runID + 1, -1, true));
+		if (runID > 1) {
+			tasks.add(new Task(runID - 1, -1, true));
+		}
+
+		for (Task task : tasks) {
+			task.future = executor.submit(task);
+		}
+	}
+
+	/**
+	 * Stops all the prefetches.
+	 */
+	public synchronized void cancel() {
+		for (Task task : tasks) {
+			task.cancel();
+		}
+		tasks.clear();
+		runID = -1;
+		policyID = -1;
+	}
+
+	/**
+	 * Retrieves the data of a run into the cache, skipping what is cached
+	 * already and stopping as soon as the prefetch is cancelled.
+	 *
+	 * @param task
+	 *            the prefetch
+	 * @param p
+	 *            the open provider
+	 * @throws SQLException
+	 *             if a series cannot be retrieved or the retrieval is
+	 *             cancelled
+	 */
+	private void prefetch(Task task, PlotterDataProvider p)
+			throws SQLException {
+
+		int run = task.run;
+		long[] bounds = (long[]) cache.get(CachingDataProvider.boundsKey(run));
+		if (bounds == null) {
+			bounds = p.getTickBounds(run);
+			if (bounds == null) {
+				// no such run
+				return;
+			}
+			cache.put(CachingDataProvider.boundsKey(run), bounds);
+			String info = p.getRunInfo(run);
+			if (info != null) {
+				cache.put(CachingDataProvider.runInfoKey(run), info);
+			}
+		}
+		long resolution = ViewportLoader.overviewResolution(bounds);
+
+		String key = CachingDataProvider.aggregatorKey(run, Long.MIN_VALUE,
+				Long.MAX_VALUE, resolution);
+		if (task.aggregator && !task.cancelled && !cache.contains(key)) {
+			SeriesCursor cursor = p.getAggregatorSeries(run, Long.MIN_VALUE,
+					Long.MAX_VALUE, resolution);
+			if (cursor != null) {
+				cache.put(key, CompressedSeries.read(cursor, new boolean[] {
+						false, false, false }));
+			}
+		}
+
+		// a list retrieved while cancelled, or not at all, is not cached, as
+		// it would be taken for the run's policies; nor is an empty one
+		ArrayList<Integer> policies = p.getRunPolicies(run);
+		if (policies == null || task.cancelled) {
+			return;
+		}
+		if (!policies.isEmpty()) {
+			cache.put(CachingDataProvider.policiesKey(run), policies);
+		}
+
+		for (int policy : new TreeSet<Integer>(policies)) {
+			if (task.cancelled) {
+				return;
+			}
+			if (policy == task.skippedPolicy) {
+				continue;
+			}
+
+			key = CachingDataProvider.averageKey(run, policy, Long.MIN_VALUE,
+					Long.MAX_VALUE, resolution);
+			if (cache.contains(key)) {
+				continue;
+			}
+			if (!cache.contains(CachingDataProvider.policyInfoKey(policy))) {
+				String info = p.getPolicyInfo(policy);
+				if (info != null) {
+					cache.put(CachingDataProvider.policyInfoKey(policy), info);
+				}
+			}
+
+			SeriesCursor cursor = p.getPolicyAverageSeries(run, policy,
+					Long.MIN_VALUE, Long.MAX_VALUE, resolution);
+			if (cursor != null) {
+				cache.put(key, CompressedSeries.read(cursor, new boolean[] {
+						false, true }));
+			}
+		}
+	}
+}
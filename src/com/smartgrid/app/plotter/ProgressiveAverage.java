@@ -0,0 +1,361 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import javax.swing.SwingUtilities;
+
+import de.erichseifert.gral.data.DataTable;
+
+/**
+ *
+ * Estimates the average series of a policy from a random sample of its
+ * households, for a first look at runs too large to average right away.
+ *
+ * The series of the households sampled are retrieved one by one and summed
+ * per tick; the estimate is their mean, along with a 95% confidence band
+ * from their spread, narrowed as the sample covers more of the policy. The
+ * sample grows in stages on the background thread of a
+ * {@link ViewportLoader}, after which the exact series replaces the
+ * estimate.
+ *
+ * The graphs use it when the {@value #PROPERTY} system property is set and
+ * the run is large enough to be shown as an overview.
+ *
+ * @version 1.1
+ */
+public class ProgressiveAverage {
+
+	/**
+	 * The system property enabling the progressive mode of the graphs
+	 */
+	public static final String PROPERTY = "smartgrid.plotter.progressive";
+
+	/**
+	 * The position of the lower bound of the band in the rows of the
+	 * estimate
+	 */
+	public static final int LOWER = 2;
+
+	/**
+	 * The position of the upper bound of the band in the rows of the
+	 * estimate
+	 */
+	public static final int UPPER = 3;
+
+	/**
+	 * The number of households the first estimate is made from
+	 */
+	public static final int INITIAL_SAMPLE = 8;
+
+	/**
+	 * The factor the sample grows by at each stage
+	 */
+	public static final int GROWTH = 4;
+
+	/**
+	 * The size of the sample beyond which the exact series is retrieved
+	 * instead
+	 */
+	public static final int MAX_SAMPLE = 128;
+
+	/**
+	 * The quantile of the normal distribution for a 95% confidence band
+	 */
+	private static final double Z = 1.96;
+
+	/**
+	 * Receives the estimates and the exact series on the event dispatch
+	 * thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the series has been refined.
+		 *
+		 * @param series
+		 *            the estimate, with its band at {@link #LOWER} and
+		 *            {@link #UPPER}, or the exact series, or null if the
+		 *            loader has reloaded the exact series by itself
+		 * @param exact
+		 *            true for the exact series, which is the last
+		 */
+		public void refined(TickColumns series, boolean exact);
+	}
+
+	/**
+	 * The ID of the run
+	 */
+	private int runID;
+
+	/**
+	 * The ID of the policy
+	 */
+	private int policyID;
+
+	/**
+	 * The households of the policy, in the random order they are sampled in
+	 */
+	private int[] households;
+
+	/**
+	 * The number of households sampled so far
+	 */
+	private int sampled;
+
+	/**
+	 * The resolution the series are retrieved at
+	 */
+	private long resolution;
+
+	/**
+	 * The sums of the sample per tick: demand, demand squared, appliances
+	 * and the number of households
+	 */
+	private TreeMap<Long, double[]> sums;
+
+	/**
+	 * Creates an estimator for a policy, drawing its sample in a random
+	 * order.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param policyID
+	 *            the ID of the policy
+	 * @param policies
+	 *            the policy of each household of the run, as returned by
+	 *            {@link PlotterDataProvider#getHouseholdPolicies(int)}
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param random
+	 *            the source of the sampling order
+	 */
+	public ProgressiveAverage(int runID, int policyID,
+			HashMap<Integer, Integer> policies, long resolution, Random random) {
+		this.runID = runID;
+		this.policyID = policyID;
+		this.resolution = resolution;
+		this.sums = new TreeMap<Long, double[]>();
+
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> entry : policies.entrySet()) {
+			if (entry.getValue() == policyID) {
+				ids.add(entry.getKey());
+			}
+		}
+		Collections.sort(ids);
+		Collections.shuffle(ids, random);
+		households = new int[ids.size()];
+		for (int i = 0; i < households.length; i++) {
+			households[i] = ids.get(i);
+		}
+	}
+
+	/**
+	 * Tells whether the graphs estimate the policy averages first.
+	 *
+	 * @return true if {@link #PROPERTY} is set to true
+	 */
+	public static boolean isEnabled() {
+		return Boolean.getBoolean(PROPERTY);
+	}
+
+	/**
+	 * @return the number of households sampled so far
+	 */
+	public int getSampleSize() {
+		return sampled;
+	}
+
+	/**
+	 * @return the number of households of the policy
+	 */
+	public int getPopulation() {
+		return households.length;
+	}
+
+	/**
+	 * Tells whether sampling further is not worth it, so the exact series
+	 * comes next.
+	 *
+	 * @return true if the sample has reached {@link #MAX_SAMPLE} or the
+	 *         whole policy
+	 */
+	public boolean isSampled() {
+		return sampled >= Math.min(MAX_SAMPLE, households.length);
+	}
+
+	/**
+	 * Grows the sample by one stage: to {@link #INITIAL_SAMPLE} households
+	 * first, and by {@link #GROWTH} times after that.
+	 *
+	 * @param p
+	 *            the open provider the series of the households are retrieved
+	 *            from
+	 * @throws SQLException
+	 *             if a series cannot be retrieved
+	 */
+	public void refine(PlotterDataProvider p) throws SQLException {
+		int target = Math.min(households.length,
+				sampled == 0 ? INITIAL_SAMPLE : sampled * GROWTH);
+
+		for (; sampled < target; sampled++) {
+			SeriesCursor cursor = p.getHouseholdSeries(runID,
+					households[sampled], Long.MIN_VALUE, Long.MAX_VALUE,
+					resolution);
+			if (cursor == null) {
+				continue;
+			}
+			try {
+				while (cursor.next()) {
+					double[] sum = sums.get(cursor.getTick());
+					if (sum == null) {
+						sum = new double[4];
+						sums.put(cursor.getTick(), sum);
+					}
+					double demand = cursor
+							.getValue(PlotterDataProvider.DEMAND);
+					sum[0] += demand;
+					sum[1] += demand * demand;
+					sum[2] += cursor.getValue(PlotterDataProvider.APPLIANCES_ON);
+					sum[3]++;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the current estimate: the mean demand and appliances of the
+	 * sample per tick, and the band the mean demand of the whole policy lies
+	 * within with 95% confidence. The band uses the finite population
+	 * correction, so it closes as the sample covers the whole policy.
+	 *
+	 * @return the estimate, with the columns of the policy averages and the
+	 *         band at {@link #LOWER} and {@link #UPPER}
+	 */
+	public TickColumns estimate() {
+		TickColumns estimate = new TickColumns(4, sums.size());
+		int population = households.length;
+
+		for (Map.Entry<Long, double[]> entry : sums.entrySet()) {
+			double[] sum = entry.getValue();
+			double n = sum[3];
+			double mean = sum[0] / n;
+
+			double error = 0;
+			if (n > 1 && n < population) {
+				double variance = Math.max(0, (sum[1] - sum[0] * mean)
+						/ (n - 1));
+				error = Z * Math.sqrt(variance / n)
+						* Math.sqrt((population - n) / (population - 1));
+			}
+
+			int row = estimate.addRow(entry.getKey());
+			estimate.setValue(PlotterDataProvider.DEMAND, row, mean);
+			estimate.setValue(PlotterDataProvider.APPLIANCES_ON, row, sum[2]
+					/ n);
+			estimate.setValue(LOWER, row, mean - error);
+			estimate.setValue(UPPER, row, mean + error);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Refines the estimate in stages on the background thread of a loader,
+	 * replacing the overview of its series with each estimate and finally
+	 * with the exact series. The stages are submitted one at a time, so that
+	 * the ranges the user zooms into are loaded in between.
+	 *
+	 * @param loader
+	 *            the loader of the graph
+	 * @param index
+	 *            the position of the series in the loader, added with an
+	 *            estimate as its overview
+	 * @param exact
+	 *            retrieves the exact series
+	 * @param listener
+	 *            receives each estimate and the exact series
+	 */
+	public void refineInBackground(final ViewportLoader loader,
+			final int index, final ViewportLoader.RangeFetcher exact,
+			final Listener listener) {
+
+		loader.submit(new ViewportLoader.Task() {
+			public void run(PlotterDataProvider p) {
+				try {
+					TickColumns series = null;
+					boolean done = isSampled();
+					if (done) {
+						SeriesCursor cursor = exact.fetch(p, Long.MIN_VALUE,
+								Long.MAX_VALUE, resolution,
+								Granularity.AVG);
+						if (cursor == null) {
+							return;
+						}
+						series = TickColumns.read(cursor, 2);
+					} else {
+						refine(p);
+						series = estimate();
+					}
+
+					if (!loader.setOverview(index, series, done)) {
+						// the loader has reloaded the exact series itself
+						deliver(listener, null, true);
+						return;
+					}
+					deliver(listener, series, done);
+					if (!done) {
+						refineInBackground(loader, index, exact, listener);
+					}
+				} catch (SQLException e) {
+					System.out.println("SQL Exception: " + e.toString());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Refills the table of a confidence band, holding the tick, the lower and
+	 * the upper bound, from a refined series. The band is emptied once the
+	 * series is exact.
+	 *
+	 * @param band
+	 *            the table of the band
+	 * @param series
+	 *            the refined series, as passed to a {@link Listener}
+	 * @param exact
+	 *            true if the series is exact
+	 */
+	@SuppressWarnings("unchecked")
+	public static void fillBand(DataTable band, TickColumns series,
+			boolean exact) {
+		band.clear();
+		if (exact || series == null) {
+			return;
+		}
+		for (int i = 0; i < series.size(); i++) {
+			band.add(series.getTick(i), series.getValue(LOWER, i),
+					series.getValue(UPPER, i));
+		}
+	}
+
+	/**
+	 * Passes a refined series to a listener on the event dispatch thread.
+	 */
+	private static void deliver(final Listener listener,
+			final TickColumns series, final boolean exact) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.refined(series, exact);
+			}
+		});
+	}
+}
@@ -0,0 +1,674 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ *
+ * Exports an animated replay of a run: the supply and overallDemand on top
+ * and the price below, drawn progressively from the first tick to the last,
+ * as a sequence of PNG images or as an animated GIF.
+ *
+ * The aggregator's series is loaded once, at the resolution of an overview
+ * unless a granularity is given, and turned into pixel coordinates up front.
+ * Everything that does not change between frames (background, title, axes,
+ * labels and legend) is drawn once into a static layer. A frame is then a
+ * copy of the static layer's pixels with the first rows of the coordinates
+ * drawn over it, so frames are independent of each other and are rendered on
+ * all the cores at once.
+ *
+ * Rendered frames are handed to the encoder in order through a queue holding
+ * at most {@link #FRAMES_PER_THREAD} frames per rendering thread, so the
+ * renderers wait for the encoder when they run ahead and the memory used does
+ * not depend on the number of frames.
+ *
+ * @version 1.1
+ */
+public class ReplayExporter {
+
+	/**
+	 * The number of frames per rendering thread held between the renderers
+	 * and the encoder
+	 */
+	public static final int FRAMES_PER_THREAD = 2;
+
+	/**
+	 * The time each frame of an animated GIF is shown, in hundredths of a
+	 * second
+	 */
+	public static final int GIF_DELAY = 4;
+
+	/**
+	 * The margins around the plot areas, and the gap between them, in pixels
+	 */
+	private static final int MARGIN_LEFT = 80;
+	private static final int MARGIN_RIGHT = 20;
+	private static final int MARGIN_TOP = 50;
+	private static final int MARGIN_BOTTOM = 40;
+	private static final int GAP = 50;
+
+	/**
+	 * The colors of the series, as in the plot windows
+	 */
+	private static final Color SUPPLY = new Color(0.3f, 1.0f, 0.0f);
+	private static final Color DEMAND = new Color(0.0f, 0.5f, 1.0f);
+	private static final Color PRICE = new Color(0.0f, 0.5f, 1.0f);
+
+	/**
+	 * Marks the end of the frames
+	 */
+	private static final Future<Object> END = new FutureTask<Object>(
+			new Callable<Object>() {
+				public Object call() {
+					return null;
+				}
+			});
+
+	/**
+	 * Encodes the frames of a replay. Frames are prepared on the rendering
+	 * threads, in any order, and written on the encoder's thread, in order.
+	 *
+	 * @param <T>
+	 *            the type of a prepared frame
+	 */
+	public interface FrameEncoder<T> {
+
+		/**
+		 * Prepares a frame for writing, such as by compressing it.
+		 *
+		 * @param frame
+		 *            the frame, not used anywhere else
+		 * @return the prepared frame
+		 * @throws IOException
+		 *             if the frame cannot be prepared
+		 */
+		public T prepare(BufferedImage frame) throws IOException;
+
+		/**
+		 * Writes the next frame.
+		 *
+		 * @param frame
+		 *            the prepared frame
+		 * @throws IOException
+		 *             if the frame cannot be written
+		 */
+		public void write(T frame) throws IOException;
+
+		/**
+		 * Called after the last frame.
+		 *
+		 * @throws IOException
+		 *             if the output cannot be completed
+		 */
+		public void finish() throws IOException;
+	}
+
+	/**
+	 * Writes the frames as numbered PNG images into a directory, compressing
+	 * them on the rendering threads.
+	 */
+	public static class PngSequence implements FrameEncoder<byte[]> {
+
+		private File dir;
+
+		private int count;
+
+		/**
+		 * Creates an encoder writing into a directory.
+		 *
+		 * @param dir
+		 *            the directory, created if needed
+		 * @throws IOException
+		 *             if the directory cannot be created
+		 */
+		public PngSequence(File dir) throws IOException {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			this.dir = dir;
+		}
+
+		public byte[] prepare(BufferedImage frame) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(frame, "png", out);
+			return out.toByteArray();
+		}
+
+		public void write(byte[] frame) throws IOException {
+			OutputStream out = new FileOutputStream(new File(dir,
+					String.format("frame-%05d.png", ++count)));
+			try {
+				out.write(frame);
+			} finally {
+				out.close();
+			}
+		}
+
+		public void finish() {
+		}
+	}
+
+	/**
+	 * Writes the frames as an animated GIF that loops forever. The frames are
+	 * rendered with an indexed palette already, so they are not quantized
+	 * again while written.
+	 */
+	public static class AnimatedGif implements FrameEncoder<BufferedImage> {
+
+		private ImageWriter writer;
+
+		private ImageOutputStream out;
+
+		/**
+		 * The metadata of the first frame, which also sets the looping, and
+		 * of the following ones, built once
+		 */
+		private IIOMetadata first, next;
+
+		private int count;
+
+		/**
+		 * Creates an encoder writing into a file.
+		 *
+		 * @param file
+		 *            the file, replaced if it exists
+		 * @throws IOException
+		 *             if the file cannot be written
+		 */
+		public AnimatedGif(File file) throws IOException {
+			writer = ImageIO.getImageWritersByFormatName("gif").next();
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Cannot replace " + file);
+			}
+			out = ImageIO.createImageOutputStream(file);
+			writer.setOutput(out);
+			writer.prepareWriteSequence(null);
+		}
+
+		public BufferedImage prepare(BufferedImage frame) {
+			return frame;
+		}
+
+		public void write(BufferedImage frame) throws IOException {
+			if (first == null) {
+				first = metadata(frame, true);
+				next = metadata(frame, false);
+			}
+			writer.writeToSequence(new IIOImage(frame, null,
+					count++ == 0 ? first : next), null);
+		}
+
+		public void finish() throws IOException {
+			writer.endWriteSequence();
+			out.close();
+			writer.dispose();
+		}
+
+		/**
+		 * Builds the metadata of a frame: its delay and, for the first
+		 * frame, the looping of the animation.
+		 */
+		private IIOMetadata metadata(BufferedImage frame, boolean loop)
+				throws IOException {
+			IIOMetadata metadata = writer.getDefaultImageMetadata(
+					new ImageTypeSpecifier(frame), null);
+			String format = metadata.getNativeMetadataFormatName();
+			IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+			IIOMetadataNode control = child(root, "GraphicControlExtension");
+			control.setAttribute("disposalMethod", "none");
+			control.setAttribute("userInputFlag", "FALSE");
+			control.setAttribute("transparentColorFlag", "FALSE");
+			control.setAttribute("delayTime", Integer.toString(GIF_DELAY));
+			control.setAttribute("transparentColorIndex", "0");
+
+			if (loop) {
+				IIOMetadataNode application = new IIOMetadataNode(
+						"ApplicationExtension");
+				application.setAttribute("applicationID", "NETSCAPE");
+				application.setAttribute("authenticationCode", "2.0");
+				application.setUserObject(new byte[] { 1, 0, 0 });
+				child(root, "ApplicationExtensions").appendChild(application);
+			}
+
+			metadata.setFromTree(format, root);
+			return metadata;
+		}
+
+		/**
+		 * Returns the child of a metadata node with the name given, adding
+		 * it if there is none.
+		 */
+		private static IIOMetadataNode child(IIOMetadataNode node, String name) {
+			for (int i = 0; i < node.getLength(); i++) {
+				if (node.item(i).getNodeName().equals(name)) {
+					return (IIOMetadataNode) node.item(i);
+				}
+			}
+			IIOMetadataNode child = new IIOMetadataNode(name);
+			node.appendChild(child);
+			return child;
+		}
+	}
+
+	/**
+	 * The size of the frames
+	 */
+	private int width, height;
+
+	/**
+	 * The ticks of the series
+	 */
+	private long[] ticks;
+
+	/**
+	 * The number of rows of the series
+	 */
+	private int rows;
+
+	/**
+	 * The pixel coordinates of each row: its X coordinate, and its supply,
+	 * overallDemand and price Y coordinates
+	 */
+	private int[] x, supplyY, demandY, priceY;
+
+	/**
+	 * The top and bottom of the area the series are drawn in
+	 */
+	private int top, bottom;
+
+	/**
+	 * Everything drawn on all the frames
+	 */
+	private BufferedImage background;
+
+	/**
+	 * The constructor for the Replay Exporter.
+	 *
+	 * @param runID
+	 *            the ID of the run replayed
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @param resolution
+	 *            the duration of the buckets the series is averaged into, in
+	 *            milliseconds, 0 for every tick or -1 for the resolution of an
+	 *            overview
+	 * @param width
+	 *            the frame width in pixels
+	 * @param height
+	 *            the frame height in pixels
+	 * @param indexed
+	 *            whether the frames are drawn with an indexed palette, as
+	 *            needed by {@link AnimatedGif}
+	 * @throws SQLException
+	 *             if the series cannot be retrieved
+	 */
+	public ReplayExporter(int runID, PlotterDataProvider p, long resolution,
+			int width, int height, boolean indexed) throws SQLException {
+
+		this.width = width;
+		this.height = height;
+
+		String runInfo = null;
+		TickColumns series = null;
+
+		// connect to the DB and get the run's information, as well as the
+		// aggregator's data for this run
+		if (!p.open()) {
+			throw new SQLException("No connection to the DB");
+		}
+		try {
+			runInfo = p.getRunInfo(runID);
+			if (resolution < 0) {
+				resolution = ViewportLoader.overviewResolution(p
+						.getTickBounds(runID));
+			}
+			SeriesCursor cursor = p.getAggregatorSeries(runID,
+					Long.MIN_VALUE, Long.MAX_VALUE, resolution);
+			if (cursor == null) {
+				throw new SQLException("No data could be retrieved from the DB");
+			}
+			series = TickColumns.read(cursor, 3);
+		} finally {
+			// close the connection to the DB
+			p.close();
+		}
+
+		rows = series.size();
+		ticks = series.getTicks();
+
+		// the plot areas: supply and overallDemand on top, price below
+		int plotWidth = Math.max(1, width - MARGIN_LEFT - MARGIN_RIGHT);
+		int plotHeight = Math.max(1, (height - MARGIN_TOP - MARGIN_BOTTOM - GAP) / 2);
+		top = MARGIN_TOP;
+		bottom = MARGIN_TOP + 2 * plotHeight + GAP;
+		int priceTop = MARGIN_TOP + plotHeight + GAP;
+
+		// the ranges of the axes, fixed over all the frames
+		double[] supply = series.getColumn(PlotterDataProvider.SUPPLY);
+		double[] demand = series.getColumn(PlotterDataProvider.OVERALL_DEMAND);
+		double[] price = series.getColumn(PlotterDataProvider.PRICE);
+		double minEnergy = Double.MAX_VALUE, maxEnergy = -Double.MAX_VALUE;
+		double minPrice = Double.MAX_VALUE, maxPrice = -Double.MAX_VALUE;
+		for (int r = 0; r < rows; r++) {
+			minEnergy = Math.min(minEnergy, Math.min(supply[r], demand[r]));
+			maxEnergy = Math.max(maxEnergy, Math.max(supply[r], demand[r]));
+			minPrice = Math.min(minPrice, price[r]);
+			maxPrice = Math.max(maxPrice, price[r]);
+		}
+		long first = rows > 0 ? ticks[0] : 0;
+		long last = rows > 0 ? ticks[rows - 1] : 1;
+
+		// the pixel coordinates of every row, computed once
+		x = new int[rows];
+		supplyY = new int[rows];
+		demandY = new int[rows];
+		priceY = new int[rows];
+		for (int r = 0; r < rows; r++) {
+			x[r] = MARGIN_LEFT
+					+ (int) ((double) (ticks[r] - first) * (plotWidth - 1) / Math
+							.max(1, last - first));
+			supplyY[r] = scale(supply[r], minEnergy, maxEnergy, MARGIN_TOP,
+					plotHeight);
+			demandY[r] = scale(demand[r], minEnergy, maxEnergy, MARGIN_TOP,
+					plotHeight);
+			priceY[r] = scale(price[r], minPrice, maxPrice, priceTop,
+					plotHeight);
+		}
+
+		// the static layer
+		background = new BufferedImage(width, height,
+				indexed ? BufferedImage.TYPE_BYTE_INDEXED
+						: BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = background.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+
+		g.setColor(Color.BLACK);
+		g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 14));
+		g.drawString("Replay of run: " + runInfo, MARGIN_LEFT, 25);
+
+		g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+		drawArea(g, MARGIN_TOP, plotWidth, plotHeight, minEnergy, maxEnergy,
+				"Supply and Overall Demand");
+		drawArea(g, priceTop, plotWidth, plotHeight, minPrice, maxPrice,
+				"Price");
+
+		// the legend, above the top plot area on the right
+		FontMetrics fm = g.getFontMetrics();
+		int lx = MARGIN_LEFT + plotWidth;
+		String[] names = { "Overall Demand", "Supply" };
+		Color[] colors = { DEMAND, SUPPLY };
+		for (int i = 0; i < names.length; i++) {
+			lx -= fm.stringWidth(names[i]);
+			g.setColor(Color.BLACK);
+			g.drawString(names[i], lx, MARGIN_TOP - 8);
+			lx -= 25;
+			g.setColor(colors[i]);
+			g.fillRect(lx, MARGIN_TOP - 8 - fm.getAscent() / 2, 20, 3);
+			lx -= 15;
+		}
+
+		// the time range at both ends below the price area
+		DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		int y = bottom + fm.getAscent() + 5;
+		g.setColor(Color.BLACK);
+		g.drawString(format.format(new Date(first)), MARGIN_LEFT, y);
+		String end = format.format(new Date(last));
+		g.drawString(end, MARGIN_LEFT + plotWidth - fm.stringWidth(end), y);
+
+		g.dispose();
+	}
+
+	/**
+	 * Returns the Y coordinate of a value within a plot area.
+	 */
+	private static int scale(double value, double min, double max, int top,
+			int height) {
+		if (max <= min) {
+			return top + height / 2;
+		}
+		return top + height - 1
+				- (int) ((value - min) * (height - 1) / (max - min));
+	}
+
+	/**
+	 * Draws the frame, grid and value labels of a plot area.
+	 */
+	private static void drawArea(Graphics2D g, int top, int width, int height,
+			double min, double max, String label) {
+
+		FontMetrics fm = g.getFontMetrics();
+		for (int i = 0; i <= 4; i++) {
+			int y = top + height - 1 - i * (height - 1) / 4;
+			g.setColor(i == 0 ? Color.BLACK : Color.LIGHT_GRAY);
+			g.drawLine(MARGIN_LEFT, y, MARGIN_LEFT + width - 1, y);
+
+			String value = String.format("%.2f", min + (max - min) * i / 4);
+			g.setColor(Color.BLACK);
+			g.drawString(value, MARGIN_LEFT - fm.stringWidth(value) - 5, y
+					+ fm.getAscent() / 2);
+		}
+		g.drawLine(MARGIN_LEFT, top, MARGIN_LEFT, top + height - 1);
+		g.drawString(label, MARGIN_LEFT + 5, top - 8);
+	}
+
+	/**
+	 * @return the number of rows of the series replayed
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Draws a frame showing the first rows of the series, with the time of
+	 * the last one.
+	 *
+	 * @param shown
+	 *            the number of rows shown
+	 * @return the frame, with the palette of the static layer
+	 */
+	public BufferedImage renderFrame(int shown) {
+
+		// a copy of the static layer's pixels, without converting colors
+		BufferedImage frame = new BufferedImage(background.getColorModel(),
+				background.copyData(null), false, null);
+		Graphics2D g = frame.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+				RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setStroke(new BasicStroke(1.5f));
+
+		g.setColor(SUPPLY);
+		g.drawPolyline(x, supplyY, shown);
+		g.setColor(DEMAND);
+		g.drawPolyline(x, demandY, shown);
+		g.setColor(PRICE);
+		g.drawPolyline(x, priceY, shown);
+
+		// the time reached, over both plot areas
+		if (shown > 0) {
+			int cx = x[shown - 1];
+			g.setColor(Color.GRAY);
+			g.setStroke(new BasicStroke(1));
+			g.drawLine(cx, top, cx, bottom);
+
+			g.setColor(Color.BLACK);
+			g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+			String time = new SimpleDateFormat("yyyy-MM-dd HH:mm")
+					.format(new Date(ticks[shown - 1]));
+			int tx = Math.min(cx + 4, width - MARGIN_RIGHT
+					- g.getFontMetrics().stringWidth(time));
+			g.drawString(time, tx, top + 12);
+		}
+
+		g.dispose();
+		return frame;
+	}
+
+	/**
+	 * Renders the frames of the replay on all the cores and writes them in
+	 * order.
+	 *
+	 * @param frames
+	 *            the number of frames, each showing an equal share more of
+	 *            the series than the previous one; at most the number of rows
+	 * @param encoder
+	 *            the encoder the frames are written with, finished once the
+	 *            last frame has been written
+	 * @return the number of frames written
+	 * @throws IOException
+	 *             if a frame cannot be rendered or written, or the calling
+	 *             thread is interrupted
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> int export(int frames, final FrameEncoder<T> encoder)
+			throws IOException {
+
+		frames = Math.max(1, Math.min(frames, rows));
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "replay-exporter");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		ExecutorService renderers = Executors.newFixedThreadPool(threads,
+				daemons);
+		ExecutorService writer = Executors.newSingleThreadExecutor(daemons);
+
+		// the frames in order, as they are being rendered
+		final BlockingQueue<Future<Object>> queue = new ArrayBlockingQueue<Future<Object>>(
+				threads * FRAMES_PER_THREAD);
+
+		Future<Integer> written = writer.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				int count = 0;
+				Future<Object> frame;
+				while ((frame = queue.take()) != END) {
+					encoder.write((T) frame.get());
+					count++;
+				}
+				encoder.finish();
+				return count;
+			}
+		});
+
+		try {
+			for (int f = 1; f <= frames && !written.isDone(); f++) {
+				final int shown = (int) ((long) f * rows / frames);
+				Future<Object> frame = renderers.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						return encoder.prepare(renderFrame(shown));
+					}
+				});
+
+				// wait for the encoder to catch up, unless it has failed
+				while (!queue.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+					if (written.isDone()) {
+						break;
+					}
+				}
+			}
+			while (!written.isDone()
+					&& !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+			}
+
+			return written.get();
+
+		} catch (InterruptedException e) {
+			throw new IOException("Replay export interrupted");
+		} catch (ExecutionException e) {
+			// a frame could not be rendered or written
+			Throwable cause = e.getCause();
+			if (cause instanceof ExecutionException) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			writer.shutdownNow();
+			renderers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Exports a replay from the command line.
+	 *
+	 * Usage: ReplayExporter runID png|gif output [frames [granularity [width
+	 * height]]], where the output is a directory for png and a file for gif,
+	 * and the granularity is in seconds unless given as e.g. 5m, 1h or 1d
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 3) {
+			System.out.println("Usage: ReplayExporter runID png|gif output"
+					+ " [frames [granularity [width height]]]");
+			System.exit(1);
+		}
+
+		int runID = Integer.parseInt(args[0]);
+		boolean gif = args[1].equals("gif");
+		File output = new File(args[2]);
+		int frames = args.length > 3 ? Integer.parseInt(args[3])
+				: Integer.MAX_VALUE;
+		long resolution = args.length > 4 ? Granularity.interval(args[4]) : -1;
+		int width = args.length > 6 ? Integer.parseInt(args[5]) : 1280;
+		int height = args.length > 6 ? Integer.parseInt(args[6]) : 720;
+
+		try {
+			ReplayExporter replay = new ReplayExporter(runID, new PlotterDB(),
+					resolution, width, height, gif);
+
+			long start = System.nanoTime();
+			int written = gif ? replay.export(frames, new AnimatedGif(output))
+					: replay.export(frames, new PngSequence(output));
+			System.out.println(written + " frames of " + replay.getRows()
+					+ " ticks exported to " + output + " in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		} catch (Exception e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+
+/**
+ *
+ * A {@link SeriesCursor} that restricts another cursor to a range of ticks
+ * and optionally averages its rows into buckets of equal duration, or keeps
+ * their lowest or highest values.
+ *
+ * Used by providers that cannot push ranges and buckets down into a query,
+ * such as {@link MappedFileDataProvider}. The buckets start at multiples of
+ * the resolution, like those computed by {@link PlotterDB}.
+ *
+ * @version 1.1
+ */
+public class ResamplingCursor implements SeriesCursor {
+
+	/**
+	 * The cursor the rows are read from
+	 */
+	private SeriesCursor source;
+
+	/**
+	 * The first tick returned
+	 */
+	private long fromTick;
+
+	/**
+	 * The last tick returned
+	 */
+	private long toTick;
+
+	/**
+	 * The duration of the buckets in milliseconds, or 0 for every tick
+	 */
+	private long resolution;
+
+	/**
+	 * The function the rows of a bucket are reduced with
+	 */
+	private String aggregate;
+
+	/**
+	 * The tick of the current row
+	 */
+	private long tick;
+
+	/**
+	 * The values of the current row
+	 */
+	private double[] values;
+
+	/**
+	 * Whether the source is positioned on a row in range that has not been
+	 * returned yet
+	 */
+	private boolean pending;
+
+	/**
+	 * Whether the source has no more rows in range
+	 */
+	private boolean done;
+
+	/**
+	 * Creates a new resampling cursor.
+	 *
+	 * @param source
+	 *            the cursor the rows are read from, in tick order
+	 * @param columns
+	 *            the number of value columns of the source
+	 * @param fromTick
+	 *            the first tick returned
+	 * @param toTick
+	 *            the last tick returned
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 */
+	public ResamplingCursor(SeriesCursor source, int columns, long fromTick,
+			long toTick, long resolution) {
+		this(source, columns, fromTick, toTick, resolution, Granularity.AVG);
+	}
+
+	/**
+	 * Creates a new resampling cursor reducing the rows of each bucket by the
+	 * function given.
+	 *
+	 * @param source
+	 *            the cursor the rows are read from, in tick order
+	 * @param columns
+	 *            the number of value columns of the source
+	 * @param fromTick
+	 *            the first tick returned
+	 * @param toTick
+	 *            the last tick returned
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the rows of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 */
+	public ResamplingCursor(SeriesCursor source, int columns, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		this.source = source;
+		this.fromTick = fromTick;
+		this.toTick = toTick;
+		this.resolution = resolution;
+		this.aggregate = Granularity.aggregate(aggregate);
+		this.values = new double[columns];
+		this.pending = false;
+		this.done = false;
+	}
+
+	public boolean next() throws SQLException {
+
+		if (!pending && !advance()) {
+			return false;
+		}
+
+		long t = source.getTick();
+		if (resolution <= 0) {
+			tick = t;
+			for (int c = 0; c < values.length; c++) {
+				values[c] = source.getValue(c);
+			}
+			pending = false;
+			return true;
+		}
+
+		// reduce all the rows that fall into the same bucket
+		long bucket = t / resolution;
+		if (t < 0 && t % resolution != 0) {
+			bucket--;
+		}
+		tick = bucket * resolution;
+		boolean min = aggregate.equals(Granularity.MIN);
+		boolean max = aggregate.equals(Granularity.MAX);
+		for (int c = 0; c < values.length; c++) {
+			values[c] = min ? Double.MAX_VALUE : max ? -Double.MAX_VALUE : 0;
+		}
+
+		int count = 0;
+		do {
+			for (int c = 0; c < values.length; c++) {
+				double value = source.getValue(c);
+				if (min) {
+					values[c] = Math.min(values[c], value);
+				} else if (max) {
+					values[c] = Math.max(values[c], value);
+				} else {
+					values[c] += value;
+				}
+			}
+			count++;
+			pending = false;
+		} while (advance() && source.getTick() < tick + resolution);
+
+		if (!min && !max) {
+			for (int c = 0; c < values.length; c++) {
+				values[c] /= count;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the source to its next row in range.
+	 *
+	 * @return true if the source is positioned on a row in range, false if
+	 *         there are no more
+	 * @throws SQLException
+	 *             if the row cannot be retrieved
+	 */
+	private boolean advance() throws SQLException {
+		while (!done && source.next()) {
+			long t = source.getTick();
+			if (t > toTick) {
+				break;
+			}
+			if (t >= fromTick) {
+				pending = true;
+				return true;
+			}
+		}
+		done = true;
+		pending = false;
+		return false;
+	}
+
+	public long getTick() {
+		return tick;
+	}
+
+	public double getValue(int column) {
+		return values[column];
+	}
+
+	public void close() throws SQLException {
+		source.close();
+	}
+}
@@ -0,0 +1,100 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 
+ * A {@link SeriesCursor} over the rows of a {@link ResultSet} holding a tick
+ * column and a number of value columns.
+ * 
+ * This is how all the series of {@link PlotterDB} are decoded: the tick is
+ * selected as an integer number of milliseconds since the epoch and the
+ * columns are read by position, resolved once, so that reading a row
+ * allocates nothing, and {@link #read(TickColumns)} copies the rows straight
+ * into primitive columns.
+ * 
+ * @version 1.1
+ */
+public class ResultSetCursor implements SeriesCursor {
+
+	/**
+	 * The rows iterated over
+	 */
+	private ResultSet rs;
+
+	/**
+	 * The position of the tick column in the {@link ResultSet}
+	 */
+	private int tickIndex;
+
+	/**
+	 * The positions of the value columns in the {@link ResultSet}
+	 */
+	private int[] indices;
+
+	/**
+	 * Creates a new cursor, resolving the positions of the columns once.
+	 * 
+	 * @param rs
+	 *            the rows iterated over
+	 * @param columns
+	 *            the names of the value columns, in the order they are
+	 *            exposed by the cursor
+	 * @throws SQLException
+	 *             if a column does not exist
+	 */
+	public ResultSetCursor(ResultSet rs, String... columns)
+			throws SQLException {
+		this.rs = rs;
+		this.tickIndex = rs.findColumn("tick");
+		this.indices = new int[columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			indices[c] = rs.findColumn(columns[c]);
+		}
+	}
+
+	public boolean next() throws SQLException {
+		return rs.next();
+	}
+
+	public long getTick() throws SQLException {
+		return rs.getLong(tickIndex);
+	}
+
+	public double getValue(int column) throws SQLException {
+		return rs.getDouble(indices[column]);
+	}
+
+	public void close() throws SQLException {
+		rs.close();
+	}
+
+	/**
+	 * Appends the remaining rows to a series, decoding each value straight
+	 * into its column, and closes the cursor.
+	 * 
+	 * @param series
+	 *            the series appended to; columns beyond those of the series
+	 *            are left out
+	 * @return the number of rows appended
+	 * @throws SQLException
+	 *             if the rows cannot be retrieved
+	 */
+	public int read(TickColumns series) throws SQLException {
+		int columns = Math.min(indices.length, series.getColumnCount());
+		int count = 0;
+		try {
+			while (rs.next()) {
+				int row = series.addRow(rs.getLong(tickIndex));
+				for (int c = 0; c < columns; c++) {
+					series.setValue(c, row, rs.getDouble(indices[c]));
+				}
+				count++;
+			}
+		} finally {
+			rs.close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,345 @@
+package com.smartgrid.app.plotter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ *
+ * Lists the runs along with their summary statistics, for choosing which run
+ * to plot.
+ *
+ * The statistics of each run are computed once, through
+ * {@link PlotterDataProvider#getRunSummary(int)}, and kept in a catalog file,
+ * so later refreshes only compute them for runs that are new since. Runs can
+ * then be browsed a page at a time, sorted by any statistic and filtered,
+ * without querying the logs again.
+ *
+ * A run may still be simulated when it is first summarised. The newest run,
+ * and any run whose summary may be partial, is therefore checked again on
+ * each refresh through {@link PlotterDataProvider#getTickBounds(int)}, and
+ * summarised anew while its ticks keep changing. A run is settled once a
+ * refresh finds its ticks unchanged and a newer run has started.
+ *
+ * @version 1.1
+ */
+public class RunCatalog {
+
+	/**
+	 * The default location of the catalog file
+	 */
+	public static final String DEFAULT_FILE = System.getProperty("user.home")
+			+ File.separator + ".smartgrid-runs.csv";
+
+	/**
+	 * Selects the runs browsed.
+	 */
+	public interface Filter {
+
+		/**
+		 * Tells whether a run is listed.
+		 *
+		 * @param run
+		 *            the summary of the run
+		 * @return true if the run is listed, false otherwise
+		 */
+		public boolean accept(RunSummary run);
+	}
+
+	/**
+	 * The provider the statistics of new runs are computed by
+	 */
+	private PlotterDataProvider provider;
+
+	/**
+	 * The catalog file
+	 */
+	private File file;
+
+	/**
+	 * The summaries of the runs, by run ID
+	 */
+	private TreeMap<Integer, RunSummary> runs;
+
+	/**
+	 * The IDs of the runs whose summaries may still be partial
+	 */
+	private TreeSet<Integer> unsettled;
+
+	/**
+	 * Creates a catalog, reading the summaries kept in its file, if any.
+	 *
+	 * @param p
+	 *            the provider the statistics of new runs are computed by, not
+	 *            yet opened
+	 * @param file
+	 *            the catalog file
+	 */
+	public RunCatalog(PlotterDataProvider p, File file) {
+		this.provider = p;
+		this.file = file;
+		this.runs = new TreeMap<Integer, RunSummary>();
+		this.unsettled = new TreeSet<Integer>();
+
+		if (file.exists()) {
+			try {
+				read();
+			} catch (IOException e) {
+				System.out.println("IO Exception: " + e.toString());
+			} catch (NumberFormatException e) {
+				// a damaged catalog is rebuilt from scratch
+				System.out.println("Invalid run catalog: " + e.getMessage());
+				runs.clear();
+			}
+		}
+
+		// the newest run kept may have been summarised while simulated
+		if (!runs.isEmpty()) {
+			unsettled.add(runs.lastKey());
+		}
+	}
+
+	/**
+	 * Computes the statistics of the runs that are not in the catalog yet,
+	 * computes them again for the runs still being simulated, drops the runs
+	 * that no longer exist and saves the catalog. The catalog is left as it
+	 * is if the runs cannot be listed.
+	 *
+	 * @return the number of runs added to the catalog
+	 */
+	public synchronized int refresh() {
+		if (!provider.open()) {
+			return 0;
+		}
+
+		// no runs at all is what a failed query returns, so the catalog is
+		// kept rather than emptied and saved
+		HashMap<Integer, String> listed = provider.getRuns();
+		if (listed == null || listed.isEmpty()) {
+			provider.close();
+			return 0;
+		}
+
+		int added = 0;
+		int updated = 0;
+		TreeSet<Integer> runIDs = new TreeSet<Integer>(listed.keySet());
+		TreeMap<Integer, RunSummary> current = new TreeMap<Integer, RunSummary>();
+		for (int runID : runIDs) {
+			RunSummary run = runs.get(runID);
+			boolean newest = runID == runIDs.last();
+			if (run == null) {
+				run = provider.getRunSummary(runID);
+				if (run == null) {
+					continue;
+				}
+				added++;
+				unsettled.add(runID);
+			} else if (unsettled.contains(runID)) {
+				// summarise the run again if its ticks have changed, and
+				// settle it once they no longer do and a newer run exists;
+				// a run that cannot be checked is kept as it was
+				long[] bounds = provider.getTickBounds(runID);
+				if (bounds == null) {
+					current.put(runID, run);
+					continue;
+				}
+				if (bounds[1] != run.getLastTick()
+						|| bounds[2] != run.getTicks()) {
+					RunSummary summary = provider.getRunSummary(runID);
+					if (summary != null) {
+						run = summary;
+						updated++;
+					}
+				} else if (!newest) {
+					unsettled.remove(runID);
+				}
+			}
+			current.put(runID, run);
+		}
+		unsettled.retainAll(current.keySet());
+		provider.close();
+
+		boolean changed = added > 0 || updated > 0
+				|| current.size() != runs.size();
+		runs = current;
+		if (changed) {
+			try {
+				write();
+			} catch (IOException e) {
+				System.out.println("IO Exception: " + e.toString());
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Returns the summary of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @return the {@link RunSummary}, or null if the run is not in the catalog
+	 */
+	public synchronized RunSummary get(int runID) {
+		return runs.get(runID);
+	}
+
+	/**
+	 * Returns the number of runs accepted by a filter.
+	 *
+	 * @param filter
+	 *            the filter, or null for all runs
+	 * @return the number of runs
+	 */
+	public synchronized int count(Filter filter) {
+		if (filter == null) {
+			return runs.size();
+		}
+		int count = 0;
+		for (RunSummary run : runs.values()) {
+			if (filter.accept(run)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a page of the runs accepted by a filter, in the order given.
+	 *
+	 * @param filter
+	 *            the filter, or null for all runs
+	 * @param field
+	 *            the field the runs are sorted by, one of
+	 *            {@link RunSummary#FIELDS}
+	 * @param descending
+	 *            true for the largest values first
+	 * @param page
+	 *            the number of the page, starting at 0
+	 * @param pageSize
+	 *            the number of runs per page
+	 * @return the runs of the page, empty past the last page
+	 * @throws IllegalArgumentException
+	 *             if the field is unknown
+	 */
+	public synchronized ArrayList<RunSummary> page(Filter filter,
+			String field, boolean descending, int page, int pageSize) {
+
+		ArrayList<RunSummary> selected = new ArrayList<RunSummary>();
+		for (RunSummary run : runs.values()) {
+			if (filter == null || filter.accept(run)) {
+				selected.add(run);
+			}
+		}
+		Collections.sort(selected, RunSummary.order(field, descending));
+
+		int from = Math.min(selected.size(), Math.max(0, page) * pageSize);
+		int to = Math.min(selected.size(), from + Math.max(0, pageSize));
+		return new ArrayList<RunSummary>(selected.subList(from, to));
+	}
+
+	/**
+	 * Returns a filter accepting the runs whose date information contains
+	 * the text given and that have at least the number of ticks given.
+	 *
+	 * @param date
+	 *            the text looked for, or null for any date
+	 * @param minTicks
+	 *            the smallest number of ticks accepted
+	 * @return the {@link Filter}
+	 */
+	public static Filter filter(final String date, final long minTicks) {
+		return new Filter() {
+			public boolean accept(RunSummary run) {
+				return run.getTicks() >= minTicks
+						&& (date == null || (run.getDate() != null && run
+								.getDate().contains(date)));
+			}
+		};
+	}
+
+	/**
+	 * Reads the catalog file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	private void read() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() > 0) {
+					RunSummary run = RunSummary.fromLine(line);
+					runs.put(run.getRunID(), run);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the catalog file, replacing it only once fully written.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	private void write() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			for (RunSummary run : runs.values()) {
+				out.write(run.toLine() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Prints a page of the catalog.
+	 *
+	 * Usage: RunCatalog [page [pageSize [field [asc|desc [dateText]]]]]
+	 */
+	public static void main(String[] args) {
+
+		int page = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		String field = args.length > 2 ? args[2] : "run";
+		boolean descending = args.length > 3 && args[3].equals("desc");
+		Filter filter = filter(args.length > 4 ? args[4] : null, 0);
+
+		RunCatalog catalog = new RunCatalog(new PlotterDB(), new File(
+				DEFAULT_FILE));
+		catalog.refresh();
+
+		int total = catalog.count(filter);
+		System.out.println("Runs " + (page * pageSize + 1) + "-"
+				+ Math.min(total, (page + 1) * pageSize) + " of " + total
+				+ ", by " + field + (descending ? " descending" : ""));
+		System.out.println("run\tticks\thours\tpolicies\thouseholds"
+				+ "\tpeakDemand\tpeakShortfall\tshortfallTicks\tdate");
+		for (RunSummary run : catalog.page(filter, field, descending, page,
+				pageSize)) {
+			System.out.println(run.getRunID() + "\t" + run.getTicks() + "\t"
+					+ run.getSpan() / 3600000 + "\t" + run.getPolicies() + "\t"
+					+ run.getHouseholds() + "\t" + run.getPeakDemand() + "\t"
+					+ run.getPeakShortfall() + "\t" + run.getShortfallTicks()
+					+ "\t" + run.getDate());
+		}
+	}
+}
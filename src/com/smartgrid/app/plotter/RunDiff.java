@@ -0,0 +1,537 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+
+import javax.swing.JFrame;
+
+import de.erichseifert.gral.data.DataSeries;
+import de.erichseifert.gral.data.DataSource;
+import de.erichseifert.gral.data.DataTable;
+import de.erichseifert.gral.plots.Plot;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.XYPlot.XYPlotNavigator;
+import de.erichseifert.gral.plots.axes.AxisRenderer;
+import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
+import de.erichseifert.gral.plots.lines.LineRenderer;
+import de.erichseifert.gral.plots.points.PointRenderer;
+import de.erichseifert.gral.util.Insets2D;
+
+/**
+ *
+ * Compares a candidate run with a baseline run, tick by tick: the
+ * aggregator's supply, overallDemand and price, or the average demand and
+ * appliancesOn of a policy's households.
+ *
+ * Both series are streamed from the DB at once, each over its own connection
+ * and decoded ahead on its own thread (see
+ * {@link SeriesPipeline#readAhead}), and merge-joined on the offset of their
+ * ticks from the start of their run, so runs started at different times are
+ * compared over the same stretch of simulated time. Ticks found in only one
+ * of the runs are counted but not compared.
+ *
+ * The differences (candidate minus baseline) are summarized in the same
+ * pass: their largest absolute value, their root mean square and their
+ * integral over time, in units times hours. Only the difference curves are
+ * kept for plotting, averaged into about {@link ViewportLoader#OVERVIEW_POINTS}
+ * buckets, so neither run is held in memory.
+ *
+ * @version 1.1
+ */
+public class RunDiff {
+
+	/**
+	 * The number of milliseconds per hour, the unit of the integrals
+	 */
+	private static final double HOUR = 3600000.0;
+
+	/**
+	 * The names of the aggregator's columns
+	 */
+	private static final String[] AGGREGATOR_COLUMNS = { "Supply",
+			"Overall Demand", "Price" };
+
+	/**
+	 * The names of the columns of a policy's average
+	 */
+	private static final String[] POLICY_COLUMNS = { "Demand",
+			"Appliances On" };
+
+	/**
+	 * The names of the columns compared
+	 */
+	private String[] columns;
+
+	/**
+	 * The baseline and candidate runs' date information
+	 */
+	private String baselineInfo, candidateInfo;
+
+	/**
+	 * The duration of the buckets the differences are plotted in, in
+	 * milliseconds, or 0 for every tick
+	 */
+	private long resolution;
+
+	/**
+	 * The difference of each column, by baseline tick
+	 */
+	private DataTable[] tables;
+
+	/**
+	 * The largest absolute difference, the sum of the squared differences and
+	 * the integral of the differences of each column
+	 */
+	private double[] maxAbs, sumSquares, integral;
+
+	/**
+	 * The number of ticks compared, and of ticks found in only one run
+	 */
+	private long matched, baselineOnly, candidateOnly;
+
+	/**
+	 * The plot window's width
+	 */
+	private int width;
+
+	/**
+	 * The plot window's height
+	 */
+	private int height;
+
+	/**
+	 * The constructor for the Run Diff, comparing the aggregator's data of two
+	 * runs.
+	 *
+	 * @param baselineRunID
+	 *            the ID of the baseline run
+	 * @param candidateRunID
+	 *            the ID of the candidate run
+	 */
+	public RunDiff(int baselineRunID, int candidateRunID) {
+		this(baselineRunID, candidateRunID, -1);
+	}
+
+	/**
+	 * The constructor for the Run Diff, streaming the runs from the DB over
+	 * two connections.
+	 *
+	 * @param baselineRunID
+	 *            the ID of the baseline run
+	 * @param candidateRunID
+	 *            the ID of the candidate run
+	 * @param policyID
+	 *            the ID of the policy whose averages are compared, or -1 for
+	 *            the aggregator's data
+	 */
+	public RunDiff(int baselineRunID, int candidateRunID, int policyID) {
+
+		// get user's screen size for calculating the plot window size
+		Dimension screenSize = Screen.getSize();
+		width = (int) screenSize.getWidth();
+		height = (int) (screenSize.getHeight() / 2);
+
+		columns = policyID < 0 ? AGGREGATOR_COLUMNS : POLICY_COLUMNS;
+
+		// a connection per run, since a streamed series holds its connection
+		// until it is read
+		PlotterDB baseline = new PlotterDB();
+		PlotterDB candidate = new PlotterDB();
+		if (!baseline.open() || !candidate.open()) {
+			System.out
+					.println("There was something wrong with getting data from the DB,"
+							+ " execution terminated.");
+			System.exit(1);
+		}
+
+		try {
+			baselineInfo = baseline.getRunInfo(baselineRunID);
+			candidateInfo = candidate.getRunInfo(candidateRunID);
+			resolution = ViewportLoader.overviewResolution(baseline
+					.getTickBounds(baselineRunID));
+
+			// whole runs are streamed rather than held in memory
+			baseline.setStreaming(true);
+			baseline.setQueryTimeout(0);
+			candidate.setStreaming(true);
+			candidate.setQueryTimeout(0);
+
+			SeriesCursor b = null;
+			SeriesCursor c = null;
+			if (policyID < 0) {
+				b = baseline.getAggregatorSeries(baselineRunID);
+				c = candidate.getAggregatorSeries(candidateRunID);
+			} else {
+				b = baseline.getPolicyAverageSeries(baselineRunID, policyID);
+				c = candidate.getPolicyAverageSeries(candidateRunID, policyID);
+			}
+			if (b == null || c == null) {
+				throw new SQLException("No data could be retrieved from the DB");
+			}
+
+			compare(SeriesPipeline.readAhead(b, columns.length),
+					SeriesPipeline.readAhead(c, columns.length));
+
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} finally {
+			// close the connections to the DB
+			baseline.close();
+			candidate.close();
+		}
+	}
+
+	/**
+	 * The constructor for the Run Diff, comparing two series given, for
+	 * comparisons not read from the DB.
+	 *
+	 * @param columns
+	 *            the names of the value columns of the series
+	 * @param baseline
+	 *            the baseline series, in tick order
+	 * @param candidate
+	 *            the candidate series, in tick order
+	 * @param resolution
+	 *            the duration of the buckets the differences are plotted in,
+	 *            in milliseconds, or 0 for every tick
+	 * @throws SQLException
+	 *             if the series cannot be read
+	 */
+	RunDiff(String[] columns, SeriesCursor baseline, SeriesCursor candidate,
+			long resolution) throws SQLException {
+		this.columns = columns;
+		this.resolution = resolution;
+		width = 1600;
+		height = 600;
+		compare(baseline, candidate);
+	}
+
+	/**
+	 * Merge-joins two series on the offset of their ticks from their first
+	 * tick, summarizing and bucketing the differences as it goes, and closes
+	 * both.
+	 *
+	 * @param baseline
+	 *            the baseline series, in tick order
+	 * @param candidate
+	 *            the candidate series, in tick order
+	 * @throws SQLException
+	 *             if the series cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	private void compare(SeriesCursor baseline, SeriesCursor candidate)
+			throws SQLException {
+
+		int count = columns.length;
+		maxAbs = new double[count];
+		sumSquares = new double[count];
+		integral = new double[count];
+		tables = new DataTable[count];
+		for (int col = 0; col < count; col++) {
+			tables[col] = new DataTable(Long.class, Double.class);
+		}
+
+		// the bucket of differences being averaged, by baseline tick
+		long bucket = Long.MIN_VALUE;
+		double[] sums = new double[count];
+		int bucketRows = 0;
+
+		// the previous tick compared, for the integrals
+		long lastTick = Long.MIN_VALUE;
+
+		try {
+			boolean moreB = baseline.next();
+			boolean moreC = candidate.next();
+			long startB = moreB ? baseline.getTick() : 0;
+			long startC = moreC ? candidate.getTick() : 0;
+
+			while (moreB && moreC) {
+				long offsetB = baseline.getTick() - startB;
+				long offsetC = candidate.getTick() - startC;
+
+				// advance the series that is behind
+				if (offsetB < offsetC) {
+					baselineOnly++;
+					moreB = baseline.next();
+					continue;
+				} else if (offsetC < offsetB) {
+					candidateOnly++;
+					moreC = candidate.next();
+					continue;
+				}
+
+				long tick = baseline.getTick();
+				double hours = lastTick == Long.MIN_VALUE ? 0
+						: (tick - lastTick) / HOUR;
+				lastTick = tick;
+				matched++;
+
+				long b = bucket(tick);
+				if (b != bucket) {
+					addBucket(bucket, sums, bucketRows);
+					bucket = b;
+					bucketRows = 0;
+				}
+				bucketRows++;
+
+				for (int col = 0; col < count; col++) {
+					double delta = candidate.getValue(col)
+							- baseline.getValue(col);
+					maxAbs[col] = Math.max(maxAbs[col], Math.abs(delta));
+					sumSquares[col] += delta * delta;
+					integral[col] += delta * hours;
+					sums[col] += delta;
+				}
+
+				moreB = baseline.next();
+				moreC = candidate.next();
+			}
+			addBucket(bucket, sums, bucketRows);
+
+			// the ticks past the end of the shorter run
+			while (moreB) {
+				baselineOnly++;
+				moreB = baseline.next();
+			}
+			while (moreC) {
+				candidateOnly++;
+				moreC = candidate.next();
+			}
+
+		} finally {
+			baseline.close();
+			candidate.close();
+		}
+	}
+
+	/**
+	 * Returns the bucket a tick is plotted in.
+	 *
+	 * @param tick
+	 *            the tick
+	 * @return the start of the bucket
+	 */
+	private long bucket(long tick) {
+		if (resolution <= 0) {
+			return tick;
+		}
+		long b = tick / resolution;
+		if (tick < 0 && tick % resolution != 0) {
+			b--;
+		}
+		return b * resolution;
+	}
+
+	/**
+	 * Adds the average differences of a bucket to the tables and starts
+	 * anew.
+	 *
+	 * @param bucket
+	 *            the start of the bucket, or Long.MIN_VALUE for none
+	 * @param sums
+	 *            the sums of the differences of each column, reset
+	 * @param rows
+	 *            the number of ticks in the bucket
+	 */
+	private void addBucket(long bucket, double[] sums, int rows) {
+		if (bucket == Long.MIN_VALUE || rows == 0) {
+			return;
+		}
+		for (int col = 0; col < sums.length; col++) {
+			tables[col].add(bucket, sums[col] / rows);
+			sums[col] = 0;
+		}
+	}
+
+	/**
+	 * @return the names of the columns compared
+	 */
+	public String[] getColumns() {
+		return columns.clone();
+	}
+
+	/**
+	 * @return the number of ticks compared
+	 */
+	public long getMatched() {
+		return matched;
+	}
+
+	/**
+	 * @return the number of ticks of the baseline run missing from the
+	 *         candidate run
+	 */
+	public long getBaselineOnly() {
+		return baselineOnly;
+	}
+
+	/**
+	 * @return the number of ticks of the candidate run missing from the
+	 *         baseline run
+	 */
+	public long getCandidateOnly() {
+		return candidateOnly;
+	}
+
+	/**
+	 * @param column
+	 *            the position of the column
+	 * @return the largest absolute difference of the column
+	 */
+	public double getMaxAbs(int column) {
+		return maxAbs[column];
+	}
+
+	/**
+	 * @param column
+	 *            the position of the column
+	 * @return the root mean square of the differences of the column, or 0 if
+	 *         no ticks were compared
+	 */
+	public double getRmse(int column) {
+		return matched == 0 ? 0 : Math.sqrt(sumSquares[column] / matched);
+	}
+
+	/**
+	 * @param column
+	 *            the position of the column
+	 * @return the integral of the differences of the column over time, in
+	 *         units times hours
+	 */
+	public double getIntegral(int column) {
+		return integral[column];
+	}
+
+	/**
+	 * Describes the comparison: the number of ticks compared and the summary
+	 * of the differences of each column.
+	 *
+	 * @return the description, one line per column after a header line
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(matched).append(" ticks compared, ")
+				.append(baselineOnly).append(" only in the baseline, ")
+				.append(candidateOnly).append(" only in the candidate\n");
+		for (int col = 0; col < columns.length; col++) {
+			summary.append(String.format(
+					"%-15s max abs %12.4f  rmse %12.4f  integral %14.4f%n",
+					columns[col], getMaxAbs(col), getRmse(col),
+					getIntegral(col)));
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Shows a graph of the differences of each column, one window per column
+	 * from the top of the screen down
+	 */
+	public void getDiffGraphs() {
+		int windowHeight = Math.max(200, height * 2 / columns.length);
+		for (int col = 0; col < columns.length; col++) {
+
+			// the frame window on which the plot is to be presented
+			JFrame graph = new JFrame();
+
+			// frame parameters
+			graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+			graph.setBounds(0, col * windowHeight, width, windowHeight);
+
+			// the actual plot that contains all the data
+			XYPlot plot = createPlot(col);
+
+			// get the plot on the frame
+			graph.getContentPane().add(
+					new DiagnosticsPanel(plot, new PlotDiagnostics()));
+
+			// set the zoom for the frame
+			XYPlotNavigator xy = new XYPlotNavigator(plot);
+			xy.setZoom(1.65);
+
+			// presenting the plot window
+			graph.setVisible(true);
+		}
+	}
+
+	/**
+	 * Creates a fully formatted plot of the differences of a column, without
+	 * attaching it to any window.
+	 *
+	 * @param column
+	 *            the position of the column
+	 * @return the formatted {@link XYPlot}
+	 */
+	XYPlot createPlot(int column) {
+
+		DataSource series = new DataSeries(columns[column], tables[column],
+				0, 1);
+		XYPlot plot = new XYPlot(series);
+
+		// --- formating the plot ---
+		plot.setSetting(Plot.BACKGROUND, Color.WHITE);
+		plot.setSetting(Plot.TITLE, columns[column] + " difference, run "
+				+ candidateInfo + " - run " + baselineInfo + "\n"
+				+ String.format("max abs %.4f, rmse %.4f, integral %.4f",
+						getMaxAbs(column), getRmse(column),
+						getIntegral(column)));
+		plot.setInsets(new Insets2D.Double(10, 10, 10, 10));
+
+		// --- formating the axes ---
+		AxisRenderer axisRendererY = plot.getAxisRenderer(XYPlot.AXIS_Y);
+		AxisRenderer axisRendererX = plot.getAxisRenderer(XYPlot.AXIS_X);
+		axisRendererX.setSetting(AxisRenderer.LABEL, "Time (baseline)");
+		axisRendererY.setSetting(AxisRenderer.LABEL, "Difference");
+		axisRendererY.setSetting(AxisRenderer.LABEL_DISTANCE, 2);
+
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd\nHH:mm");
+		axisRendererX.setSetting(AxisRenderer.TICK_LABELS_FORMAT, dateFormat);
+
+		// the Y axis at the first tick, the time axis at no difference
+		if (tables[column].getRowCount() > 0) {
+			axisRendererY.setSetting(AxisRenderer.INTERSECTION,
+					tables[column].get(0, 0));
+		}
+		axisRendererX.setSetting(AxisRenderer.INTERSECTION, 0);
+
+		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
+		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
+
+		// draw the line
+		plot.setLineRenderer(series, new DefaultLineRenderer2D());
+		plot.getPointRenderer(series).setSetting(PointRenderer.COLOR,
+				new Color(0, true));
+		plot.getLineRenderer(series).setSetting(LineRenderer.COLOR,
+				new Color(0.8f, 0.1f, 0.1f));
+
+		return plot;
+	}
+
+	/**
+	 * Compares two runs, printing the summary and showing the differences.
+	 *
+	 * Usage: RunDiff baselineRunID candidateRunID [policyID]
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 2) {
+			System.out
+					.println("Usage: RunDiff baselineRunID candidateRunID [policyID]");
+			System.exit(1);
+		}
+
+		RunDiff diff = new RunDiff(Integer.parseInt(args[0]),
+				Integer.parseInt(args[1]), args.length > 2 ? Integer
+						.parseInt(args[2]) : -1);
+		System.out.print(diff.getSummary());
+		if (!GraphicsEnvironment.isHeadless()) {
+			diff.getDiffGraphs();
+		}
+	}
+}
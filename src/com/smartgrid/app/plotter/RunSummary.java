@@ -0,0 +1,226 @@
+package com.smartgrid.app.plotter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ *
+ * Holds the summary statistics of a run, computed once from its logs so that
+ * runs can be browsed without querying the logs again (see
+ * {@link RunCatalog}).
+ *
+ * @version 1.1
+ */
+public class RunSummary {
+
+	/**
+	 * The names of the fields runs can be sorted by
+	 */
+	public static final String[] FIELDS = { "run", "date", "ticks", "span",
+			"policies", "households", "peakDemand", "peakShortfall",
+			"shortfallTicks" };
+
+	private int runID;
+
+	private String date;
+
+	private long firstTick;
+
+	private long lastTick;
+
+	private long ticks;
+
+	private int policies;
+
+	private int households;
+
+	private double peakDemand;
+
+	private double peakShortfall;
+
+	private long shortfallTicks;
+
+	/**
+	 * Creates the summary of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run
+	 * @param date
+	 *            the date information of the run
+	 * @param firstTick
+	 *            the first tick, in milliseconds since the epoch
+	 * @param lastTick
+	 *            the last tick, in milliseconds since the epoch
+	 * @param ticks
+	 *            the number of ticks logged by the aggregator
+	 * @param policies
+	 *            the number of household policies used
+	 * @param households
+	 *            the number of households, or -1 if unknown
+	 * @param peakDemand
+	 *            the highest overall demand
+	 * @param peakShortfall
+	 *            the largest amount by which overall demand exceeded supply,
+	 *            or 0 if it never did
+	 * @param shortfallTicks
+	 *            the number of ticks at which overall demand exceeded supply
+	 */
+	public RunSummary(int runID, String date, long firstTick, long lastTick,
+			long ticks, int policies, int households, double peakDemand,
+			double peakShortfall, long shortfallTicks) {
+		this.runID = runID;
+		this.date = date;
+		this.firstTick = firstTick;
+		this.lastTick = lastTick;
+		this.ticks = ticks;
+		this.policies = policies;
+		this.households = households;
+		this.peakDemand = peakDemand;
+		this.peakShortfall = peakShortfall;
+		this.shortfallTicks = shortfallTicks;
+	}
+
+	public int getRunID() {
+		return runID;
+	}
+
+	public String getDate() {
+		return date;
+	}
+
+	public long getFirstTick() {
+		return firstTick;
+	}
+
+	public long getLastTick() {
+		return lastTick;
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Returns the time between the first and the last tick.
+	 *
+	 * @return the time span in milliseconds
+	 */
+	public long getSpan() {
+		return lastTick - firstTick;
+	}
+
+	public int getPolicies() {
+		return policies;
+	}
+
+	public int getHouseholds() {
+		return households;
+	}
+
+	public double getPeakDemand() {
+		return peakDemand;
+	}
+
+	public double getPeakShortfall() {
+		return peakShortfall;
+	}
+
+	public long getShortfallTicks() {
+		return shortfallTicks;
+	}
+
+	/**
+	 * Returns the value of a field by name, for sorting.
+	 *
+	 * @param field
+	 *            the name of the field, one of {@link #FIELDS}
+	 * @return the value
+	 * @throws IllegalArgumentException
+	 *             if the field is unknown
+	 */
+	@SuppressWarnings("rawtypes")
+	public Comparable get(String field) {
+		if (field.equals("run")) {
+			return runID;
+		} else if (field.equals("date")) {
+			return date == null ? "" : date;
+		} else if (field.equals("ticks")) {
+			return ticks;
+		} else if (field.equals("span")) {
+			return getSpan();
+		} else if (field.equals("policies")) {
+			return policies;
+		} else if (field.equals("households")) {
+			return households;
+		} else if (field.equals("peakDemand")) {
+			return peakDemand;
+		} else if (field.equals("peakShortfall")) {
+			return peakShortfall;
+		} else if (field.equals("shortfallTicks")) {
+			return shortfallTicks;
+		}
+		throw new IllegalArgumentException("Unknown field: " + field);
+	}
+
+	/**
+	 * Returns an ordering of runs by a field, ties broken by run ID.
+	 *
+	 * @param field
+	 *            the name of the field, one of {@link #FIELDS}
+	 * @param descending
+	 *            true for the largest values first
+	 * @return the {@link Comparator}
+	 * @throws IllegalArgumentException
+	 *             if the field is unknown
+	 */
+	public static Comparator<RunSummary> order(final String field,
+			final boolean descending) {
+		if (!Arrays.asList(FIELDS).contains(field)) {
+			throw new IllegalArgumentException("Unknown field: " + field);
+		}
+
+		return new Comparator<RunSummary>() {
+			@SuppressWarnings("unchecked")
+			public int compare(RunSummary a, RunSummary b) {
+				int c = a.get(field).compareTo(b.get(field));
+				if (c == 0) {
+					c = a.runID < b.runID ? -1 : (a.runID == b.runID ? 0 : 1);
+				}
+				return descending ? -c : c;
+			}
+		};
+	}
+
+	/**
+	 * Formats the summary as a line of the catalog file.
+	 *
+	 * @return the fields separated by commas, the date last
+	 */
+	String toLine() {
+		return runID + "," + firstTick + "," + lastTick + "," + ticks + ","
+				+ policies + "," + households + "," + peakDemand + ","
+				+ peakShortfall + "," + shortfallTicks + ","
+				+ (date == null ? "" : date);
+	}
+
+	/**
+	 * Parses a line of the catalog file.
+	 *
+	 * @param line
+	 *            the line, as formatted by {@link #toLine()}
+	 * @return the summary
+	 * @throws NumberFormatException
+	 *             if the line is malformed
+	 */
+	static RunSummary fromLine(String line) {
+		String[] f = line.split(",", 10);
+		if (f.length < 10) {
+			throw new NumberFormatException("Malformed catalog line: " + line);
+		}
+		return new RunSummary(Integer.parseInt(f[0]), f[9],
+				Long.parseLong(f[1]), Long.parseLong(f[2]),
+				Long.parseLong(f[3]), Integer.parseInt(f[4]),
+				Integer.parseInt(f[5]), Double.parseDouble(f[6]),
+				Double.parseDouble(f[7]), Long.parseLong(f[8]));
+	}
+}
@@ -0,0 +1,34 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+
+/**
+ *
+ * The size of the user's screen, which the plot windows and images are sized
+ * from.
+ *
+ * @version 1.1
+ */
+public class Screen {
+
+	/**
+	 * The size assumed when running without a display, e.g. when rendering
+	 * plots for the {@link PlotServer}
+	 */
+	private static final Dimension HEADLESS_SIZE = new Dimension(1600, 1200);
+
+	/**
+	 * Returns the size of the user's screen, falling back to a fixed size
+	 * when running without a display.
+	 *
+	 * @return the size of the screen in pixels
+	 */
+	public static Dimension getSize() {
+		if (GraphicsEnvironment.isHeadless()) {
+			return new Dimension(HEADLESS_SIZE);
+		}
+		return Toolkit.getDefaultToolkit().getScreenSize();
+	}
+}
@@ -0,0 +1,216 @@
+package com.smartgrid.app.plotter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Keeps series and run information retrieved ahead of time, so that graphs
+ * opened later are loaded from memory (see {@link CachingDataProvider} and
+ * {@link Prefetcher}).
+ *
+ * Series are held as {@link CompressedSeries}. The least recently used
+ * entries are dropped when the cache grows over its capacity, and the cache
+ * gives way to open graphs when the {@link MemoryBudget} is exceeded.
+ *
+ * @version 1.1
+ */
+public class SeriesCache implements MemoryBudget.Consumer {
+
+	/**
+	 * The default capacity of the cache in bytes
+	 */
+	public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	/**
+	 * The number of bytes accounted for an entry that is not a series
+	 */
+	private static final int ENTRY_BYTES = 256;
+
+	/**
+	 * The cache shared by all the graphs of the application
+	 */
+	private static SeriesCache instance;
+
+	/**
+	 * The entries, from the least to the most recently used
+	 */
+	private LinkedHashMap<String, Object> entries;
+
+	/**
+	 * The number of bytes held
+	 */
+	private long bytes;
+
+	/**
+	 * The maximum number of bytes held
+	 */
+	private long capacity;
+
+	/**
+	 * The number of lookups that found their entry
+	 */
+	private long hits;
+
+	/**
+	 * The number of lookups that did not
+	 */
+	private long misses;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity
+	 *            the maximum number of bytes held
+	 */
+	public SeriesCache(long capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true);
+		this.bytes = 0;
+	}
+
+	/**
+	 * Returns the cache shared by all the graphs of the application, created
+	 * and accounted for by the {@link MemoryBudget} on first use.
+	 *
+	 * @return the shared {@link SeriesCache}
+	 */
+	public static synchronized SeriesCache getInstance() {
+		if (instance == null) {
+			instance = new SeriesCache(DEFAULT_CAPACITY);
+			MemoryBudget.getInstance().register(instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Builds the key of an entry from its parts.
+	 *
+	 * @param parts
+	 *            the kind of entry followed by the IDs and ranges it refers to
+	 * @return the key
+	 */
+	public static String key(Object... parts) {
+		StringBuilder key = new StringBuilder();
+		for (Object part : parts) {
+			if (key.length() > 0) {
+				key.append('/');
+			}
+			key.append(part);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns an entry, marking it as the most recently used.
+	 *
+	 * @param key
+	 *            the key of the entry
+	 * @return the entry, or null if not cached
+	 */
+	public synchronized Object get(String key) {
+		Object value = entries.get(key);
+		if (value != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the share of lookups that found their entry.
+	 *
+	 * @return the hit rate between 0 and 1, or NaN if nothing was looked up
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? Double.NaN : (double) hits / lookups;
+	}
+
+	/**
+	 * Tells whether an entry is cached, without marking it as used.
+	 *
+	 * @param key
+	 *            the key of the entry
+	 * @return true if the entry is cached
+	 */
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Stores an entry, dropping the least recently used entries beyond the
+	 * capacity of the cache.
+	 *
+	 * @param key
+	 *            the key of the entry
+	 * @param value
+	 *            the entry: a {@link CompressedSeries} or run information
+	 */
+	public synchronized void put(String key, Object value) {
+		Object old = entries.put(key, value);
+		if (old != null) {
+			bytes -= size(old);
+		}
+		bytes += size(value);
+		shrink(capacity);
+	}
+
+	/**
+	 * Drops all the entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getByteSize() {
+		return bytes;
+	}
+
+	/**
+	 * Drops the least recently used half of the cache.
+	 */
+	public synchronized void downgrade() {
+		shrink(bytes / 2);
+	}
+
+	/**
+	 * Drops all the entries.
+	 */
+	public void evict() {
+		clear();
+	}
+
+	/**
+	 * Drops the least recently used entries until the cache holds no more
+	 * than the number of bytes given.
+	 *
+	 * @param limit
+	 *            the number of bytes
+	 */
+	private void shrink(long limit) {
+		Iterator<Map.Entry<String, Object>> it = entries.entrySet()
+				.iterator();
+		while (bytes > limit && it.hasNext()) {
+			bytes -= size(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes accounted for an entry.
+	 *
+	 * @param value
+	 *            the entry
+	 * @return the number of bytes
+	 */
+	private static long size(Object value) {
+		if (value instanceof CompressedSeries) {
+			return ((CompressedSeries) value).getByteSize();
+		}
+		return ENTRY_BYTES;
+	}
+}
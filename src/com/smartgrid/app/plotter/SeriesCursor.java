@@ -0,0 +1,53 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+
+/**
+ * 
+ * Iterates forward over the rows of a tick series, as returned by a
+ * {@link PlotterDataProvider}.
+ * 
+ * Each row holds a tick and a fixed number of values, whose positions are
+ * given by the column constants of {@link PlotterDataProvider}.
+ * 
+ * @version 1.1
+ */
+public interface SeriesCursor {
+
+	/**
+	 * Moves to the next row of the series.
+	 * 
+	 * @return true if there is a next row, false if the series has ended
+	 * @throws SQLException
+	 *             if the row cannot be retrieved
+	 */
+	public boolean next() throws SQLException;
+
+	/**
+	 * Returns the tick of the current row.
+	 * 
+	 * @return the tick, in milliseconds since the epoch
+	 * @throws SQLException
+	 *             if the value cannot be retrieved
+	 */
+	public long getTick() throws SQLException;
+
+	/**
+	 * Returns a value of the current row.
+	 * 
+	 * @param column
+	 *            the position of the value in the row, starting from 0
+	 * @return the value
+	 * @throws SQLException
+	 *             if the value cannot be retrieved
+	 */
+	public double getValue(int column) throws SQLException;
+
+	/**
+	 * Releases the resources held by this cursor.
+	 * 
+	 * @throws SQLException
+	 *             if the resources cannot be released
+	 */
+	public void close() throws SQLException;
+}
@@ -0,0 +1,423 @@
+package com.smartgrid.app.plotter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ *
+ * Exports the series of a run straight from the DB to a file, so that other
+ * tools can analyse the data without querying the DB again.
+ *
+ * The rows are streamed from the DB through a {@link SeriesPipeline} to a
+ * {@link SeriesWriter}, so memory use does not depend on the length of the
+ * run and decoding the rows overlaps with writing them. Rows exported at a
+ * coarser granularity are bucketed by the DB, so only the buckets are
+ * transferred.
+ *
+ * @version 1.1
+ */
+public class SeriesExporter {
+
+	/**
+	 * The columns exported from the aggregator_log
+	 */
+	private static final String[] AGGREGATOR_COLUMNS = { "supply",
+			"overallDemand", "price" };
+
+	/**
+	 * The columns exported from the household_log
+	 */
+	private static final String[] HOUSEHOLD_COLUMNS = { "demand",
+			"appliancesOn" };
+
+	/**
+	 * Object providing connection to the DB, in streaming mode
+	 */
+	private PlotterDB p;
+
+	/**
+	 * The duration of the buckets the rows are averaged into, in
+	 * milliseconds, or 0 for every tick
+	 */
+	private long resolution;
+
+	/**
+	 * The function the rows of a bucket are reduced with
+	 */
+	private String aggregate = Granularity.AVG;
+
+	/**
+	 * Creates a new exporter.
+	 *
+	 * @param p
+	 *            an open connection to the DB, which is switched to streaming
+	 *            mode without a query timeout, as whole runs are exported
+	 */
+	public SeriesExporter(PlotterDB p) {
+		this.p = p;
+		p.setStreaming(true);
+		p.setQueryTimeout(0);
+	}
+
+	/**
+	 * Averages the rows exported into buckets of equal duration.
+	 *
+	 * @param resolution
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 */
+	public void setResolution(long resolution) {
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Reduces the rows of each bucket by the function given rather than
+	 * averaging them.
+	 *
+	 * @param aggregate
+	 *            one of {@link Granularity#AGGREGATES}
+	 */
+	public void setAggregate(String aggregate) {
+		this.aggregate = Granularity.aggregate(aggregate);
+	}
+
+	/**
+	 * Exports the tick, supply, overallDemand and price values of a run.
+	 *
+	 * @param runID
+	 *            the ID of the run exported
+	 * @param writer
+	 *            the writer the rows are handed to
+	 * @return the number of rows exported
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public long exportAggregatorData(int runID, SeriesWriter writer)
+			throws SQLException, IOException {
+		return export(p.getAggregatorData(runID, Long.MIN_VALUE,
+				Long.MAX_VALUE, resolution, aggregate), AGGREGATOR_COLUMNS,
+				writer);
+	}
+
+	/**
+	 * Exports the average demand and appliancesOn values of all the households
+	 * that are assigned the policy specified, during the run specified.
+	 *
+	 * @param runID
+	 *            the ID of the run exported
+	 * @param policyID
+	 *            the ID of the policy exported
+	 * @param writer
+	 *            the writer the rows are handed to
+	 * @return the number of rows exported
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public long exportPolicyAverageData(int runID, int policyID,
+			SeriesWriter writer) throws SQLException, IOException {
+		return export(p.getPolicyAverageData(runID, policyID, Long.MIN_VALUE,
+				Long.MAX_VALUE, resolution, aggregate), HOUSEHOLD_COLUMNS,
+				writer);
+	}
+
+	/**
+	 * Exports the demand and appliancesOn values of a random household that is
+	 * assigned the policy specified, during the run specified.
+	 *
+	 * @param runID
+	 *            the ID of the run exported
+	 * @param policyID
+	 *            the ID of the policy exported
+	 * @param writer
+	 *            the writer the rows are handed to
+	 * @return the number of rows exported
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public long exportPolicyRandomData(int runID, int policyID,
+			SeriesWriter writer) throws SQLException, IOException {
+		int houseID = p.getPolicyRandomHousehold(runID, policyID);
+		if (houseID < 0) {
+			throw new SQLException("No household found for policy " + policyID);
+		}
+		return export(p.getHouseholdData(runID, houseID, Long.MIN_VALUE,
+				Long.MAX_VALUE, resolution, aggregate), HOUSEHOLD_COLUMNS,
+				writer);
+	}
+
+	/**
+	 * Archives a whole run into a directory that can be read by
+	 * {@link MappedFileDataProvider}: the aggregator series, the average
+	 * series of each policy and the series of one random household per
+	 * policy, along with the run and policy catalog entries.
+	 * 
+	 * @param runID
+	 *            the ID of the run archived
+	 * @param dir
+	 *            the archive directory, created if needed
+	 * @return the number of rows exported
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public long archiveRun(int runID, File dir) throws SQLException,
+			IOException {
+
+		File runDir = MappedFileDataProvider.runDir(dir, runID);
+		if (!runDir.isDirectory() && !runDir.mkdirs()) {
+			throw new IOException("Cannot create " + runDir);
+		}
+
+		long rows = export(p.getAggregatorData(runID, Long.MIN_VALUE,
+				Long.MAX_VALUE, resolution, aggregate), AGGREGATOR_COLUMNS,
+				new File(runDir, "aggregator.sgcol"));
+
+		// update the run catalog
+		File runsFile = new File(dir, MappedFileDataProvider.RUNS_FILE);
+		TreeMap<Integer, String> runs = MappedFileDataProvider
+				.readCatalog(runsFile);
+		runs.put(runID, p.getRunInfo(runID));
+		MappedFileDataProvider.writeCatalog(runsFile, runs);
+
+		File policiesFile = new File(dir, MappedFileDataProvider.POLICIES_FILE);
+		TreeMap<Integer, String> policies = MappedFileDataProvider
+				.readCatalog(policiesFile);
+
+		ArrayList<Integer> policyIDs = p.getRunPolicies(runID);
+		if (policyIDs == null) {
+			throw new SQLException("The policies of the run could not be"
+					+ " retrieved");
+		}
+		for (int policyID : policyIDs) {
+			rows += export(p.getPolicyAverageData(runID, policyID,
+					Long.MIN_VALUE, Long.MAX_VALUE, resolution, aggregate),
+					HOUSEHOLD_COLUMNS, new File(runDir, "policy-" + policyID
+							+ "-average.sgcol"));
+			int houseID = p.getPolicyRandomHousehold(runID, policyID);
+			rows += export(p.getHouseholdData(runID, houseID, Long.MIN_VALUE,
+					Long.MAX_VALUE, 0), HOUSEHOLD_COLUMNS, new File(runDir,
+					"policy-" + policyID + "-household-" + houseID + ".sgcol"));
+
+			// update the policy catalog
+			policies.put(policyID, p.getPolicyInfo(policyID));
+		}
+		MappedFileDataProvider.writeCatalog(policiesFile, policies);
+
+		return rows;
+	}
+
+	/**
+	 * Streams all the rows of a {@link ResultSet} to a columnar file and closes
+	 * the {@link ResultSet}. The file is closed in any case, and removed if the
+	 * rows could not all be written, so that no truncated series is left in
+	 * the archive.
+	 *
+	 * @param rs
+	 *            the rows to export, holding a tick column and the columns
+	 *            given
+	 * @param columns
+	 *            the names of the value columns exported
+	 * @param file
+	 *            the file the rows are written to
+	 * @return the number of rows exported
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	private long export(ResultSet rs, String[] columns, File file)
+			throws SQLException, IOException {
+
+		if (rs == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+		} catch (IOException e) {
+			rs.close();
+			throw e;
+		}
+
+		boolean done = false;
+		try {
+			long count = export(rs, columns, new ColumnarSeriesWriter(os));
+			done = true;
+			return count;
+		} finally {
+			if (!done) {
+				// finish() closes the stream only once all the rows are written
+				os.close();
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Streams all the rows of a {@link ResultSet} to a writer and closes the
+	 * {@link ResultSet}.
+	 *
+	 * @param rs
+	 *            the rows to export, holding a tick column and the columns
+	 *            given
+	 * @param columns
+	 *            the names of the value columns exported
+	 * @param writer
+	 *            the writer the rows are handed to
+	 * @return the number of rows exported
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	private long export(ResultSet rs, String[] columns, SeriesWriter writer)
+			throws SQLException, IOException {
+
+		if (rs == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		// resolve the column positions once, rather than by name per row
+		ResultSetCursor cursor = new ResultSetCursor(rs, columns);
+
+		// the rows are bucketed by the query already
+		SeriesPipeline pipeline = new SeriesPipeline(columns.length);
+
+		// one reused buffer for the values of each row
+		final double[] values = new double[columns.length];
+		final SeriesWriter out = writer;
+
+		try {
+			writer.start(columns);
+		} catch (IOException e) {
+			cursor.close();
+			throw e;
+		}
+
+		// the pipeline closes the ResultSet so that the connection can be
+		// used again
+		long count = pipeline.run(cursor, new SeriesPipeline.Sink() {
+			public void accept(TickColumns batch) throws IOException {
+				for (int i = 0; i < batch.size(); i++) {
+					for (int c = 0; c < values.length; c++) {
+						values[c] = batch.getValue(c, i);
+					}
+					out.write(batch.getTick(i), values);
+				}
+			}
+
+			public void finish() throws IOException {
+				out.finish();
+			}
+		});
+
+		return count;
+	}
+
+	/**
+	 * Exports a series from the command line.
+	 *
+	 * Usage: SeriesExporter aggregator|average|random runID [policyID]
+	 * csv|columnar outputFile [granularity [avg|min|max]], or SeriesExporter
+	 * archive runID directory, where the granularity is in seconds unless
+	 * given as e.g. 5m, 1h or 1d
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 3 || args.length < 4 && !args[0].equals("archive")) {
+			System.out.println("Usage: SeriesExporter aggregator|average|random"
+					+ " runID [policyID] csv|columnar outputFile"
+					+ " [granularity [avg|min|max]]\n"
+					+ "       SeriesExporter archive runID directory");
+			System.exit(1);
+		}
+
+		String source = args[0];
+		int runID = Integer.parseInt(args[1]);
+		int policyID = 0;
+		int next = 2;
+		if (!source.equals("aggregator") && !source.equals("archive")) {
+			policyID = Integer.parseInt(args[next++]);
+		}
+		String format = args[next++];
+		String file = next < args.length ? args[next++] : null;
+		long resolution = next < args.length ? Granularity
+				.interval(args[next++]) : 0;
+		String aggregate = next < args.length ? args[next] : null;
+
+		// create an object that provides connection to the DB
+		PlotterDB p = new PlotterDB();
+		if (!p.open()) {
+			System.out
+					.println("There was something wrong with getting data from the DB,"
+							+ " execution terminated.");
+			System.exit(1);
+		}
+
+		try {
+			if (source.equals("archive")) {
+				long rows = new SeriesExporter(p).archiveRun(runID, new File(
+						args[2]));
+				System.out.println(rows + " rows archived to " + args[2]);
+				return;
+			}
+
+			OutputStream os = new FileOutputStream(file);
+			SeriesWriter writer = null;
+			if (format.equals("csv")) {
+				writer = new CsvSeriesWriter(os);
+			} else {
+				writer = new ColumnarSeriesWriter(os);
+			}
+
+			SeriesExporter exporter = new SeriesExporter(p);
+			exporter.setResolution(resolution);
+			exporter.setAggregate(aggregate);
+			long rows = 0;
+			boolean done = false;
+			try {
+				if (source.equals("aggregator")) {
+					rows = exporter.exportAggregatorData(runID, writer);
+				} else if (source.equals("average")) {
+					rows = exporter.exportPolicyAverageData(runID, policyID,
+							writer);
+				} else {
+					rows = exporter.exportPolicyRandomData(runID, policyID,
+							writer);
+				}
+				done = true;
+			} finally {
+				if (!done) {
+					// do not leave a truncated series behind
+					os.close();
+					new File(file).delete();
+				}
+			}
+
+			System.out.println(rows + " rows exported to " + file);
+
+		} catch (Exception e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} finally {
+			// close the connection to the DB
+			p.close();
+		}
+	}
+}
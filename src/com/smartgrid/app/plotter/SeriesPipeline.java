@@ -0,0 +1,492 @@
+package com.smartgrid.app.plotter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * Moves the rows of a series from their source to a sink through a chain of
+ * stages, each running on its own thread:
+ * <ul>
+ * <li>decode: reads the rows of a {@link SeriesCursor}, such as the result
+ * of a {@link PlotterDB} query, into batches of primitive columns</li>
+ * <li>transform: any number of {@link Stage}s, such as {@link Downsample},
+ * turning batches into other batches</li>
+ * <li>sink: a {@link Sink} consuming the batches on the calling thread, such
+ * as the tables of a plot or a {@link SeriesWriter}</li>
+ * </ul>
+ *
+ * Adjacent stages are connected by queues holding at most
+ * {@link #QUEUE_BATCHES} batches of {@link #BATCH_ROWS} rows, so a stage
+ * that runs ahead waits for the next one to catch up and the memory used
+ * does not depend on the length of the series, while the stages overlap on
+ * separate cores. The stages keep state between batches, so a pipeline moves
+ * one series at a time.
+ *
+ * Consumers that pull rows from several series at once, such as
+ * {@link RunDiff}, read each through {@link #readAhead}, which decodes it on
+ * another thread the same way.
+ *
+ * @version 1.1
+ */
+public class SeriesPipeline {
+
+	/**
+	 * The number of rows per batch
+	 */
+	public static final int BATCH_ROWS = 4096;
+
+	/**
+	 * The number of batches held between two stages
+	 */
+	public static final int QUEUE_BATCHES = 4;
+
+	/**
+	 * Turns batches of rows into other batches.
+	 */
+	public interface Stage {
+
+		/**
+		 * Processes a batch.
+		 *
+		 * @param batch
+		 *            the batch, not used by the previous stage anymore
+		 * @return the batch handed to the next stage, or null for none
+		 */
+		public TickColumns process(TickColumns batch);
+
+		/**
+		 * Called after the last batch.
+		 *
+		 * @return the last batch handed to the next stage, or null for none
+		 */
+		public TickColumns finish();
+	}
+
+	/**
+	 * Consumes the batches at the end of the pipeline.
+	 */
+	public interface Sink {
+
+		/**
+		 * Consumes a batch.
+		 *
+		 * @param batch
+		 *            the batch
+		 * @throws IOException
+		 *             if the batch cannot be written
+		 */
+		public void accept(TickColumns batch) throws IOException;
+
+		/**
+		 * Called after the last batch.
+		 *
+		 * @throws IOException
+		 *             if the output cannot be completed
+		 */
+		public void finish() throws IOException;
+	}
+
+	/**
+	 * Averages the rows of each batch into buckets of equal duration, like
+	 * {@link ResamplingCursor}; a bucket spanning two batches is completed
+	 * with the rows of the later one.
+	 */
+	public static class Downsample implements Stage {
+
+		/**
+		 * The duration of the buckets in milliseconds
+		 */
+		private long resolution;
+
+		/**
+		 * The start of the bucket in progress, the sums of its values and
+		 * its number of rows
+		 */
+		private long bucket = Long.MIN_VALUE;
+		private double[] sums;
+		private int count;
+
+		/**
+		 * Creates a downsampling stage.
+		 *
+		 * @param resolution
+		 *            the duration of the buckets in milliseconds, more than 0
+		 */
+		public Downsample(long resolution) {
+			this.resolution = resolution;
+		}
+
+		public TickColumns process(TickColumns batch) {
+			int columns = batch.getColumnCount();
+			if (sums == null) {
+				sums = new double[columns];
+			}
+
+			TickColumns out = new TickColumns(columns, batch.size()
+					/ 4 + 1);
+			for (int i = 0; i < batch.size(); i++) {
+				long t = batch.getTick(i);
+				long b = t / resolution;
+				if (t < 0 && t % resolution != 0) {
+					b--;
+				}
+				b *= resolution;
+
+				if (b != bucket) {
+					emit(out);
+					bucket = b;
+				}
+				for (int c = 0; c < columns; c++) {
+					sums[c] += batch.getValue(c, i);
+				}
+				count++;
+			}
+			return out;
+		}
+
+		public TickColumns finish() {
+			if (sums == null) {
+				return null;
+			}
+			TickColumns out = new TickColumns(sums.length, 1);
+			emit(out);
+			return out;
+		}
+
+		/**
+		 * Appends the bucket in progress, if any, and starts anew.
+		 */
+		private void emit(TickColumns out) {
+			if (count == 0) {
+				return;
+			}
+			int row = out.addRow(bucket);
+			for (int c = 0; c < sums.length; c++) {
+				out.setValue(c, row, sums[c] / count);
+				sums[c] = 0;
+			}
+			count = 0;
+		}
+	}
+
+	/**
+	 * Marks the end of the batches
+	 */
+	private static final TickColumns END = new TickColumns(0, 0);
+
+	/**
+	 * The threads the decoding and transforming stages run on
+	 */
+	private static final ExecutorService THREADS = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "series-pipeline");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * The number of value columns read from the source
+	 */
+	private int columns;
+
+	/**
+	 * The transforming stages, in order
+	 */
+	private ArrayList<Stage> stages = new ArrayList<Stage>();
+
+	/**
+	 * The first failure of a stage, if any
+	 */
+	private volatile Exception failure;
+
+	/**
+	 * Whether the sink has stopped consuming batches
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a pipeline without transforming stages.
+	 *
+	 * @param columns
+	 *            the number of value columns read from the source
+	 */
+	public SeriesPipeline(int columns) {
+		this.columns = columns;
+	}
+
+	/**
+	 * Returns a cursor over the rows of another one, decoded ahead on another
+	 * thread in batches, at most {@link #QUEUE_BATCHES} of them, so that
+	 * several series can be read at once while each is retrieved in the
+	 * background.
+	 *
+	 * @param source
+	 *            the rows, read on another thread; nothing else may use its
+	 *            connection until the cursor returned is closed
+	 * @param columns
+	 *            the number of value columns of the source
+	 * @return the cursor, which closes the source when it is closed
+	 * @throws SQLException
+	 *             if there is no source, such as when its query failed
+	 */
+	public static SeriesCursor readAhead(final SeriesCursor source, int columns)
+			throws SQLException {
+
+		if (source == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		final SeriesPipeline pipeline = new SeriesPipeline(columns);
+		final BlockingQueue<TickColumns> decoded = new ArrayBlockingQueue<TickColumns>(
+				QUEUE_BATCHES);
+		THREADS.submit(new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				pipeline.decode(source, decoded);
+				return null;
+			}
+		});
+
+		return new SeriesCursor() {
+
+			// the batch read and the position in it
+			TickColumns batch = new TickColumns(0, 0);
+			int row = -1;
+
+			public boolean next() throws SQLException {
+				while (++row >= batch.size()) {
+					if (batch == END) {
+						return false;
+					}
+					try {
+						batch = decoded.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Series read interrupted");
+					}
+					row = -1;
+					if (batch == END) {
+						if (pipeline.failure instanceof SQLException) {
+							throw (SQLException) pipeline.failure;
+						} else if (pipeline.failure instanceof RuntimeException) {
+							throw (RuntimeException) pipeline.failure;
+						}
+						return false;
+					}
+				}
+				return true;
+			}
+
+			public long getTick() {
+				return batch.getTick(row);
+			}
+
+			public double getValue(int column) {
+				return batch.getValue(column, row);
+			}
+
+			public void close() {
+				// stop decoding and wait for the source to be closed, so its
+				// connection can be used again
+				if (batch != END) {
+					pipeline.stopped = true;
+					drain(decoded);
+					batch = END;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Appends a transforming stage.
+	 *
+	 * @param stage
+	 *            the stage
+	 */
+	public void add(Stage stage) {
+		stages.add(stage);
+	}
+
+	/**
+	 * Moves all the rows of a source through the stages to a sink, and
+	 * closes the source. Returns once the sink has consumed the last batch.
+	 *
+	 * @param source
+	 *            the rows, read on another thread; nothing else may use its
+	 *            connection until this returns
+	 * @param sink
+	 *            the sink, called on the calling thread
+	 * @return the number of rows consumed by the sink
+	 * @throws SQLException
+	 *             if the rows cannot be retrieved, or there is no source,
+	 *             such as when its query failed
+	 * @throws IOException
+	 *             if the sink fails or the calling thread is interrupted
+	 */
+	public long run(final SeriesCursor source, Sink sink)
+			throws SQLException, IOException {
+
+		if (source == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		failure = null;
+		stopped = false;
+
+		final BlockingQueue<TickColumns> decoded = new ArrayBlockingQueue<TickColumns>(
+				QUEUE_BATCHES);
+		THREADS.submit(new Callable<Void>() {
+			public Void call() throws InterruptedException {
+				decode(source, decoded);
+				return null;
+			}
+		});
+
+		BlockingQueue<TickColumns> in = decoded;
+		for (final Stage stage : stages) {
+			final BlockingQueue<TickColumns> from = in;
+			final BlockingQueue<TickColumns> to = new ArrayBlockingQueue<TickColumns>(
+					QUEUE_BATCHES);
+			THREADS.submit(new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					transform(stage, from, to);
+					return null;
+				}
+			});
+			in = to;
+		}
+
+		long rows = 0;
+		TickColumns batch = null;
+		try {
+			while ((batch = in.take()) != END) {
+				rows += batch.size();
+				sink.accept(batch);
+			}
+
+			if (failure instanceof SQLException) {
+				throw (SQLException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			sink.finish();
+
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Series pipeline interrupted");
+		} finally {
+			// if the sink failed, stop the stages still running and wait for
+			// the source to be closed, so its connection can be used again
+			if (batch != END) {
+				stopped = true;
+				drain(in);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Discards the batches of a queue up to the end of the batches.
+	 */
+	private static void drain(BlockingQueue<TickColumns> in) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (in.take() == END) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the rows of a cursor into batches and closes it.
+	 */
+	private void decode(SeriesCursor source, BlockingQueue<TickColumns> out)
+			throws InterruptedException {
+		try {
+			TickColumns batch = new TickColumns(columns, BATCH_ROWS);
+			while (!stopped && source.next()) {
+				int row = batch.addRow(source.getTick());
+				for (int c = 0; c < columns; c++) {
+					batch.setValue(c, row, source.getValue(c));
+				}
+				if (batch.size() == BATCH_ROWS) {
+					out.put(batch);
+					batch = new TickColumns(columns, BATCH_ROWS);
+				}
+			}
+			if (batch.size() > 0) {
+				out.put(batch);
+			}
+		} catch (SQLException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		} finally {
+			// the end is queued whatever closing the source throws, as the
+			// stages and the sink wait for it
+			try {
+				source.close();
+			} catch (SQLException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			} finally {
+				out.put(END);
+			}
+		}
+	}
+
+	/**
+	 * Passes the batches of a queue through a stage to the next queue.
+	 */
+	private void transform(Stage stage, BlockingQueue<TickColumns> in,
+			BlockingQueue<TickColumns> out) throws InterruptedException {
+		TickColumns batch;
+		while ((batch = in.take()) != END) {
+			if (failure != null || stopped) {
+				// drain the rows still decoded
+				continue;
+			}
+			try {
+				batch = stage.process(batch);
+				if (batch != null && batch.size() > 0) {
+					out.put(batch);
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+
+		if (failure == null && !stopped) {
+			try {
+				batch = stage.finish();
+				if (batch != null && batch.size() > 0) {
+					out.put(batch);
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		out.put(END);
+	}
+}
@@ -0,0 +1,48 @@
+package com.smartgrid.app.plotter;
+
+import java.io.IOException;
+
+/**
+ * 
+ * Receives the rows of a tick series one at a time and writes them out in a
+ * specific file format.
+ * 
+ * Implementations only keep a bounded number of rows in memory, so that
+ * series of any length can be written.
+ * 
+ * @version 1.1
+ */
+public interface SeriesWriter {
+
+	/**
+	 * Starts a new series.
+	 * 
+	 * @param columns
+	 *            the names of the value columns, not including the tick
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public void start(String[] columns) throws IOException;
+
+	/**
+	 * Writes a single row of the series.
+	 * 
+	 * @param tick
+	 *            the tick of the row, in milliseconds since the epoch
+	 * @param values
+	 *            the values of the row, one per column given in
+	 *            {@link #start(String[])}; the array may be reused by the
+	 *            caller once this method returns
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public void write(long tick, double[] values) throws IOException;
+
+	/**
+	 * Writes out any buffered rows and closes the output.
+	 * 
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	public void finish() throws IOException;
+}
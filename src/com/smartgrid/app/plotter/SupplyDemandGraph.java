@@ -1,12 +1,14 @@
 package com.smartgrid.app.plotter;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Toolkit;
-import java.sql.ResultSet;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.swing.JFrame;
 import de.erichseifert.gral.data.DataSource;
@@ -20,7 +22,6 @@ import de.erichseifert.gral.plots.axes.AxisRenderer;
 import de.erichseifert.gral.plots.lines.DefaultLineRenderer2D;
 import de.erichseifert.gral.plots.lines.LineRenderer;
 import de.erichseifert.gral.plots.points.PointRenderer;
-import de.erichseifert.gral.ui.InteractivePanel;
 import de.erichseifert.gral.util.Insets2D;
 import de.erichseifert.gral.util.Location;
 import de.erichseifert.gral.util.Orientation;
@@ -84,43 +85,162 @@ public class SupplyDemandGraph {
 	 */
 	private long axisY;
 
+	/**
+	 * Loads the ticks visible at full resolution as the plots are zoomed into
+	 */
+	private ViewportLoader loader;
+
+	/**
+	 * The performance figures of the graph, shown over its plot windows
+	 */
+	private PlotDiagnostics diagnostics;
+
+	/**
+	 * The aggregator's data as loaded, which holds every tick of short runs
+	 */
+	private TickColumns data;
+
+	/**
+	 * Retrieves ranges of the aggregator's data, for the loader as well as
+	 * for the views that need every tick
+	 */
+	private ViewportLoader.RangeFetcher fetcher;
+
+	/**
+	 * The shortfalls, price spikes and demand ramps found at every tick of the
+	 * run
+	 */
+	private EventList events;
+
 	/**
 	 * The constructor for the Supply Demand Graph.
 	 * 
 	 * @param runID
 	 *            the ID of the specified run to show the graphs for
 	 */
-	@SuppressWarnings("unchecked")
 	public SupplyDemandGraph(int runID) {
+		try {
+			read(runID, provider());
+		} catch (SQLException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		} catch (IOException e) {
+			System.out
+					.println("There was something wrong, execution terminated.\n"
+							+ e.toString());
+			System.exit(1);
+		}
+
+		// prefetch the adjacent runs while this one is shown
+		Prefetcher.getInstance().focus(runID, -1);
+	}
+
+	/**
+	 * The constructor for the Supply Demand Graph, reading the run's data from
+	 * the provider given.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	public SupplyDemandGraph(int runID, PlotterDataProvider p)
+			throws SQLException, IOException {
+		read(runID, p);
+	}
+
+	/**
+	 * Loads the Supply Demand Graph of a run from the DB like
+	 * {@link #SupplyDemandGraph(int)}, but fails instead of terminating, so
+	 * that a server can report the failure and carry on.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @return the graph
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	static SupplyDemandGraph load(int runID) throws SQLException, IOException {
+		SupplyDemandGraph graph = new SupplyDemandGraph(runID, provider());
+
+		// prefetch the adjacent runs while this one is shown
+		Prefetcher.getInstance().focus(runID, -1);
+		return graph;
+	}
+
+	/**
+	 * @return the provider the graph reads the run's data from by default
+	 */
+	private static PlotterDataProvider provider() {
+		return Prefetcher.getInstance().provider(new PlotterDB());
+	}
+
+	/**
+	 * Reads the run's data from the provider given into the series of the
+	 * graph.
+	 * 
+	 * @param runID
+	 *            the ID of the specified run to show the graphs for
+	 * @param p
+	 *            the provider of the simulation data, not yet opened
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 * @throws IOException
+	 *             if the data cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	private void read(int runID, PlotterDataProvider p) throws SQLException,
+			IOException {
+
+		// time the retrieval of the data for the diagnostics overlay
+		diagnostics = new PlotDiagnostics();
+		p = diagnostics.wrap(p);
 
 		// get user's screen size for calculating the plot windows sizes
-		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+		Dimension screenSize = Screen.getSize();
 		width = (int) screenSize.getWidth();
 		height = (int) (screenSize.getHeight() / 2);
 
-		// create an object that provides connection to the DB
-		PlotterDB p = new PlotterDB();
-		ResultSet rs = null;
+		// the aggregator's data for this run
+		SeriesCursor cursor = null;
+
+		// the first and last tick of the run and the number of ticks
+		long[] bounds = null;
 
 		// connect to the DB and get the run's information,
-		// as well as the aggregator's data for this run
+		// as well as an overview of the aggregator's data for this run
 		if (p.open()) {
 			runInfo = p.getRunInfo(runID);
-			rs = p.getAggregatorData(runID);
+			bounds = p.getTickBounds(runID);
+			cursor = p.getAggregatorSeries(runID, Long.MIN_VALUE,
+					Long.MAX_VALUE, ViewportLoader.overviewResolution(bounds));
 		} else {
-			System.out
-					.println("There was something wrong with getting data from the DB,"
-							+ " execution terminated.");
-			System.exit(1);
+			throw new SQLException("No connection to the DB");
 		}
 
 		// initialize our DataTables
-		DataTable demandTable = new DataTable(Long.class, Double.class);
-		DataTable supplyTable = new DataTable(Long.class, Double.class);
-		DataTable priceTable = new DataTable(Long.class, Double.class);
+		final DataTable demandTable = new DataTable(Long.class, Double.class);
+		final DataTable supplyTable = new DataTable(Long.class, Double.class);
+		final DataTable priceTable = new DataTable(Long.class, Double.class);
+
+		// the overview parsed, kept for merging with full resolution ranges
+		final TickColumns overview = new TickColumns(3, 2048);
+
+		// the events of the run, found at full resolution: as the overview is
+		// parsed if it holds every tick, or else over every tick afterwards
+		final long resolution = ViewportLoader.overviewResolution(bounds);
+		events = new EventList();
+		final EventDetector detector = new EventDetector(events);
 
 		// temp variables used for calculating the axes positions
-		boolean b = true;
 		axisY = 0;
 		demandAxisX = Double.MAX_VALUE;
 		priceAxisX = Double.MAX_VALUE;
@@ -128,44 +248,77 @@ public class SupplyDemandGraph {
 		// retrieving data for each policy and populating the DataTables
 		try {
 
-			// while the ResultSet returned contains more rows
-			while (rs.next()) {
-
-				// get the individual data of this row:
-				// tick, demand, appliances
-				long date = rs.getTimestamp("tick").getTime();
-				double demand = rs.getDouble("overallDemand");
-				double supply = rs.getDouble("supply");
-				double price = rs.getDouble("price");
-
-				// add this data to the DataTables
-				demandTable.add(date, demand);
-				supplyTable.add(date, supply);
-				priceTable.add(date, price);
-
-				// perform checks/calculations for the axes positions
-				if (b) {
-					axisY = date;
-					b = false;
-				}
-
-				if (demandAxisX > demand) {
-					demandAxisX = demand;
-					if (demandAxisX > supply) {
-						demandAxisX = supply;
+			// the series is decoded on another thread while its batches of
+			// rows are added here
+			new SeriesPipeline(3).run(cursor, new SeriesPipeline.Sink() {
+				public void accept(TickColumns batch) {
+					for (int i = 0; i < batch.size(); i++) {
+
+						// get the individual data of this row:
+						// tick, demand, appliances
+						long date = batch.getTick(i);
+						double demand = batch.getValue(
+								PlotterDataProvider.OVERALL_DEMAND, i);
+						double supply = batch.getValue(
+								PlotterDataProvider.SUPPLY, i);
+						double price = batch.getValue(
+								PlotterDataProvider.PRICE, i);
+
+						// perform checks/calculations for the axes positions
+						if (overview.size() == 0) {
+							axisY = date;
+						}
+
+						// add this data to the DataTables
+						demandTable.add(date, demand);
+						supplyTable.add(date, supply);
+						priceTable.add(date, price);
+
+						int row = overview.addRow(date);
+						overview.setValue(PlotterDataProvider.SUPPLY, row,
+								supply);
+						overview.setValue(PlotterDataProvider.OVERALL_DEMAND,
+								row, demand);
+						overview.setValue(PlotterDataProvider.PRICE, row,
+								price);
+
+						if (resolution == 0) {
+							detector.add(date, supply, demand, price);
+						}
+
+						if (demandAxisX > demand) {
+							demandAxisX = demand;
+							if (demandAxisX > supply) {
+								demandAxisX = supply;
+							}
+						}
+
+						if (priceAxisX > price) {
+							priceAxisX = price;
+						}
 					}
 				}
 
-				if (priceAxisX > price) {
-					priceAxisX = price;
+				public void finish() {
+					// the events are found over every tick below otherwise
+					if (resolution == 0) {
+						detector.finish();
+					}
 				}
-
+			});
+			data = overview;
+
+			// the overview's buckets flatten the peaks, so the events of a
+			// long run are found by streaming every tick through the detector
+			if (resolution > 0) {
+				EventList.detect(p.getAggregatorSeries(runID, Long.MIN_VALUE,
+						Long.MAX_VALUE, 0), detector, PlotterDataProvider.SUPPLY,
+						PlotterDataProvider.OVERALL_DEMAND,
+						PlotterDataProvider.PRICE);
 			}
-			// close the ResultSet since all its rows have been parsed
-			rs.close();
 
 			// create new DataSources with the data parsed from the
-			// ResultSet
+			// series
 			demandSeries = new DataSeries("Overall Demand", demandTable, 0, 1);
 			supplySeries = new DataSeries("Supply", supplyTable, 0, 1);
 			priceSeries = new DataSeries(priceTable, 0, 1);
@@ -173,11 +326,33 @@ public class SupplyDemandGraph {
 			// close the connection to the DB
 			p.close();
 
+			// load the ticks at full resolution as the plots are zoomed into,
+			// and the series at the granularities chosen; a short run whose
+			// ticks are all loaded already is only reloaded at a granularity
+			final int run = runID;
+			loader = new ViewportLoader(p, bounds);
+			diagnostics.setLoader(loader);
+			fetcher = new ViewportLoader.RangeFetcher() {
+				public SeriesCursor fetch(PlotterDataProvider p, long fromTick,
+						long toTick, long resolution, String aggregate) {
+					return p.getAggregatorSeries(run, fromTick, toTick,
+							resolution, aggregate);
+				}
+			};
+			loader.addSource(fetcher, overview,
+					new DataTable[] { supplyTable, demandTable, priceTable },
+					new int[] { PlotterDataProvider.SUPPLY,
+							PlotterDataProvider.OVERALL_DEMAND,
+							PlotterDataProvider.PRICE }, new boolean[] { false,
+							false, false });
+
 		} catch (SQLException e) {
-			System.out
-					.println("There was something wrong, execution terminated.\n"
-							+ e.toString());
-			System.exit(1);
+			// the connection is still open, as the data could not be read
+			p.close();
+			throw e;
+		} catch (IOException e) {
+			p.close();
+			throw e;
 		}
 
 	}
@@ -198,6 +373,78 @@ public class SupplyDemandGraph {
 		getGraph(false);
 	}
 
+	/**
+	 * Shows a graph of a series derived from every tick of the run, on the
+	 * top part of the screen
+	 * 
+	 * @param metric
+	 *            the name of the metric, one of {@link DerivedMetrics#METRICS}
+	 */
+	public void getDerivedGraph(String metric) {
+
+		// the plot of the derived series, computed at full resolution
+		XYPlot plot = null;
+		try {
+			plot = createDerivedPlot(metric);
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return;
+		}
+
+		// the frame window on which the plot is to be presented
+		JFrame graph = new JFrame();
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(1.65);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Shows a graph of the distribution of every tick of the run, on the top
+	 * part of the screen
+	 * 
+	 * @param view
+	 *            the name of the view, one of {@link Distributions#VIEWS}
+	 */
+	public void getDistributionGraph(String view) {
+
+		// the plot of the distribution, read at full resolution
+		XYPlot plot = null;
+		try {
+			plot = createDistributionPlot(view);
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return;
+		}
+
+		// the frame window on which the plot is to be presented
+		JFrame graph = new JFrame();
+
+		// frame parameters
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		graph.setBounds(0, 0, width, height);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(1.65);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
 	/**
 	 * Depending on the parameter given, shows either a Price graph on the
 	 * bottom part of the screen (for false) or a Supply-Demand graph on the top
@@ -212,21 +459,56 @@ public class SupplyDemandGraph {
 		JFrame graph = new JFrame();
 
 		// frame parameters
-		graph.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		graph.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+
+		// set window size and position depending on the graph mode
+		if (mode) {
+			graph.setBounds(0, 0, width, height);
+		} else {
+			graph.setBounds(0, height, width, height);
+		}
+
+		// the actual plot that contains all the data
+		XYPlot plot = createPlot(mode);
+
+		// get the plot on the frame
+		graph.getContentPane().add(new DiagnosticsPanel(plot, diagnostics));
+
+		// follow the visible range of the plot, and offer to view its
+		// series at coarser granularities
+		loader.attach(plot, graph);
+		graph.getContentPane().add(Granularity.selector(loader),
+				BorderLayout.NORTH);
+
+		// set the zoom for the frame
+		XYPlotNavigator xy = new XYPlotNavigator(plot);
+		xy.setZoom(1.65);
+
+		// presenting the plot window
+		graph.setVisible(true);
+	}
+
+	/**
+	 * Creates a fully formatted plot, either a Price plot (for false) or a
+	 * Supply-Demand plot (for true), without attaching it to any window. Used
+	 * by the plot windows as well as by headless renderers.
+	 * 
+	 * @param mode
+	 *            controls the type of plot that will be created
+	 * @return the formatted {@link XYPlot}
+	 */
+	XYPlot createPlot(boolean mode) {
 
 		// titles for the plot and the axis Y
 		String plotTitle = null;
 		String axisYTitle = null;
 
-		// depending on the boolean value passed as a parameter:
-		// 1. set window size and position
-		// 2. set the titles for the plot and Y axis
+		// set the titles for the plot and Y axis depending on the boolean
+		// value passed as a parameter
 		if (mode) {
-			graph.setBounds(0, 0, width, height);
 			plotTitle = "Supply - Overall Demand \n for run: " + runInfo;
 			axisYTitle = "Supply and Overall Demand";
 		} else {
-			graph.setBounds(0, height, width, height);
 			plotTitle = "Price for run: " + runInfo;
 			axisYTitle = "Price";
 		}
@@ -285,7 +567,7 @@ public class SupplyDemandGraph {
 		axisRendererX.setSetting(AxisRenderer.TICK_LABELS_FORMAT, dateFormat);
 
 		// set the axes positions from the object's attributes which were
-		// calculated beforehand (in the ResultSet parsing)
+		// calculated beforehand (in the series parsing)
 		axisRendererY.setSetting(AxisRenderer.INTERSECTION, axisY);
 
 		// assign appropriate axis position depending on the graph mode
@@ -299,9 +581,6 @@ public class SupplyDemandGraph {
 		plot.setAxisRenderer(XYPlot.AXIS_X, axisRendererX);
 		plot.setAxisRenderer(XYPlot.AXIS_Y, axisRendererY);
 
-		// get the plot on the frame
-		graph.getContentPane().add(new InteractivePanel(plot));
-
 		// draw the lines
 		if (mode) {
 			// create new line object
@@ -336,6 +615,11 @@ public class SupplyDemandGraph {
 					new Color(0, true));
 			plot.getLineRenderer(supplySeries).setSetting(LineRenderer.COLOR,
 					color2);
+
+			// shade the shortfalls and mark the ramps of demand
+			events.addShortfalls(plot, demandAxisX);
+			events.addMarkers(plot, EventDetector.RAMP, "Ramp", new Color(
+					1.0f, 0.5f, 0.0f));
 		} else {
 			// create new line object
 			LineRenderer lines = new DefaultLineRenderer2D();
@@ -352,14 +636,136 @@ public class SupplyDemandGraph {
 					new Color(0, true));
 			plot.getLineRenderer(priceSeries).setSetting(LineRenderer.COLOR,
 					color);
+
+			// mark the price spikes
+			events.addMarkers(plot, EventDetector.PRICE_SPIKE, "Price Spike",
+					Color.RED);
 		}
 
-		// set the zoom for the frame
-		XYPlotNavigator xy = new XYPlotNavigator(plot);
-		xy.setZoom(1.65);
+		return plot;
+	}
 
-		// presenting the plot window
-		graph.setVisible(true);
+	/**
+	 * Returns the shortfalls, price spikes and demand ramps found at every
+	 * tick of the run.
+	 * 
+	 * @return the {@link EventList}
+	 */
+	public EventList getEvents() {
+		return events;
+	}
+
+	/**
+	 * Creates a fully formatted plot of a series derived from the aggregator's
+	 * data, without attaching it to any window. The series is computed at
+	 * every tick of the run and plotted at the granularity of the graph.
+	 * 
+	 * @param metric
+	 *            the name of the metric, one of {@link DerivedMetrics#METRICS}
+	 * @return the formatted {@link XYPlot}
+	 * @throws IllegalArgumentException
+	 *             if the metric is unknown
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	XYPlot createDerivedPlot(String metric) throws SQLException {
+
+		// compute the derived series from every tick of the run
+		TickColumns ticks = readTicks();
+		int n = ticks.size();
+		double[] values = new double[n];
+		DerivedMetrics.compute(metric, ticks.getTicks(),
+				ticks.getColumn(PlotterDataProvider.OVERALL_DEMAND),
+				ticks.getColumn(PlotterDataProvider.SUPPLY),
+				ticks.getColumn(PlotterDataProvider.PRICE), values, n);
+
+		// plotted at the granularity chosen, or at that of the overview
+		long interval = Math.max(loader.getInterval(), loader.getResolution());
+		String aggregate = loader.getAggregate();
+
+		String title = DerivedMetrics.title(metric);
+		ArrayList<DataSeries> series = new ArrayList<DataSeries>();
+		series.add(new DataSeries(title, DerivedMetrics.table(
+				ticks.getTicks(), values, n, interval, aggregate), 0, 1));
+		ArrayList<Color> colors = new ArrayList<Color>();
+		colors.add(new Color(0.0f, 0.5f, 1.0f));
+
+		return DerivedMetrics.createPlot(title + ", "
+				+ Granularity.describe(interval, aggregate) + " \n for run: "
+				+ runInfo, title, series, colors, axisY);
+	}
+
+	/**
+	 * Returns the aggregator's data at full resolution: the data as loaded if
+	 * it holds every tick, or else every tick read again through the loader.
+	 * 
+	 * @return the {@link TickColumns} of every tick
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	private TickColumns readTicks() throws SQLException {
+		if (loader.getResolution() == 0) {
+			return data;
+		}
+		return loader.read(fetcher, 3);
+	}
+
+	/**
+	 * Creates a fully formatted plot of the distribution of the aggregator's
+	 * data over every tick of the run, without attaching it to any window.
+	 * 
+	 * @param view
+	 *            the name of the view, one of {@link Distributions#VIEWS}
+	 * @return the formatted {@link XYPlot}
+	 * @throws IllegalArgumentException
+	 *             if the view is unknown
+	 * @throws SQLException
+	 *             if the data cannot be retrieved
+	 */
+	XYPlot createDistributionPlot(String view) throws SQLException {
+
+		String title = Distributions.title(view);
+		ArrayList<DataSeries> series = new ArrayList<DataSeries>();
+		ArrayList<Color> colors = new ArrayList<Color>();
+		colors.add(new Color(0.0f, 0.5f, 1.0f));
+		if (!Arrays.asList(Distributions.VIEWS).contains(view)) {
+			throw new IllegalArgumentException("View not available: " + view);
+		}
+
+		// every tick of the run, rather than the buckets of the overview
+		TickColumns ticks = readTicks();
+		int n = ticks.size();
+
+		if (Distributions.DURATION_CURVE.equals(view)) {
+			double[] sorted = Arrays.copyOf(
+					ticks.getColumn(PlotterDataProvider.OVERALL_DEMAND), n);
+			Distributions.sortDescending(sorted, n);
+			series.add(new DataSeries("Overall Demand", Distributions
+					.durationTable(sorted, n), 0, 1));
+			return Distributions.createPlot(title + " \n for run: " + runInfo,
+					"% of Time", "Overall Demand", series, colors);
+		}
+
+		int column;
+		String name;
+		if (Distributions.DEMAND_HISTOGRAM.equals(view)) {
+			column = PlotterDataProvider.OVERALL_DEMAND;
+			name = "Overall Demand";
+		} else if (Distributions.PRICE_HISTOGRAM.equals(view)) {
+			column = PlotterDataProvider.PRICE;
+			name = "Price";
+		} else {
+			throw new IllegalArgumentException("View not available: " + view);
+		}
+
+		double[] values = ticks.getColumn(column);
+		double[] range = Distributions.range(values, n);
+		long[] counts = Distributions.histogram(values, n, range[0], range[1],
+				Distributions.DEFAULT_BINS);
+		series.add(new DataSeries(name, Distributions.histogramTable(counts,
+				range[0], range[1]), 0, 1));
+		return Distributions.createPlot(title + " \n for run: " + runInfo,
+				name, "Ticks", series, colors);
 	}
 
 	public static void main(String[] args) {
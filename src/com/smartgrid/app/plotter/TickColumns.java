@@ -0,0 +1,207 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ *
+ * Holds a tick series in primitive arrays: one array of ticks and one array
+ * of values per column, growing as rows are added.
+ *
+ * @version 1.1
+ */
+public class TickColumns {
+
+	/**
+	 * The ticks, in milliseconds since the epoch
+	 */
+	private long[] ticks;
+
+	/**
+	 * The values, one array per column
+	 */
+	private double[][] values;
+
+	/**
+	 * The number of rows held
+	 */
+	private int size;
+
+	/**
+	 * Creates an empty series.
+	 *
+	 * @param columns
+	 *            the number of value columns
+	 * @param capacity
+	 *            the number of rows expected
+	 */
+	public TickColumns(int columns, int capacity) {
+		capacity = Math.max(capacity, 16);
+		ticks = new long[capacity];
+		values = new double[columns][capacity];
+		size = 0;
+	}
+
+	/**
+	 * Reads all the rows of a cursor and closes it.
+	 *
+	 * @param cursor
+	 *            the cursor read
+	 * @param columns
+	 *            the number of value columns of the cursor
+	 * @return the series read
+	 * @throws SQLException
+	 *             if the rows cannot be retrieved
+	 */
+	public static TickColumns read(SeriesCursor cursor, int columns)
+			throws SQLException {
+
+		if (cursor == null) {
+			throw new SQLException("No data could be retrieved from the DB");
+		}
+
+		TickColumns series = new TickColumns(columns, 1024);
+		if (cursor instanceof ResultSetCursor) {
+			((ResultSetCursor) cursor).read(series);
+			return series;
+		}
+		try {
+			while (cursor.next()) {
+				int row = series.addRow(cursor.getTick());
+				for (int c = 0; c < columns; c++) {
+					series.values[c][row] = cursor.getValue(c);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return series;
+	}
+
+	/**
+	 * Appends a row; its values are set through
+	 * {@link #setValue(int, int, double)}.
+	 *
+	 * @param tick
+	 *            the tick of the row
+	 * @return the index of the new row
+	 */
+	public int addRow(long tick) {
+		if (size == ticks.length) {
+			int capacity = size * 2;
+			ticks = Arrays.copyOf(ticks, capacity);
+			for (int c = 0; c < values.length; c++) {
+				values[c] = Arrays.copyOf(values[c], capacity);
+			}
+		}
+		ticks[size] = tick;
+		return size++;
+	}
+
+	/**
+	 * Sets a value of a row.
+	 *
+	 * @param column
+	 *            the value column
+	 * @param row
+	 *            the row index
+	 * @param value
+	 *            the value
+	 */
+	public void setValue(int column, int row, double value) {
+		values[column][row] = value;
+	}
+
+	/**
+	 * Returns the number of rows held.
+	 *
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of value columns.
+	 *
+	 * @return the number of columns
+	 */
+	public int getColumnCount() {
+		return values.length;
+	}
+
+	/**
+	 * Returns the array holding the ticks, for kernels that work on whole
+	 * columns. Only its first {@link #size()} entries are rows; it is replaced
+	 * when rows are added beyond its length.
+	 *
+	 * @return the ticks, in milliseconds since the epoch
+	 */
+	public long[] getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Returns the array holding a value column, for kernels that work on
+	 * whole columns. Only its first {@link #size()} entries are rows; it is
+	 * replaced when rows are added beyond its length.
+	 *
+	 * @param column
+	 *            the value column
+	 * @return the values
+	 */
+	public double[] getColumn(int column) {
+		return values[column];
+	}
+
+	/**
+	 * Returns the tick of a row.
+	 *
+	 * @param row
+	 *            the row index
+	 * @return the tick, in milliseconds since the epoch
+	 */
+	public long getTick(int row) {
+		return ticks[row];
+	}
+
+	/**
+	 * Returns a value of a row.
+	 *
+	 * @param column
+	 *            the value column
+	 * @param row
+	 *            the row index
+	 * @return the value
+	 */
+	public double getValue(int column, int row) {
+		return values[column][row];
+	}
+
+	/**
+	 * Returns a cursor over the rows held, for code reading series from a
+	 * {@link PlotterDataProvider}.
+	 *
+	 * @return the {@link SeriesCursor}
+	 */
+	public SeriesCursor cursor() {
+		return new SeriesCursor() {
+			int row = -1;
+
+			public boolean next() {
+				return ++row < size;
+			}
+
+			public long getTick() {
+				return ticks[row];
+			}
+
+			public double getValue(int column) {
+				return values[column][row];
+			}
+
+			public void close() {
+			}
+		};
+	}
+}
@@ -0,0 +1,247 @@
+package com.smartgrid.app.plotter;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ *
+ * Provides simulation data from another provider, timing each request for
+ * the {@link PlotDiagnostics} of a graph.
+ *
+ * The time until a request returns is counted as query time. For series,
+ * the time from then until the cursor is closed, i.e. reading the rows and
+ * adding them to the tables of the graph, is counted as parse time, along
+ * with the number of rows read.
+ *
+ * @version 1.1
+ */
+public class TimingDataProvider implements PlotterDataProvider {
+
+	/**
+	 * The provider of the data
+	 */
+	private PlotterDataProvider provider;
+
+	/**
+	 * The diagnostics the timings are recorded to
+	 */
+	private PlotDiagnostics diagnostics;
+
+	/**
+	 * Creates a provider timing the requests to the provider given.
+	 *
+	 * @param provider
+	 *            the provider of the data
+	 * @param diagnostics
+	 *            the diagnostics the timings are recorded to
+	 */
+	public TimingDataProvider(PlotterDataProvider provider,
+			PlotDiagnostics diagnostics) {
+		this.provider = provider;
+		this.diagnostics = diagnostics;
+	}
+
+	/**
+	 * Records the time taken by a request, and starts timing the reading of
+	 * the series it returned.
+	 *
+	 * @param start
+	 *            the time the request was made, from {@link System#nanoTime()}
+	 * @param cursor
+	 *            the series returned, or null
+	 * @return the cursor timing the series, or null
+	 */
+	private SeriesCursor timed(long start, final SeriesCursor cursor) {
+		final long returned = System.nanoTime();
+		diagnostics.recordQuery(returned - start);
+		if (cursor == null) {
+			return null;
+		}
+
+		return new SeriesCursor() {
+			long rows = 0;
+			boolean closed = false;
+
+			public boolean next() throws SQLException {
+				if (cursor.next()) {
+					rows++;
+					return true;
+				}
+				return false;
+			}
+
+			public long getTick() throws SQLException {
+				return cursor.getTick();
+			}
+
+			public double getValue(int column) throws SQLException {
+				return cursor.getValue(column);
+			}
+
+			public void close() throws SQLException {
+				cursor.close();
+				if (!closed) {
+					closed = true;
+					diagnostics.recordParse(System.nanoTime() - returned, rows);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Records the time taken by a request returning no series.
+	 *
+	 * @param start
+	 *            the time the request was made, from {@link System#nanoTime()}
+	 */
+	private void timed(long start) {
+		diagnostics.recordQuery(System.nanoTime() - start);
+	}
+
+	public boolean open() {
+		long start = System.nanoTime();
+		boolean opened = provider.open();
+		timed(start);
+		return opened;
+	}
+
+	public void close() {
+		provider.close();
+	}
+
+	public void cancel() {
+		provider.cancel();
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID) {
+		long start = System.nanoTime();
+		return timed(start, provider.getAggregatorSeries(runID));
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution) {
+		long start = System.nanoTime();
+		return timed(start, provider.getAggregatorSeries(runID, fromTick,
+				toTick, resolution));
+	}
+
+	public SeriesCursor getAggregatorSeries(int runID, long fromTick,
+			long toTick, long resolution, String aggregate) {
+		long start = System.nanoTime();
+		return timed(start, provider.getAggregatorSeries(runID, fromTick,
+				toTick, resolution, aggregate));
+	}
+
+	public SeriesCursor getPolicyRandomSeries(int runID, int policyID) {
+		long start = System.nanoTime();
+		return timed(start, provider.getPolicyRandomSeries(runID, policyID));
+	}
+
+	public int getPolicyRandomHousehold(int runID, int policyID) {
+		long start = System.nanoTime();
+		int householdID = provider.getPolicyRandomHousehold(runID, policyID);
+		timed(start);
+		return householdID;
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution) {
+		long start = System.nanoTime();
+		return timed(start, provider.getHouseholdSeries(runID, householdID,
+				fromTick, toTick, resolution));
+	}
+
+	public SeriesCursor getHouseholdSeries(int runID, int householdID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		long start = System.nanoTime();
+		return timed(start, provider.getHouseholdSeries(runID, householdID,
+				fromTick, toTick, resolution, aggregate));
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID) {
+		long start = System.nanoTime();
+		return timed(start, provider.getPolicyAverageSeries(runID, policyID));
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution) {
+		long start = System.nanoTime();
+		return timed(start, provider.getPolicyAverageSeries(runID, policyID,
+				fromTick, toTick, resolution));
+	}
+
+	public SeriesCursor getPolicyAverageSeries(int runID, int policyID,
+			long fromTick, long toTick, long resolution, String aggregate) {
+		long start = System.nanoTime();
+		return timed(start, provider.getPolicyAverageSeries(runID, policyID,
+				fromTick, toTick, resolution, aggregate));
+	}
+
+	public long[] getTickBounds(int runID) {
+		long start = System.nanoTime();
+		long[] bounds = provider.getTickBounds(runID);
+		timed(start);
+		return bounds;
+	}
+
+	public RunSummary getRunSummary(int runID) {
+		long start = System.nanoTime();
+		RunSummary summary = provider.getRunSummary(runID);
+		timed(start);
+		return summary;
+	}
+
+	public ArrayList<Integer> getRunPolicies(int runID) {
+		long start = System.nanoTime();
+		ArrayList<Integer> policies = provider.getRunPolicies(runID);
+		timed(start);
+		return policies;
+	}
+
+	public HashMap<Integer, Integer> getHouseholdPolicies(int runID) {
+		long start = System.nanoTime();
+		HashMap<Integer, Integer> policies = provider
+				.getHouseholdPolicies(runID);
+		timed(start);
+		return policies;
+	}
+
+	public SeriesCursor getHouseholdsSeries(int runID) {
+		long start = System.nanoTime();
+		return timed(start, provider.getHouseholdsSeries(runID));
+	}
+
+	public SeriesCursor getPolicyShareSeries(int runID, long resolution) {
+		long start = System.nanoTime();
+		return timed(start, provider.getPolicyShareSeries(runID, resolution));
+	}
+
+	public HashMap<Integer, String> getRuns() {
+		long start = System.nanoTime();
+		HashMap<Integer, String> runs = provider.getRuns();
+		timed(start);
+		return runs;
+	}
+
+	public ArrayList<Double> getPrices(int runID) {
+		long start = System.nanoTime();
+		ArrayList<Double> prices = provider.getPrices(runID);
+		timed(start);
+		return prices;
+	}
+
+	public String getPolicyInfo(int policyID) {
+		long start = System.nanoTime();
+		String info = provider.getPolicyInfo(policyID);
+		timed(start);
+		return info;
+	}
+
+	public String getRunInfo(int runID) {
+		long start = System.nanoTime();
+		String info = provider.getRunInfo(runID);
+		timed(start);
+		return info;
+	}
+}
@@ -0,0 +1,1074 @@
+package com.smartgrid.app.plotter;
+
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import de.erichseifert.gral.data.DataTable;
+import de.erichseifert.gral.plots.XYPlot;
+import de.erichseifert.gral.plots.axes.Axis;
+import de.erichseifert.gral.plots.axes.AxisListener;
+
+/**
+ *
+ * Loads the series of a graph lazily, depending on the time range that is
+ * visible in its plot windows.
+ *
+ * The graphs first load an overview of the whole run, averaged into a few
+ * thousand buckets. When the user zooms in far enough on a plot, the ticks
+ * visible are loaded at full resolution, in fixed size chunks, and replace
+ * the overview in that range. Chunks that are no longer near any visible
+ * range are dropped again.
+ *
+ * The series can also be viewed at a coarser {@link Granularity}, with the
+ * ticks of each bucket averaged or reduced to their lowest or highest values
+ * by the DB. Switching granularity reloads the overviews and the visible
+ * chunks only, at the chosen granularity.
+ *
+ * The overview and the chunks are held as {@link CompressedSeries} and
+ * decoded in order into the tables whenever these are refilled.
+ *
+ * The data of all the loaders is accounted for by the shared
+ * {@link MemoryBudget}: loaders whose windows have not been viewed recently
+ * drop their chunks, and then their overviews, and reload them when one of
+ * their windows is viewed again.
+ *
+ * When the last window of the loader is closed, the retrieval in progress is
+ * cancelled and the loader stops.
+ *
+ * @version 1.1
+ */
+public class ViewportLoader implements MemoryBudget.Consumer {
+
+	/**
+	 * The number of buckets the overview of a run is averaged into
+	 */
+	public static final int OVERVIEW_POINTS = 2000;
+
+	/**
+	 * The maximum number of ticks visible for them to be loaded at full
+	 * resolution
+	 */
+	public static final int DETAIL_POINTS = 20000;
+
+	/**
+	 * The number of ticks loaded at a time
+	 */
+	public static final int CHUNK_POINTS = 4096;
+
+	/**
+	 * The delay, in milliseconds, after the last pan or zoom before loading
+	 */
+	private static final int DELAY = 250;
+
+	/**
+	 * The estimated number of bytes of memory used by a row of a table
+	 */
+	static final int TABLE_ROW_BYTES = 96;
+
+	/**
+	 * Retrieves a range of a series at full resolution.
+	 */
+	public interface RangeFetcher {
+
+		/**
+		 * Retrieves a range of ticks of the series.
+		 *
+		 * @param p
+		 *            the open provider of the simulation data
+		 * @param fromTick
+		 *            the first tick retrieved
+		 * @param toTick
+		 *            the last tick retrieved
+		 * @param resolution
+		 *            the duration of the buckets in milliseconds, or 0 for
+		 *            every tick
+		 * @param aggregate
+		 *            the function the ticks of a bucket are reduced with, one
+		 *            of {@link Granularity#AGGREGATES}
+		 * @return the {@link SeriesCursor}, or null if there is no data
+		 */
+		public SeriesCursor fetch(PlotterDataProvider p, long fromTick,
+				long toTick, long resolution, String aggregate);
+	}
+
+	/**
+	 * A task run on the background thread of the loader.
+	 */
+	public interface Task {
+
+		/**
+		 * Runs the task.
+		 *
+		 * @param p
+		 *            the open provider of the simulation data
+		 */
+		public void run(PlotterDataProvider p);
+	}
+
+	/**
+	 * A series of the graph: how to fetch it, its overview, the chunks loaded
+	 * at full resolution and the tables it is shown through. The overview is
+	 * null while evicted, and is an estimate until exact is set.
+	 */
+	private static class Source {
+
+		RangeFetcher fetcher;
+
+		CompressedSeries overview;
+
+		DataTable[] tables;
+
+		int[] columns;
+
+		boolean[] integer;
+
+		boolean[] integerColumns;
+
+		TreeMap<Long, CompressedSeries> chunks = new TreeMap<Long, CompressedSeries>();
+
+		volatile int rows;
+
+		boolean exact;
+	}
+
+	/**
+	 * The provider the full resolution ranges are loaded from
+	 */
+	private PlotterDataProvider provider;
+
+	/**
+	 * The first tick, last tick and number of ticks of the run
+	 */
+	private long[] bounds;
+
+	/**
+	 * The resolution the overviews are loaded at
+	 */
+	private long resolution;
+
+	/**
+	 * The granularity chosen, as the duration of the buckets in milliseconds,
+	 * or 0 for every tick
+	 */
+	private volatile long interval;
+
+	/**
+	 * The function the ticks of a bucket are reduced with
+	 */
+	private volatile String aggregate = Granularity.AVG;
+
+	/**
+	 * The average time, in milliseconds, between two ticks of the run
+	 */
+	private long tickInterval;
+
+	/**
+	 * The duration, in milliseconds, of a chunk of ticks
+	 */
+	private long chunkSpan;
+
+	/**
+	 * The largest visible duration, in milliseconds, that is loaded at full
+	 * resolution
+	 */
+	private long detailSpan;
+
+	/**
+	 * The series of the graph
+	 */
+	private ArrayList<Source> sources;
+
+	/**
+	 * The time axes of the plots shown
+	 */
+	private ArrayList<Axis> axes;
+
+	/**
+	 * The number of windows open that show the plots
+	 */
+	private int windows;
+
+	/**
+	 * Whether the overviews have been evicted and not reloaded yet
+	 */
+	private volatile boolean evicted;
+
+	/**
+	 * Whether all the windows have been closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Delays loading until panning or zooming stops
+	 */
+	private Timer timer;
+
+	/**
+	 * The background thread the ranges are loaded on
+	 */
+	private ExecutorService worker;
+
+	/**
+	 * Creates a new loader for a run.
+	 *
+	 * @param p
+	 *            the provider the ranges are loaded from; it is opened for each
+	 *            load and closed afterwards
+	 * @param bounds
+	 *            the first tick, last tick and number of ticks of the run, as
+	 *            returned by {@link PlotterDataProvider#getTickBounds(int)},
+	 *            or null if the run has no ticks
+	 */
+	public ViewportLoader(PlotterDataProvider p, long[] bounds) {
+
+		// a run without ticks has no range to load
+		if (bounds == null) {
+			bounds = new long[] { 0, 0, 0 };
+		}
+
+		this.provider = p;
+		this.bounds = bounds;
+		this.resolution = overviewResolution(bounds);
+
+		// the average time between two ticks
+		tickInterval = Math.max(1, (bounds[1] - bounds[0])
+				/ Math.max(1, bounds[2] - 1));
+		chunkSpan = tickInterval * CHUNK_POINTS;
+		detailSpan = tickInterval * DETAIL_POINTS;
+
+		sources = new ArrayList<Source>();
+		axes = new ArrayList<Axis>();
+
+		timer = new Timer(DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				update();
+			}
+		});
+		timer.setRepeats(false);
+
+		worker = newWorker();
+	}
+
+	/**
+	 * Creates the background thread the ranges are loaded on.
+	 */
+	private static ExecutorService newWorker() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "viewport-loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the resolution the overview of a run is loaded at, so that it
+	 * holds about {@link #OVERVIEW_POINTS} buckets.
+	 *
+	 * @param bounds
+	 *            the first tick, last tick and number of ticks of the run
+	 * @return the duration of the buckets in milliseconds (rounded to whole
+	 *         seconds), or 0 if the run is short enough to load every tick
+	 */
+	public static long overviewResolution(long[] bounds) {
+		if (bounds == null || bounds[2] <= OVERVIEW_POINTS) {
+			return 0;
+		}
+
+		long resolution = (bounds[1] - bounds[0]) / OVERVIEW_POINTS;
+		return Math.max(1000, resolution / 1000 * 1000);
+	}
+
+	/**
+	 * Adds a series whose tables are updated as the visible range changes.
+	 *
+	 * @param fetcher
+	 *            retrieves ranges of the series at full resolution
+	 * @param overview
+	 *            the overview of the series, shown where no full resolution
+	 *            chunk is loaded
+	 * @param tables
+	 *            the tables the series is shown through, each holding the
+	 *            tick and one value
+	 * @param columns
+	 *            the series column shown by each table
+	 * @param integer
+	 *            whether each table holds integer rather than double values
+	 * @return the position of the series, for {@link #setOverview}
+	 */
+	public int addSource(RangeFetcher fetcher, TickColumns overview,
+			DataTable[] tables, int[] columns, boolean[] integer) {
+		return addSource(fetcher, overview, tables, columns, integer, true);
+	}
+
+	/**
+	 * Adds a series whose tables are updated as the visible range changes,
+	 * starting from an overview that may be an estimate.
+	 *
+	 * @param fetcher
+	 *            retrieves ranges of the series at full resolution
+	 * @param overview
+	 *            the overview of the series, shown where no full resolution
+	 *            chunk is loaded
+	 * @param tables
+	 *            the tables the series is shown through, each holding the
+	 *            tick and one value
+	 * @param columns
+	 *            the series column shown by each table
+	 * @param integer
+	 *            whether each table holds integer rather than double values
+	 * @param exact
+	 *            false if the overview is an estimate, to be replaced through
+	 *            {@link #setOverview}
+	 * @return the position of the series, for {@link #setOverview}
+	 */
+	public int addSource(RangeFetcher fetcher, TickColumns overview,
+			DataTable[] tables, int[] columns, boolean[] integer,
+			boolean exact) {
+		Source source = new Source();
+		source.exact = exact;
+		source.fetcher = fetcher;
+		source.tables = tables;
+		source.columns = columns;
+		source.integer = integer;
+		source.rows = overview.size();
+
+		// series columns only shown as integers are stored as runs
+		source.integerColumns = new boolean[overview.getColumnCount()];
+		for (int t = 0; t < tables.length; t++) {
+			source.integerColumns[columns[t]] |= integer[t];
+		}
+		source.overview = compress(overview, source.integerColumns);
+		sources.add(source);
+		return sources.size() - 1;
+	}
+
+	/**
+	 * Replaces the overview of a series, such as an estimate by a closer one,
+	 * and refills its tables. An estimate is ignored once the series has an
+	 * exact overview, which it gets when its overview is reloaded after an
+	 * eviction.
+	 *
+	 * @param index
+	 *            the position of the series, as returned by addSource
+	 * @param overview
+	 *            the new overview; columns beyond those of the series are
+	 *            ignored
+	 * @param exact
+	 *            false if the overview is an estimate
+	 * @return true if the overview was replaced, false if it was ignored,
+	 *         as it is once another granularity has been chosen
+	 */
+	public boolean setOverview(int index, TickColumns overview, boolean exact) {
+		Source source = sources.get(index);
+		CompressedSeries series = compress(overview, source.integerColumns);
+		synchronized (source) {
+			if (closed || evicted || (source.exact && !exact)
+					|| interval != 0 || !aggregate.equals(Granularity.AVG)) {
+				return false;
+			}
+			source.overview = series;
+			source.exact = exact;
+		}
+		refill(source);
+		return true;
+	}
+
+	/**
+	 * Returns the resolution the overviews are loaded at.
+	 *
+	 * @return the duration of the buckets in milliseconds, or 0 if the
+	 *         overviews hold every tick
+	 */
+	public long getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Returns the granularity the series are viewed at.
+	 *
+	 * @return the duration of the buckets in milliseconds, or 0 for every
+	 *         tick
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the function the ticks of a bucket are reduced with.
+	 *
+	 * @return one of {@link Granularity#AGGREGATES}
+	 */
+	public String getAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * Views the series at another granularity: drops the chunks loaded and
+	 * reloads the overviews and the visible chunks in the background, in
+	 * buckets of the duration given, reduced by the function given.
+	 *
+	 * The overviews are loaded at the coarser of the granularity and their
+	 * usual resolution; the chunks, at the granularity, once the visible
+	 * range is narrow enough for the buckets to be worth loading.
+	 *
+	 * @param interval
+	 *            the duration of the buckets in milliseconds, or 0 for every
+	 *            tick
+	 * @param aggregate
+	 *            the function the ticks of a bucket are reduced with, one of
+	 *            {@link Granularity#AGGREGATES}
+	 */
+	public void setGranularity(long interval, String aggregate) {
+		aggregate = Granularity.aggregate(aggregate);
+		if (closed || interval == this.interval
+				&& aggregate.equals(this.aggregate)) {
+			return;
+		}
+		this.interval = interval;
+		this.aggregate = aggregate;
+
+		try {
+			worker.execute(new Runnable() {
+				public void run() {
+					// the overviews are reloaded like after an eviction, at
+					// the new granularity
+					for (Source source : sources) {
+						synchronized (source) {
+							source.chunks.clear();
+						}
+					}
+					if (!evicted) {
+						evicted = true;
+						reload();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the loader has stopped meanwhile
+		}
+		timer.restart();
+	}
+
+	/**
+	 * Runs a task on the background thread the ranges are loaded on, with
+	 * the provider opened, so that it does not use the provider at the same
+	 * time as a load. Tasks submitted after the loader has stopped are
+	 * dropped.
+	 *
+	 * @param task
+	 *            the task run
+	 */
+	public void submit(final Task task) {
+		if (closed) {
+			return;
+		}
+		try {
+			worker.execute(new Runnable() {
+				public void run() {
+					if (closed || !provider.open()) {
+						return;
+					}
+					try {
+						task.run(provider);
+					} finally {
+						provider.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the loader has stopped meanwhile
+		}
+	}
+
+	/**
+	 * Reads a whole series at full resolution, for the views that need every
+	 * tick of the run rather than those visible. The series is read on the
+	 * background thread of the loader, with the provider opened, so that it
+	 * does not use the provider at the same time as a load, and the caller
+	 * waits for it.
+	 *
+	 * @param fetcher
+	 *            retrieves ranges of the series
+	 * @param columns
+	 *            the number of value columns of the series
+	 * @return the columns of the series
+	 * @throws SQLException
+	 *             if the series cannot be retrieved
+	 */
+	public TickColumns read(final RangeFetcher fetcher, final int columns)
+			throws SQLException {
+
+		Future<TickColumns> result = null;
+		try {
+			result = worker.submit(new Callable<TickColumns>() {
+				public TickColumns call() throws SQLException {
+					return readAll(fetcher, columns);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the loader has stopped, so the provider is free once the load
+			// cancelled, if any, has returned
+			try {
+				worker.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while reading the series");
+			}
+			return readAll(fetcher, columns);
+		}
+
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while reading the series");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Reads a whole series at full resolution over the provider.
+	 *
+	 * @param fetcher
+	 *            retrieves ranges of the series
+	 * @param columns
+	 *            the number of value columns of the series
+	 * @return the columns of the series
+	 * @throws SQLException
+	 *             if the series cannot be retrieved
+	 */
+	private TickColumns readAll(RangeFetcher fetcher, int columns)
+			throws SQLException {
+		if (!provider.open()) {
+			throw new SQLException("No connection to the DB");
+		}
+		try {
+			return TickColumns.read(fetcher.fetch(provider, bounds[0],
+					bounds[1], 0, Granularity.AVG), columns);
+		} finally {
+			provider.close();
+		}
+	}
+
+	/**
+	 * Compresses the leading columns of a series.
+	 *
+	 * @param data
+	 *            the series
+	 * @param integer
+	 *            whether each of the leading columns holds integers
+	 * @return the compressed series
+	 */
+	private static CompressedSeries compress(TickColumns data,
+			boolean[] integer) {
+		if (data.getColumnCount() == integer.length) {
+			return CompressedSeries.of(data, integer);
+		}
+		CompressedSeries series = new CompressedSeries(integer);
+		double[] row = new double[integer.length];
+		for (int r = 0; r < data.size(); r++) {
+			for (int c = 0; c < row.length; c++) {
+				row[c] = data.getValue(c, r);
+			}
+			series.add(data.getTick(r), row);
+		}
+		series.trim();
+		return series;
+	}
+
+	/**
+	 * Starts following the visible time range of a plot, and accounting for
+	 * the loader's data while its window is open. A loader that has stopped,
+	 * as all its windows were closed, is started again and reloads its
+	 * overviews.
+	 *
+	 * @param plot
+	 *            the plot whose X axis is followed
+	 * @param window
+	 *            the window the plot is shown in
+	 */
+	public void attach(XYPlot plot, Window window) {
+		if (closed) {
+			restart();
+		}
+
+		final Axis axis = plot.getAxis(XYPlot.AXIS_X);
+		axes.add(axis);
+		axis.addAxisListener(new AxisListener() {
+			public void rangeChanged(Axis axis, Number min, Number max) {
+				timer.restart();
+			}
+		});
+
+		window.addWindowListener(new WindowAdapter() {
+			public void windowActivated(WindowEvent e) {
+				viewed();
+			}
+
+			public void windowClosed(WindowEvent e) {
+				axes.remove(axis);
+				if (--windows == 0) {
+					close();
+				}
+			}
+		});
+		if (windows++ == 0) {
+			MemoryBudget.getInstance().register(this);
+		}
+	}
+
+	/**
+	 * Stops the loader once none of its plots is shown: cancels the retrieval
+	 * in progress, drops the pending loads and releases the data held.
+	 */
+	private void close() {
+		closed = true;
+		timer.stop();
+		worker.shutdownNow();
+		provider.cancel();
+
+		MemoryBudget.getInstance().unregister(this);
+		for (Source source : sources) {
+			synchronized (source) {
+				source.chunks.clear();
+				source.overview = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts a stopped loader again, such as when a cached graph is shown
+	 * anew: the overviews released when it stopped are reloaded in the
+	 * background.
+	 */
+	private void restart() {
+		final ExecutorService stopped = worker;
+		worker = newWorker();
+		evicted = true;
+		closed = false;
+		worker.execute(new Runnable() {
+			public void run() {
+				// the load cancelled when the loader stopped may still be
+				// using the provider
+				try {
+					stopped.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					return;
+				}
+				reload();
+			}
+		});
+	}
+
+	/**
+	 * Marks the loader as the most recently viewed, and reloads the overviews
+	 * if they have been evicted.
+	 */
+	private void viewed() {
+		MemoryBudget.getInstance().touch(this);
+		if (evicted) {
+			worker.execute(new Runnable() {
+				public void run() {
+					reload();
+				}
+			});
+		}
+		timer.restart();
+	}
+
+	public long getByteSize() {
+		long bytes = 0;
+		for (Source source : sources) {
+			synchronized (source) {
+				if (source.overview != null) {
+					bytes += source.overview.getByteSize();
+				}
+				for (CompressedSeries chunk : source.chunks.values()) {
+					bytes += chunk.getByteSize();
+				}
+			}
+			bytes += (long) source.rows * source.tables.length
+					* TABLE_ROW_BYTES;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Drops the chunks loaded at full resolution, leaving the overviews.
+	 */
+	public void downgrade() {
+		for (Source source : sources) {
+			synchronized (source) {
+				if (source.chunks.isEmpty()) {
+					continue;
+				}
+				source.chunks.clear();
+			}
+			refill(source);
+		}
+	}
+
+	/**
+	 * Drops the chunks and the overviews, emptying the tables.
+	 */
+	public void evict() {
+		evicted = true;
+		for (Source source : sources) {
+			synchronized (source) {
+				source.chunks.clear();
+				source.overview = null;
+			}
+			source.rows = 0;
+			refill(source);
+		}
+	}
+
+	/**
+	 * Loads the overviews again after they have been evicted. Runs on the
+	 * background thread.
+	 */
+	private void reload() {
+		if (closed || !evicted || !provider.open()) {
+			return;
+		}
+		evicted = false;
+
+		for (Source source : sources) {
+			if (closed) {
+				break;
+			}
+			SeriesCursor cursor = source.fetcher.fetch(provider, bounds[0],
+					bounds[1], Math.max(resolution, interval), aggregate);
+			if (cursor == null) {
+				continue;
+			}
+
+			CompressedSeries overview = null;
+			try {
+				overview = CompressedSeries.read(cursor, source.integerColumns);
+			} catch (SQLException e) {
+				System.out.println("SQL Exception: " + e.toString());
+				continue;
+			}
+
+			synchronized (source) {
+				if (closed) {
+					break;
+				}
+				source.overview = overview;
+				source.exact = true;
+			}
+			refill(source);
+		}
+		provider.close();
+
+		MemoryBudget.getInstance().enforce();
+	}
+
+	/**
+	 * Works out which chunks are needed for the visible ranges of all the
+	 * plots and loads them in the background.
+	 */
+	private void update() {
+
+		// the chunks visible at full resolution and the chunks worth keeping
+		final TreeSet<Long> wanted = new TreeSet<Long>();
+		final TreeSet<Long> kept = new TreeSet<Long>();
+
+		for (Axis axis : axes) {
+			if (axis.getMin() == null || axis.getMax() == null) {
+				continue;
+			}
+			long min = axis.getMin().longValue();
+			long max = axis.getMax().longValue();
+			long span = max - min;
+
+			// the overview holds the buckets already if they are as coarse
+			if (span > detailSpan * Math.max(1, interval / tickInterval)
+					|| interval >= resolution) {
+				continue;
+			}
+
+			for (long k = chunk(min); k <= chunk(max); k++) {
+				wanted.add(k);
+			}
+			for (long k = chunk(min - span); k <= chunk(max + span); k++) {
+				kept.add(k);
+			}
+		}
+
+		worker.execute(new Runnable() {
+			public void run() {
+				load(wanted, kept);
+			}
+		});
+	}
+
+	/**
+	 * Drops the chunks no longer kept and loads the missing ones that are
+	 * wanted. Runs on the background thread.
+	 *
+	 * @param wanted
+	 *            the chunks needed at full resolution
+	 * @param kept
+	 *            the chunks that may be kept
+	 */
+	private void load(TreeSet<Long> wanted, TreeSet<Long> kept) {
+
+		// nothing is shown until the overviews are reloaded
+		if (evicted || closed) {
+			return;
+		}
+
+		// the runs of adjacent missing chunks of each series
+		ArrayList<ArrayList<long[]>> missing = new ArrayList<ArrayList<long[]>>();
+		boolean[] changed = new boolean[sources.size()];
+		boolean fetching = false;
+
+		for (int s = 0; s < sources.size(); s++) {
+			Source source = sources.get(s);
+			ArrayList<long[]> runs = new ArrayList<long[]>();
+
+			synchronized (source) {
+				// evict the chunks that are not near any visible range
+				Iterator<Long> it = source.chunks.keySet().iterator();
+				while (it.hasNext()) {
+					if (!kept.contains(it.next())) {
+						it.remove();
+						changed[s] = true;
+					}
+				}
+
+				long[] run = null;
+				for (long k : wanted) {
+					if (source.chunks.containsKey(k)) {
+						run = null;
+					} else if (run != null && k == run[1] + 1) {
+						run[1] = k;
+					} else {
+						run = new long[] { k, k };
+						runs.add(run);
+					}
+				}
+			}
+
+			missing.add(runs);
+			fetching |= !runs.isEmpty();
+		}
+
+		// fetch the missing chunks over a single connection
+		if (fetching && provider.open()) {
+			for (int s = 0; s < sources.size(); s++) {
+				for (long[] run : missing.get(s)) {
+					if (closed) {
+						break;
+					}
+					changed[s] |= fetch(sources.get(s), run[0], run[1]);
+				}
+			}
+			provider.close();
+		}
+
+		for (int s = 0; s < sources.size(); s++) {
+			if (changed[s]) {
+				refill(sources.get(s));
+			}
+		}
+
+		MemoryBudget.getInstance().enforce();
+	}
+
+	/**
+	 * Refills the tables of a series on the event dispatch thread.
+	 *
+	 * @param source
+	 *            the series refilled
+	 */
+	private void refill(final Source source) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				rebuild(source);
+			}
+		});
+	}
+
+	/**
+	 * Loads a run of adjacent chunks of a series at full resolution, or at
+	 * the granularity chosen.
+	 *
+	 * @param source
+	 *            the series loaded
+	 * @param first
+	 *            the first chunk loaded
+	 * @param last
+	 *            the last chunk loaded
+	 * @return true if any data was loaded, false otherwise
+	 */
+	private boolean fetch(Source source, long first, long last) {
+
+		// the last bucket is completed past the last chunk, as its tick falls
+		// within it; the first one, whose tick falls before the first chunk,
+		// is left to the chunk before
+		long toTick = (last + 1) * chunkSpan - 1;
+		if (interval > 0) {
+			toTick = ((last + 1) * chunkSpan + interval - 1) / interval
+					* interval - 1;
+		}
+
+		SeriesCursor cursor = source.fetcher.fetch(provider,
+				first * chunkSpan, toTick, interval, aggregate);
+		if (cursor == null) {
+			return false;
+		}
+
+		// compress the rows into their chunks as they are read
+		TreeMap<Long, CompressedSeries> loaded = new TreeMap<Long, CompressedSeries>();
+		for (long k = first; k <= last; k++) {
+			loaded.put(k, new CompressedSeries(source.integerColumns));
+		}
+		double[] row = new double[source.integerColumns.length];
+		try {
+			try {
+				while (cursor.next()) {
+					CompressedSeries chunk = loaded.get(chunk(cursor.getTick()));
+					if (chunk != null) {
+						for (int c = 0; c < row.length; c++) {
+							row[c] = cursor.getValue(c);
+						}
+						chunk.add(cursor.getTick(), row);
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (SQLException e) {
+			System.out.println("SQL Exception: " + e.toString());
+			return false;
+		}
+		for (CompressedSeries chunk : loaded.values()) {
+			chunk.trim();
+		}
+
+		synchronized (source) {
+			if (closed) {
+				return false;
+			}
+			source.chunks.putAll(loaded);
+		}
+		return true;
+	}
+
+	/**
+	 * Refills the tables of a series with the overview, replaced by the full
+	 * resolution chunks where they are loaded. Runs on the event dispatch
+	 * thread.
+	 *
+	 * @param source
+	 *            the series refilled
+	 */
+	private void rebuild(Source source) {
+
+		TreeMap<Long, CompressedSeries> chunks = null;
+		CompressedSeries.Reader overview = null;
+		synchronized (source) {
+			chunks = new TreeMap<Long, CompressedSeries>(source.chunks);
+			if (source.overview != null) {
+				overview = source.overview.reader();
+			}
+		}
+
+		for (DataTable table : source.tables) {
+			table.clear();
+		}
+		if (overview == null) {
+			source.rows = 0;
+			return;
+		}
+
+		// merge the overview and the chunks in tick order
+		boolean more = overview.next();
+		for (Map.Entry<Long, CompressedSeries> entry : chunks.entrySet()) {
+			long start = entry.getKey() * chunkSpan;
+			while (more && overview.getTick() < start) {
+				if (!chunks.containsKey(chunk(overview.getTick()))) {
+					add(source, overview);
+				}
+				more = overview.next();
+			}
+
+			CompressedSeries.Reader chunk = entry.getValue().reader();
+			while (chunk.next()) {
+				add(source, chunk);
+			}
+		}
+		for (; more; more = overview.next()) {
+			if (!chunks.containsKey(chunk(overview.getTick()))) {
+				add(source, overview);
+			}
+		}
+		source.rows = source.tables.length > 0 ? source.tables[0]
+				.getRowCount() : 0;
+	}
+
+	/**
+	 * Adds the current row of a reader to each table of a series.
+	 *
+	 * @param source
+	 *            the series
+	 * @param data
+	 *            the reader positioned on the row added
+	 */
+	private void add(Source source, CompressedSeries.Reader data) {
+		long tick = data.getTick();
+		for (int t = 0; t < source.tables.length; t++) {
+			double value = data.getValue(source.columns[t]);
+			if (source.integer[t]) {
+				source.tables[t].add(tick, (int) value);
+			} else {
+				source.tables[t].add(tick, value);
+			}
+		}
+	}
+
+	/**
+	 * Returns the chunk a tick falls into.
+	 *
+	 * @param tick
+	 *            the tick
+	 * @return the number of the chunk
+	 */
+	private long chunk(long tick) {
+		long k = tick / chunkSpan;
+		if (tick < 0 && tick % chunkSpan != 0) {
+			k--;
+		}
+		return k;
+	}
+}